@@ -0,0 +1,719 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.FixedSize;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.RelayCommand;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_attach_return_code;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_attach_session_request;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_attach_session_response;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_cmd;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_command;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_connect;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_connection_type;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_get_metadata;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_get_metadata_return_code;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_get_next_index;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_get_packet;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_get_packet_return_code;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_index;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_list_sessions;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_metadata_packet;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_seek;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_trace_packet;
+
+/**
+ * Live viewer client for lttng-relayd 2.4 whose commands return a
+ * {@link CompletableFuture} instead of blocking the caller.
+ *
+ * The relay daemon answers the commands of a connection one after the other,
+ * in the order it received them, so several requests may be in flight and
+ * each reply belongs to the oldest request still unanswered. The client keeps
+ * these requests in a FIFO: the next bytes read always go to its head, which
+ * decodes them as they arrive and completes its future once its reply is
+ * whole. Metadata fetches, index polls and packet fetches can then overlap on
+ * one connection instead of waiting for each other.
+ *
+ * A private thread owns the socket: it encodes the queued requests, writes
+ * them, reads and decodes the replies. At most
+ * {@link #setMaxInFlight(int) max in flight} requests are written and not
+ * answered, the others wait in the queue. Packet and metadata data that is not
+ * already buffered is read straight into its destination.
+ *
+ * A request not answered within the {@link #setTimeout(long) timeout} after it
+ * was written fails with a {@link SocketTimeoutException}. Since the late
+ * reply would then be taken for the answer to the next request, the
+ * connection is closed and every other request fails too, as on a network
+ * error.
+ *
+ * Futures are completed, and their dependent stages run, on the I/O thread:
+ * they must not block, in particular not wait for another future of the same
+ * client. Reply objects given by the caller are filled before their future
+ * completes and must not be shared by requests in flight together.
+ *
+ * @author Matthew Khouzam
+ */
+public class AsyncViewerClient implements Closeable {
+
+    /** Default number of requests in flight */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+
+    /** Default time to wait for a reply, in milliseconds */
+    public static final long DEFAULT_TIMEOUT = ViewerClient.DEFAULT_TIMEOUT;
+
+    private static final int MAJOR = 2;
+    private static final int MINOR = 4;
+    /* Holds many requests, the biggest one is 36 bytes */
+    private static final int SEND_BUFFER_SIZE = 4096;
+    /* Needs to hold the biggest fixed size reply, lttng_viewer_stream */
+    private static final int RECEIVE_BUFFER_SIZE = 64 * 1024;
+
+    private final SocketChannel fChannel;
+    private final Selector fSelector;
+    private final SelectionKey fKey;
+    private final Thread fThread;
+    private final ByteBuffer fSend = ByteBuffer.allocateDirect(SEND_BUFFER_SIZE).order(ByteOrder.BIG_ENDIAN);
+    private final ByteBuffer fReceive = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE).order(ByteOrder.BIG_ENDIAN);
+    private final lttng_viewer_cmd fHeader = new lttng_viewer_cmd();
+    /* Submitted and not written yet, filled by any thread */
+    private final Queue<Request<?>> fQueued = new ConcurrentLinkedQueue<>();
+    /* Written and not answered, in the order of the replies, I/O thread only */
+    private final ArrayDeque<Request<?>> fInFlight = new ArrayDeque<>();
+    private final AtomicInteger fPending = new AtomicInteger();
+    private volatile int fMaxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private volatile long fTimeout = DEFAULT_TIMEOUT;
+    private volatile ViewerNames fNames = new ViewerNames();
+    private volatile ViewerMetrics fMetrics;
+    private volatile boolean fClosed;
+    private volatile IOException fError;
+
+    /**
+     * Open a viewer connection to a relay daemon
+     *
+     * @param host
+     *            the relayd host name or address
+     * @param port
+     *            the relayd viewer port, normally
+     *            {@link ViewerClient#DEFAULT_PORT}
+     * @return the client, not yet connected at the protocol level, see
+     *         {@link #connect()}
+     * @throws IOException
+     *             the socket could not be opened
+     */
+    public static AsyncViewerClient open(String host, int port) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+            return new AsyncViewerClient(channel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Wrap a connected socket and start the I/O thread
+     *
+     * @param channel
+     *            the socket to the relay daemon, switched to non-blocking
+     *            mode, it is owned by the client from now on
+     * @throws IOException
+     *             the selector could not be opened
+     */
+    public AsyncViewerClient(SocketChannel channel) throws IOException {
+        fChannel = channel;
+        channel.configureBlocking(false);
+        fSelector = Selector.open();
+        try {
+            fKey = channel.register(fSelector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            fSelector.close();
+            throw e;
+        }
+        fThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "Viewer requests to " + channel.getRemoteAddress()); //$NON-NLS-1$
+        fThread.setDaemon(true);
+        fThread.start();
+    }
+
+    /**
+     * Set the time to wait for a reply
+     *
+     * @param timeout
+     *            in milliseconds from the moment the request is written, 0
+     *            waits forever. Applies to the requests written afterwards.
+     */
+    public void setTimeout(long timeout) {
+        fTimeout = timeout;
+    }
+
+    /**
+     * Set the most requests written and not answered. The other ones wait in
+     * the queue, their timeout not running yet.
+     *
+     * @param max
+     *            the limit, 1 or more. 1 sends a request once the previous one
+     *            is answered, like {@link ViewerClient}.
+     */
+    public void setMaxInFlight(int max) {
+        if (max <= 0) {
+            throw new IllegalArgumentException("At least one request must be in flight"); //$NON-NLS-1$
+        }
+        fMaxInFlight = max;
+        fSelector.wakeup();
+    }
+
+    /**
+     * Share a name pool between clients
+     *
+     * @param names
+     *            the pool used to decode session and stream names
+     */
+    public void setNames(ViewerNames names) {
+        fNames = names;
+    }
+
+    /**
+     * Record round trips, from the moment a request is written to its reply,
+     * and replies
+     *
+     * @param metrics
+     *            where to record, may be shared between clients, null to stop
+     *            recording
+     */
+    public void setMetrics(ViewerMetrics metrics) {
+        fMetrics = metrics;
+    }
+
+    /**
+     * @return the number of requests submitted and not completed, queued or
+     *         in flight
+     */
+    public int getPending() {
+        return fPending.get();
+    }
+
+    /**
+     * @return whether the connection is usable, false once closed, timed out
+     *         or failed
+     */
+    public boolean isOpen() {
+        return !fClosed;
+    }
+
+    // ------------------------------------------------------------------------
+    // Commands
+    // ------------------------------------------------------------------------
+
+    /**
+     * Send VIEWER_CONNECT as a command connection
+     *
+     * @return the viewer session id, fails with an IOException if the relayd
+     *         does not speak 2.x
+     */
+    public CompletableFuture<Long> connect() {
+        final lttng_viewer_connect connect = new lttng_viewer_connect();
+        connect.viewer_session_id = 0;
+        connect.major = MAJOR;
+        connect.minor = MINOR;
+        connect.type = lttng_viewer_connection_type.VIEWER_CLIENT_COMMAND;
+        return submit(new Request<Long>(lttng_viewer_command.VIEWER_CONNECT, connect) {
+            @Override
+            boolean decode(ByteBuffer rx) throws IOException {
+                if (rx.remaining() < connect.size()) {
+                    return false;
+                }
+                connect.readFrom(rx);
+                if (connect.major != MAJOR) {
+                    throw new IOException("Unsupported relayd major version " + connect.major); //$NON-NLS-1$
+                }
+                fResult = Long.valueOf(connect.viewer_session_id);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Send VIEWER_LIST_SESSIONS
+     *
+     * @return the sessions
+     */
+    public CompletableFuture<ViewerSession[]> listSessions() {
+        return submit(new Request<ViewerSession[]>(lttng_viewer_command.VIEWER_LIST_SESSIONS, null) {
+            private final ViewerSession.View fView = new ViewerSession.View();
+            private int fRead;
+
+            @Override
+            boolean decode(ByteBuffer rx) {
+                if (fResult == null) {
+                    if (rx.remaining() < lttng_viewer_list_sessions.FIXED_SIZE) {
+                        return false;
+                    }
+                    lttng_viewer_list_sessions list = new lttng_viewer_list_sessions();
+                    list.readFrom(rx);
+                    fResult = new ViewerSession[list.sessions_count];
+                }
+                while (fRead < fResult.length && rx.remaining() >= ViewerSession.SIZE) {
+                    fResult[fRead++] = fView.wrap(rx, rx.position()).toSession(fNames);
+                    rx.position(rx.position() + ViewerSession.SIZE);
+                }
+                return fRead == fResult.length;
+            }
+        });
+    }
+
+    /**
+     * Send VIEWER_ATTACH_SESSION. The streams are only read if the attach
+     * succeeded.
+     *
+     * @param sessionId
+     *            the session id from {@link #listSessions()}
+     * @param seek
+     *            where to start reading the trace
+     * @return the attach status and streams
+     */
+    public CompletableFuture<AttachedSession> attachSession(final long sessionId, lttng_viewer_seek seek) {
+        lttng_viewer_attach_session_request attach = new lttng_viewer_attach_session_request();
+        attach.session_id = sessionId;
+        attach.offset = 0;
+        attach.seek = seek;
+        return submit(new Request<AttachedSession>(lttng_viewer_command.VIEWER_ATTACH_SESSION, attach) {
+            private final ViewerStream.View fView = new ViewerStream.View();
+            private lttng_viewer_attach_session_response fResponse;
+            private ViewerStream[] fStreams;
+            private int fRead;
+
+            @Override
+            boolean decode(ByteBuffer rx) {
+                if (fResponse == null) {
+                    if (rx.remaining() < lttng_viewer_attach_session_response.FIXED_SIZE) {
+                        return false;
+                    }
+                    fResponse = new lttng_viewer_attach_session_response();
+                    fResponse.readFrom(rx);
+                    boolean ok = fResponse.status == lttng_viewer_attach_return_code.VIEWER_ATTACH_OK;
+                    fStreams = new ViewerStream[ok ? fResponse.streams_count : 0];
+                }
+                while (fRead < fStreams.length && rx.remaining() >= ViewerStream.SIZE) {
+                    fStreams[fRead++] = fView.wrap(rx, rx.position()).toStream(fNames);
+                    rx.position(rx.position() + ViewerStream.SIZE);
+                }
+                if (fRead < fStreams.length) {
+                    return false;
+                }
+                fResult = new AttachedSession(sessionId, fResponse.status, fStreams);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Send VIEWER_GET_NEXT_INDEX
+     *
+     * @param streamId
+     *            the stream to query
+     * @param reply
+     *            the index to fill
+     * @return reply, once filled
+     */
+    public CompletableFuture<lttng_viewer_index> getNextIndex(final long streamId, final lttng_viewer_index reply) {
+        lttng_viewer_get_next_index request = new lttng_viewer_get_next_index();
+        request.stream_id = streamId;
+        return submit(new Request<lttng_viewer_index>(lttng_viewer_command.VIEWER_GET_NEXT_INDEX, request) {
+            @Override
+            boolean decode(ByteBuffer rx) {
+                if (rx.remaining() < lttng_viewer_index.SIZE) {
+                    return false;
+                }
+                reply.readFrom(rx);
+                fResult = reply;
+                return true;
+            }
+
+            @Override
+            void record(ViewerMetrics metrics, long nanos) {
+                super.record(metrics, nanos);
+                metrics.onIndex(streamId, reply);
+            }
+        });
+    }
+
+    /**
+     * Send VIEWER_GET_PACKET for the packet of an index, into a pooled buffer
+     *
+     * @param streamId
+     *            the stream
+     * @param index
+     *            the index of the packet, only read by this call
+     * @param reply
+     *            the packet header to fill, its data field is not touched
+     * @param arena
+     *            where to take the buffer from
+     * @return the packet, owned by the caller who must release it, or null if
+     *         the status is not VIEWER_GET_PACKET_OK. A packet whose future
+     *         was cancelled is released by the client.
+     */
+    public CompletableFuture<PacketBuffer> getPacket(final long streamId, lttng_viewer_index index, final lttng_viewer_trace_packet reply, final PacketArena arena) {
+        final long offset = index.offset;
+        lttng_viewer_get_packet request = new lttng_viewer_get_packet();
+        request.stream_id = streamId;
+        request.offset = offset;
+        request.len = (int) (index.packet_size / 8);
+        return submit(new Request<PacketBuffer>(lttng_viewer_command.VIEWER_GET_PACKET, request) {
+            private boolean fHeaderRead;
+
+            @Override
+            boolean decode(ByteBuffer rx) {
+                if (!fHeaderRead) {
+                    if (rx.remaining() < lttng_viewer_trace_packet.FIXED_SIZE) {
+                        return false;
+                    }
+                    reply.readFrom(rx);
+                    fHeaderRead = true;
+                    if (reply.status != lttng_viewer_get_packet_return_code.VIEWER_GET_PACKET_OK) {
+                        return true;
+                    }
+                    fResult = arena.acquire(reply.len);
+                }
+                if (!copy(rx, fResult.buffer())) {
+                    return false;
+                }
+                fResult.buffer().flip();
+                fResult.setOrigin(streamId, offset);
+                return true;
+            }
+
+            @Override
+            ByteBuffer sink() {
+                return (fResult == null) ? null : fResult.buffer();
+            }
+
+            @Override
+            void record(ViewerMetrics metrics, long nanos) {
+                super.record(metrics, nanos);
+                metrics.onPacket(streamId, reply.status, (fResult == null) ? 0 : reply.len);
+            }
+
+            @Override
+            void complete() {
+                if (!fFuture.complete(fResult) && fResult != null) {
+                    fResult.release();
+                }
+            }
+
+            @Override
+            void fail(Throwable cause) {
+                super.fail(cause);
+                if (fResult != null) {
+                    fResult.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Send VIEWER_GET_METADATA
+     *
+     * @param streamId
+     *            the metadata stream
+     * @param reply
+     *            the metadata header to fill, its data field is not touched
+     * @param dst
+     *            where to write the metadata, may be null. It must not be
+     *            touched until the future completes.
+     * @return the buffer holding the metadata, dst or a bigger copy, its
+     *         position is after the data
+     */
+    public CompletableFuture<ByteBuffer> getMetadata(long streamId, final lttng_viewer_metadata_packet reply, final ByteBuffer dst) {
+        lttng_viewer_get_metadata request = new lttng_viewer_get_metadata();
+        request.stream_id = streamId;
+        return submit(new Request<ByteBuffer>(lttng_viewer_command.VIEWER_GET_METADATA, request) {
+            private int fLimit;
+
+            @Override
+            boolean decode(ByteBuffer rx) {
+                if (fResult == null) {
+                    if (rx.remaining() < lttng_viewer_metadata_packet.FIXED_SIZE) {
+                        return false;
+                    }
+                    reply.readFrom(rx);
+                    if (reply.status != lttng_viewer_get_metadata_return_code.VIEWER_METADATA_OK) {
+                        fResult = dst;
+                        return true;
+                    }
+                    fResult = ViewerClient.ensureRemaining(dst, (int) reply.len);
+                    fLimit = fResult.limit();
+                    fResult.limit(fResult.position() + (int) reply.len);
+                }
+                if (!copy(rx, fResult)) {
+                    return false;
+                }
+                fResult.limit(fLimit);
+                return true;
+            }
+
+            @Override
+            ByteBuffer sink() {
+                return fResult;
+            }
+        });
+    }
+
+    /**
+     * Close the connection, the requests not answered yet fail with an
+     * {@link AsynchronousCloseException}
+     */
+    @Override
+    public void close() throws IOException {
+        fClosed = true;
+        fSelector.wakeup();
+        if (Thread.currentThread() == fThread) {
+            /* from a callback, the loop closes the socket once it returns */
+            return;
+        }
+        try {
+            fThread.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Requests
+    // ------------------------------------------------------------------------
+
+    /**
+     * A request and the decoding of its reply
+     *
+     * @param <T>
+     *            the type of the result
+     */
+    private abstract class Request<T> {
+        final lttng_viewer_command fCommand;
+        final RelayCommand fPayload;
+        final int fSize;
+        final CompletableFuture<T> fFuture = new CompletableFuture<>();
+        T fResult;
+        long fWritten;
+
+        <P extends RelayCommand & FixedSize> Request(lttng_viewer_command command, P payload) {
+            fCommand = command;
+            fPayload = payload;
+            fSize = lttng_viewer_cmd.SIZE + ((payload == null) ? 0 : payload.size());
+        }
+
+        /**
+         * Decode what arrived of the reply
+         *
+         * @param rx
+         *            the bytes received between position and limit, the ones
+         *            decoded are consumed
+         * @return whether the reply is whole
+         * @throws IOException
+         *             the reply is invalid
+         */
+        abstract boolean decode(ByteBuffer rx) throws IOException;
+
+        /**
+         * @return a buffer where the next bytes of the reply may be read
+         *         directly, only filled up to its limit, or null
+         */
+        ByteBuffer sink() {
+            return null;
+        }
+
+        void record(ViewerMetrics metrics, long nanos) {
+            metrics.onCommand(fCommand, nanos);
+        }
+
+        void complete() {
+            fFuture.complete(fResult);
+        }
+
+        void fail(Throwable cause) {
+            fFuture.completeExceptionally(cause);
+        }
+    }
+
+    private <T> CompletableFuture<T> submit(Request<T> request) {
+        fPending.incrementAndGet();
+        fQueued.add(request);
+        if (fClosed) {
+            /* the I/O thread may have drained the queue already */
+            failQueued(closedError());
+        } else {
+            fSelector.wakeup();
+        }
+        return request.fFuture;
+    }
+
+    /* Move as much as possible of the reply buffer in a destination */
+    private static boolean copy(ByteBuffer rx, ByteBuffer dst) {
+        int n = Math.min(rx.remaining(), dst.remaining());
+        if (n > 0) {
+            int limit = rx.limit();
+            rx.limit(rx.position() + n);
+            dst.put(rx);
+            rx.limit(limit);
+        }
+        return !dst.hasRemaining();
+    }
+
+    // ------------------------------------------------------------------------
+    // I/O thread
+    // ------------------------------------------------------------------------
+
+    private void loop() {
+        IOException error = null;
+        try {
+            while (!fClosed) {
+                /* replies make room in the window for the queued requests */
+                read();
+                encode();
+                write();
+                long wait = 0;
+                Request<?> head = fInFlight.peek();
+                long timeout = fTimeout;
+                if (head != null && timeout > 0) {
+                    long left = head.fWritten + TimeUnit.MILLISECONDS.toNanos(timeout) - System.nanoTime();
+                    if (left <= 0) {
+                        throw new SocketTimeoutException("No answer from relayd after " + timeout + " ms to " + head.fCommand); //$NON-NLS-1$ //$NON-NLS-2$
+                    }
+                    wait = Math.max(1, TimeUnit.NANOSECONDS.toMillis(left));
+                }
+                fKey.interestOps(SelectionKey.OP_READ | ((fSend.position() > 0) ? SelectionKey.OP_WRITE : 0));
+                fSelector.select(wait);
+                fSelector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            error = e;
+        } catch (RuntimeException e) {
+            error = new IOException("Viewer client failed", e); //$NON-NLS-1$
+        } finally {
+            shutdown(error);
+        }
+    }
+
+    /* Encode the queued requests while the window and the send buffer allow */
+    private void encode() {
+        while (fInFlight.size() < fMaxInFlight) {
+            Request<?> request = fQueued.peek();
+            if (request == null || fSend.remaining() < request.fSize) {
+                return;
+            }
+            fQueued.poll();
+            fHeader.cmd = request.fCommand;
+            fHeader.data_size = request.fSize - lttng_viewer_cmd.SIZE;
+            fHeader.writeTo(fSend);
+            if (request.fPayload != null) {
+                request.fPayload.writeTo(fSend);
+            }
+            request.fWritten = System.nanoTime();
+            fInFlight.add(request);
+        }
+    }
+
+    private void write() throws IOException {
+        if (fSend.position() == 0) {
+            return;
+        }
+        fSend.flip();
+        fChannel.write(fSend);
+        fSend.compact();
+    }
+
+    private void read() throws IOException {
+        while (true) {
+            Request<?> head = fInFlight.peek();
+            ByteBuffer sink = (head == null) ? null : head.sink();
+            /* nothing buffered ahead of the data, skip the copy */
+            int read = (sink != null && fReceive.position() == 0) ? fChannel.read(sink) : fChannel.read(fReceive);
+            if (read < 0) {
+                throw new EOFException("Relayd closed the connection"); //$NON-NLS-1$
+            }
+            fReceive.flip();
+            try {
+                while (head != null && head.decode(fReceive)) {
+                    fInFlight.poll();
+                    ViewerMetrics metrics = fMetrics;
+                    if (metrics != null) {
+                        head.record(metrics, System.nanoTime() - head.fWritten);
+                    }
+                    fPending.decrementAndGet();
+                    head.complete();
+                    head = fInFlight.peek();
+                }
+                if (head == null && fReceive.hasRemaining()) {
+                    throw new IOException("Reply from relayd without a request"); //$NON-NLS-1$
+                }
+            } finally {
+                fReceive.compact();
+            }
+            if (read == 0) {
+                return;
+            }
+        }
+    }
+
+    private IOException closedError() {
+        IOException error = fError;
+        return (error != null) ? error : new ClosedChannelException();
+    }
+
+    private void failQueued(IOException cause) {
+        for (Request<?> request = fQueued.poll(); request != null; request = fQueued.poll()) {
+            fPending.decrementAndGet();
+            request.fail(cause);
+        }
+    }
+
+    private void shutdown(IOException error) {
+        fError = (error != null) ? error : new AsynchronousCloseException();
+        fClosed = true;
+        try {
+            fSelector.close();
+            fChannel.close();
+        } catch (IOException e) {
+            fError.addSuppressed(e);
+        }
+        for (Request<?> request = fInFlight.poll(); request != null; request = fInFlight.poll()) {
+            fPending.decrementAndGet();
+            request.fail(fError);
+        }
+        failQueued(fError);
+    }
+}
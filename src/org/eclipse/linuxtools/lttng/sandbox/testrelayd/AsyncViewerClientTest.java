@@ -0,0 +1,229 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_attach_return_code;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_get_metadata_return_code;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_index;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_metadata_packet;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_next_index_return_code;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_seek;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_trace_packet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the requests in flight of the asynchronous client
+ *
+ * @author Matthew Khouzam
+ */
+public class AsyncViewerClientTest {
+
+    private static final int STREAMS = 4;
+    private static final int PACKETS = 10;
+    private static final int PACKET_SIZE = 16 * 1024;
+
+    private MockRelayD fRelayd;
+    private InetSocketAddress fAddress;
+    private final PacketArena fArena = new PacketArena();
+
+    /**
+     * Start the mock
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @Before
+    public void setUp() throws IOException {
+        fRelayd = new MockRelayD();
+        fRelayd.setStreamsPerSession(STREAMS);
+        fRelayd.setPacketSize(PACKET_SIZE);
+        fRelayd.setPacketCount(PACKETS);
+        fAddress = fRelayd.start(0);
+    }
+
+    /**
+     * Stop the mock
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @After
+    public void tearDown() throws IOException {
+        fRelayd.close();
+    }
+
+    /**
+     * The metadata, the indexes of every stream and then their packets are
+     * requested together, each reply goes to its own future
+     *
+     * @throws Exception
+     *             should not happen
+     */
+    @Test
+    public void testOverlap() throws Exception {
+        try (AsyncViewerClient client = AsyncViewerClient.open(fAddress.getHostString(), fAddress.getPort())) {
+            client.connect();
+            CompletableFuture<ViewerSession[]> sessions = client.listSessions();
+            AttachedSession session = client.attachSession(1, lttng_viewer_seek.VIEWER_SEEK_BEGINNING).get(10, TimeUnit.SECONDS);
+            assertEquals(1, sessions.get().length);
+            assertEquals(lttng_viewer_attach_return_code.VIEWER_ATTACH_OK, session.getStatus());
+
+            long[] ids = session.getDataStreamIds();
+            lttng_viewer_metadata_packet metadataReply = new lttng_viewer_metadata_packet();
+            CompletableFuture<ByteBuffer> metadata = client.getMetadata(session.getMetadataStreams()[0].getId(), metadataReply, null);
+            int packets = 0;
+            while (true) {
+                List<CompletableFuture<lttng_viewer_index>> indexes = new ArrayList<>();
+                for (long id : ids) {
+                    indexes.add(client.getNextIndex(id, new lttng_viewer_index()));
+                }
+                List<CompletableFuture<PacketBuffer>> fetches = new ArrayList<>();
+                for (int i = 0; i < ids.length; i++) {
+                    lttng_viewer_index index = indexes.get(i).get(10, TimeUnit.SECONDS);
+                    if (index.status == lttng_viewer_next_index_return_code.VIEWER_INDEX_OK) {
+                        fetches.add(client.getPacket(ids[i], index, new lttng_viewer_trace_packet(), fArena));
+                    }
+                }
+                if (fetches.isEmpty()) {
+                    break;
+                }
+                for (CompletableFuture<PacketBuffer> fetch : fetches) {
+                    PacketBuffer packet = fetch.get(10, TimeUnit.SECONDS);
+                    assertEquals(PACKET_SIZE, packet.length());
+                    packet.release();
+                    packets++;
+                }
+            }
+            assertEquals(STREAMS * PACKETS, packets);
+            assertTrue(metadata.isDone());
+            assertEquals(lttng_viewer_get_metadata_return_code.VIEWER_METADATA_OK, metadataReply.status);
+            assertEquals(metadataReply.len, metadata.get().position());
+            assertEquals(0, client.getPending());
+        }
+        assertEquals(0, fArena.getInUse());
+    }
+
+    /**
+     * Requests beyond the limit wait their turn, the replies complete the
+     * futures in submission order
+     *
+     * @throws Exception
+     *             should not happen
+     */
+    @Test
+    public void testInFlightLimit() throws Exception {
+        try (AsyncViewerClient client = AsyncViewerClient.open(fAddress.getHostString(), fAddress.getPort())) {
+            client.setMaxInFlight(2);
+            client.connect();
+            final AttachedSession session = client.attachSession(1, lttng_viewer_seek.VIEWER_SEEK_BEGINNING).get(10, TimeUnit.SECONDS);
+            final List<Integer> order = new ArrayList<>();
+            List<CompletableFuture<lttng_viewer_index>> indexes = new ArrayList<>();
+            int count = STREAMS * (PACKETS + 1);
+            for (int i = 0; i < count; i++) {
+                final int n = i;
+                CompletableFuture<lttng_viewer_index> future = client.getNextIndex(session.getDataStreamIds()[i % STREAMS], new lttng_viewer_index());
+                indexes.add(future);
+                future.thenRun(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (order) {
+                            order.add(n);
+                        }
+                    }
+                });
+            }
+            assertTrue(client.getPending() > 2);
+            int ok = 0;
+            long[] last = new long[STREAMS];
+            for (int i = 0; i < count; i++) {
+                lttng_viewer_index index = indexes.get(i).get(10, TimeUnit.SECONDS);
+                if (index.status == lttng_viewer_next_index_return_code.VIEWER_INDEX_OK) {
+                    /* each stream gets its indexes in order */
+                    assertTrue(i < STREAMS || index.offset > last[i % STREAMS]);
+                    last[i % STREAMS] = index.offset;
+                    ok++;
+                }
+            }
+            assertEquals(STREAMS * PACKETS, ok);
+            synchronized (order) {
+                for (int i = 0; i < order.size(); i++) {
+                    assertEquals(i, order.get(i).intValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * A reply that does not come fails its request, the ones behind it and the
+     * connection
+     *
+     * @throws Exception
+     *             should not happen
+     */
+    @Test
+    public void testTimeout() throws Exception {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            try (AsyncViewerClient client = new AsyncViewerClient(SocketChannel.open(server.getLocalAddress()));
+                    SocketChannel silent = server.accept()) {
+                client.setTimeout(100);
+                long start = System.nanoTime();
+                CompletableFuture<Long> connect = client.connect();
+                CompletableFuture<ViewerSession[]> sessions = client.listSessions();
+                assertTimedOut(connect);
+                assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 100);
+                assertTimedOut(sessions);
+                assertFalse(client.isOpen());
+                assertTimedOut(client.listSessions());
+                assertEquals(0, client.getPending());
+                /* the requests, then the end of the connection */
+                ByteBuffer sent = ByteBuffer.allocate(4096);
+                int read;
+                do {
+                    sent.clear();
+                    read = silent.read(sent);
+                } while (read > 0);
+                assertEquals(-1, read);
+            }
+        }
+    }
+
+    private static void assertTimedOut(CompletableFuture<?> future) throws Exception {
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof SocketTimeoutException);
+        }
+    }
+}
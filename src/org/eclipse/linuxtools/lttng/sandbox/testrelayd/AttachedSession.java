@@ -0,0 +1,120 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_attach_return_code;
+
+/**
+ * Result of a VIEWER_ATTACH_SESSION
+ *
+ * @author Matthew Khouzam
+ */
+public class AttachedSession {
+
+    private final long fSessionId;
+    private final lttng_viewer_attach_return_code fStatus;
+    private final ViewerStream[] fStreams;
+
+    /**
+     * Constructor
+     *
+     * @param sessionId
+     *            the session that was attached
+     * @param status
+     *            the attach status
+     * @param streams
+     *            the streams, empty unless the status is VIEWER_ATTACH_OK
+     */
+    public AttachedSession(long sessionId, lttng_viewer_attach_return_code status, ViewerStream[] streams) {
+        fSessionId = sessionId;
+        fStatus = status;
+        fStreams = streams;
+    }
+
+    /**
+     * @return the session id
+     */
+    public long getSessionId() {
+        return fSessionId;
+    }
+
+    /**
+     * @return the attach status
+     */
+    public lttng_viewer_attach_return_code getStatus() {
+        return fStatus;
+    }
+
+    /**
+     * @return true if the attach succeeded
+     */
+    public boolean isAttached() {
+        return fStatus == lttng_viewer_attach_return_code.VIEWER_ATTACH_OK;
+    }
+
+    /**
+     * @return all the streams, metadata and data
+     */
+    public ViewerStream[] getStreams() {
+        return fStreams;
+    }
+
+    /**
+     * @return the data streams only
+     */
+    public ViewerStream[] getDataStreams() {
+        int count = 0;
+        for (ViewerStream stream : fStreams) {
+            if (!stream.isMetadata()) {
+                count++;
+            }
+        }
+        ViewerStream[] data = new ViewerStream[count];
+        int i = 0;
+        for (ViewerStream stream : fStreams) {
+            if (!stream.isMetadata()) {
+                data[i++] = stream;
+            }
+        }
+        return data;
+    }
+
+    /**
+     * @return the ids of the data streams, in the order of
+     *         {@link #getDataStreams()}, ready for
+     *         {@link ViewerClient#getNextIndexes(long[], int, org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_index[])}
+     */
+    public long[] getDataStreamIds() {
+        ViewerStream[] data = getDataStreams();
+        long[] ids = new long[data.length];
+        for (int i = 0; i < data.length; i++) {
+            ids[i] = data[i].getId();
+        }
+        return ids;
+    }
+
+    /**
+     * @return the metadata streams only, one per trace
+     */
+    public ViewerStream[] getMetadataStreams() {
+        int count = fStreams.length - getDataStreams().length;
+        ViewerStream[] metadata = new ViewerStream[count];
+        int i = 0;
+        for (ViewerStream stream : fStreams) {
+            if (stream.isMetadata()) {
+                metadata[i++] = stream;
+            }
+        }
+        return metadata;
+    }
+}
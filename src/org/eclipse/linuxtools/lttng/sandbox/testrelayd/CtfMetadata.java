@@ -0,0 +1,1300 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The layouts described by the TSDL metadata of a trace, ready for a
+ * {@link CtfPacketCursor}.
+ *
+ * Only the part of TSDL needed to walk the packets is understood: integers
+ * of any size and alignment in either byte order, floating point numbers
+ * (kept as raw bits), enumerations (as their integer, the mappings select
+ * variant options), strings, structures, variants tagged by an earlier
+ * enumeration of their structure, fixed arrays and sequences of integers,
+ * type aliases, and the trace, stream and event blocks. This covers the
+ * compact and large event headers of LTTng, whose id selects a compact or
+ * an extended timestamp.
+ *
+ * The metadata is either the TSDL text or, as the tracers write it, the
+ * text split in packets each starting with a metadata packet header, see
+ * {@link #parse(byte[], int)}.
+ *
+ * Every structure is compiled to a flat table of fields, nested structures
+ * contributing their fields with dotted names. A variant is a row followed
+ * by its options, each an OPTION row then the fields of the option named
+ * variant.option.field. As readers do, a leading underscore of a field name
+ * is dropped.
+ *
+ * @author Matthew Khouzam
+ */
+public class CtfMetadata {
+
+    /** Highest stream or event id accepted */
+    public static final int MAX_ID = 65535;
+
+    /** Magic number starting the packets of packetized metadata */
+    public static final int METADATA_MAGIC = 0x75D11D57;
+
+    /**
+     * Size of the header of a metadata packet: magic, uuid, checksum,
+     * content and packet sizes, compression, encryption and checksum
+     * schemes, major and minor
+     */
+    public static final int METADATA_HEADER_SIZE = 4 + 16 + 4 + 4 + 4 + 5;
+
+    private ByteOrder fByteOrder = ByteOrder.nativeOrder();
+    private String fUuid;
+    private Struct fPacketHeader;
+    private Stream[] fStreams = new Stream[0];
+
+    private CtfMetadata() {
+    }
+
+    /**
+     * Parse TSDL metadata
+     *
+     * @param tsdl
+     *            the metadata text
+     * @return the trace layouts
+     * @throws IOException
+     *             the metadata is malformed or uses what is not supported
+     */
+    public static CtfMetadata parse(String tsdl) throws IOException {
+        CtfMetadata metadata = new CtfMetadata();
+        new Parser(tsdl).parse(metadata);
+        return metadata;
+    }
+
+    /**
+     * Parse metadata as received or read from a file, packetized or not
+     *
+     * @param data
+     *            the metadata bytes
+     * @param length
+     *            the number of bytes of data
+     * @return the trace layouts
+     * @throws IOException
+     *             the metadata is malformed or uses what is not supported
+     * @see #toText(byte[], int)
+     */
+    public static CtfMetadata parse(byte[] data, int length) throws IOException {
+        return parse(toText(data, length));
+    }
+
+    /**
+     * @param data
+     *            the metadata bytes
+     * @param length
+     *            the number of bytes of data
+     * @return true if the metadata starts with a metadata packet header, in
+     *         either byte order
+     */
+    public static boolean isPacketized(byte[] data, int length) {
+        if (length < 4) {
+            return false;
+        }
+        int magic = ByteBuffer.wrap(data, 0, 4).getInt();
+        return magic == METADATA_MAGIC || Integer.reverseBytes(magic) == METADATA_MAGIC;
+    }
+
+    /**
+     * Get the TSDL text of metadata. Packetized metadata is unpacked: the
+     * text of every packet, up to its content size, is concatenated. A
+     * packet still incomplete at the end, as when the metadata is received
+     * in chunks, is left out until the rest arrives.
+     *
+     * @param data
+     *            the metadata bytes
+     * @param length
+     *            the number of bytes of data
+     * @return the text
+     * @throws IOException
+     *             a packet header is malformed, or its packet is compressed
+     *             or encrypted
+     */
+    public static String toText(byte[] data, int length) throws IOException {
+        if (!isPacketized(data, length)) {
+            return new String(data, 0, length, ViewerNames.CHARSET);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length).order(ByteOrder.BIG_ENDIAN);
+        if (buffer.getInt(0) != METADATA_MAGIC) {
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        ByteArrayOutputStream text = new ByteArrayOutputStream(length);
+        int pos = 0;
+        while (length - pos >= METADATA_HEADER_SIZE) {
+            if (buffer.getInt(pos) != METADATA_MAGIC) {
+                throw new IOException("Bad metadata packet magic at byte " + pos); //$NON-NLS-1$
+            }
+            long contentSize = (buffer.getInt(pos + 24) & 0xffffffffL) / 8;
+            long packetSize = (buffer.getInt(pos + 28) & 0xffffffffL) / 8;
+            if (contentSize < METADATA_HEADER_SIZE || packetSize < contentSize) {
+                throw new IOException("Bad metadata packet sizes at byte " + pos); //$NON-NLS-1$
+            }
+            if (buffer.get(pos + 32) != 0 || buffer.get(pos + 33) != 0) {
+                throw new IOException("Compressed or encrypted metadata packets are not supported"); //$NON-NLS-1$
+            }
+            if (packetSize > length - pos) {
+                break;
+            }
+            text.write(data, pos + METADATA_HEADER_SIZE, (int) contentSize - METADATA_HEADER_SIZE);
+            pos += (int) packetSize;
+        }
+        return new String(text.toByteArray(), ViewerNames.CHARSET);
+    }
+
+    /**
+     * @return the byte order of the trace
+     */
+    public ByteOrder getByteOrder() {
+        return fByteOrder;
+    }
+
+    /**
+     * @return the uuid of the trace, null if not given
+     */
+    public String getUuid() {
+        return fUuid;
+    }
+
+    /**
+     * @return the packet header, null if the packets have none
+     */
+    public Struct getPacketHeader() {
+        return fPacketHeader;
+    }
+
+    /**
+     * @param id
+     *            a stream class id
+     * @return the stream class, null if unknown
+     */
+    public Stream getStream(long id) {
+        return (id >= 0 && id < fStreams.length) ? fStreams[(int) id] : null;
+    }
+
+    /**
+     * @return the highest stream class id plus one
+     */
+    public int getStreamCount() {
+        return fStreams.length;
+    }
+
+    // ------------------------------------------------------------------------
+    // Model
+    // ------------------------------------------------------------------------
+
+    /**
+     * A stream class: the layouts shared by the packets of its streams
+     */
+    public static class Stream {
+        private final long fId;
+        private Struct fPacketContext;
+        private Struct fEventHeader;
+        private Struct fEventContext;
+        private Event[] fEvents = new Event[0];
+
+        Stream(long id) {
+            fId = id;
+        }
+
+        /**
+         * @return the stream class id
+         */
+        public long getId() {
+            return fId;
+        }
+
+        /**
+         * @return the packet context, null if none
+         */
+        public Struct getPacketContext() {
+            return fPacketContext;
+        }
+
+        /**
+         * @return the event header, null if none
+         */
+        public Struct getEventHeader() {
+            return fEventHeader;
+        }
+
+        /**
+         * @return the context of every event of the stream, null if none
+         */
+        public Struct getEventContext() {
+            return fEventContext;
+        }
+
+        /**
+         * @param id
+         *            an event id
+         * @return the event, null if unknown
+         */
+        public Event getEvent(long id) {
+            return (id >= 0 && id < fEvents.length) ? fEvents[(int) id] : null;
+        }
+
+        /**
+         * @return the events, indexed by id, with null holes
+         */
+        public Event[] getEvents() {
+            return fEvents.clone();
+        }
+    }
+
+    /**
+     * An event class
+     */
+    public static class Event {
+        private final String fName;
+        private final long fId;
+        private final long fStreamId;
+        private final Struct fContext;
+        private final Struct fFields;
+
+        Event(String name, long id, long streamId, Struct context, Struct fields) {
+            fName = name;
+            fId = id;
+            fStreamId = streamId;
+            fContext = context;
+            fFields = fields;
+        }
+
+        /**
+         * @return the event name
+         */
+        public String getName() {
+            return fName;
+        }
+
+        /**
+         * @return the event id
+         */
+        public long getId() {
+            return fId;
+        }
+
+        /**
+         * @return the stream class id
+         */
+        public long getStreamId() {
+            return fStreamId;
+        }
+
+        /**
+         * @return the event context, null if none
+         */
+        public Struct getContext() {
+            return fContext;
+        }
+
+        /**
+         * @return the payload, null if none
+         */
+        public Struct getFields() {
+            return fFields;
+        }
+
+        @Override
+        public String toString() {
+            return fName;
+        }
+    }
+
+    /**
+     * A compiled structure: one row per field, in decoding order
+     */
+    public static class Struct {
+        /** An integer, its value is decoded */
+        public static final byte INTEGER = 0;
+        /** A fixed length array of integers */
+        public static final byte ARRAY = 1;
+        /** A sequence of integers, its length is an earlier field */
+        public static final byte SEQUENCE = 2;
+        /** A null terminated string */
+        public static final byte STRING = 3;
+        /** The start of a nested structure, only aligns */
+        public static final byte ALIGN = 4;
+        /** A variant, its value is the OPTION row selected by its tag */
+        public static final byte VARIANT = 5;
+        /** The start of an option of a variant, followed by its fields */
+        public static final byte OPTION = 6;
+
+        final String[] fNames;
+        final byte[] fKinds;
+        /*
+         * integer size, or element size of arrays and sequences, in bits. For
+         * a variant or an option, the row after it.
+         */
+        final int[] fBits;
+        /* integer or element alignment, in bits */
+        final int[] fAligns;
+        final boolean[] fSigned;
+        final boolean[] fBigEndian;
+        /*
+         * array length, the field holding the length of a sequence, the tag
+         * of a variant, or the variant of an option
+         */
+        final int[] fLengths;
+        /* the option enclosing the row, -1 outside of variants */
+        final int[] fOptions;
+        /* the tag values of an option, as inclusive low, high pairs */
+        final long[][] fRanges;
+        final int fAlign;
+
+        Struct(List<Row> rows, int align) {
+            int n = rows.size();
+            fNames = new String[n];
+            fKinds = new byte[n];
+            fBits = new int[n];
+            fAligns = new int[n];
+            fSigned = new boolean[n];
+            fBigEndian = new boolean[n];
+            fLengths = new int[n];
+            fOptions = new int[n];
+            fRanges = new long[n][];
+            for (int i = 0; i < n; i++) {
+                Row row = rows.get(i);
+                fNames[i] = row.fName;
+                fKinds[i] = row.fKind;
+                fBits[i] = row.fBits;
+                fAligns[i] = row.fAlign;
+                fSigned[i] = row.fSigned;
+                fBigEndian[i] = row.fBigEndian;
+                fLengths[i] = row.fLength;
+                fOptions[i] = row.fOption;
+                fRanges[i] = row.fRanges;
+            }
+            fAlign = align;
+        }
+
+        /**
+         * @return the number of fields
+         */
+        public int size() {
+            return fNames.length;
+        }
+
+        /**
+         * @param field
+         *            a field index
+         * @return its name, dotted for the fields of nested structures
+         */
+        public String getName(int field) {
+            return fNames[field];
+        }
+
+        /**
+         * @param field
+         *            a field index
+         * @return INTEGER, ARRAY, SEQUENCE, STRING, ALIGN, VARIANT or OPTION
+         */
+        public byte getKind(int field) {
+            return fKinds[field];
+        }
+
+        /**
+         * @param field
+         *            a field index
+         * @return the size of the integer, or of an element, in bits
+         */
+        public int getBits(int field) {
+            return fBits[field];
+        }
+
+        /**
+         * @param field
+         *            a field index
+         * @return the OPTION row of the innermost variant option holding the
+         *         field, -1 if it is not in a variant
+         */
+        public int getOption(int field) {
+            return fOptions[field];
+        }
+
+        /**
+         * @return the alignment of the structure, in bits
+         */
+        public int getAlignment() {
+            return fAlign;
+        }
+
+        /**
+         * Find a field, resolve it once and keep the index
+         *
+         * @param name
+         *            the field name, without leading underscore
+         * @return the field index, -1 if there is no such field
+         */
+        public int indexOf(String name) {
+            for (int i = 0; i < fNames.length; i++) {
+                if (fKinds[i] != ALIGN && fKinds[i] != OPTION && fNames[i].equals(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private static class Row {
+        String fName;
+        byte fKind;
+        int fBits;
+        int fAlign;
+        boolean fSigned;
+        boolean fBigEndian;
+        int fLength;
+        int fOption = -1;
+        long[] fRanges;
+        /* the mappings of an enumeration, to find the options of a variant */
+        EnumType fEnum;
+    }
+
+    // ------------------------------------------------------------------------
+    // Declarations, before compilation
+    // ------------------------------------------------------------------------
+
+    private abstract static class Type {
+        abstract int align();
+    }
+
+    private static class IntType extends Type {
+        int fSize;
+        int fAlign = -1;
+        boolean fSigned;
+        /* null for the byte order of the trace */
+        ByteOrder fOrder;
+
+        @Override
+        int align() {
+            return (fAlign > 0) ? fAlign : ((fSize % 8 == 0) ? 8 : 1);
+        }
+    }
+
+    private static class EnumType extends IntType {
+        final List<String> fLabels = new ArrayList<>();
+        final List<long[]> fRanges = new ArrayList<>();
+
+        EnumType(IntType container) {
+            fSize = container.fSize;
+            fAlign = container.fAlign;
+            fSigned = container.fSigned;
+            fOrder = container.fOrder;
+        }
+
+        /* the low, high pairs mapped to a label */
+        long[] ranges(String label) {
+            List<long[]> matches = new ArrayList<>();
+            for (int i = 0; i < fLabels.size(); i++) {
+                if (stripUnderscore(fLabels.get(i)).equals(label)) {
+                    matches.add(fRanges.get(i));
+                }
+            }
+            long[] ranges = new long[matches.size() * 2];
+            for (int i = 0; i < matches.size(); i++) {
+                ranges[2 * i] = matches.get(i)[0];
+                ranges[2 * i + 1] = matches.get(i)[1];
+            }
+            return ranges;
+        }
+    }
+
+    private static class StringType extends Type {
+        @Override
+        int align() {
+            return 8;
+        }
+    }
+
+    private static class ArrayType extends Type {
+        Type fElement;
+        int fLength;
+        /* the length field of a sequence, null for an array */
+        String fLengthField;
+
+        @Override
+        int align() {
+            return fElement.align();
+        }
+    }
+
+    private static class StructType extends Type {
+        final List<String> fFieldNames = new ArrayList<>();
+        final List<Type> fFieldTypes = new ArrayList<>();
+        int fAlign = 1;
+
+        @Override
+        int align() {
+            int align = fAlign;
+            for (Type type : fFieldTypes) {
+                align = Math.max(align, type.align());
+            }
+            return align;
+        }
+    }
+
+    private static class VariantType extends Type {
+        final StructType fOptions;
+        /* the enumeration selecting the option, null until tagged */
+        final String fTag;
+
+        VariantType(StructType options, String tag) {
+            fOptions = options;
+            fTag = tag;
+        }
+
+        /* options are aligned when selected, the variant itself is not */
+        @Override
+        int align() {
+            return 1;
+        }
+    }
+
+    private static class EventDeclaration {
+        String fName;
+        long fId;
+        long fStreamId;
+        StructType fContext;
+        StructType fFields;
+    }
+
+    private static class StreamDeclaration {
+        long fId;
+        StructType fPacketContext;
+        StructType fEventHeader;
+        StructType fEventContext;
+    }
+
+    // ------------------------------------------------------------------------
+    // Compilation
+    // ------------------------------------------------------------------------
+
+    private Struct compile(StructType type) throws IOException {
+        if (type == null) {
+            return null;
+        }
+        List<Row> rows = new ArrayList<>();
+        flatten(type, "", -1, rows); //$NON-NLS-1$
+        return new Struct(rows, type.align());
+    }
+
+    private void flatten(StructType type, String prefix, int option, List<Row> rows) throws IOException {
+        for (int i = 0; i < type.fFieldNames.size(); i++) {
+            field(prefix, type.fFieldNames.get(i), type.fFieldTypes.get(i), option, rows);
+        }
+    }
+
+    private void field(String prefix, String fieldName, Type field, int option, List<Row> rows) throws IOException {
+        String name = prefix + fieldName;
+        Row row = new Row();
+        row.fName = name;
+        row.fOption = option;
+        if (field instanceof StructType) {
+            row.fKind = Struct.ALIGN;
+            row.fAlign = field.align();
+            rows.add(row);
+            flatten((StructType) field, name + '.', option, rows);
+            return;
+        }
+        if (field instanceof VariantType) {
+            variant(prefix, (VariantType) field, row, rows);
+            return;
+        }
+        if (field instanceof StringType) {
+            row.fKind = Struct.STRING;
+            row.fAlign = 8;
+        } else if (field instanceof IntType) {
+            row.fKind = Struct.INTEGER;
+            integer((IntType) field, row);
+        } else {
+            ArrayType array = (ArrayType) field;
+            if (!(array.fElement instanceof IntType)) {
+                throw new IOException("Only arrays and sequences of integers are supported: " + name); //$NON-NLS-1$
+            }
+            integer((IntType) array.fElement, row);
+            if (array.fLengthField == null) {
+                row.fKind = Struct.ARRAY;
+                row.fLength = array.fLength;
+            } else {
+                row.fKind = Struct.SEQUENCE;
+                row.fLength = lengthField(rows, prefix, array.fLengthField, name);
+            }
+        }
+        rows.add(row);
+    }
+
+    /* the variant row, then every option row followed by its fields */
+    private void variant(String prefix, VariantType type, Row row, List<Row> rows) throws IOException {
+        if (type.fTag == null) {
+            throw new IOException("Variant " + row.fName + " has no tag"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        int tag = tagField(rows, prefix, type.fTag, row.fName);
+        EnumType mappings = rows.get(tag).fEnum;
+        row.fKind = Struct.VARIANT;
+        row.fAlign = 1;
+        row.fLength = tag;
+        int variant = rows.size();
+        rows.add(row);
+        StructType options = type.fOptions;
+        for (int i = 0; i < options.fFieldNames.size(); i++) {
+            String label = options.fFieldNames.get(i);
+            Row option = new Row();
+            option.fName = row.fName + '.' + label;
+            option.fKind = Struct.OPTION;
+            option.fAlign = 1;
+            option.fLength = variant;
+            option.fOption = row.fOption;
+            option.fRanges = mappings.ranges(label);
+            if (option.fRanges.length == 0) {
+                throw new IOException("Option " + option.fName + " is not a label of its tag " + type.fTag); //$NON-NLS-1$ //$NON-NLS-2$
+            }
+            int start = rows.size();
+            rows.add(option);
+            field(row.fName + '.', label, options.fFieldTypes.get(i), start, rows);
+            option.fBits = rows.size();
+        }
+        row.fBits = rows.size();
+    }
+
+    private void integer(IntType type, Row row) throws IOException {
+        if (type.fSize <= 0 || type.fSize > 64) {
+            throw new IOException("Unsupported integer size " + type.fSize); //$NON-NLS-1$
+        }
+        row.fBits = type.fSize;
+        row.fAlign = type.align();
+        row.fSigned = type.fSigned;
+        ByteOrder order = (type.fOrder == null) ? fByteOrder : type.fOrder;
+        row.fBigEndian = order == ByteOrder.BIG_ENDIAN;
+        if (type instanceof EnumType) {
+            row.fEnum = (EnumType) type;
+        }
+    }
+
+    private static int lengthField(List<Row> rows, String prefix, String ref, String name) throws IOException {
+        String target = stripUnderscore(ref);
+        for (int i = rows.size() - 1; i >= 0; i--) {
+            Row row = rows.get(i);
+            if (row.fKind == Struct.INTEGER && (row.fName.equals(prefix + target) || row.fName.equals(target))) {
+                return i;
+            }
+        }
+        throw new IOException("The length of sequence " + name + " is not an earlier integer of its structure: " + ref); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    private static int tagField(List<Row> rows, String prefix, String ref, String name) throws IOException {
+        String target = stripUnderscore(ref);
+        for (int i = rows.size() - 1; i >= 0; i--) {
+            Row row = rows.get(i);
+            if (row.fKind == Struct.INTEGER && row.fEnum != null && (row.fName.equals(prefix + target) || row.fName.equals(target))) {
+                return i;
+            }
+        }
+        throw new IOException("The tag of variant " + name + " is not an earlier enumeration of its structure: " + ref); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    static String stripUnderscore(String name) {
+        return (name.length() > 1 && name.charAt(0) == '_') ? name.substring(1) : name;
+    }
+
+    // ------------------------------------------------------------------------
+    // Parser
+    // ------------------------------------------------------------------------
+
+    private static class Parser {
+        private final List<String> fTokens = new ArrayList<>();
+        private final Map<String, Type> fAliases = new HashMap<>();
+        private final Map<String, StructType> fStructs = new HashMap<>();
+        private final Map<String, EnumType> fEnums = new HashMap<>();
+        private final Map<String, VariantType> fVariants = new HashMap<>();
+        private final List<StreamDeclaration> fStreams = new ArrayList<>();
+        private final List<EventDeclaration> fEvents = new ArrayList<>();
+        private StructType fPacketHeader;
+        private int fPos;
+
+        public Parser(String text) throws IOException {
+            tokenize(text);
+        }
+
+        public void parse(CtfMetadata metadata) throws IOException {
+            while (fPos < fTokens.size()) {
+                String token = next();
+                switch (token) {
+                case "typealias": { //$NON-NLS-1$
+                    Type type = parseType();
+                    expect(":="); //$NON-NLS-1$
+                    fAliases.put(words(), type);
+                    expect(";"); //$NON-NLS-1$
+                    break;
+                }
+                case "typedef": { //$NON-NLS-1$
+                    Type type = parseType();
+                    fAliases.put(words(), type);
+                    expect(";"); //$NON-NLS-1$
+                    break;
+                }
+                case "trace": //$NON-NLS-1$
+                    parseTrace(metadata);
+                    break;
+                case "stream": //$NON-NLS-1$
+                    parseStream();
+                    break;
+                case "event": //$NON-NLS-1$
+                    parseEvent();
+                    break;
+                case "env": //$NON-NLS-1$
+                case "clock": //$NON-NLS-1$
+                case "callsite": //$NON-NLS-1$
+                    skipBlock();
+                    expect(";"); //$NON-NLS-1$
+                    break;
+                case "struct": //$NON-NLS-1$
+                case "enum": //$NON-NLS-1$
+                case "variant": //$NON-NLS-1$
+                case "integer": //$NON-NLS-1$
+                case "floating_point": //$NON-NLS-1$
+                    fPos--;
+                    parseType();
+                    expect(";"); //$NON-NLS-1$
+                    break;
+                default:
+                    throw error("Unexpected " + token); //$NON-NLS-1$
+                }
+            }
+            build(metadata);
+        }
+
+        private void build(CtfMetadata metadata) throws IOException {
+            metadata.fPacketHeader = metadata.compile(fPacketHeader);
+            int streams = 0;
+            for (StreamDeclaration stream : fStreams) {
+                streams = Math.max(streams, (int) stream.fId + 1);
+            }
+            if (fStreams.isEmpty() && !fEvents.isEmpty()) {
+                StreamDeclaration implicit = new StreamDeclaration();
+                fStreams.add(implicit);
+                streams = 1;
+            }
+            metadata.fStreams = new Stream[streams];
+            for (StreamDeclaration declaration : fStreams) {
+                Stream stream = new Stream(declaration.fId);
+                stream.fPacketContext = metadata.compile(declaration.fPacketContext);
+                stream.fEventHeader = metadata.compile(declaration.fEventHeader);
+                stream.fEventContext = metadata.compile(declaration.fEventContext);
+                metadata.fStreams[(int) declaration.fId] = stream;
+            }
+            for (EventDeclaration declaration : fEvents) {
+                Stream stream = metadata.getStream(declaration.fStreamId);
+                if (stream == null) {
+                    throw new IOException("Event " + declaration.fName + " of unknown stream " + declaration.fStreamId); //$NON-NLS-1$ //$NON-NLS-2$
+                }
+                Event event = new Event(declaration.fName, declaration.fId, declaration.fStreamId,
+                        metadata.compile(declaration.fContext), metadata.compile(declaration.fFields));
+                int id = (int) declaration.fId;
+                if (id >= stream.fEvents.length) {
+                    Event[] events = new Event[id + 1];
+                    System.arraycopy(stream.fEvents, 0, events, 0, stream.fEvents.length);
+                    stream.fEvents = events;
+                }
+                stream.fEvents[id] = event;
+            }
+        }
+
+        private void parseTrace(CtfMetadata metadata) throws IOException {
+            expect("{"); //$NON-NLS-1$
+            while (!accept("}")) { //$NON-NLS-1$
+                String key = next();
+                if (accept(":=")) { //$NON-NLS-1$
+                    StructType type = structOf(key, parseTypeOrAlias());
+                    if (key.equals("packet.header")) { //$NON-NLS-1$
+                        fPacketHeader = type;
+                    }
+                } else {
+                    expect("="); //$NON-NLS-1$
+                    String value = value();
+                    if (key.equals("byte_order")) { //$NON-NLS-1$
+                        ByteOrder order = byteOrder(value);
+                        if (order != null) {
+                            metadata.fByteOrder = order;
+                        }
+                    } else if (key.equals("uuid")) { //$NON-NLS-1$
+                        metadata.fUuid = value;
+                    }
+                }
+                expect(";"); //$NON-NLS-1$
+            }
+            expect(";"); //$NON-NLS-1$
+        }
+
+        private void parseStream() throws IOException {
+            StreamDeclaration stream = new StreamDeclaration();
+            expect("{"); //$NON-NLS-1$
+            while (!accept("}")) { //$NON-NLS-1$
+                String key = next();
+                if (accept(":=")) { //$NON-NLS-1$
+                    StructType type = structOf(key, parseTypeOrAlias());
+                    switch (key) {
+                    case "packet.context": stream.fPacketContext = type; break; //$NON-NLS-1$
+                    case "event.header": stream.fEventHeader = type; break; //$NON-NLS-1$
+                    case "event.context": stream.fEventContext = type; break; //$NON-NLS-1$
+                    default: break;
+                    }
+                } else {
+                    expect("="); //$NON-NLS-1$
+                    String value = value();
+                    if (key.equals("id")) { //$NON-NLS-1$
+                        stream.fId = id(value);
+                    }
+                }
+                expect(";"); //$NON-NLS-1$
+            }
+            expect(";"); //$NON-NLS-1$
+            fStreams.add(stream);
+        }
+
+        private void parseEvent() throws IOException {
+            EventDeclaration event = new EventDeclaration();
+            expect("{"); //$NON-NLS-1$
+            while (!accept("}")) { //$NON-NLS-1$
+                String key = next();
+                if (accept(":=")) { //$NON-NLS-1$
+                    StructType type = structOf(key, parseTypeOrAlias());
+                    if (key.equals("fields")) { //$NON-NLS-1$
+                        event.fFields = type;
+                    } else if (key.equals("context")) { //$NON-NLS-1$
+                        event.fContext = type;
+                    }
+                } else {
+                    expect("="); //$NON-NLS-1$
+                    String value = value();
+                    switch (key) {
+                    case "name": event.fName = value; break; //$NON-NLS-1$
+                    case "id": event.fId = id(value); break; //$NON-NLS-1$
+                    case "stream_id": event.fStreamId = id(value); break; //$NON-NLS-1$
+                    default: break;
+                    }
+                }
+                expect(";"); //$NON-NLS-1$
+            }
+            expect(";"); //$NON-NLS-1$
+            fEvents.add(event);
+        }
+
+        private StructType structOf(String key, Type type) throws IOException {
+            if (!(type instanceof StructType)) {
+                throw error(key + " is not a structure"); //$NON-NLS-1$
+            }
+            return (StructType) type;
+        }
+
+        /* a type after :=, either a keyword type or an alias name */
+        private Type parseTypeOrAlias() throws IOException {
+            if (isTypeKeyword(peek())) {
+                return parseType();
+            }
+            return alias(words());
+        }
+
+        private Type parseType() throws IOException {
+            String token = next();
+            switch (token) {
+            case "integer": { //$NON-NLS-1$
+                IntType type = new IntType();
+                expect("{"); //$NON-NLS-1$
+                while (!accept("}")) { //$NON-NLS-1$
+                    String key = next();
+                    expect("="); //$NON-NLS-1$
+                    String value = value();
+                    expect(";"); //$NON-NLS-1$
+                    switch (key) {
+                    case "size": type.fSize = (int) number(value); break; //$NON-NLS-1$
+                    case "align": type.fAlign = (int) number(value); break; //$NON-NLS-1$
+                    case "signed": type.fSigned = value.equals("true") || value.equals("1"); break; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+                    case "byte_order": type.fOrder = byteOrder(value); break; //$NON-NLS-1$
+                    default: break;
+                    }
+                }
+                return type;
+            }
+            case "floating_point": { //$NON-NLS-1$
+                IntType type = new IntType();
+                expect("{"); //$NON-NLS-1$
+                while (!accept("}")) { //$NON-NLS-1$
+                    String key = next();
+                    expect("="); //$NON-NLS-1$
+                    String value = value();
+                    expect(";"); //$NON-NLS-1$
+                    switch (key) {
+                    case "exp_dig": //$NON-NLS-1$
+                    case "mant_dig": type.fSize += (int) number(value); break; //$NON-NLS-1$
+                    case "align": type.fAlign = (int) number(value); break; //$NON-NLS-1$
+                    case "byte_order": type.fOrder = byteOrder(value); break; //$NON-NLS-1$
+                    default: break;
+                    }
+                }
+                return type;
+            }
+            case "string": //$NON-NLS-1$
+                if (peek().equals("{")) { //$NON-NLS-1$
+                    skipBlock();
+                }
+                return new StringType();
+            case "enum": { //$NON-NLS-1$
+                String name = null;
+                if (!peek().equals(":") && !peek().equals("{")) { //$NON-NLS-1$ //$NON-NLS-2$
+                    name = next();
+                    if (!peek().equals(":") && !peek().equals("{")) { //$NON-NLS-1$ //$NON-NLS-2$
+                        EnumType known = fEnums.get(name);
+                        if (known == null) {
+                            throw error("Unknown enumeration " + name); //$NON-NLS-1$
+                        }
+                        return known;
+                    }
+                }
+                Type container;
+                if (accept(":")) { //$NON-NLS-1$
+                    container = isTypeKeyword(peek()) ? parseType() : alias(wordsUntil("{")); //$NON-NLS-1$
+                } else {
+                    container = alias("int"); //$NON-NLS-1$
+                }
+                if (!(container instanceof IntType)) {
+                    throw error("The container of an enumeration must be an integer"); //$NON-NLS-1$
+                }
+                EnumType type = new EnumType((IntType) container);
+                if (peek().equals("{")) { //$NON-NLS-1$
+                    parseMappings(type);
+                }
+                if (name != null) {
+                    fEnums.put(name, type);
+                }
+                return type;
+            }
+            case "struct": { //$NON-NLS-1$
+                String name = null;
+                if (!peek().equals("{")) { //$NON-NLS-1$
+                    name = next();
+                    if (!peek().equals("{")) { //$NON-NLS-1$
+                        StructType known = fStructs.get(name);
+                        if (known == null) {
+                            throw error("Unknown structure " + name); //$NON-NLS-1$
+                        }
+                        return known;
+                    }
+                }
+                StructType type = new StructType();
+                expect("{"); //$NON-NLS-1$
+                while (!accept("}")) { //$NON-NLS-1$
+                    parseField(type);
+                }
+                if (accept("align")) { //$NON-NLS-1$
+                    expect("("); //$NON-NLS-1$
+                    type.fAlign = (int) number(next());
+                    expect(")"); //$NON-NLS-1$
+                }
+                if (name != null) {
+                    fStructs.put(name, type);
+                }
+                return type;
+            }
+            case "variant": { //$NON-NLS-1$
+                String name = null;
+                if (!peek().equals("<") && !peek().equals("{")) { //$NON-NLS-1$ //$NON-NLS-2$
+                    name = next();
+                }
+                String tag = null;
+                if (accept("<")) { //$NON-NLS-1$
+                    tag = next();
+                    expect(">"); //$NON-NLS-1$
+                }
+                StructType options;
+                if (peek().equals("{")) { //$NON-NLS-1$
+                    options = new StructType();
+                    expect("{"); //$NON-NLS-1$
+                    while (!accept("}")) { //$NON-NLS-1$
+                        parseField(options);
+                    }
+                    if (name != null) {
+                        fVariants.put(name, new VariantType(options, tag));
+                    }
+                } else {
+                    VariantType known = fVariants.get(name);
+                    if (known == null) {
+                        throw error("Unknown variant " + name); //$NON-NLS-1$
+                    }
+                    options = known.fOptions;
+                    if (tag == null) {
+                        tag = known.fTag;
+                    }
+                }
+                return new VariantType(options, tag);
+            }
+            default:
+                throw error("Expected a type, got " + token); //$NON-NLS-1$
+            }
+        }
+
+        /* label [= value [... value]], a missing value follows the previous one */
+        private void parseMappings(EnumType type) throws IOException {
+            expect("{"); //$NON-NLS-1$
+            long next = 0;
+            while (!accept("}")) { //$NON-NLS-1$
+                String label = value();
+                long low = next;
+                long high = next;
+                if (accept("=")) { //$NON-NLS-1$
+                    low = number(value());
+                    high = accept("...") ? number(value()) : low; //$NON-NLS-1$
+                }
+                type.fLabels.add(label);
+                type.fRanges.add(new long[] { low, high });
+                next = high + 1;
+                if (!accept(",")) { //$NON-NLS-1$
+                    expect("}"); //$NON-NLS-1$
+                    break;
+                }
+            }
+        }
+
+        private void parseField(StructType struct) throws IOException {
+            Type type;
+            String name;
+            if (isTypeKeyword(peek())) {
+                type = parseType();
+                name = next();
+            } else {
+                List<String> words = new ArrayList<>();
+                while (!peek().equals(";") && !peek().equals("[")) { //$NON-NLS-1$ //$NON-NLS-2$
+                    words.add(next());
+                }
+                if (words.size() < 2) {
+                    throw error("Expected a type and a field name"); //$NON-NLS-1$
+                }
+                name = words.remove(words.size() - 1);
+                type = alias(join(words));
+            }
+            if (accept("[")) { //$NON-NLS-1$
+                ArrayType array = new ArrayType();
+                array.fElement = type;
+                String length = next();
+                if (Character.isDigit(length.charAt(0))) {
+                    array.fLength = (int) number(length);
+                } else {
+                    array.fLengthField = length;
+                }
+                expect("]"); //$NON-NLS-1$
+                if (peek().equals("[")) { //$NON-NLS-1$
+                    throw error("Multidimensional arrays are not supported"); //$NON-NLS-1$
+                }
+                type = array;
+            }
+            expect(";"); //$NON-NLS-1$
+            struct.fFieldNames.add(stripUnderscore(name));
+            struct.fFieldTypes.add(type);
+        }
+
+        private Type alias(String name) throws IOException {
+            Type type = fAliases.get(name);
+            if (type == null) {
+                if (name.startsWith("struct ")) { //$NON-NLS-1$
+                    type = fStructs.get(name.substring(7));
+                }
+                if (type == null) {
+                    throw error("Unknown type " + name); //$NON-NLS-1$
+                }
+            }
+            return type;
+        }
+
+        private static boolean isTypeKeyword(String token) {
+            switch (token) {
+            case "integer": //$NON-NLS-1$
+            case "floating_point": //$NON-NLS-1$
+            case "string": //$NON-NLS-1$
+            case "enum": //$NON-NLS-1$
+            case "struct": //$NON-NLS-1$
+            case "variant": //$NON-NLS-1$
+                return true;
+            default:
+                return false;
+            }
+        }
+
+        private String words() throws IOException {
+            return wordsUntil(";"); //$NON-NLS-1$
+        }
+
+        private String wordsUntil(String end) throws IOException {
+            List<String> words = new ArrayList<>();
+            while (!peek().equals(end)) {
+                words.add(next());
+            }
+            if (words.isEmpty()) {
+                throw error("Expected a name"); //$NON-NLS-1$
+            }
+            return join(words);
+        }
+
+        private static String join(List<String> words) {
+            StringBuilder sb = new StringBuilder();
+            for (String word : words) {
+                if (sb.length() > 0) {
+                    sb.append(' ');
+                }
+                sb.append(word);
+            }
+            return sb.toString();
+        }
+
+        /* the value of an assignment, strings without their quotes */
+        private String value() throws IOException {
+            String token = next();
+            if (token.equals("-")) { //$NON-NLS-1$
+                return '-' + next();
+            }
+            if (token.startsWith("\"")) { //$NON-NLS-1$
+                return token.substring(1);
+            }
+            return token;
+        }
+
+        private long id(String value) throws IOException {
+            long id = number(value);
+            if (id < 0 || id > MAX_ID) {
+                throw error("Unsupported id " + value); //$NON-NLS-1$
+            }
+            return id;
+        }
+
+        private long number(String value) throws IOException {
+            try {
+                if (value.startsWith("0x") || value.startsWith("0X")) { //$NON-NLS-1$ //$NON-NLS-2$
+                    return Long.parseLong(value.substring(2), 16);
+                }
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                throw error("Expected a number, got " + value); //$NON-NLS-1$
+            }
+        }
+
+        private ByteOrder byteOrder(String value) throws IOException {
+            switch (value) {
+            case "le": //$NON-NLS-1$
+                return ByteOrder.LITTLE_ENDIAN;
+            case "be": //$NON-NLS-1$
+            case "network": //$NON-NLS-1$
+                return ByteOrder.BIG_ENDIAN;
+            case "native": //$NON-NLS-1$
+                return null;
+            default:
+                throw error("Unknown byte order " + value); //$NON-NLS-1$
+            }
+        }
+
+        private void skipBlock() throws IOException {
+            expect("{"); //$NON-NLS-1$
+            int depth = 1;
+            while (depth > 0) {
+                String token = next();
+                if (token.equals("{")) { //$NON-NLS-1$
+                    depth++;
+                } else if (token.equals("}")) { //$NON-NLS-1$
+                    depth--;
+                }
+            }
+        }
+
+        private String peek() throws IOException {
+            if (fPos >= fTokens.size()) {
+                throw new IOException("Unexpected end of the metadata"); //$NON-NLS-1$
+            }
+            return fTokens.get(fPos);
+        }
+
+        private String next() throws IOException {
+            String token = peek();
+            fPos++;
+            return token;
+        }
+
+        private boolean accept(String token) throws IOException {
+            if (peek().equals(token)) {
+                fPos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String token) throws IOException {
+            String actual = next();
+            if (!actual.equals(token)) {
+                throw error("Expected " + token + ", got " + actual); //$NON-NLS-1$ //$NON-NLS-2$
+            }
+        }
+
+        private IOException error(String message) {
+            return new IOException(message + " (token " + fPos + ')'); //$NON-NLS-1$
+        }
+
+        /* identifiers keep their dots, strings keep their opening quote */
+        private void tokenize(String text) throws IOException {
+            int i = 0;
+            int n = text.length();
+            while (i < n) {
+                char c = text.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    i++;
+                } else if (text.startsWith("/*", i)) { //$NON-NLS-1$
+                    int end = text.indexOf("*/", i + 2); //$NON-NLS-1$
+                    if (end < 0) {
+                        throw new IOException("Unterminated comment"); //$NON-NLS-1$
+                    }
+                    i = end + 2;
+                } else if (text.startsWith("//", i)) { //$NON-NLS-1$
+                    int end = text.indexOf('\n', i);
+                    i = (end < 0) ? n : end + 1;
+                } else if (c == '"') {
+                    int end = text.indexOf('"', i + 1);
+                    if (end < 0) {
+                        throw new IOException("Unterminated string"); //$NON-NLS-1$
+                    }
+                    fTokens.add(text.substring(i, end));
+                    i = end + 1;
+                } else if (Character.isLetterOrDigit(c) || c == '_') {
+                    int start = i;
+                    while (i < n && (Character.isLetterOrDigit(text.charAt(i)) || text.charAt(i) == '_' || text.charAt(i) == '.')) {
+                        i++;
+                    }
+                    fTokens.add(text.substring(start, i));
+                } else if (text.startsWith(":=", i)) { //$NON-NLS-1$
+                    fTokens.add(":="); //$NON-NLS-1$
+                    i += 2;
+                } else if (text.startsWith("...", i)) { //$NON-NLS-1$
+                    fTokens.add("..."); //$NON-NLS-1$
+                    i += 3;
+                } else {
+                    fTokens.add(String.valueOf(c));
+                    i++;
+                }
+            }
+        }
+    }
+}
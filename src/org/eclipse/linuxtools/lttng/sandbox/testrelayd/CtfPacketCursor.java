@@ -0,0 +1,634 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.CtfMetadata.Struct;
+
+/**
+ * Walks the events of a CTF packet in place, in the buffer it was received
+ * in. The cursor is reused for every packet and every event: the decoded
+ * fields are kept in arrays sized once from the metadata, so decoding does
+ * not allocate.
+ *
+ * Fields are read by scope and index, the index being resolved once with
+ * {@link Struct#indexOf(String)} on the layout of the scope, see
+ * {@link #getStruct(int)}. Integers are decoded eagerly. For arrays,
+ * sequences and strings the cursor only records where they are, read them
+ * from {@link #getBuffer()} at {@link #getOffset(int, int)}.
+ *
+ * Only the option of a variant selected by its tag is decoded, the fields of
+ * the other options keep the values of an earlier event, see
+ * {@link #isSelected(int, int)}. The event id and timestamp are those of the
+ * event header or of its selected option, so the compact and extended
+ * headers of LTTng are read as such.
+ *
+ * Timestamps narrower than 64 bits are extended from the previous one, the
+ * first from the timestamp_begin of the packet context.
+ *
+ * <pre>
+ * cursor.reset(packet.buffer());
+ * while (cursor.next()) {
+ *     long seq = cursor.getLong(seqField);
+ * }
+ * </pre>
+ *
+ * @author Matthew Khouzam
+ */
+public class CtfPacketCursor {
+
+    /** Magic number starting the packet header */
+    public static final int CTF_MAGIC = 0xC1FC1FC1;
+
+    /** The packet header */
+    public static final int PACKET_HEADER = 0;
+    /** The packet context */
+    public static final int PACKET_CONTEXT = 1;
+    /** The event header */
+    public static final int EVENT_HEADER = 2;
+    /** The context of the stream, common to its events */
+    public static final int STREAM_EVENT_CONTEXT = 3;
+    /** The context of the event */
+    public static final int EVENT_CONTEXT = 4;
+    /** The payload of the event */
+    public static final int EVENT_FIELDS = 5;
+
+    private static final int SCOPES = 6;
+
+    private final CtfMetadata fMetadata;
+    private final Struct[] fStructs = new Struct[SCOPES];
+    private final long[][] fValues = new long[SCOPES][];
+    private final int[][] fLengths = new int[SCOPES][];
+    private final int fMagicField;
+    private final int fStreamIdField;
+    /* per stream class, the header fields giving the event id and timestamp */
+    private final int[][] fHeaderIds;
+    private final int[][] fHeaderTimestamps;
+    private ByteBuffer fBuffer;
+    private boolean fBufferBigEndian;
+    private int fBase;
+    private long fPos;
+    private long fEnd;
+    private CtfMetadata.Stream fStream;
+    private CtfMetadata.Event fEvent;
+    private long fEventId;
+    private long fTimestamp;
+    private long fEvents;
+    /* per stream field indexes */
+    private int fContentSizeField;
+    private int fPacketSizeField;
+    private int fBeginField;
+    private int fEndField;
+    private int fDiscardedField;
+    private int[] fIdFields;
+    private int[] fTimestampFields;
+
+    /**
+     * Constructor
+     *
+     * @param metadata
+     *            the layouts of the trace
+     */
+    public CtfPacketCursor(CtfMetadata metadata) {
+        fMetadata = metadata;
+        int[] sizes = new int[SCOPES];
+        Struct header = metadata.getPacketHeader();
+        sizes[PACKET_HEADER] = size(header);
+        fHeaderIds = new int[metadata.getStreamCount()][];
+        fHeaderTimestamps = new int[metadata.getStreamCount()][];
+        for (int s = 0; s < metadata.getStreamCount(); s++) {
+            CtfMetadata.Stream stream = metadata.getStream(s);
+            if (stream == null) {
+                continue;
+            }
+            fHeaderIds[s] = headerFields(stream.getEventHeader(), "id"); //$NON-NLS-1$
+            fHeaderTimestamps[s] = headerFields(stream.getEventHeader(), "timestamp"); //$NON-NLS-1$
+            sizes[PACKET_CONTEXT] = Math.max(sizes[PACKET_CONTEXT], size(stream.getPacketContext()));
+            sizes[EVENT_HEADER] = Math.max(sizes[EVENT_HEADER], size(stream.getEventHeader()));
+            sizes[STREAM_EVENT_CONTEXT] = Math.max(sizes[STREAM_EVENT_CONTEXT], size(stream.getEventContext()));
+            for (CtfMetadata.Event event : stream.getEvents()) {
+                if (event != null) {
+                    sizes[EVENT_CONTEXT] = Math.max(sizes[EVENT_CONTEXT], size(event.getContext()));
+                    sizes[EVENT_FIELDS] = Math.max(sizes[EVENT_FIELDS], size(event.getFields()));
+                }
+            }
+        }
+        for (int scope = 0; scope < SCOPES; scope++) {
+            fValues[scope] = new long[sizes[scope]];
+            fLengths[scope] = new int[sizes[scope]];
+        }
+        fStructs[PACKET_HEADER] = header;
+        fMagicField = (header == null) ? -1 : header.indexOf("magic"); //$NON-NLS-1$
+        fStreamIdField = (header == null) ? -1 : header.indexOf("stream_id"); //$NON-NLS-1$
+    }
+
+    private static int size(Struct struct) {
+        return (struct == null) ? 0 : struct.size();
+    }
+
+    /* the field of the header with that name, then those of its options */
+    private static int[] headerFields(Struct header, String name) {
+        int count = 0;
+        int[] fields = new int[(header == null) ? 0 : header.size()];
+        for (int i = 0; i < fields.length; i++) {
+            if (header.fKinds[i] != Struct.INTEGER) {
+                continue;
+            }
+            int option = header.fOptions[i];
+            String expected = (option < 0) ? name : header.fNames[option] + '.' + name;
+            if (header.fNames[i].equals(expected)) {
+                fields[count++] = i;
+            }
+        }
+        return Arrays.copyOf(fields, count);
+    }
+
+    /**
+     * @return the layouts of the trace
+     */
+    public CtfMetadata getMetadata() {
+        return fMetadata;
+    }
+
+    /**
+     * Start on a packet: decode its header and context and stand before its
+     * first event
+     *
+     * @param packet
+     *            the packet, between position and limit. It is not modified
+     *            and must not change until the next reset.
+     * @throws IOException
+     *             the packet does not match the metadata
+     */
+    public void reset(ByteBuffer packet) throws IOException {
+        fBuffer = packet;
+        fBufferBigEndian = packet.order() == ByteOrder.BIG_ENDIAN;
+        fBase = packet.position();
+        fEnd = (long) packet.remaining() * 8;
+        fPos = 0;
+        fEvent = null;
+        fEvents = 0;
+        long streamId = 0;
+        if (fStructs[PACKET_HEADER] != null) {
+            decode(PACKET_HEADER);
+            if (fMagicField >= 0 && (int) fValues[PACKET_HEADER][fMagicField] != CTF_MAGIC) {
+                throw new IOException("Bad packet magic " + Integer.toHexString((int) fValues[PACKET_HEADER][fMagicField])); //$NON-NLS-1$
+            }
+            if (fStreamIdField >= 0) {
+                streamId = fValues[PACKET_HEADER][fStreamIdField];
+            }
+        }
+        CtfMetadata.Stream stream = fMetadata.getStream(streamId);
+        if (stream == null) {
+            throw new IOException("Unknown stream class " + streamId); //$NON-NLS-1$
+        }
+        if (stream != fStream) {
+            select(stream);
+        }
+        fTimestamp = 0;
+        if (fStructs[PACKET_CONTEXT] != null) {
+            decode(PACKET_CONTEXT);
+            long[] context = fValues[PACKET_CONTEXT];
+            if (fContentSizeField >= 0 && context[fContentSizeField] < fEnd) {
+                fEnd = context[fContentSizeField];
+            }
+            if (fBeginField >= 0) {
+                fTimestamp = context[fBeginField];
+            }
+        }
+        if (fPos > fEnd) {
+            throw new IOException("Packet context beyond the content"); //$NON-NLS-1$
+        }
+    }
+
+    private void select(CtfMetadata.Stream stream) {
+        fStream = stream;
+        Struct context = stream.getPacketContext();
+        Struct header = stream.getEventHeader();
+        fStructs[PACKET_CONTEXT] = context;
+        fStructs[EVENT_HEADER] = header;
+        fStructs[STREAM_EVENT_CONTEXT] = stream.getEventContext();
+        fContentSizeField = (context == null) ? -1 : context.indexOf("content_size"); //$NON-NLS-1$
+        fPacketSizeField = (context == null) ? -1 : context.indexOf("packet_size"); //$NON-NLS-1$
+        fBeginField = (context == null) ? -1 : context.indexOf("timestamp_begin"); //$NON-NLS-1$
+        fEndField = (context == null) ? -1 : context.indexOf("timestamp_end"); //$NON-NLS-1$
+        fDiscardedField = (context == null) ? -1 : context.indexOf("events_discarded"); //$NON-NLS-1$
+        fIdFields = fHeaderIds[(int) stream.getId()];
+        fTimestampFields = fHeaderTimestamps[(int) stream.getId()];
+    }
+
+    /**
+     * Move to the next event
+     *
+     * @return false at the end of the packet content
+     * @throws IOException
+     *             the event does not match the metadata
+     */
+    public boolean next() throws IOException {
+        if (fBuffer == null || fPos >= fEnd) {
+            fEvent = null;
+            return false;
+        }
+        fEventId = 0;
+        if (fStructs[EVENT_HEADER] != null) {
+            decode(EVENT_HEADER);
+            long[] header = fValues[EVENT_HEADER];
+            /* an extended header overrides the id and timestamp */
+            for (int field : fIdFields) {
+                if (isSelected(EVENT_HEADER, field)) {
+                    fEventId = header[field];
+                }
+            }
+            int timestamp = -1;
+            for (int field : fTimestampFields) {
+                if (isSelected(EVENT_HEADER, field)) {
+                    timestamp = field;
+                }
+            }
+            if (timestamp >= 0) {
+                fTimestamp = extend(fTimestamp, header[timestamp], fStructs[EVENT_HEADER].fBits[timestamp]);
+            }
+        }
+        if (fStructs[STREAM_EVENT_CONTEXT] != null) {
+            decode(STREAM_EVENT_CONTEXT);
+        }
+        CtfMetadata.Event event = fStream.getEvent(fEventId);
+        if (event == null) {
+            throw new IOException("Unknown event id " + fEventId + " in stream class " + fStream.getId()); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        fEvent = event;
+        fStructs[EVENT_CONTEXT] = event.getContext();
+        fStructs[EVENT_FIELDS] = event.getFields();
+        if (fStructs[EVENT_CONTEXT] != null) {
+            decode(EVENT_CONTEXT);
+        }
+        if (fStructs[EVENT_FIELDS] != null) {
+            decode(EVENT_FIELDS);
+        }
+        if (fPos > fEnd) {
+            throw new IOException("Event " + event.getName() + " beyond the packet content"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        fEvents++;
+        return true;
+    }
+
+    private static long extend(long previous, long value, int bits) {
+        if (bits >= 64) {
+            return value;
+        }
+        long mask = (1L << bits) - 1;
+        long high = previous & ~mask;
+        if (value < (previous & mask)) {
+            high += mask + 1;
+        }
+        return high | value;
+    }
+
+    // ------------------------------------------------------------------------
+    // Accessors
+    // ------------------------------------------------------------------------
+
+    /**
+     * @return the packet buffer, to read arrays and strings
+     */
+    public ByteBuffer getBuffer() {
+        return fBuffer;
+    }
+
+    /**
+     * @return the stream class of the packet
+     */
+    public CtfMetadata.Stream getStream() {
+        return fStream;
+    }
+
+    /**
+     * @return the current event class, null before the first event and at
+     *         the end
+     */
+    public CtfMetadata.Event getEvent() {
+        return fEvent;
+    }
+
+    /**
+     * @return the id of the current event
+     */
+    public long getEventId() {
+        return fEventId;
+    }
+
+    /**
+     * @return the timestamp of the current event, in clock cycles
+     */
+    public long getTimestamp() {
+        return fTimestamp;
+    }
+
+    /**
+     * @return the number of events read from the packet so far
+     */
+    public long getEventCount() {
+        return fEvents;
+    }
+
+    /**
+     * @param scope
+     *            PACKET_HEADER to EVENT_FIELDS
+     * @return the layout of the scope for the current packet or event, null
+     *         if it has none
+     */
+    public Struct getStruct(int scope) {
+        return fStructs[scope];
+    }
+
+    /**
+     * @param scope
+     *            PACKET_HEADER to EVENT_FIELDS
+     * @param field
+     *            an integer field of the scope layout
+     * @return its value, sign extended if signed, raw bits for floats
+     */
+    public long getLong(int scope, int field) {
+        return fValues[scope][field];
+    }
+
+    /**
+     * @param scope
+     *            PACKET_HEADER to EVENT_FIELDS
+     * @param field
+     *            a field of the scope layout
+     * @return false if the field is in a variant option that was not
+     *         selected for the current packet or event, its value is then
+     *         stale
+     */
+    public boolean isSelected(int scope, int field) {
+        Struct struct = fStructs[scope];
+        long[] values = fValues[scope];
+        for (int option = struct.fOptions[field]; option >= 0; option = struct.fOptions[option]) {
+            if (values[struct.fLengths[option]] != option) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param field
+     *            an integer field of the event payload
+     * @return its value
+     */
+    public long getLong(int field) {
+        return fValues[EVENT_FIELDS][field];
+    }
+
+    /**
+     * @param scope
+     *            PACKET_HEADER to EVENT_FIELDS
+     * @param field
+     *            an array, sequence or string field of the scope layout
+     * @return the index of its first byte in the buffer
+     */
+    public int getOffset(int scope, int field) {
+        return fBase + (int) (fValues[scope][field] >>> 3);
+    }
+
+    /**
+     * @param scope
+     *            PACKET_HEADER to EVENT_FIELDS
+     * @param field
+     *            an array, sequence or string field of the scope layout
+     * @return the number of elements, or of bytes of a string without its
+     *         terminating null
+     */
+    public int getLength(int scope, int field) {
+        return fLengths[scope][field];
+    }
+
+    /**
+     * Decode a string field. This allocates, prefer
+     * {@link #getOffset(int, int)} on hot paths.
+     *
+     * @param scope
+     *            PACKET_HEADER to EVENT_FIELDS
+     * @param field
+     *            a string field of the scope layout
+     * @return the string
+     */
+    public String getString(int scope, int field) {
+        byte[] bytes = new byte[fLengths[scope][field]];
+        ByteBuffer view = fBuffer.duplicate();
+        view.position(getOffset(scope, field));
+        view.get(bytes);
+        return new String(bytes, ViewerNames.CHARSET);
+    }
+
+    /**
+     * @return the content size of the packet in bits, from its context or
+     *         its length
+     */
+    public long getContentSize() {
+        return fEnd;
+    }
+
+    /**
+     * @return the packet size in bits, from its context or its length
+     */
+    public long getPacketSize() {
+        return (fPacketSizeField >= 0) ? fValues[PACKET_CONTEXT][fPacketSizeField] : (long) fBuffer.remaining() * 8;
+    }
+
+    /**
+     * @return the timestamp_begin of the packet, 0 if it has none
+     */
+    public long getTimestampBegin() {
+        return (fBeginField >= 0) ? fValues[PACKET_CONTEXT][fBeginField] : 0;
+    }
+
+    /**
+     * @return the timestamp_end of the packet, 0 if it has none
+     */
+    public long getTimestampEnd() {
+        return (fEndField >= 0) ? fValues[PACKET_CONTEXT][fEndField] : 0;
+    }
+
+    /**
+     * @return the events_discarded of the packet, 0 if it has none
+     */
+    public long getEventsDiscarded() {
+        return (fDiscardedField >= 0) ? fValues[PACKET_CONTEXT][fDiscardedField] : 0;
+    }
+
+    // ------------------------------------------------------------------------
+    // Decoding
+    // ------------------------------------------------------------------------
+
+    private void decode(int scope) throws IOException {
+        Struct struct = fStructs[scope];
+        long[] values = fValues[scope];
+        int[] lengths = fLengths[scope];
+        long pos = align(fPos, struct.fAlign);
+        int i = 0;
+        while (i < struct.fKinds.length) {
+            int bits = struct.fBits[i];
+            switch (struct.fKinds[i]) {
+            case Struct.INTEGER:
+                pos = align(pos, struct.fAligns[i]);
+                check(pos + bits);
+                values[i] = read(pos, bits, struct.fBigEndian[i], struct.fSigned[i]);
+                pos += bits;
+                break;
+            case Struct.ARRAY:
+            case Struct.SEQUENCE: {
+                long count = (struct.fKinds[i] == Struct.ARRAY) ? struct.fLengths[i] : values[struct.fLengths[i]];
+                if (count < 0 || count > Integer.MAX_VALUE) {
+                    throw new IOException("Bad length " + count + " of " + struct.fNames[i]); //$NON-NLS-1$ //$NON-NLS-2$
+                }
+                pos = align(pos, struct.fAligns[i]);
+                values[i] = pos;
+                lengths[i] = (int) count;
+                if (count > 0) {
+                    long stride = align(bits, struct.fAligns[i]);
+                    pos += (count - 1) * stride + bits;
+                    check(pos);
+                }
+                break;
+            }
+            case Struct.STRING: {
+                pos = align(pos, 8);
+                int start = fBase + (int) (pos >>> 3);
+                int end = start;
+                int limit = fBase + (int) (fEnd >>> 3);
+                while (end < limit && fBuffer.get(end) != 0) {
+                    end++;
+                }
+                if (end >= limit) {
+                    throw new IOException("Unterminated string " + struct.fNames[i]); //$NON-NLS-1$
+                }
+                values[i] = pos;
+                lengths[i] = end - start;
+                pos += (long) (end - start + 1) * 8;
+                break;
+            }
+            case Struct.ALIGN:
+                pos = align(pos, struct.fAligns[i]);
+                break;
+            case Struct.VARIANT:
+                i = select(struct, values, i);
+                continue;
+            case Struct.OPTION:
+                /* the end of the selected option, skip the next ones */
+                i = struct.fBits[struct.fLengths[i]];
+                continue;
+            default:
+                break;
+            }
+            i++;
+        }
+        fPos = pos;
+    }
+
+    /* record the option selected by the tag, return its first field */
+    private static int select(Struct struct, long[] values, int variant) throws IOException {
+        long tag = values[struct.fLengths[variant]];
+        int end = struct.fBits[variant];
+        for (int option = variant + 1; option < end; option = struct.fBits[option]) {
+            long[] ranges = struct.fRanges[option];
+            for (int r = 0; r < ranges.length; r += 2) {
+                if (tag >= ranges[r] && tag <= ranges[r + 1]) {
+                    values[variant] = option;
+                    return option + 1;
+                }
+            }
+        }
+        throw new IOException("No option of variant " + struct.fNames[variant] + " for tag " + tag); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    private void check(long pos) throws IOException {
+        if (pos > fEnd) {
+            throw new IOException("Field beyond the packet content at bit " + pos); //$NON-NLS-1$
+        }
+    }
+
+    /* CTF alignments are powers of two */
+    private static long align(long pos, long align) {
+        return (pos + align - 1) & -align;
+    }
+
+    private long read(long pos, int bits, boolean bigEndian, boolean signed) {
+        long value;
+        if ((pos & 7) == 0 && (bits & 7) == 0 && Integer.bitCount(bits) == 1) {
+            int index = fBase + (int) (pos >>> 3);
+            switch (bits) {
+            case 8:
+                value = fBuffer.get(index) & 0xffL;
+                break;
+            case 16: {
+                short v = fBuffer.getShort(index);
+                v = (bigEndian == fBufferBigEndian) ? v : Short.reverseBytes(v);
+                value = v & 0xffffL;
+                break;
+            }
+            case 32: {
+                int v = fBuffer.getInt(index);
+                v = (bigEndian == fBufferBigEndian) ? v : Integer.reverseBytes(v);
+                value = v & 0xffffffffL;
+                break;
+            }
+            default: {
+                long v = fBuffer.getLong(index);
+                return (bigEndian == fBufferBigEndian) ? v : Long.reverseBytes(v);
+            }
+            }
+        } else {
+            value = bigEndian ? readBigEndian(pos, bits) : readLittleEndian(pos, bits);
+        }
+        if (signed && bits < 64) {
+            value = (value << (64 - bits)) >> (64 - bits);
+        }
+        return value;
+    }
+
+    /* little endian bit fields fill each byte from its least significant bit */
+    private long readLittleEndian(long pos, int bits) {
+        long value = 0;
+        int done = 0;
+        while (done < bits) {
+            int shift = (int) (pos & 7);
+            int take = Math.min(8 - shift, bits - done);
+            int b = ((fBuffer.get(fBase + (int) (pos >>> 3)) & 0xff) >>> shift) & ((1 << take) - 1);
+            value |= (long) b << done;
+            done += take;
+            pos += take;
+        }
+        return value;
+    }
+
+    /* big endian bit fields fill each byte from its most significant bit */
+    private long readBigEndian(long pos, int bits) {
+        long value = 0;
+        int done = 0;
+        while (done < bits) {
+            int shift = (int) (pos & 7);
+            int take = Math.min(8 - shift, bits - done);
+            int b = ((fBuffer.get(fBase + (int) (pos >>> 3)) & 0xff) >>> (8 - shift - take)) & ((1 << take) - 1);
+            value = (value << take) | b;
+            done += take;
+            pos += take;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,441 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_index;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_seek;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_trace_packet;
+import org.junit.Test;
+
+/**
+ * Tests the TSDL parser and the packet cursor
+ *
+ * @author Matthew Khouzam
+ */
+public class CtfPacketCursorTest {
+
+    private static final long PERIOD = 1000000L;
+    /* events too far apart for the 27 bit timestamp of the compact header */
+    private static final long LONG_PERIOD = 100000000000L;
+
+    /* the metadata written by lttng-ust 2.4, a second stream using the large header */
+    private static final String LTTNG_METADATA = "/* CTF 1.8 */\n\n" //$NON-NLS-1$
+            + "typealias integer { size = 8; align = 8; signed = false; } := uint8_t;\n" //$NON-NLS-1$
+            + "typealias integer { size = 16; align = 8; signed = false; } := uint16_t;\n" //$NON-NLS-1$
+            + "typealias integer { size = 32; align = 8; signed = false; } := uint32_t;\n" //$NON-NLS-1$
+            + "typealias integer { size = 64; align = 8; signed = false; } := uint64_t;\n" //$NON-NLS-1$
+            + "typealias integer { size = 64; align = 8; signed = false; } := unsigned long;\n" //$NON-NLS-1$
+            + "typealias integer { size = 5; align = 1; signed = false; } := uint5_t;\n" //$NON-NLS-1$
+            + "typealias integer { size = 27; align = 1; signed = false; } := uint27_t;\n\n" //$NON-NLS-1$
+            + "trace {\n\tmajor = 1;\n\tminor = 8;\n" //$NON-NLS-1$
+            + "\tuuid = \"2a6422d0-6cee-11e0-8c08-cb07d7b3a564\";\n\tbyte_order = le;\n" //$NON-NLS-1$
+            + "\tpacket.header := struct {\n\t\tuint32_t magic;\n\t\tuint8_t  uuid[16];\n\t\tuint32_t stream_id;\n\t};\n};\n\n" //$NON-NLS-1$
+            + "env {\n\thostname = \"host\";\n\tvpid = 1234;\n\tprocname = \"hello\";\n\tdomain = \"ust\";\n" //$NON-NLS-1$
+            + "\ttracer_name = \"lttng-ust\";\n\ttracer_major = 2;\n\ttracer_minor = 4;\n};\n\n" //$NON-NLS-1$
+            + "clock {\n\tname = monotonic;\n\tuuid = \"4d737a79-e3f1-4f4d-a649-42015266baf5\";\n" //$NON-NLS-1$
+            + "\tdescription = \"Monotonic Clock\";\n\tfreq = 1000000000; /* Frequency, in Hz */\n" //$NON-NLS-1$
+            + "\t/* clock value offset from Epoch is: offset * (1/freq) */\n\toffset = 1382000000000000000;\n};\n\n" //$NON-NLS-1$
+            + "typealias integer {\n\tsize = 27; align = 1; signed = false;\n\tmap = clock.monotonic.value;\n} := uint27_clock_monotonic_t;\n\n" //$NON-NLS-1$
+            + "typealias integer {\n\tsize = 32; align = 8; signed = false;\n\tmap = clock.monotonic.value;\n} := uint32_clock_monotonic_t;\n\n" //$NON-NLS-1$
+            + "typealias integer {\n\tsize = 64; align = 8; signed = false;\n\tmap = clock.monotonic.value;\n} := uint64_clock_monotonic_t;\n\n" //$NON-NLS-1$
+            + "struct packet_context {\n\tuint64_clock_monotonic_t timestamp_begin;\n\tuint64_clock_monotonic_t timestamp_end;\n" //$NON-NLS-1$
+            + "\tuint64_t content_size;\n\tuint64_t packet_size;\n\tunsigned long events_discarded;\n\tuint32_t cpu_id;\n};\n\n" //$NON-NLS-1$
+            + "struct event_header_compact {\n" //$NON-NLS-1$
+            + "\tenum : uint5_t { compact = 0 ... 30, extended = 31 } id;\n" //$NON-NLS-1$
+            + "\tvariant <id> {\n" //$NON-NLS-1$
+            + "\t\tstruct {\n\t\t\tuint27_clock_monotonic_t timestamp;\n\t\t} compact;\n" //$NON-NLS-1$
+            + "\t\tstruct {\n\t\t\tuint32_t id;\n\t\t\tuint64_clock_monotonic_t timestamp;\n\t\t} extended;\n" //$NON-NLS-1$
+            + "\t} v;\n} align(8);\n\n" //$NON-NLS-1$
+            + "struct event_header_large {\n" //$NON-NLS-1$
+            + "\tenum : uint16_t { compact = 0 ... 65534, extended = 65535 } id;\n" //$NON-NLS-1$
+            + "\tvariant <id> {\n" //$NON-NLS-1$
+            + "\t\tstruct {\n\t\t\tuint32_clock_monotonic_t timestamp;\n\t\t} compact;\n" //$NON-NLS-1$
+            + "\t\tstruct {\n\t\t\tuint32_t id;\n\t\t\tuint64_clock_monotonic_t timestamp;\n\t\t} extended;\n" //$NON-NLS-1$
+            + "\t} v;\n} align(8);\n\n" //$NON-NLS-1$
+            + "stream {\n\tid = 0;\n\tevent.header := struct event_header_compact;\n\tpacket.context := struct packet_context;\n};\n\n" //$NON-NLS-1$
+            + "stream {\n\tid = 1;\n\tevent.header := struct event_header_large;\n\tpacket.context := struct packet_context;\n};\n\n" //$NON-NLS-1$
+            + "event {\n\tname = \"ust_tests_hello:tptest\";\n\tid = 0;\n\tstream_id = 0;\n\tloglevel = 13;\n" //$NON-NLS-1$
+            + "\tfields := struct {\n" //$NON-NLS-1$
+            + "\t\tinteger { size = 32; align = 8; signed = 1; encoding = none; base = 10; } _intfield;\n" //$NON-NLS-1$
+            + "\t\tstring _stringfield;\n\t};\n};\n\n" //$NON-NLS-1$
+            + "event {\n\tname = \"ust_tests_hello:tptest_sighandler\";\n\tid = 40;\n\tstream_id = 0;\n\tloglevel = 13;\n" //$NON-NLS-1$
+            + "\tfields := struct {\n\t};\n};\n\n" //$NON-NLS-1$
+            + "event {\n\tname = \"lttng_ust_statedump:start\";\n\tid = 2;\n\tstream_id = 1;\n" //$NON-NLS-1$
+            + "\tfields := struct {\n\t};\n};\n"; //$NON-NLS-1$
+
+    /**
+     * Decode synthetic packets with compact event headers and check every
+     * event
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @Test
+    public void testSyntheticPackets() throws IOException {
+        SyntheticTrace trace = new SyntheticTrace(3, 4096, 0.9, PERIOD);
+        assertEquals(SyntheticTrace.EVENT_SIZE, trace.getEventSize());
+        checkSynthetic(trace, PERIOD);
+    }
+
+    /**
+     * Decode synthetic packets whose events are too far apart for compact
+     * headers
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @Test
+    public void testSyntheticExtendedPackets() throws IOException {
+        SyntheticTrace trace = new SyntheticTrace(3, 4096, 0.9, LONG_PERIOD);
+        assertEquals(SyntheticTrace.EXTENDED_EVENT_SIZE, trace.getEventSize());
+        checkSynthetic(trace, LONG_PERIOD);
+    }
+
+    private static void checkSynthetic(SyntheticTrace trace, long period) throws IOException {
+        trace.setDiscardEvery(2);
+        CtfMetadata metadata = CtfMetadata.parse(trace.getMetadata());
+        assertEquals(ByteOrder.LITTLE_ENDIAN, metadata.getByteOrder());
+        CtfMetadata.Event sample = metadata.getStream(0).getEvent(0);
+        assertEquals("sample", sample.getName()); //$NON-NLS-1$
+        int seq = sample.getFields().indexOf("seq"); //$NON-NLS-1$
+        int cpu = sample.getFields().indexOf("cpu"); //$NON-NLS-1$
+        int value = sample.getFields().indexOf("value"); //$NON-NLS-1$
+
+        CtfPacketCursor cursor = new CtfPacketCursor(metadata);
+        /* received packets are in big endian buffers, the cursor must not care */
+        ByteBuffer packet = ByteBuffer.allocateDirect(trace.getPacketSize()).order(ByteOrder.BIG_ENDIAN);
+        for (long p = 0; p < 3; p++) {
+            packet.clear();
+            trace.writePacket(2, p, packet);
+            packet.flip();
+            cursor.reset(packet);
+            assertEquals(trace.getContentSize() * 8L, cursor.getContentSize());
+            assertEquals(trace.getPacketSize() * 8L, cursor.getPacketSize());
+            assertEquals(SyntheticTrace.BASE_TIMESTAMP + p * period, cursor.getTimestampBegin());
+            assertEquals(p / 2, cursor.getEventsDiscarded());
+            assertEquals(16, cursor.getLength(CtfPacketCursor.PACKET_HEADER, metadata.getPacketHeader().indexOf("uuid"))); //$NON-NLS-1$
+            long step = period / trace.getEventsPerPacket();
+            for (int i = 0; i < trace.getEventsPerPacket(); i++) {
+                assertTrue(cursor.next());
+                assertEquals(sample, cursor.getEvent());
+                long expected = p * trace.getEventsPerPacket() + i;
+                assertEquals(expected, cursor.getLong(seq));
+                assertEquals(2, cursor.getLong(cpu));
+                assertEquals((int) (expected * 2654435761L) & 0xffffffffL, cursor.getLong(value));
+                assertEquals(SyntheticTrace.BASE_TIMESTAMP + p * period + i * step, cursor.getTimestamp());
+            }
+            assertFalse(cursor.next());
+            assertNull(cursor.getEvent());
+            assertEquals(trace.getEventsPerPacket(), cursor.getEventCount());
+        }
+    }
+
+    /**
+     * Big endian bit fields, signed values, sequences, strings, nested
+     * structures and a 27 bit timestamp that wraps
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @Test
+    public void testBitFields() throws IOException {
+        String tsdl = "/* CTF 1.8 */\n" //$NON-NLS-1$
+                + "typealias integer { size = 8; align = 8; signed = false; } := uint8_t;\n" //$NON-NLS-1$
+                + "typealias integer { size = 16; align = 8; signed = true; } := int16_t;\n" //$NON-NLS-1$
+                + "typealias integer { size = 32; align = 8; signed = false; } := unsigned int;\n" //$NON-NLS-1$
+                + "trace { major = 1; minor = 8; byte_order = be; packet.header := struct { unsigned int magic; }; };\n" //$NON-NLS-1$
+                + "clock { name = monotonic; freq = 1000000000; };\n" //$NON-NLS-1$
+                + "stream {\n" //$NON-NLS-1$
+                + "  event.header := struct { integer { size = 5; align = 1; } id; integer { size = 27; align = 1; map = clock.monotonic.value; } timestamp; } align(8);\n" //$NON-NLS-1$
+                + "  packet.context := struct { unsigned int content_size; unsigned int timestamp_begin; };\n" //$NON-NLS-1$
+                + "};\n" //$NON-NLS-1$
+                + "event { name = \"bits\"; id = 1; fields := struct {\n" //$NON-NLS-1$
+                + "  integer { size = 3; align = 1; } _a; integer { size = 5; align = 1; signed = true; } _b;\n" //$NON-NLS-1$
+                + "  int16_t _c; enum : uint8_t { ZERO, ONE = 1, MANY = 2 ... 255, } _len; uint8_t _data[_len];\n" //$NON-NLS-1$
+                + "  string _name; struct { uint8_t x; } _inner;\n" //$NON-NLS-1$
+                + "}; };\n"; //$NON-NLS-1$
+        CtfMetadata metadata = CtfMetadata.parse(tsdl);
+        assertEquals(ByteOrder.BIG_ENDIAN, metadata.getByteOrder());
+        CtfMetadata.Struct fields = metadata.getStream(0).getEvent(1).getFields();
+        assertEquals(CtfMetadata.Struct.SEQUENCE, fields.getKind(fields.indexOf("data"))); //$NON-NLS-1$
+        int x = fields.indexOf("inner.x"); //$NON-NLS-1$
+        assertTrue(x >= 0);
+
+        ByteBuffer packet = ByteBuffer.allocate(40);
+        packet.putInt(CtfPacketCursor.CTF_MAGIC);
+        packet.putInt(37 * 8);
+        packet.putInt(16);
+        packet.putInt((1 << 27) | 20);
+        packet.put((byte) ((5 << 5) | 0x1d));
+        packet.putShort((short) -2);
+        packet.put(new byte[] { 3, 1, 2, 3, 'h', 'i', 0, 7 });
+        packet.putInt((1 << 27) | 10);
+        packet.put((byte) 0);
+        packet.putShort((short) 300);
+        packet.put(new byte[] { 0, 0, 9 });
+        assertEquals(37, packet.position());
+        packet.clear();
+
+        CtfPacketCursor cursor = new CtfPacketCursor(metadata);
+        cursor.reset(packet);
+        assertTrue(cursor.next());
+        assertEquals(1, cursor.getEventId());
+        assertEquals(20, cursor.getTimestamp());
+        assertEquals(5, cursor.getLong(fields.indexOf("a"))); //$NON-NLS-1$
+        assertEquals(-3, cursor.getLong(fields.indexOf("b"))); //$NON-NLS-1$
+        assertEquals(-2, cursor.getLong(fields.indexOf("c"))); //$NON-NLS-1$
+        int data = fields.indexOf("data"); //$NON-NLS-1$
+        assertEquals(3, cursor.getLength(CtfPacketCursor.EVENT_FIELDS, data));
+        assertEquals(2, packet.get(cursor.getOffset(CtfPacketCursor.EVENT_FIELDS, data) + 1));
+        assertEquals("hi", cursor.getString(CtfPacketCursor.EVENT_FIELDS, fields.indexOf("name"))); //$NON-NLS-1$ //$NON-NLS-2$
+        assertEquals(7, cursor.getLong(x));
+        assertTrue(cursor.next());
+        assertEquals((1L << 27) + 10, cursor.getTimestamp());
+        assertEquals(300, cursor.getLong(fields.indexOf("c"))); //$NON-NLS-1$
+        assertEquals(0, cursor.getLength(CtfPacketCursor.EVENT_FIELDS, data));
+        assertEquals("", cursor.getString(CtfPacketCursor.EVENT_FIELDS, fields.indexOf("name"))); //$NON-NLS-1$ //$NON-NLS-2$
+        assertEquals(9, cursor.getLong(x));
+        assertFalse(cursor.next());
+    }
+
+    /**
+     * The compact and large event headers of LTTng: the enumeration id
+     * selects a 27 or 32 bit timestamp extended from the previous one, or an
+     * extended header with the real id and a full timestamp
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @Test
+    public void testLttngEventHeaders() throws IOException {
+        CtfMetadata metadata = CtfMetadata.parse(LTTNG_METADATA);
+        CtfMetadata.Stream stream = metadata.getStream(0);
+        CtfMetadata.Struct header = stream.getEventHeader();
+        assertEquals(8, header.getAlignment());
+        int variant = header.indexOf("v"); //$NON-NLS-1$
+        int compact = header.indexOf("v.compact.timestamp"); //$NON-NLS-1$
+        int extended = header.indexOf("v.extended.timestamp"); //$NON-NLS-1$
+        assertEquals(CtfMetadata.Struct.VARIANT, header.getKind(variant));
+        assertEquals(27, header.getBits(compact));
+        assertEquals(64, header.getBits(extended));
+        assertEquals(-1, header.getOption(variant));
+        assertEquals(CtfMetadata.Struct.OPTION, header.getKind(header.getOption(compact)));
+        CtfMetadata.Struct fields = stream.getEvent(0).getFields();
+        int intfield = fields.indexOf("intfield"); //$NON-NLS-1$
+        int stringfield = fields.indexOf("stringfield"); //$NON-NLS-1$
+
+        long begin = SyntheticTrace.BASE_TIMESTAMP;
+        long t1 = begin + 10;
+        /* far from t1, then 27 bit values that wrap */
+        long t2 = ((begin + (1L << 30)) | ((1L << 27) - 1)) - 100;
+        long t3 = t2 + 200;
+        ByteBuffer packet = ByteBuffer.allocate(128).order(ByteOrder.LITTLE_ENDIAN);
+        putPreamble(packet, 0, begin, t3, 101, 128);
+        /* compact, id 0 */
+        packet.putInt((int) (t1 << 5));
+        packet.putInt(-7);
+        packet.put(new byte[] { 'h', 'i', 0 });
+        /* extended, id 40 */
+        packet.put((byte) 31);
+        packet.putInt(40);
+        packet.putLong(t2);
+        /* compact, id 0 */
+        packet.putInt((int) (t3 << 5));
+        packet.putInt(42);
+        packet.put((byte) 0);
+        assertEquals(101, packet.position());
+        packet.clear();
+
+        CtfPacketCursor cursor = new CtfPacketCursor(metadata);
+        cursor.reset(packet);
+        assertTrue(cursor.next());
+        assertEquals(0, cursor.getEventId());
+        assertEquals(t1, cursor.getTimestamp());
+        assertTrue(cursor.isSelected(CtfPacketCursor.EVENT_HEADER, compact));
+        assertFalse(cursor.isSelected(CtfPacketCursor.EVENT_HEADER, extended));
+        assertEquals(-7, cursor.getLong(intfield));
+        assertEquals("hi", cursor.getString(CtfPacketCursor.EVENT_FIELDS, stringfield)); //$NON-NLS-1$
+        assertTrue(cursor.next());
+        assertEquals(40, cursor.getEventId());
+        assertEquals("ust_tests_hello:tptest_sighandler", cursor.getEvent().getName()); //$NON-NLS-1$
+        assertEquals(t2, cursor.getTimestamp());
+        assertFalse(cursor.isSelected(CtfPacketCursor.EVENT_HEADER, compact));
+        assertTrue(cursor.isSelected(CtfPacketCursor.EVENT_HEADER, extended));
+        assertTrue(cursor.next());
+        assertEquals(0, cursor.getEventId());
+        assertEquals(t3, cursor.getTimestamp());
+        assertEquals(42, cursor.getLong(intfield));
+        assertFalse(cursor.next());
+
+        /* the large header of stream 1: 16 bit id, 32 bit compact timestamp */
+        packet.clear();
+        putPreamble(packet, 1, begin, t2, 68 + 6 + 14, 128);
+        packet.putShort((short) 2);
+        packet.putInt((int) t1);
+        packet.putShort((short) 65535);
+        packet.putInt(2);
+        packet.putLong(t2);
+        packet.clear();
+        cursor.reset(packet);
+        assertEquals(1, cursor.getStream().getId());
+        assertTrue(cursor.next());
+        assertEquals(2, cursor.getEventId());
+        assertEquals(t1, cursor.getTimestamp());
+        assertTrue(cursor.next());
+        assertEquals(2, cursor.getEventId());
+        assertEquals(t2, cursor.getTimestamp());
+        assertFalse(cursor.next());
+    }
+
+    private static void putPreamble(ByteBuffer packet, int streamId, long begin, long end, int contentSize, int packetSize) {
+        packet.putInt(CtfPacketCursor.CTF_MAGIC);
+        packet.put(new byte[16]);
+        packet.putInt(streamId);
+        packet.putLong(begin);
+        packet.putLong(end);
+        packet.putLong(contentSize * 8L);
+        packet.putLong(packetSize * 8L);
+        packet.putLong(0);
+        packet.putInt(0);
+    }
+
+    /**
+     * Metadata split in packets, as the tracers write it, in either byte
+     * order
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @Test
+    public void testPacketizedMetadata() throws IOException {
+        byte[] text = LTTNG_METADATA.getBytes(ViewerNames.CHARSET);
+        assertFalse(CtfMetadata.isPacketized(text, text.length));
+        for (ByteOrder order : new ByteOrder[] { ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN }) {
+            byte[] data = packetize(text, order, 512);
+            assertTrue(CtfMetadata.isPacketized(data, data.length));
+            assertEquals(LTTNG_METADATA, CtfMetadata.toText(data, data.length));
+            CtfMetadata metadata = CtfMetadata.parse(data, data.length);
+            assertEquals("ust_tests_hello:tptest", metadata.getStream(0).getEvent(0).getName()); //$NON-NLS-1$
+            /* a packet still being received is left out */
+            int chunk = 512 - CtfMetadata.METADATA_HEADER_SIZE - 32;
+            int whole = text.length / chunk;
+            String partial = CtfMetadata.toText(data, data.length - 1);
+            assertEquals(new String(text, 0, whole * chunk, ViewerNames.CHARSET), partial);
+        }
+        try {
+            byte[] data = packetize(text, ByteOrder.LITTLE_ENDIAN, 512);
+            data[32] = 1;
+            CtfMetadata.toText(data, data.length);
+            fail();
+        } catch (IOException e) {
+            /* expected, compressed */
+        }
+    }
+
+    /* packets of packetSize bytes, 32 bytes of padding after the text */
+    private static byte[] packetize(byte[] text, ByteOrder order, int packetSize) {
+        int chunk = packetSize - CtfMetadata.METADATA_HEADER_SIZE - 32;
+        int packets = (text.length + chunk - 1) / chunk;
+        ByteBuffer data = ByteBuffer.allocate(packets * packetSize).order(order);
+        for (int p = 0; p < packets; p++) {
+            int len = Math.min(chunk, text.length - p * chunk);
+            data.position(p * packetSize);
+            data.putInt(CtfMetadata.METADATA_MAGIC);
+            data.put(new byte[16]);
+            data.putInt(0);
+            data.putInt((CtfMetadata.METADATA_HEADER_SIZE + len) * 8);
+            data.putInt(packetSize * 8);
+            data.put(new byte[] { 0, 0, 0, 1, 8 });
+            data.put(text, p * chunk, len);
+        }
+        return data.array();
+    }
+
+    /**
+     * Variants tagged by a plain integer, tags without an option and bad
+     * packets are reported
+     */
+    @Test
+    public void testErrors() {
+        try {
+            CtfMetadata.parse("typealias integer { size = 8; } := uint8_t;\n" //$NON-NLS-1$
+                    + "stream { event.header := struct { uint8_t id; variant <id> { uint8_t a; } v; }; };"); //$NON-NLS-1$
+            fail();
+        } catch (IOException e) {
+            /* expected, not an enumeration */
+        }
+        try {
+            CtfMetadata metadata = CtfMetadata.parse("typealias integer { size = 8; align = 8; } := uint8_t;\n" //$NON-NLS-1$
+                    + "stream { event.header := struct { enum : uint8_t { a = 1, b = 2 } id; variant <id> { uint8_t a; uint8_t b; } v; }; };\n" //$NON-NLS-1$
+                    + "event { name = \"e\"; id = 1; };"); //$NON-NLS-1$
+            CtfPacketCursor cursor = new CtfPacketCursor(metadata);
+            cursor.reset(ByteBuffer.wrap(new byte[] { 3, 0 }));
+            cursor.next();
+            fail();
+        } catch (IOException e) {
+            /* expected, no option for 3 */
+        }
+        try {
+            SyntheticTrace trace = new SyntheticTrace(3, 1024, 1.0, PERIOD);
+            CtfPacketCursor cursor = new CtfPacketCursor(CtfMetadata.parse(trace.getMetadata()));
+            cursor.reset(ByteBuffer.allocate(1024));
+            fail();
+        } catch (IOException e) {
+            /* expected, no magic */
+        }
+    }
+
+    /**
+     * Decode a packet fetched from the mock with the metadata it sent
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @Test
+    public void testLivePacket() throws IOException {
+        MockRelayD relayd = new MockRelayD();
+        relayd.setStreamsPerSession(1);
+        relayd.setPacketSize(2048);
+        relayd.setPacketCount(1);
+        InetSocketAddress address = relayd.start(0);
+        try (ViewerClient client = ViewerClient.open(address.getHostString(), address.getPort())) {
+            client.connect();
+            AttachedSession session = client.attachSession(1, lttng_viewer_seek.VIEWER_SEEK_BEGINNING);
+            String tsdl = new MetadataCache().update(client, session.getMetadataStreams()[0]).getText();
+            CtfPacketCursor cursor = new CtfPacketCursor(CtfMetadata.parse(tsdl));
+            long id = session.getDataStreamIds()[0];
+            lttng_viewer_index index = client.getNextIndex(id, new lttng_viewer_index());
+            PacketBuffer packet = client.getPacket(id, index, new lttng_viewer_trace_packet(), new PacketArena());
+            cursor.reset(packet.buffer());
+            assertEquals(index.content_size, cursor.getContentSize());
+            int events = 0;
+            while (cursor.next()) {
+                events++;
+            }
+            assertEquals((2048 - SyntheticTrace.PACKET_PREAMBLE_SIZE) / SyntheticTrace.EVENT_SIZE, events);
+            packet.release();
+        } finally {
+            relayd.close();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_index;
+
+/**
+ * A CTF trace written by lttng with its index files, as relayd keeps them:
+ *
+ * <pre>
+ * trace/metadata
+ * trace/channel0_0
+ * trace/index/channel0_0.idx
+ * </pre>
+ *
+ * Only the streams that have an index file are served. An index file is a 12
+ * byte header (magic 0xC1F1DCC1, major, minor) followed by one entry of seven
+ * big endian 64 bit fields per packet, the same fields as lttng_viewer_index.
+ * Trailing entries with a packet size of 0 are padding and are ignored.
+ *
+ * @author Matthew Khouzam
+ */
+public class DiskTrace implements Closeable {
+
+    /** Magic number of an lttng index file */
+    public static final int INDEX_MAGIC = 0xC1F1DCC1;
+    /** Size of the header of an index file */
+    public static final int INDEX_HEADER_SIZE = 12;
+    /** Size of one entry of an index file */
+    public static final int INDEX_ENTRY_SIZE = 7 * 8;
+
+    private static final String METADATA = "metadata"; //$NON-NLS-1$
+    private static final String INDEX_DIR = "index"; //$NON-NLS-1$
+    private static final String INDEX_SUFFIX = ".idx"; //$NON-NLS-1$
+
+    private final File fDirectory;
+    private final byte[] fMetadata;
+    private final List<String> fNames = new ArrayList<>();
+    private final List<FileChannel> fFiles = new ArrayList<>();
+    private final List<long[]> fIndexes = new ArrayList<>();
+
+    /**
+     * Load the metadata and the indexes of a trace
+     *
+     * @param directory
+     *            the trace directory
+     * @throws IOException
+     *             the trace could not be read
+     */
+    public DiskTrace(File directory) throws IOException {
+        fDirectory = directory;
+        fMetadata = Files.readAllBytes(new File(directory, METADATA).toPath());
+        File[] indexes = new File(directory, INDEX_DIR).listFiles();
+        if (indexes == null) {
+            throw new IOException("No index directory in " + directory); //$NON-NLS-1$
+        }
+        Arrays.sort(indexes);
+        for (File index : indexes) {
+            String name = index.getName();
+            if (!name.endsWith(INDEX_SUFFIX)) {
+                continue;
+            }
+            name = name.substring(0, name.length() - INDEX_SUFFIX.length());
+            File data = new File(directory, name);
+            if (!data.isFile()) {
+                continue;
+            }
+            fNames.add(name);
+            fIndexes.add(readIndex(index));
+            fFiles.add(FileChannel.open(data.toPath(), StandardOpenOption.READ));
+        }
+    }
+
+    private static long[] readIndex(File file) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.BIG_ENDIAN);
+        if (bb.remaining() < INDEX_HEADER_SIZE || bb.getInt() != INDEX_MAGIC) {
+            throw new IOException("Not an index file " + file); //$NON-NLS-1$
+        }
+        bb.position(INDEX_HEADER_SIZE);
+        long[] entries = new long[bb.remaining() / INDEX_ENTRY_SIZE * 7];
+        bb.asLongBuffer().get(entries);
+        /* an index not truncated by its writer ends with zero entries */
+        int count = entries.length / 7;
+        while (count > 0 && entries[(count - 1) * 7 + 1] == 0) {
+            count--;
+        }
+        return (count == entries.length / 7) ? entries : Arrays.copyOf(entries, count * 7);
+    }
+
+    /**
+     * @return the trace directory name
+     */
+    public String getName() {
+        return fDirectory.getName();
+    }
+
+    /**
+     * @return the metadata file content
+     */
+    public byte[] getMetadata() {
+        return fMetadata;
+    }
+
+    /**
+     * @return the number of streams with an index
+     */
+    public int getStreamCount() {
+        return fNames.size();
+    }
+
+    /**
+     * @param stream
+     *            the stream number
+     * @return the stream file name, which is also its channel name
+     */
+    public String getStreamName(int stream) {
+        return fNames.get(stream);
+    }
+
+    /**
+     * @param stream
+     *            the stream number
+     * @return the number of packets of the stream
+     */
+    public int getPacketCount(int stream) {
+        return fIndexes.get(stream).length / 7;
+    }
+
+    /**
+     * Fill an index from the index file. The stream id and the status are
+     * left to the caller.
+     *
+     * @param stream
+     *            the stream number
+     * @param packet
+     *            the packet number
+     * @param index
+     *            the index to fill
+     */
+    public void index(int stream, int packet, lttng_viewer_index index) {
+        long[] entries = fIndexes.get(stream);
+        int i = packet * 7;
+        index.offset = entries[i];
+        index.packet_size = entries[i + 1];
+        index.content_size = entries[i + 2];
+        index.timestamp_begin = entries[i + 3];
+        index.timestamp_end = entries[i + 4];
+        index.events_discarded = entries[i + 5];
+    }
+
+    /**
+     * Read a range of a stream file
+     *
+     * @param stream
+     *            the stream number
+     * @param offset
+     *            the offset in the file
+     * @param len
+     *            the number of bytes
+     * @param dst
+     *            where to write them
+     * @throws IOException
+     *             the range is past the end of the file
+     */
+    public void read(int stream, long offset, int len, ByteBuffer dst) throws IOException {
+        FileChannel file = fFiles.get(stream);
+        int limit = dst.limit();
+        dst.limit(dst.position() + len);
+        try {
+            long pos = offset;
+            while (dst.hasRemaining()) {
+                int read = file.read(dst, pos);
+                if (read < 0) {
+                    throw new IOException("Read past the end of " + fNames.get(stream)); //$NON-NLS-1$
+                }
+                pos += read;
+            }
+        } finally {
+            dst.limit(limit);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (FileChannel file : fFiles) {
+            file.close();
+        }
+    }
+}
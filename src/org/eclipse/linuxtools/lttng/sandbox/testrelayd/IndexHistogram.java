@@ -0,0 +1,376 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_index;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_next_index_return_code;
+
+/**
+ * Time histogram of the packets of a session built from the indexes alone.
+ * Given to a {@link LiveSessionPoller} it never fetches a packet: relayd moves
+ * past an index once it is sent, so the data streams are followed for the
+ * price of GET_NEXT_INDEX, 64 bytes per packet.
+ *
+ * Every index is folded into several levels of buckets, level 0 buckets being
+ * {@link #getBucketWidth(int) width} timestamp units wide and each level
+ * {@link #FANOUT} times coarser than the previous one. A level keeps its most
+ * recent buckets in a ring, so the fine levels cover the last moments and the
+ * coarse ones the whole session, in constant memory.
+ *
+ * A bucket counts the packets and the events discarded that end in it, and
+ * the packet bytes spread in proportion of the time between timestamp_begin
+ * and timestamp_end that falls in it. Indexes older than the ring of a level
+ * are only counted by the coarser levels.
+ *
+ * @author Matthew Khouzam
+ */
+public class IndexHistogram implements LiveSessionPoller.IndexHandler {
+
+    /** Ratio between the bucket widths of two consecutive levels */
+    public static final int FANOUT = 8;
+    /** Default number of levels */
+    public static final int DEFAULT_LEVELS = 6;
+    /** Default number of buckets kept per level */
+    public static final int DEFAULT_BUCKETS = 1024;
+
+    private final long[] fWidths;
+    private final Level[] fLevels;
+    private final int fBuckets;
+    private final Map<Long, long[]> fDiscarded = new HashMap<>();
+    private long fPackets;
+    private long fBytes;
+    private long fDiscardedEvents;
+    private long fBegin = Long.MAX_VALUE;
+    private long fEnd = Long.MIN_VALUE;
+
+    /**
+     * Constructor with the default levels and buckets
+     *
+     * @param width
+     *            the width of the finest buckets, in timestamp units
+     */
+    public IndexHistogram(long width) {
+        this(width, DEFAULT_LEVELS, DEFAULT_BUCKETS);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param width
+     *            the width of the finest buckets, in timestamp units
+     * @param levels
+     *            the number of levels
+     * @param buckets
+     *            the number of buckets kept per level
+     */
+    public IndexHistogram(long width, int levels, int buckets) {
+        if (width <= 0 || levels <= 0 || buckets <= 0) {
+            throw new IllegalArgumentException("Width, levels and buckets must be positive"); //$NON-NLS-1$
+        }
+        fBuckets = buckets;
+        fWidths = new long[levels];
+        fLevels = new Level[levels];
+        long w = width;
+        for (int i = 0; i < levels; i++) {
+            fWidths[i] = w;
+            fLevels[i] = new Level(buckets);
+            w = (w > Long.MAX_VALUE / FANOUT) ? Long.MAX_VALUE : w * FANOUT;
+        }
+    }
+
+    /**
+     * Fold the OK indexes, ignore the other replies
+     */
+    @Override
+    public void onIndex(ViewerStream stream, lttng_viewer_index index) {
+        if (index.status == lttng_viewer_next_index_return_code.VIEWER_INDEX_OK) {
+            add(stream.getId(), index);
+        }
+    }
+
+    /**
+     * Fold an index into the histogram
+     *
+     * @param streamId
+     *            the viewer stream of the index, events_discarded is a
+     *            counter per stream
+     * @param index
+     *            the index of a packet
+     */
+    public synchronized void add(long streamId, lttng_viewer_index index) {
+        long begin = index.timestamp_begin;
+        long end = Math.max(begin, index.timestamp_end);
+        long bytes = index.packet_size / 8;
+        long[] last = fDiscarded.get(streamId);
+        if (last == null) {
+            last = new long[1];
+            fDiscarded.put(streamId, last);
+        }
+        /* the counter is cumulative, it restarts if the tracer restarts */
+        long discarded = (index.events_discarded >= last[0]) ? index.events_discarded - last[0] : index.events_discarded;
+        last[0] = index.events_discarded;
+
+        for (int i = 0; i < fLevels.length; i++) {
+            fLevels[i].add(fWidths[i], begin, end, bytes, discarded);
+        }
+        fPackets++;
+        fBytes += bytes;
+        fDiscardedEvents += discarded;
+        fBegin = Math.min(fBegin, begin);
+        fEnd = Math.max(fEnd, end);
+    }
+
+    /**
+     * @return the number of levels
+     */
+    public int getLevelCount() {
+        return fLevels.length;
+    }
+
+    /**
+     * @param level
+     *            a level
+     * @return the width of its buckets, in timestamp units
+     */
+    public long getBucketWidth(int level) {
+        return fWidths[level];
+    }
+
+    /**
+     * @return the number of packets folded
+     */
+    public synchronized long getPacketCount() {
+        return fPackets;
+    }
+
+    /**
+     * @return the total size of the packets folded, in bytes
+     */
+    public synchronized long getByteCount() {
+        return fBytes;
+    }
+
+    /**
+     * @return the number of events discarded by the tracer
+     */
+    public synchronized long getDiscardedCount() {
+        return fDiscardedEvents;
+    }
+
+    /**
+     * @return the first timestamp_begin, Long.MAX_VALUE if empty
+     */
+    public synchronized long getTimestampBegin() {
+        return fBegin;
+    }
+
+    /**
+     * @return the last timestamp_end, Long.MIN_VALUE if empty
+     */
+    public synchronized long getTimestampEnd() {
+        return fEnd;
+    }
+
+    /**
+     * Read a time range at the finest level that still covers its start and
+     * needs no more than a given number of buckets, or at the coarsest level
+     *
+     * @param start
+     *            the start of the range
+     * @param end
+     *            the end of the range, included
+     * @param maxBuckets
+     *            the most buckets wanted, for example the pixels of a chart
+     * @return the buckets of the range, empty buckets included
+     */
+    public synchronized Series query(long start, long end, int maxBuckets) {
+        if (end < start || maxBuckets <= 0) {
+            throw new IllegalArgumentException("Empty range or no bucket"); //$NON-NLS-1$
+        }
+        int level = fLevels.length - 1;
+        for (int i = 0; i < fLevels.length; i++) {
+            long first = Math.floorDiv(start, fWidths[i]);
+            long count = Math.floorDiv(end, fWidths[i]) - first + 1;
+            if (count <= maxBuckets && count <= fBuckets && fLevels[i].covers(first)) {
+                level = i;
+                break;
+            }
+        }
+        long width = fWidths[level];
+        long last = Math.floorDiv(end, width);
+        long first = Math.max(Math.floorDiv(start, width), last - Math.min(maxBuckets, fBuckets) + 1);
+        return fLevels[level].read(level, width, first, (int) (last - first + 1));
+    }
+
+    /** The ring of buckets of one level */
+    private static class Level {
+        private final long[] fKeys;
+        private final long[] fPackets;
+        private final long[] fBytes;
+        private final long[] fDiscarded;
+        private long fNewest = Long.MIN_VALUE;
+
+        public Level(int buckets) {
+            fKeys = new long[buckets];
+            fPackets = new long[buckets];
+            fBytes = new long[buckets];
+            fDiscarded = new long[buckets];
+        }
+
+        /* slot of a bucket, reset if it held an older one, -1 if the ring moved past it */
+        private int slot(long bucket) {
+            int slot = (int) Math.floorMod(bucket, (long) fKeys.length);
+            if (fNewest != Long.MIN_VALUE && bucket <= fNewest - fKeys.length) {
+                return -1;
+            }
+            if (bucket > fNewest) {
+                fNewest = bucket;
+            }
+            if (fKeys[slot] != bucket) {
+                fKeys[slot] = bucket;
+                fPackets[slot] = 0;
+                fBytes[slot] = 0;
+                fDiscarded[slot] = 0;
+            }
+            return slot;
+        }
+
+        public void add(long width, long begin, long end, long bytes, long discarded) {
+            long firstBucket = Math.floorDiv(begin, width);
+            long lastBucket = Math.floorDiv(end, width);
+            int slot = slot(lastBucket);
+            if (slot >= 0) {
+                fPackets[slot]++;
+                fDiscarded[slot] += discarded;
+            }
+            /* a packet longer than the ring puts its start in the oldest bucket */
+            firstBucket = Math.max(firstBucket, lastBucket - fKeys.length + 1);
+            double duration = (double) end - begin + 1;
+            long spread = 0;
+            for (long b = firstBucket; b <= lastBucket; b++) {
+                long share;
+                if (b == lastBucket) {
+                    share = bytes - spread;
+                } else {
+                    long covered = (b + 1) * width - begin;
+                    share = (long) (bytes * (covered / duration)) - spread;
+                }
+                spread += share;
+                slot = slot(b);
+                if (slot >= 0) {
+                    fBytes[slot] += share;
+                }
+            }
+        }
+
+        public boolean covers(long bucket) {
+            return fNewest == Long.MIN_VALUE || bucket > fNewest - fKeys.length;
+        }
+
+        public Series read(int level, long width, long first, int count) {
+            long[] packets = new long[count];
+            long[] bytes = new long[count];
+            long[] discarded = new long[count];
+            for (int i = 0; i < count; i++) {
+                long bucket = first + i;
+                int slot = (int) Math.floorMod(bucket, (long) fKeys.length);
+                if (fKeys[slot] == bucket) {
+                    packets[i] = fPackets[slot];
+                    bytes[i] = fBytes[slot];
+                    discarded[i] = fDiscarded[slot];
+                }
+            }
+            return new Series(level, first * width, width, packets, bytes, discarded);
+        }
+    }
+
+    /**
+     * Consecutive buckets of one level, a copy taken by
+     * {@link IndexHistogram#query(long, long, int)}
+     */
+    public static class Series {
+        private final int fLevel;
+        private final long fStart;
+        private final long fWidth;
+        private final long[] fPackets;
+        private final long[] fBytes;
+        private final long[] fDiscarded;
+
+        Series(int level, long start, long width, long[] packets, long[] bytes, long[] discarded) {
+            fLevel = level;
+            fStart = start;
+            fWidth = width;
+            fPackets = packets;
+            fBytes = bytes;
+            fDiscarded = discarded;
+        }
+
+        /**
+         * @return the level the buckets come from
+         */
+        public int getLevel() {
+            return fLevel;
+        }
+
+        /**
+         * @return the start of the first bucket
+         */
+        public long getStart() {
+            return fStart;
+        }
+
+        /**
+         * @return the width of the buckets, in timestamp units
+         */
+        public long getWidth() {
+            return fWidth;
+        }
+
+        /**
+         * @return the number of buckets
+         */
+        public int size() {
+            return fPackets.length;
+        }
+
+        /**
+         * @param i
+         *            a bucket
+         * @return the packets ending in it
+         */
+        public long getPackets(int i) {
+            return fPackets[i];
+        }
+
+        /**
+         * @param i
+         *            a bucket
+         * @return the packet bytes spread over it
+         */
+        public long getBytes(int i) {
+            return fBytes[i];
+        }
+
+        /**
+         * @param i
+         *            a bucket
+         * @return the events discarded by the packets ending in it
+         */
+        public long getDiscarded(int i) {
+            return fDiscarded[i];
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_index;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_seek;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests the index-only time histogram
+ *
+ * @author Matthew Khouzam
+ */
+public class IndexHistogramTest {
+
+    /** Holds the capture file */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static lttng_viewer_index index(long begin, long end, long bytes, long discarded) {
+        lttng_viewer_index index = new lttng_viewer_index();
+        index.timestamp_begin = begin;
+        index.timestamp_end = end;
+        index.packet_size = bytes * 8;
+        index.events_discarded = discarded;
+        return index;
+    }
+
+    /**
+     * Bytes are spread over the buckets a packet covers, packets and discarded
+     * events go to the bucket where it ends, coarse levels outlive the fine
+     * ones
+     */
+    @Test
+    public void testFold() {
+        IndexHistogram histogram = new IndexHistogram(10, 3, 4);
+        assertEquals(640, histogram.getBucketWidth(2));
+        histogram.add(1, index(5, 24, 200, 0));
+        histogram.add(1, index(25, 34, 100, 3));
+        histogram.add(2, index(30, 39, 100, 1));
+
+        IndexHistogram.Series series = histogram.query(0, 39, 4);
+        assertEquals(0, series.getLevel());
+        assertEquals(0, series.getStart());
+        assertEquals(4, series.size());
+        assertEquals(50, series.getBytes(0));
+        assertEquals(100, series.getBytes(1));
+        assertEquals(100, series.getBytes(2));
+        assertEquals(150, series.getBytes(3));
+        assertEquals(1, series.getPackets(2));
+        assertEquals(2, series.getPackets(3));
+        assertEquals(4, series.getDiscarded(3));
+
+        /* too many buckets at level 0 for the chart */
+        series = histogram.query(0, 39, 2);
+        assertEquals(1, series.getLevel());
+        assertEquals(1, series.size());
+        assertEquals(400, series.getBytes(0));
+        assertEquals(3, series.getPackets(0));
+
+        /* level 0 forgets the first buckets, level 1 still has them */
+        histogram.add(1, index(60, 69, 10, 3));
+        series = histogram.query(0, 9, 1);
+        assertEquals(1, series.getLevel());
+        assertEquals(0, histogram.query(60, 69, 1).getLevel());
+        series = histogram.query(0, 79, 8);
+        assertEquals(1, series.getLevel());
+        assertEquals(410, series.getBytes(0));
+        assertEquals(4, histogram.getPacketCount());
+        assertEquals(410, histogram.getByteCount());
+        assertEquals(4, histogram.getDiscardedCount());
+        assertEquals(5, histogram.getTimestampBegin());
+        assertEquals(69, histogram.getTimestampEnd());
+    }
+
+    /**
+     * A session followed with the histogram as handler counts every packet
+     * while the network carries the indexes only
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @Test
+    public void testIndexOnly() throws IOException {
+        int streams = 2;
+        int packets = 20;
+        int packetSize = 64 * 1024;
+        MockRelayD relayd = new MockRelayD();
+        relayd.setStreamsPerSession(streams);
+        relayd.setPacketSize(packetSize);
+        relayd.setPacketCount(packets);
+        relayd.setDiscardEvery(4);
+        InetSocketAddress address = relayd.start(0);
+        IndexHistogram histogram = new IndexHistogram(1000000L);
+        try (ViewerClient client = ViewerClient.open(address.getHostString(), address.getPort());
+                WireCapture capture = new WireCapture(new File(folder.getRoot(), "index.capture"))) { //$NON-NLS-1$
+            client.connect();
+            AttachedSession session = client.attachSession(1, lttng_viewer_seek.VIEWER_SEEK_BEGINNING);
+            client.setCapture(capture);
+            new LiveSessionPoller(client, session, histogram).run();
+            assertTrue(capture.getByteCount() < streams * packets * packetSize / 100);
+        } finally {
+            relayd.close();
+        }
+        assertEquals(streams * packets, histogram.getPacketCount());
+        assertEquals((long) streams * packets * packetSize, histogram.getByteCount());
+        assertEquals(streams * ((packets - 1) / 4), histogram.getDiscardedCount());
+        IndexHistogram.Series series = histogram.query(histogram.getTimestampBegin(), histogram.getTimestampEnd(), 100);
+        long total = 0;
+        for (int i = 0; i < series.size(); i++) {
+            total += series.getPackets(i);
+        }
+        assertEquals(streams * packets, total);
+    }
+}
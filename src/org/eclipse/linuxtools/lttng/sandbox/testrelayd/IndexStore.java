@@ -0,0 +1,454 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_index;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_next_index_return_code;
+
+/**
+ * On-disk store of the indexes of the consumed packets, one memory-mapped
+ * file per stream, so a viewer that restarts does not download again what it
+ * already has.
+ *
+ * relayd reuses stream ids across sessions and restarts, so a stream is
+ * identified by its path_name, which starts with the hostname and the session
+ * directory, and its channel_name. Its file is path_name/channel_name.idx
+ * under the store directory, like the traces written by {@link TraceSpooler},
+ * and the identity is also written in the file header: a file found for
+ * another stream is refused instead of resumed.
+ *
+ * The entries use the lttng index layout read by {@link DiskTrace}, seven big
+ * endian 64 bit fields per packet. The header of a store file is its own: a
+ * magic number of its own, the version, then the identity, padded to 8
+ * bytes. {@link TraceSpooler} writes plain lttng index files with the same
+ * class. The files are mapped by chunks of {@link #GROWTH} entries and truncated to their
+ * content when the store is closed, once unmapped. Where the virtual machine
+ * cannot unmap, see {@link Unmapper}, and the system refuses to truncate a
+ * mapped file, as Windows does, a file keeps the zero filled end of its last
+ * chunk: the readers of this package stop at the first entry of size 0, a
+ * size no packet has.
+ *
+ * Relayd 2.4 can only attach at the beginning or at the end of a session.
+ * To resume, attach at the beginning and filter the indexes through
+ * {@link #resume(LiveSessionPoller.IndexHandler)}: the ones at or before the
+ * last stored offset of their stream are dropped without fetching their
+ * packet.
+ *
+ * @author Matthew Khouzam
+ */
+public class IndexStore implements Closeable {
+
+    /** Entries added to a file when it is full */
+    public static final int GROWTH = 4096;
+
+    private static final int MAJOR = 1;
+    private static final int MINOR = 0;
+    private static final int FIELDS = 7;
+    private static final String SUFFIX = ".idx"; //$NON-NLS-1$
+    /* the lttng index magic with its last byte changed, not an lttng index */
+    private static final int STORE_MAGIC = 0xC1F1DC5D;
+    /* magic, major, minor, identity length */
+    private static final int STORE_HEADER_SIZE = 16;
+
+    private final File fDirectory;
+    private final Map<String, StreamIndex> fStreams = new HashMap<>();
+    /* the streams already looked up, to find them without building their identity */
+    private final Map<ViewerStream, StreamIndex> fByStream = new HashMap<>();
+
+    /**
+     * Constructor
+     *
+     * @param directory
+     *            where the index files are, created if needed
+     * @throws IOException
+     *             the directory could not be created
+     */
+    public IndexStore(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory); //$NON-NLS-1$
+        }
+        fDirectory = directory;
+    }
+
+    /**
+     * Get the index of a stream, opening or creating its file
+     *
+     * @param stream
+     *            the stream
+     * @return the stored indexes of the stream
+     * @throws IOException
+     *             the file could not be mapped, is not a store file or is the
+     *             one of another stream
+     */
+    public synchronized StreamIndex get(ViewerStream stream) throws IOException {
+        StreamIndex index = fByStream.get(stream);
+        if (index == null) {
+            String identity = stream.getPathName() + '/' + stream.getChannelName();
+            index = fStreams.get(identity);
+            if (index == null) {
+                index = new StreamIndex(stream.getId(), identity, file(identity));
+                fStreams.put(identity, index);
+            }
+            fByStream.put(stream, index);
+        }
+        return index;
+    }
+
+    /* the names come from the network, the file must stay under the directory */
+    private File file(String identity) throws IOException {
+        File file = new File(fDirectory, identity + SUFFIX);
+        String root = fDirectory.getCanonicalPath() + File.separator;
+        if (!file.getCanonicalPath().startsWith(root)) {
+            throw new IOException("Stream path outside of the store " + identity); //$NON-NLS-1$
+        }
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create " + parent); //$NON-NLS-1$
+        }
+        return file;
+    }
+
+    /**
+     * Wrap a handler so that it only sees the indexes not stored yet, and
+     * store the OK ones it is given
+     *
+     * @param handler
+     *            the handler fetching the packets
+     * @return the filtering handler
+     */
+    public LiveSessionPoller.IndexHandler resume(final LiveSessionPoller.IndexHandler handler) {
+        return new LiveSessionPoller.IndexHandler() {
+            @Override
+            public void onIndex(ViewerStream stream, lttng_viewer_index index) throws IOException {
+                if (index.status != lttng_viewer_next_index_return_code.VIEWER_INDEX_OK) {
+                    handler.onIndex(stream, index);
+                    return;
+                }
+                StreamIndex stored = get(stream);
+                if (index.offset <= stored.getLastOffset()) {
+                    return;
+                }
+                handler.onIndex(stream, index);
+                stored.append(index);
+            }
+        };
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        IOException error = null;
+        for (StreamIndex index : fStreams.values()) {
+            try {
+                index.close();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        fStreams.clear();
+        fByStream.clear();
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * The stored indexes of one stream, in offset and time order
+     */
+    public static class StreamIndex implements Closeable {
+        private static final int OFFSET = 0;
+        private static final int PACKET_SIZE = 8;
+        private static final int CONTENT_SIZE = 16;
+        private static final int TIMESTAMP_BEGIN = 24;
+        private static final int TIMESTAMP_END = 32;
+        private static final int EVENTS_DISCARDED = 40;
+        private static final int STREAM_ID = 48;
+
+        private final long fStreamId;
+        private final FileChannel fFile;
+        private final int fHeaderSize;
+        private MappedByteBuffer fMap;
+        private int fSize;
+
+        /* a plain lttng index file, as in a trace */
+        StreamIndex(long streamId, File file) throws IOException {
+            this(streamId, null, file);
+        }
+
+        /* a store file when there is an identity */
+        StreamIndex(long streamId, String identity, File file) throws IOException {
+            fStreamId = streamId;
+            ByteBuffer header = header(identity);
+            fHeaderSize = header.capacity();
+            boolean exists = file.length() > 0;
+            fFile = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                if (exists) {
+                    checkHeader(header, file);
+                } else {
+                    fFile.write(header, 0);
+                }
+                long entries = Math.max(0, (fFile.size() - fHeaderSize) / DiskTrace.INDEX_ENTRY_SIZE);
+                map((int) Math.max(entries, GROWTH));
+                fSize = countEntries((int) entries);
+            } catch (IOException e) {
+                Unmapper.unmap(fMap);
+                fMap = null;
+                fFile.close();
+                throw e;
+            }
+        }
+
+        private static ByteBuffer header(String identity) {
+            if (identity == null) {
+                ByteBuffer header = ByteBuffer.allocate(DiskTrace.INDEX_HEADER_SIZE);
+                header.putInt(DiskTrace.INDEX_MAGIC).putInt(MAJOR).putInt(MINOR).flip();
+                return header;
+            }
+            byte[] name = identity.getBytes(ViewerNames.CHARSET);
+            ByteBuffer header = ByteBuffer.allocate((STORE_HEADER_SIZE + name.length + 7) & ~7);
+            header.putInt(STORE_MAGIC).putInt(MAJOR).putInt(MINOR).putInt(name.length).put(name).clear();
+            return header;
+        }
+
+        /* read before mapping, a file that is not ours must not grow */
+        private void checkHeader(ByteBuffer expected, File file) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(expected.capacity());
+            fFile.read(header, 0);
+            header.flip();
+            if (header.remaining() < DiskTrace.INDEX_HEADER_SIZE || header.getInt(0) != expected.getInt(0)) {
+                throw new IOException("Not an index file " + file); //$NON-NLS-1$
+            }
+            if (!header.equals(expected)) {
+                throw new IOException("Index file of another stream " + file); //$NON-NLS-1$
+            }
+        }
+
+        /* the previous mapping is released, the new one covers it */
+        private void map(int entries) throws IOException {
+            MappedByteBuffer previous = fMap;
+            fMap = fFile.map(MapMode.READ_WRITE, 0, fHeaderSize + (long) entries * DiskTrace.INDEX_ENTRY_SIZE);
+            Unmapper.unmap(previous);
+        }
+
+        /* entries are written in order, the unused tail of the mapping is zeros */
+        private int countEntries(int max) {
+            int low = 0;
+            int high = max;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (fMap.getLong(at(mid) + PACKET_SIZE) != 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        private int at(int entry) {
+            return fHeaderSize + entry * DiskTrace.INDEX_ENTRY_SIZE;
+        }
+
+        /**
+         * @return the stream id
+         */
+        public long getStreamId() {
+            return fStreamId;
+        }
+
+        /**
+         * @return the number of stored indexes
+         */
+        public synchronized int size() {
+            return fSize;
+        }
+
+        /**
+         * @return the offset of the last stored packet, -1 if there is none
+         */
+        public synchronized long getLastOffset() {
+            return (fSize == 0) ? -1 : getOffset(fSize - 1);
+        }
+
+        /**
+         * Store an index, it must come after the last one
+         *
+         * @param index
+         *            an index with status VIEWER_INDEX_OK
+         * @throws IOException
+         *             the file could not grow
+         */
+        public synchronized void append(lttng_viewer_index index) throws IOException {
+            if (fSize > 0 && index.offset <= getLastOffset()) {
+                throw new IllegalArgumentException("Index at " + index.offset + " is not after " + getLastOffset()); //$NON-NLS-1$ //$NON-NLS-2$
+            }
+            if (at(fSize + 1) > fMap.capacity()) {
+                map(fSize + GROWTH);
+            }
+            int at = at(fSize);
+            fMap.putLong(at + OFFSET, index.offset);
+            fMap.putLong(at + PACKET_SIZE, index.packet_size);
+            fMap.putLong(at + CONTENT_SIZE, index.content_size);
+            fMap.putLong(at + TIMESTAMP_BEGIN, index.timestamp_begin);
+            fMap.putLong(at + TIMESTAMP_END, index.timestamp_end);
+            fMap.putLong(at + EVENTS_DISCARDED, index.events_discarded);
+            fMap.putLong(at + STREAM_ID, fStreamId);
+            fSize++;
+        }
+
+        /**
+         * Read a stored index
+         *
+         * @param i
+         *            the index number
+         * @param index
+         *            the index to fill, its status is set to OK
+         */
+        public synchronized void get(int i, lttng_viewer_index index) {
+            int at = at(check(i));
+            index.offset = fMap.getLong(at + OFFSET);
+            index.packet_size = fMap.getLong(at + PACKET_SIZE);
+            index.content_size = fMap.getLong(at + CONTENT_SIZE);
+            index.timestamp_begin = fMap.getLong(at + TIMESTAMP_BEGIN);
+            index.timestamp_end = fMap.getLong(at + TIMESTAMP_END);
+            index.events_discarded = fMap.getLong(at + EVENTS_DISCARDED);
+            index.stream_id = fStreamId;
+            index.status = lttng_viewer_next_index_return_code.VIEWER_INDEX_OK;
+            index.flags = 0;
+        }
+
+        /**
+         * @param i
+         *            the index number
+         * @return the offset of the packet in the stream file
+         */
+        public synchronized long getOffset(int i) {
+            return fMap.getLong(at(check(i)) + OFFSET);
+        }
+
+        /**
+         * @param i
+         *            the index number
+         * @return the first timestamp of the packet
+         */
+        public synchronized long getTimestampBegin(int i) {
+            return fMap.getLong(at(check(i)) + TIMESTAMP_BEGIN);
+        }
+
+        /**
+         * @param i
+         *            the index number
+         * @return the last timestamp of the packet
+         */
+        public synchronized long getTimestampEnd(int i) {
+            return fMap.getLong(at(check(i)) + TIMESTAMP_END);
+        }
+
+        /**
+         * @param i
+         *            the index number
+         * @return the events lost by the tracer up to the packet
+         */
+        public synchronized long getEventsDiscarded(int i) {
+            return fMap.getLong(at(check(i)) + EVENTS_DISCARDED);
+        }
+
+        private int check(int i) {
+            if (i < 0 || i >= fSize) {
+                throw new IndexOutOfBoundsException(Integer.toString(i));
+            }
+            return i;
+        }
+
+        /**
+         * Find the first packet of a time range, by binary search
+         *
+         * @param timestamp
+         *            the start of the range
+         * @return the first packet ending at or after the timestamp, size()
+         *         if there is none
+         */
+        public synchronized int first(long timestamp) {
+            int low = 0;
+            int high = fSize;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (fMap.getLong(at(mid) + TIMESTAMP_END) < timestamp) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Find the end of a time range, by binary search
+         *
+         * @param timestamp
+         *            the end of the range
+         * @return the first packet beginning after the timestamp, size() if
+         *         there is none. The packets of the range [t0, t1] are the
+         *         ones from first(t0) included to end(t1) excluded.
+         */
+        public synchronized int end(long timestamp) {
+            int low = 0;
+            int high = fSize;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (fMap.getLong(at(mid) + TIMESTAMP_BEGIN) <= timestamp) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Flush and release the mapping, then cut the file to the stored
+         * entries if the system allows it, see {@link IndexStore}
+         */
+        @Override
+        public synchronized void close() throws IOException {
+            MappedByteBuffer map = fMap;
+            if (map == null) {
+                return;
+            }
+            fMap = null;
+            map.force();
+            boolean unmapped = Unmapper.unmap(map);
+            try {
+                fFile.truncate(at(fSize));
+            } catch (IOException e) {
+                if (unmapped) {
+                    throw e;
+                }
+                /* still mapped, the zero tail stays */
+            } finally {
+                fFile.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_index;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_next_index_return_code;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for the memory-mapped index store
+ *
+ * @author Matthew Khouzam
+ */
+public class IndexStoreTest {
+
+    private static final long PERIOD = 1000;
+
+    /** Where the stores live */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final SyntheticTrace trace = new SyntheticTrace(0, 4096, 1.0, PERIOD);
+    private final ViewerNames names = new ViewerNames();
+    private final ViewerStream stream = ViewerStream.create(3, 1, false, "host/session", "channel0_0", names);
+
+    private lttng_viewer_index index(long packet) {
+        lttng_viewer_index index = new lttng_viewer_index();
+        trace.index(packet, index);
+        index.stream_id = 3;
+        index.status = lttng_viewer_next_index_return_code.VIEWER_INDEX_OK;
+        return index;
+    }
+
+    /**
+     * Indexes survive closing the store, grow past one mapping and can be
+     * looked up by time
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @Test
+    public void testPersistAndLookup() throws IOException {
+        File dir = folder.newFolder();
+        int count = IndexStore.GROWTH + 10;
+        IndexStore store = new IndexStore(dir);
+        for (int i = 0; i < count; i++) {
+            store.get(stream).append(index(i));
+        }
+        store.close();
+        /* 16 byte header and "host/session/channel0_0", padded to 8 */
+        assertEquals(40 + count * DiskTrace.INDEX_ENTRY_SIZE, new File(dir, "host/session/channel0_0.idx").length());
+
+        store = new IndexStore(dir);
+        IndexStore.StreamIndex stored = store.get(stream);
+        assertEquals(count, stored.size());
+        assertEquals((count - 1) * 4096L, stored.getLastOffset());
+        lttng_viewer_index read = new lttng_viewer_index();
+        stored.get(42, read);
+        assertEquals(index(42).timestamp_begin, read.timestamp_begin);
+        assertEquals(3, read.stream_id);
+
+        long t0 = SyntheticTrace.BASE_TIMESTAMP + 100 * PERIOD + 10;
+        long t1 = SyntheticTrace.BASE_TIMESTAMP + 200 * PERIOD;
+        assertEquals(100, stored.first(t0));
+        assertEquals(201, stored.end(t1));
+        assertEquals(0, stored.first(0));
+        assertEquals(count, stored.first(Long.MAX_VALUE));
+        store.close();
+    }
+
+    /**
+     * An index file left with the zero end of its mapping, as when the
+     * system refuses to truncate a mapped file, reads as its entries only
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @Test
+    public void testZeroTail() throws IOException {
+        File dir = folder.newFolder();
+        IndexStore store = new IndexStore(dir);
+        for (int i = 0; i < 10; i++) {
+            store.get(stream).append(index(i));
+        }
+        store.close();
+        File file = new File(dir, "host/session/channel0_0.idx");
+        Files.write(file.toPath(), new byte[100 * DiskTrace.INDEX_ENTRY_SIZE], StandardOpenOption.APPEND);
+
+        store = new IndexStore(dir);
+        assertEquals(10, store.get(stream).size());
+        assertEquals(9 * 4096L, store.get(stream).getLastOffset());
+        store.close();
+
+        /* the plain lttng index files of a trace too */
+        File indexes = new File(dir, "index");
+        indexes.mkdir();
+        file = new File(indexes, "stream3.idx");
+        IndexStore.StreamIndex plain = new IndexStore.StreamIndex(3, file);
+        for (int i = 0; i < 10; i++) {
+            plain.append(index(i));
+        }
+        plain.close();
+        Files.write(file.toPath(), new byte[100 * DiskTrace.INDEX_ENTRY_SIZE], StandardOpenOption.APPEND);
+        plain = new IndexStore.StreamIndex(3, file);
+        assertEquals(10, plain.size());
+        plain.close();
+
+        Files.write(new File(dir, "metadata").toPath(), new byte[0]);
+        Files.write(new File(dir, "stream3").toPath(), new byte[0]);
+        try (DiskTrace trace = new DiskTrace(dir)) {
+            assertEquals(1, trace.getStreamCount());
+            assertEquals(10, trace.getPacketCount(0));
+        }
+    }
+
+    /**
+     * The resume handler drops what was stored before the restart
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @Test
+    public void testResume() throws IOException {
+        File dir = folder.newFolder();
+        final List<Long> fetched = new ArrayList<>();
+        LiveSessionPoller.IndexHandler fetcher = new LiveSessionPoller.IndexHandler() {
+            @Override
+            public void onIndex(ViewerStream s, lttng_viewer_index index) {
+                fetched.add(index.offset);
+            }
+        };
+        IndexStore store = new IndexStore(dir);
+        LiveSessionPoller.IndexHandler handler = store.resume(fetcher);
+        for (int i = 0; i < 5; i++) {
+            handler.onIndex(stream, index(i));
+        }
+        store.close();
+
+        store = new IndexStore(dir);
+        handler = store.resume(fetcher);
+        fetched.clear();
+        for (int i = 0; i < 8; i++) {
+            handler.onIndex(stream, index(i));
+        }
+        assertEquals(3, fetched.size());
+        assertEquals(5 * 4096L, fetched.get(0).longValue());
+        assertEquals(8, store.get(stream).size());
+
+        /* relayd gave the same stream id to the stream of another session */
+        ViewerStream other = ViewerStream.create(3, 1, false, "host/session2", "channel0_0", names);
+        fetched.clear();
+        for (int i = 0; i < 8; i++) {
+            handler.onIndex(other, index(i));
+        }
+        assertEquals(8, fetched.size());
+        store.close();
+    }
+
+    /**
+     * The file of a stream found under the name of another one is refused
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @Test
+    public void testIdentity() throws IOException {
+        File dir = folder.newFolder();
+        IndexStore store = new IndexStore(dir);
+        store.get(stream).append(index(0));
+        store.close();
+        File moved = new File(dir, "host/session2/channel0_0.idx");
+        moved.getParentFile().mkdirs();
+        Files.move(new File(dir, "host/session/channel0_0.idx").toPath(), moved.toPath());
+
+        store = new IndexStore(dir);
+        try {
+            store.get(ViewerStream.create(3, 1, false, "host/session2", "channel0_0", names));
+            fail();
+        } catch (IOException e) {
+            /* expected */
+        }
+        try {
+            store.get(ViewerStream.create(3, 1, false, "..", "escape", names));
+            fail();
+        } catch (IOException e) {
+            /* expected */
+        }
+        store.close();
+    }
+}
@@ -31,6 +31,16 @@ public interface LTTngRelayDCommands2_4 {
     final static int LTTNG_VIEWER_NAME_MAX = 255;
     final static int LTTNG_VIEWER_HOST_NAME_MAX = 64;
 
+    /** lttng_viewer_index.flags: the metadata of the stream grew */
+    final static int LTTNG_VIEWER_FLAG_NEW_METADATA = (1 << 0);
+    /** lttng_viewer_index.flags: the session has new streams */
+    final static int LTTNG_VIEWER_FLAG_NEW_STREAM = (1 << 1);
+
+    /** lttng_viewer_notification.flags: the stream has a new index */
+    final static int LTTNG_VIEWER_NOTIFY_DATA = (1 << 0);
+    /** lttng_viewer_notification.flags: the stream hung up */
+    final static int LTTNG_VIEWER_NOTIFY_HUP = (1 << 1);
+
     /**
      * Command sent, needs a getBytes to stream the data
      */
@@ -41,6 +51,17 @@ public interface LTTngRelayDCommands2_4 {
          * @return the byte array of the command
          */
         public byte[] getBytes();
+
+        /**
+         * Write the command at the position of a buffer, without allocating.
+         * The buffer must be big endian and have at least the size of the
+         * command remaining.
+         *
+         * @param buffer
+         *            the buffer to write to, its position is moved after the
+         *            command
+         */
+        public void writeTo(ByteBuffer buffer);
     }
 
     /**
@@ -54,6 +75,18 @@ public interface LTTngRelayDCommands2_4 {
          *            the byte array containing the streamed command
          */
         public void populate(byte[] data);
+
+        /**
+         * Populate the class from the position of a buffer, without
+         * allocating. The buffer must be big endian.
+         *
+         * @param buffer
+         *            the buffer to read from, its position is moved after the
+         *            response
+         * @throws IllegalArgumentException
+         *             the response holds an unknown return code
+         */
+        public void readFrom(ByteBuffer buffer);
     }
 
     /**
@@ -93,6 +126,24 @@ public interface LTTngRelayDCommands2_4 {
         public int getCommand() {
             return code;
         }
+
+        private static final lttng_viewer_command[] BY_CODE = values();
+
+        /**
+         * Get the value matching a code received from the relay daemon
+         *
+         * @param code
+         *            the code on the wire
+         * @return the value, never null
+         * @throws IllegalArgumentException
+         *             the code is unknown
+         */
+        public static lttng_viewer_command fromCode(int code) {
+            if (code < 1 || code > BY_CODE.length) {
+                throw new IllegalArgumentException("Unknown lttng_viewer_command code: " + code); //$NON-NLS-1$
+            }
+            return BY_CODE[code - 1];
+        }
     }
 
     /**
@@ -118,6 +169,24 @@ public interface LTTngRelayDCommands2_4 {
         public int getCommand() {
             return code;
         }
+
+        private static final lttng_viewer_attach_return_code[] BY_CODE = values();
+
+        /**
+         * Get the value matching a code received from the relay daemon
+         *
+         * @param code
+         *            the code on the wire
+         * @return the value, never null
+         * @throws IllegalArgumentException
+         *             the code is unknown
+         */
+        public static lttng_viewer_attach_return_code fromCode(int code) {
+            if (code < 1 || code > BY_CODE.length) {
+                throw new IllegalArgumentException("Unknown lttng_viewer_attach_return_code code: " + code); //$NON-NLS-1$
+            }
+            return BY_CODE[code - 1];
+        }
     }
 
     /**
@@ -146,6 +215,24 @@ public interface LTTngRelayDCommands2_4 {
         public int getCommand() {
             return code;
         }
+
+        private static final lttng_viewer_next_index_return_code[] BY_CODE = values();
+
+        /**
+         * Get the value matching a code received from the relay daemon
+         *
+         * @param code
+         *            the code on the wire
+         * @return the value, never null
+         * @throws IllegalArgumentException
+         *             the code is unknown
+         */
+        public static lttng_viewer_next_index_return_code fromCode(int code) {
+            if (code < 1 || code > BY_CODE.length) {
+                throw new IllegalArgumentException("Unknown lttng_viewer_next_index_return_code code: " + code); //$NON-NLS-1$
+            }
+            return BY_CODE[code - 1];
+        }
     }
 
     /**
@@ -166,6 +253,24 @@ public interface LTTngRelayDCommands2_4 {
             return code;
         }
 
+        private static final lttng_viewer_get_packet_return_code[] BY_CODE = values();
+
+        /**
+         * Get the value matching a code received from the relay daemon
+         *
+         * @param code
+         *            the code on the wire
+         * @return the value, never null
+         * @throws IllegalArgumentException
+         *             the code is unknown
+         */
+        public static lttng_viewer_get_packet_return_code fromCode(int code) {
+            if (code < 1 || code > BY_CODE.length) {
+                throw new IllegalArgumentException("Unknown lttng_viewer_get_packet_return_code code: " + code); //$NON-NLS-1$
+            }
+            return BY_CODE[code - 1];
+        }
+
     }
 
     /**
@@ -185,6 +290,24 @@ public interface LTTngRelayDCommands2_4 {
             return code;
         }
 
+        private static final lttng_viewer_get_metadata_return_code[] BY_CODE = values();
+
+        /**
+         * Get the value matching a code received from the relay daemon
+         *
+         * @param code
+         *            the code on the wire
+         * @return the value, never null
+         * @throws IllegalArgumentException
+         *             the code is unknown
+         */
+        public static lttng_viewer_get_metadata_return_code fromCode(int code) {
+            if (code < 1 || code > BY_CODE.length) {
+                throw new IllegalArgumentException("Unknown lttng_viewer_get_metadata_return_code code: " + code); //$NON-NLS-1$
+            }
+            return BY_CODE[code - 1];
+        }
+
     }
 
     /**
@@ -203,6 +326,24 @@ public interface LTTngRelayDCommands2_4 {
             return code;
         }
 
+        private static final lttng_viewer_connection_type[] BY_CODE = values();
+
+        /**
+         * Get the value matching a code received from the relay daemon
+         *
+         * @param code
+         *            the code on the wire
+         * @return the value, never null
+         * @throws IllegalArgumentException
+         *             the code is unknown
+         */
+        public static lttng_viewer_connection_type fromCode(int code) {
+            if (code < 1 || code > BY_CODE.length) {
+                throw new IllegalArgumentException("Unknown lttng_viewer_connection_type code: " + code); //$NON-NLS-1$
+            }
+            return BY_CODE[code - 1];
+        }
+
     }
 
     /**
@@ -222,6 +363,24 @@ public interface LTTngRelayDCommands2_4 {
         public int getCommand() {
             return code;
         }
+
+        private static final lttng_viewer_seek[] BY_CODE = values();
+
+        /**
+         * Get the value matching a code received from the relay daemon
+         *
+         * @param code
+         *            the code on the wire
+         * @return the value, never null
+         * @throws IllegalArgumentException
+         *             the code is unknown
+         */
+        public static lttng_viewer_seek fromCode(int code) {
+            if (code < 1 || code > BY_CODE.length) {
+                throw new IllegalArgumentException("Unknown lttng_viewer_seek code: " + code); //$NON-NLS-1$
+            }
+            return BY_CODE[code - 1];
+        }
     }
 
     /**
@@ -240,6 +399,11 @@ public interface LTTngRelayDCommands2_4 {
 	    public void populate(byte[] data) {
 	        ByteBuffer bb = ByteBuffer.wrap(data);
 	        bb.order(ByteOrder.BIG_ENDIAN);
+	        readFrom(bb);
+	    }
+
+	    @Override
+	    public void readFrom(ByteBuffer bb) {
 	        id = bb.getLong();
 	        live_timer = bb.getInt();
 	        clients = bb.getInt();
@@ -285,6 +449,11 @@ public interface LTTngRelayDCommands2_4 {
 	    public void populate(byte[] data) {
 	        ByteBuffer bb = ByteBuffer.wrap(data);
 	        bb.order(ByteOrder.BIG_ENDIAN);
+	        readFrom(bb);
+	    }
+
+	    @Override
+	    public void readFrom(ByteBuffer bb) {
 	        id = bb.getLong();
 	        ctf_trace_id = bb.getLong();
 	        metadata_flag = bb.getInt();
@@ -301,7 +470,10 @@ public interface LTTngRelayDCommands2_4 {
 	/**
      * The LTTng command
      */
-    public class lttng_viewer_cmd implements FixedSize, RelayCommand {
+    public class lttng_viewer_cmd implements FixedSize, RelayCommand, RelayResponse {
+        /** Size on the wire, in bytes */
+        public static final int SIZE = (Long.SIZE + Integer.SIZE + Integer.SIZE) / 8;
+
         /**
          * data size following this header, you normally attach a payload that
          * one, in bytes
@@ -317,15 +489,34 @@ public interface LTTngRelayDCommands2_4 {
             byte data[] = new byte[size()];
             ByteBuffer bb = ByteBuffer.wrap(data);
             bb.order(ByteOrder.BIG_ENDIAN);
+            writeTo(bb);
+            return data;
+        }
+
+        @Override
+        public void writeTo(ByteBuffer bb) {
             bb.putLong(data_size);
             bb.putInt(cmd.getCommand());
             bb.putInt(cmd_version);
-            return data;
         }
 
         @Override
         public int size() {
-            return (Long.SIZE + Integer.SIZE + Integer.SIZE) / 8;
+            return SIZE;
+        }
+
+        @Override
+        public void populate(byte[] data) {
+            ByteBuffer bb = ByteBuffer.wrap(data);
+            bb.order(ByteOrder.BIG_ENDIAN);
+            readFrom(bb);
+        }
+
+        @Override
+        public void readFrom(ByteBuffer bb) {
+            data_size = bb.getLong();
+            cmd = lttng_viewer_command.fromCode(bb.getInt());
+            cmd_version = bb.getInt();
         }
     }
 
@@ -357,6 +548,11 @@ public interface LTTngRelayDCommands2_4 {
         public void populate(byte[] data) {
             ByteBuffer bb = ByteBuffer.wrap(data);
             bb.order(ByteOrder.BIG_ENDIAN);
+            readFrom(bb);
+        }
+
+        @Override
+        public void readFrom(ByteBuffer bb) {
             viewer_session_id = bb.getLong();
             major = bb.getInt();
             minor = bb.getInt();
@@ -368,18 +564,26 @@ public interface LTTngRelayDCommands2_4 {
             byte data[] = new byte[size()];
             ByteBuffer bb = ByteBuffer.wrap(data);
             bb.order(ByteOrder.BIG_ENDIAN);
+            writeTo(bb);
+            return data;
+        }
+
+        @Override
+        public void writeTo(ByteBuffer bb) {
             bb.putLong(viewer_session_id);
             bb.putInt(major);
             bb.putInt(minor);
             bb.putInt(type.getCommand());
-            return data;
         }
     }
 
     /**
      * VIEWER_LIST_SESSIONS payload.
      */
-    public class lttng_viewer_list_sessions implements RelayResponse {
+    public class lttng_viewer_list_sessions implements RelayResponse, RelayCommand {
+        /** Size on the wire of the reply before the sessions, in bytes */
+        public static final int FIXED_SIZE = Integer.SIZE / 8;
+
         public int sessions_count;
         public lttng_viewer_session session_list[];
 
@@ -387,18 +591,43 @@ public interface LTTngRelayDCommands2_4 {
         public void populate(byte[] data) {
             ByteBuffer bb = ByteBuffer.wrap(data);
             bb.order(ByteOrder.BIG_ENDIAN);
+            readFrom(bb);
+        }
+
+        /**
+         * Reads the session count only, the sessions follow on the wire
+         */
+        @Override
+        public void readFrom(ByteBuffer bb) {
             sessions_count = bb.getInt();
         }
 
         public int getSize() {
             return 4 + ((session_list == null) ? 0 : (session_list.length * (new lttng_viewer_session()).size()));
         }
+
+        @Override
+        public byte[] getBytes() {
+            byte data[] = new byte[4];
+            ByteBuffer bb = ByteBuffer.wrap(data);
+            bb.order(ByteOrder.BIG_ENDIAN);
+            writeTo(bb);
+            return data;
+        }
+
+        /**
+         * Writes the session count only, the sessions follow on the wire
+         */
+        @Override
+        public void writeTo(ByteBuffer bb) {
+            bb.putInt(sessions_count);
+        }
     }
 
     /**
      * VIEWER_ATTACH_SESSION payload.
      */
-    public class lttng_viewer_attach_session_request implements FixedSize, RelayCommand {
+    public class lttng_viewer_attach_session_request implements FixedSize, RelayCommand, RelayResponse {
         public long session_id;
         /** unused for now */
         public long offset;
@@ -415,17 +644,39 @@ public interface LTTngRelayDCommands2_4 {
             byte data[] = new byte[size()];
             ByteBuffer bb = ByteBuffer.wrap(data);
             bb.order(ByteOrder.BIG_ENDIAN);
+            writeTo(bb);
+            return data;
+        }
+
+        @Override
+        public void writeTo(ByteBuffer bb) {
             bb.putLong(session_id);
             bb.putLong(offset);
             bb.putInt(seek.getCommand());
-            return data;
+        }
+
+        @Override
+        public void populate(byte[] data) {
+            ByteBuffer bb = ByteBuffer.wrap(data);
+            bb.order(ByteOrder.BIG_ENDIAN);
+            readFrom(bb);
+        }
+
+        @Override
+        public void readFrom(ByteBuffer bb) {
+            session_id = bb.getLong();
+            offset = bb.getLong();
+            seek = lttng_viewer_seek.fromCode(bb.getInt());
         }
     }
 
     /**
      * Attach session response
      */
-    public class lttng_viewer_attach_session_response implements RelayResponse {
+    public class lttng_viewer_attach_session_response implements RelayResponse, RelayCommand {
+        /** Size on the wire of the reply before the streams, in bytes */
+        public static final int FIXED_SIZE = (Integer.SIZE + Integer.SIZE) / 8;
+
         /** enum lttng_viewer_attach_return_code */
         public lttng_viewer_attach_return_code status;
         /** how many streams are there */
@@ -437,15 +688,46 @@ public interface LTTngRelayDCommands2_4 {
         public void populate(byte[] data) {
             ByteBuffer bb = ByteBuffer.wrap(data);
             bb.order(ByteOrder.BIG_ENDIAN);
-            status = lttng_viewer_attach_return_code.values()[bb.getInt() - 1];
+            readFrom(bb);
+        }
+
+        /**
+         * Reads the status and stream count only, the streams follow on the
+         * wire
+         */
+        @Override
+        public void readFrom(ByteBuffer bb) {
+            status = lttng_viewer_attach_return_code.fromCode(bb.getInt());
             streams_count = bb.getInt();
         }
+
+        @Override
+        public byte[] getBytes() {
+            byte data[] = new byte[8];
+            ByteBuffer bb = ByteBuffer.wrap(data);
+            bb.order(ByteOrder.BIG_ENDIAN);
+            writeTo(bb);
+            return data;
+        }
+
+        /**
+         * Writes the status and stream count only, the streams follow on the
+         * wire
+         */
+        @Override
+        public void writeTo(ByteBuffer bb) {
+            bb.putInt(status.getCommand());
+            bb.putInt(streams_count);
+        }
     }
 
     /**
      * VIEWER_GET_NEXT_INDEX payload.
      */
-    public class lttng_viewer_get_next_index implements RelayCommand, FixedSize {
+    public class lttng_viewer_get_next_index implements RelayCommand, RelayResponse, FixedSize {
+        /** Size on the wire, in bytes */
+        public static final int SIZE = Long.SIZE / 8;
+
         /**
          * the id of thje stream
          */
@@ -456,20 +738,89 @@ public interface LTTngRelayDCommands2_4 {
             byte data[] = new byte[size()];
             ByteBuffer bb = ByteBuffer.wrap(data);
             bb.order(ByteOrder.BIG_ENDIAN);
+            writeTo(bb);
+            return data;
+        }
+
+        @Override
+        public void writeTo(ByteBuffer bb) {
             bb.putLong(stream_id);
+        }
+
+        @Override
+        public int size() {
+            return SIZE;
+        }
+
+        @Override
+        public void populate(byte[] data) {
+            ByteBuffer bb = ByteBuffer.wrap(data);
+            bb.order(ByteOrder.BIG_ENDIAN);
+            readFrom(bb);
+        }
+
+        @Override
+        public void readFrom(ByteBuffer bb) {
+            stream_id = bb.getLong();
+        }
+    }
+
+    /**
+     * Pushed by the server on a VIEWER_CLIENT_NOTIFICATION connection when a
+     * stream of the attached session changes. Not part of relayd 2.4, which
+     * defines the connection type but never sends anything on it.
+     */
+    public class lttng_viewer_notification implements RelayCommand, RelayResponse, FixedSize {
+        /**
+         * the stream that changed
+         */
+        public long stream_id;
+        /**
+         * LTTNG_VIEWER_NOTIFY_* bits
+         */
+        public int flags;
+
+        @Override
+        public byte[] getBytes() {
+            byte data[] = new byte[size()];
+            ByteBuffer bb = ByteBuffer.wrap(data);
+            bb.order(ByteOrder.BIG_ENDIAN);
+            writeTo(bb);
             return data;
         }
 
+        @Override
+        public void writeTo(ByteBuffer bb) {
+            bb.putLong(stream_id);
+            bb.putInt(flags);
+        }
+
         @Override
         public int size() {
-            return Long.SIZE / 8;
+            return (Long.SIZE + Integer.SIZE) / 8;
+        }
+
+        @Override
+        public void populate(byte[] data) {
+            ByteBuffer bb = ByteBuffer.wrap(data);
+            bb.order(ByteOrder.BIG_ENDIAN);
+            readFrom(bb);
+        }
+
+        @Override
+        public void readFrom(ByteBuffer bb) {
+            stream_id = bb.getLong();
+            flags = bb.getInt();
         }
     }
 
     /**
      * the index?
      */
-    public class lttng_viewer_index implements RelayResponse, FixedSize {
+    public class lttng_viewer_index implements RelayResponse, RelayCommand, FixedSize {
+        /** Size on the wire, in bytes */
+        public static final int SIZE = (Long.SIZE * 7 + Integer.SIZE * 2) / 8;
+
         public long offset;
         public long packet_size;
         public long content_size;
@@ -485,6 +836,11 @@ public interface LTTngRelayDCommands2_4 {
         public void populate(byte[] data) {
             ByteBuffer bb = ByteBuffer.wrap(data);
             bb.order(ByteOrder.BIG_ENDIAN);
+            readFrom(bb);
+        }
+
+        @Override
+        public void readFrom(ByteBuffer bb) {
             offset = bb.getLong();
             packet_size = bb.getLong();
             content_size = bb.getLong();
@@ -493,20 +849,46 @@ public interface LTTngRelayDCommands2_4 {
             events_discarded = bb.getLong();
             stream_id = bb.getLong();
 
-            status = lttng_viewer_next_index_return_code.values()[bb.getInt() - 1];
+            status = lttng_viewer_next_index_return_code.fromCode(bb.getInt());
             flags = bb.getInt();
         }
 
         @Override
         public int size() {
-            return (Long.SIZE * 7 + Integer.SIZE * 2) / 8;
+            return SIZE;
+        }
+
+        @Override
+        public byte[] getBytes() {
+            byte data[] = new byte[size()];
+            ByteBuffer bb = ByteBuffer.wrap(data);
+            bb.order(ByteOrder.BIG_ENDIAN);
+            writeTo(bb);
+            return data;
+        }
+
+        @Override
+        public void writeTo(ByteBuffer bb) {
+            bb.putLong(offset);
+            bb.putLong(packet_size);
+            bb.putLong(content_size);
+            bb.putLong(timestamp_begin);
+            bb.putLong(timestamp_end);
+            bb.putLong(events_discarded);
+            bb.putLong(stream_id);
+
+            bb.putInt(status.getCommand());
+            bb.putInt(flags);
         }
     }
 
     /**
      * VIEWER_GET_PACKET payload.
      */
-    public class lttng_viewer_get_packet implements RelayCommand, FixedSize {
+    public class lttng_viewer_get_packet implements RelayCommand, RelayResponse, FixedSize {
+        /** Size on the wire, in bytes */
+        public static final int SIZE = (Long.SIZE + Long.SIZE + Integer.SIZE) / 8;
+
         public long stream_id;
         public long offset;
         public int len;
@@ -516,22 +898,44 @@ public interface LTTngRelayDCommands2_4 {
             byte data[] = new byte[size()];
             ByteBuffer bb = ByteBuffer.wrap(data);
             bb.order(ByteOrder.BIG_ENDIAN);
+            writeTo(bb);
+            return data;
+        }
+
+        @Override
+        public void writeTo(ByteBuffer bb) {
             bb.putLong(stream_id);
             bb.putLong(offset);
             bb.putInt(len);
-            return data;
         }
 
         @Override
         public int size() {
-            return (Long.SIZE + Long.SIZE + Integer.SIZE) / 8;
+            return SIZE;
+        }
+
+        @Override
+        public void populate(byte[] data) {
+            ByteBuffer bb = ByteBuffer.wrap(data);
+            bb.order(ByteOrder.BIG_ENDIAN);
+            readFrom(bb);
+        }
+
+        @Override
+        public void readFrom(ByteBuffer bb) {
+            stream_id = bb.getLong();
+            offset = bb.getLong();
+            len = bb.getInt();
         }
     }
 
     /**
      * Response to getpacket command
      */
-    public class lttng_viewer_trace_packet implements RelayResponse {
+    public class lttng_viewer_trace_packet implements RelayResponse, RelayCommand {
+        /** Size on the wire of the reply before the data, in bytes */
+        public static final int FIXED_SIZE = (Integer.SIZE + Integer.SIZE + Integer.SIZE) / 8;
+
         public lttng_viewer_get_packet_return_code status; /* enum lttng_viewer_get_packet_return_code */
         public int len;
         public int flags;
@@ -541,16 +945,43 @@ public interface LTTngRelayDCommands2_4 {
         public void populate(byte[] input) {
             ByteBuffer bb = ByteBuffer.wrap(input);
             bb.order(ByteOrder.BIG_ENDIAN);
-            status = lttng_viewer_get_packet_return_code.values()[bb.getInt() - 1];
+            readFrom(bb);
+        }
+
+        /**
+         * Reads the header only, the len bytes of data follow on the wire
+         */
+        @Override
+        public void readFrom(ByteBuffer bb) {
+            status = lttng_viewer_get_packet_return_code.fromCode(bb.getInt());
             len = bb.getInt();
             flags = bb.getInt();
         }
+
+        @Override
+        public byte[] getBytes() {
+            byte data[] = new byte[12];
+            ByteBuffer bb = ByteBuffer.wrap(data);
+            bb.order(ByteOrder.BIG_ENDIAN);
+            writeTo(bb);
+            return data;
+        }
+
+        /**
+         * Writes the header only, the len bytes of data follow on the wire
+         */
+        @Override
+        public void writeTo(ByteBuffer bb) {
+            bb.putInt(status.getCommand());
+            bb.putInt(len);
+            bb.putInt(flags);
+        }
     }
 
     /**
      * VIEWER_GET_METADATA payload.
      */
-    public class lttng_viewer_get_metadata implements FixedSize, RelayCommand {
+    public class lttng_viewer_get_metadata implements FixedSize, RelayCommand, RelayResponse {
         /**
          * The stream id
          */
@@ -561,17 +992,37 @@ public interface LTTngRelayDCommands2_4 {
             byte data[] = new byte[size()];
             ByteBuffer bb = ByteBuffer.wrap(data);
             bb.order(ByteOrder.BIG_ENDIAN);
-            bb.putLong(stream_id);
+            writeTo(bb);
             return data;
         }
 
+        @Override
+        public void writeTo(ByteBuffer bb) {
+            bb.putLong(stream_id);
+        }
+
         @Override
         public int size() {
             return Long.SIZE / 8;
         }
+
+        @Override
+        public void populate(byte[] data) {
+            ByteBuffer bb = ByteBuffer.wrap(data);
+            bb.order(ByteOrder.BIG_ENDIAN);
+            readFrom(bb);
+        }
+
+        @Override
+        public void readFrom(ByteBuffer bb) {
+            stream_id = bb.getLong();
+        }
     }
 
-    public class lttng_viewer_metadata_packet implements RelayResponse {
+    public class lttng_viewer_metadata_packet implements RelayResponse, RelayCommand {
+        /** Size on the wire of the reply before the data, in bytes */
+        public static final int FIXED_SIZE = (Long.SIZE + Integer.SIZE) / 8;
+
         public long len;
         public lttng_viewer_get_metadata_return_code status;
         public byte data[];
@@ -580,8 +1031,35 @@ public interface LTTngRelayDCommands2_4 {
         public void populate(byte[] input) {
             ByteBuffer bb = ByteBuffer.wrap(input);
             bb.order(ByteOrder.BIG_ENDIAN);
+            readFrom(bb);
+        }
+
+        /**
+         * Reads the header only, the len bytes of metadata follow on the wire
+         */
+        @Override
+        public void readFrom(ByteBuffer bb) {
             len = bb.getLong();
-            status = lttng_viewer_get_metadata_return_code.values()[bb.getInt() - 1];
+            status = lttng_viewer_get_metadata_return_code.fromCode(bb.getInt());
+        }
+
+        @Override
+        public byte[] getBytes() {
+            byte data[] = new byte[12];
+            ByteBuffer bb = ByteBuffer.wrap(data);
+            bb.order(ByteOrder.BIG_ENDIAN);
+            writeTo(bb);
+            return data;
+        }
+
+        /**
+         * Writes the header only, the len bytes of metadata follow on the
+         * wire
+         */
+        @Override
+        public void writeTo(ByteBuffer bb) {
+            bb.putLong(len);
+            bb.putInt(status.getCommand());
         }
     }
 
@@ -0,0 +1,112 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_cmd;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_command;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_get_packet;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_get_packet_return_code;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_index;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_next_index_return_code;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_trace_packet;
+import org.junit.Test;
+
+/**
+ * Tests for the buffer based encoding and decoding of the relayd messages
+ *
+ * @author Matthew Khouzam
+ */
+public class LTTngRelayDCommands2_4Test {
+
+    /**
+     * writeTo and getBytes produce the same bytes
+     */
+    @Test
+    public void testWriteToMatchesGetBytes() {
+        lttng_viewer_cmd cmd = new lttng_viewer_cmd();
+        cmd.cmd = lttng_viewer_command.VIEWER_GET_PACKET;
+        cmd.data_size = 20;
+        lttng_viewer_get_packet packet = new lttng_viewer_get_packet();
+        packet.stream_id = 3;
+        packet.offset = 4096;
+        packet.len = 512;
+
+        ByteBuffer bb = ByteBuffer.allocateDirect(64);
+        cmd.writeTo(bb);
+        packet.writeTo(bb);
+        bb.flip();
+        assertEquals(cmd.size() + packet.size(), bb.remaining());
+
+        byte[] written = new byte[bb.remaining()];
+        bb.get(written);
+        ByteBuffer expected = ByteBuffer.allocate(written.length);
+        expected.put(cmd.getBytes()).put(packet.getBytes());
+        assertArrayEquals(expected.array(), written);
+    }
+
+    /**
+     * readFrom decodes at the buffer position and leaves it after the index
+     */
+    @Test
+    public void testReadIndex() {
+        ByteBuffer bb = ByteBuffer.allocate(4 + 64);
+        bb.putInt(0xdeadbeef);
+        for (long i = 1; i <= 7; i++) {
+            bb.putLong(i * 100);
+        }
+        bb.putInt(lttng_viewer_next_index_return_code.VIEWER_INDEX_INACTIVE.getCommand());
+        bb.putInt(0);
+        bb.flip();
+        bb.getInt();
+
+        lttng_viewer_index index = new lttng_viewer_index();
+        index.readFrom(bb);
+        assertEquals(0, bb.remaining());
+        assertEquals(100, index.offset);
+        assertEquals(700, index.stream_id);
+        assertEquals(lttng_viewer_next_index_return_code.VIEWER_INDEX_INACTIVE, index.status);
+    }
+
+    /**
+     * Every code maps back to its value
+     */
+    @Test
+    public void testFromCode() {
+        for (lttng_viewer_get_packet_return_code code : lttng_viewer_get_packet_return_code.values()) {
+            assertEquals(code, lttng_viewer_get_packet_return_code.fromCode(code.getCommand()));
+        }
+    }
+
+    /**
+     * Unknown status codes are rejected instead of overflowing the table
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownStatus() {
+        ByteBuffer bb = ByteBuffer.allocate(12);
+        bb.putInt(42).putInt(0).putInt(0);
+        bb.flip();
+        new lttng_viewer_trace_packet().readFrom(bb);
+    }
+
+    /**
+     * Zero is not a valid code either
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroStatus() {
+        lttng_viewer_next_index_return_code.fromCode(0);
+    }
+}
@@ -0,0 +1,132 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in power of two buckets: bucket i counts the values
+ * in [2^(i-1), 2^i) nanoseconds, bucket 0 counts zero. Recording is a few
+ * atomic increments and never allocates, reading can happen from any thread
+ * while the owner records. A percentile is known to within a factor of two,
+ * which is what tuning a poll interval needs.
+ *
+ * @author Matthew Khouzam
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray fBuckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong fCount = new AtomicLong();
+    private final AtomicLong fSum = new AtomicLong();
+    private final AtomicLong fMax = new AtomicLong();
+
+    /**
+     * Record a duration
+     *
+     * @param nanos
+     *            the duration in nanoseconds, negative values count as 0
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        fBuckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+        fCount.incrementAndGet();
+        fSum.addAndGet(value);
+        long max = fMax.get();
+        while (value > max && !fMax.compareAndSet(max, value)) {
+            max = fMax.get();
+        }
+    }
+
+    /**
+     * @return the number of recorded durations
+     */
+    public long getCount() {
+        return fCount.get();
+    }
+
+    /**
+     * @return the longest recorded duration, in nanoseconds
+     */
+    public long getMax() {
+        return fMax.get();
+    }
+
+    /**
+     * @return the mean duration, in nanoseconds, 0 if nothing was recorded
+     */
+    public double getMean() {
+        long count = fCount.get();
+        return (count == 0) ? 0 : (double) fSum.get() / count;
+    }
+
+    /**
+     * Estimate a percentile
+     *
+     * @param percent
+     *            the percentile, between 0 and 100
+     * @return the upper bound of the bucket holding the percentile, capped by
+     *         the maximum, in nanoseconds. 0 if nothing was recorded.
+     */
+    public long getPercentile(double percent) {
+        long[] buckets = getBuckets();
+        long total = 0;
+        for (long bucket : buckets) {
+            total += bucket;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percent / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), fMax.get());
+            }
+        }
+        return fMax.get();
+    }
+
+    /**
+     * Copy the buckets. The copy is not atomic: buckets recorded during the
+     * copy may or may not be in it.
+     *
+     * @return the count of every bucket
+     */
+    public long[] getBuckets() {
+        long[] buckets = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = fBuckets.get(i);
+        }
+        return buckets;
+    }
+
+    /**
+     * Forget everything recorded so far
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            fBuckets.set(i, 0);
+        }
+        fCount.set(0);
+        fSum.set(0);
+        fMax.set(0);
+    }
+
+    private static long upperBound(int bucket) {
+        return (bucket >= BUCKETS - 1) ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+}
@@ -0,0 +1,131 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import java.nio.ByteBuffer;
+
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_index;
+
+/**
+ * A packet of a live session with its index. The data is a pooled
+ * {@link PacketBuffer}: whoever receives the packet releases it.
+ *
+ * @author Matthew Khouzam
+ */
+public class LivePacket {
+
+    private final ViewerStream fStream;
+    private final long fOffset;
+    private final long fPacketSize;
+    private final long fContentSize;
+    private final long fTimestampBegin;
+    private final long fTimestampEnd;
+    private final long fEventsDiscarded;
+    private final PacketBuffer fData;
+
+    /**
+     * Constructor
+     *
+     * @param stream
+     *            the stream of the packet
+     * @param index
+     *            its index, copied
+     * @param data
+     *            its data, the reference is handed over
+     */
+    public LivePacket(ViewerStream stream, lttng_viewer_index index, PacketBuffer data) {
+        fStream = stream;
+        fOffset = index.offset;
+        fPacketSize = index.packet_size;
+        fContentSize = index.content_size;
+        fTimestampBegin = index.timestamp_begin;
+        fTimestampEnd = index.timestamp_end;
+        fEventsDiscarded = index.events_discarded;
+        fData = data;
+    }
+
+    /**
+     * @return the stream of the packet
+     */
+    public ViewerStream getStream() {
+        return fStream;
+    }
+
+    /**
+     * @return the offset of the packet in the stream file
+     */
+    public long getOffset() {
+        return fOffset;
+    }
+
+    /**
+     * @return the packet size, in bits
+     */
+    public long getPacketSize() {
+        return fPacketSize;
+    }
+
+    /**
+     * @return the content size, in bits
+     */
+    public long getContentSize() {
+        return fContentSize;
+    }
+
+    /**
+     * @return the first timestamp of the packet
+     */
+    public long getTimestampBegin() {
+        return fTimestampBegin;
+    }
+
+    /**
+     * @return the last timestamp of the packet
+     */
+    public long getTimestampEnd() {
+        return fTimestampEnd;
+    }
+
+    /**
+     * @return the events lost by the tracer up to this packet
+     */
+    public long getEventsDiscarded() {
+        return fEventsDiscarded;
+    }
+
+    /**
+     * @return the pooled data
+     */
+    public PacketBuffer getData() {
+        return fData;
+    }
+
+    /**
+     * @return the data, between position and limit
+     */
+    public ByteBuffer buffer() {
+        return fData.buffer();
+    }
+
+    /**
+     * Give the data back to its arena
+     */
+    public void release() {
+        fData.release();
+    }
+
+    @Override
+    public String toString() {
+        return fStream.getChannelName() + '@' + fOffset + " [" + fTimestampBegin + ", " + fTimestampEnd + ']'; //$NON-NLS-1$ //$NON-NLS-2$
+    }
+}
@@ -0,0 +1,270 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import java.io.IOException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_index;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_next_index_return_code;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_trace_packet;
+
+/**
+ * The packets of an attached live session as a {@link Flow.Publisher}.
+ *
+ * Fetching is driven by demand: a poll round sends at most as many
+ * GET_NEXT_INDEX as the subscriber requested packets and not yet received,
+ * and a GET_PACKET follows each OK index. Without demand the fetch thread
+ * parks and nothing is read from the relay daemon, so a slow subscriber
+ * slows the viewer down instead of filling the heap.
+ *
+ * In stream order, packets are delivered as they are fetched. In timestamp
+ * order they go through a {@link TimestampMerger} first; the merge may need
+ * packets of lagging streams before it releases anything, so up to one
+ * packet per stream can be fetched ahead of demand. A stream with a packet
+ * queued in the merger is held in the scheduler: only the streams with an
+ * empty queue, those holding the watermark back, are polled. The merger
+ * thus never queues more than one packet per stream, even while a stream
+ * answers VIEWER_INDEX_RETRY for long and the others keep producing. The
+ * end of the session is only seen by polling too, so onComplete needs
+ * demand left over after the last packet.
+ *
+ * A stream answering VIEWER_INDEX_ERR is retired by the scheduler and by the
+ * merger alike. A packet whose index was OK but whose GET_PACKET failed is
+ * skipped and counted, see {@link #getLostPackets()}; its index still moves
+ * the merge on.
+ *
+ * The publisher owns the client and serves a single subscriber; the packets
+ * are pooled and the subscriber must release them. Stream selection is done
+ * by attaching: every data stream of the session is published.
+ *
+ * @author Matthew Khouzam
+ */
+public class LivePacketPublisher implements Flow.Publisher<LivePacket> {
+
+    private final ViewerClient fClient;
+    private final AttachedSession fSession;
+    private final PacketArena fArena;
+    private final boolean fMerged;
+    private final AtomicBoolean fSubscribed = new AtomicBoolean();
+    private final AtomicLong fLost = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param client
+     *            a client attached to the session, used by the fetch thread
+     *            only from now on
+     * @param session
+     *            the attached session
+     * @param arena
+     *            where the packet data is read
+     * @param merged
+     *            deliver the packets of all the streams in timestamp order
+     *            instead of fetch order
+     */
+    public LivePacketPublisher(ViewerClient client, AttachedSession session, PacketArena arena, boolean merged) {
+        fClient = client;
+        fSession = session;
+        fArena = arena;
+        fMerged = merged;
+    }
+
+    /**
+     * @return the number of packets announced by an OK index whose
+     *         GET_PACKET failed, they were not delivered
+     */
+    public long getLostPackets() {
+        return fLost.get();
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super LivePacket> subscriber) {
+        if (fSubscribed.getAndSet(true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                    // nothing to publish
+                }
+
+                @Override
+                public void cancel() {
+                    // nothing to cancel
+                }
+            });
+            subscriber.onError(new IllegalStateException("The live session already has a subscriber")); //$NON-NLS-1$
+            return;
+        }
+        LiveSubscription subscription = new LiveSubscription(subscriber);
+        Thread thread = new Thread(subscription, "Live packets of session " + fSession.getSessionId()); //$NON-NLS-1$
+        thread.setDaemon(true);
+        subscription.fThread = thread;
+        subscriber.onSubscribe(subscription);
+        thread.start();
+    }
+
+    private class LiveSubscription implements Flow.Subscription, Runnable {
+        private final Flow.Subscriber<? super LivePacket> fSubscriber;
+        private final AtomicLong fDemand = new AtomicLong();
+        private final ViewerStream[] fStreams = fSession.getDataStreams();
+        private final PollScheduler fScheduler = new PollScheduler(fSession.getDataStreamIds());
+        private final TimestampMerger<LivePacket> fMerger = fMerged ? new TimestampMerger<LivePacket>(fSession.getDataStreamIds()) : null;
+        private final int[] fSlots = new int[fStreams.length];
+        private final long[] fIds = new long[fStreams.length];
+        private final lttng_viewer_index[] fReplies = new lttng_viewer_index[fStreams.length];
+        private final lttng_viewer_trace_packet fPacketReply = new lttng_viewer_trace_packet();
+        private volatile boolean fCancelled;
+        private volatile Throwable fBadRequest;
+        private volatile Thread fThread;
+
+        public LiveSubscription(Flow.Subscriber<? super LivePacket> subscriber) {
+            fSubscriber = subscriber;
+            for (int i = 0; i < fReplies.length; i++) {
+                fReplies[i] = new lttng_viewer_index();
+            }
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                fBadRequest = new IllegalArgumentException("Requested " + n + " packets"); //$NON-NLS-1$ //$NON-NLS-2$
+            } else {
+                long demand;
+                do {
+                    demand = fDemand.get();
+                } while (!fDemand.compareAndSet(demand, (demand + n < 0) ? Long.MAX_VALUE : demand + n));
+            }
+            wake();
+        }
+
+        @Override
+        public void cancel() {
+            fCancelled = true;
+            wake();
+        }
+
+        private void wake() {
+            Thread thread = fThread;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!fCancelled) {
+                    if (fBadRequest != null) {
+                        fCancelled = true;
+                        fSubscriber.onError(fBadRequest);
+                        break;
+                    }
+                    if (fMerged) {
+                        drainMerger();
+                    }
+                    if (fScheduler.isDone() && (!fMerged || fMerger.size() == 0)) {
+                        fSubscriber.onComplete();
+                        break;
+                    }
+                    long demand = fDemand.get();
+                    if (demand == 0) {
+                        LockSupport.park(this);
+                        continue;
+                    }
+                    /* merged, every stream not held is needed to move the watermark */
+                    fetch(fMerged ? fStreams.length : (int) Math.min(demand, fStreams.length));
+                }
+            } catch (IOException | RuntimeException e) {
+                fCancelled = true;
+                fSubscriber.onError(e);
+            } finally {
+                if (fMerged) {
+                    /* stop waiting for the lagging streams to free every packet */
+                    for (int slot = 0; slot < fStreams.length; slot++) {
+                        fMerger.retire(slot);
+                    }
+                    for (LivePacket packet = fMerger.poll(); packet != null; packet = fMerger.poll()) {
+                        packet.release();
+                    }
+                }
+            }
+        }
+
+        private void drainMerger() {
+            while (fDemand.get() > 0 && !fCancelled) {
+                LivePacket packet = fMerger.poll();
+                if (packet == null) {
+                    break;
+                }
+                fDemand.decrementAndGet();
+                fSubscriber.onNext(packet);
+            }
+            /* poll again the streams whose queue emptied */
+            for (int slot = 0; slot < fStreams.length; slot++) {
+                if (fScheduler.isHeld(slot) && fMerger.size(slot) == 0) {
+                    fScheduler.setHeld(slot, false);
+                }
+            }
+        }
+
+        private void fetch(int max) throws IOException {
+            long now = System.nanoTime();
+            int count = fScheduler.nextBatch(now, fSlots, fIds, max);
+            if (count == 0) {
+                long next = fScheduler.nextDue(now);
+                if (next != Long.MAX_VALUE) {
+                    LockSupport.parkNanos(this, next - now);
+                }
+                return;
+            }
+            fClient.getNextIndexes(fIds, count, fReplies);
+            now = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                lttng_viewer_index reply = fReplies[i];
+                int slot = fSlots[i];
+                boolean ok = reply.status == lttng_viewer_next_index_return_code.VIEWER_INDEX_OK;
+                fScheduler.onReply(slot, reply.status, ok ? reply.packet_size / 8 : 0, now);
+                PacketBuffer data = ok ? fClient.getPacket(fIds[i], reply, fPacketReply, fArena) : null;
+                if (data == null) {
+                    if (ok) {
+                        fLost.incrementAndGet();
+                    }
+                    if (fMerged) {
+                        fMerger.onIndex(slot, reply);
+                    }
+                    continue;
+                }
+                LivePacket packet = new LivePacket(fStreams[slot], reply, data);
+                if (fMerged) {
+                    fMerger.offer(slot, reply.timestamp_begin, reply.timestamp_end, packet);
+                    fScheduler.setHeld(slot, true);
+                } else if (fCancelled) {
+                    packet.release();
+                } else {
+                    fDemand.decrementAndGet();
+                    fSubscriber.onNext(packet);
+                }
+            }
+            if (fMerged) {
+                for (int slot = 0; slot < fStreams.length; slot++) {
+                    if (fScheduler.getState(slot) == PollScheduler.RETIRED) {
+                        fMerger.retire(slot);
+                    }
+                }
+            }
+        }
+    }
+}
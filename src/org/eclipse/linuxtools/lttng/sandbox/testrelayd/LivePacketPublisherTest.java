@@ -0,0 +1,262 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_seek;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the live packet publisher against the mock relayd
+ *
+ * @author Matthew Khouzam
+ */
+public class LivePacketPublisherTest {
+
+    private static final int PACKETS = 10;
+    private static final int STREAMS = 3;
+
+    private MockRelayD relayd;
+    private ViewerClient client;
+    private PacketArena arena;
+
+    /**
+     * One session of three streams, ten packets each
+     *
+     * @throws IOException
+     *             the mock did not start
+     */
+    @Before
+    public void init() throws IOException {
+        relayd = new MockRelayD();
+        relayd.setSessionCount(1);
+        relayd.setStreamsPerSession(STREAMS);
+        relayd.setIdleStreams(0);
+        relayd.setPacketSize(1024);
+        relayd.setPacketCount(PACKETS);
+        InetSocketAddress address = relayd.start(0);
+        client = ViewerClient.open(address.getHostString(), address.getPort());
+        client.connect();
+        arena = new PacketArena();
+    }
+
+    /**
+     * Stop the client and the mock
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @After
+    public void cleanup() throws IOException {
+        client.close();
+        relayd.close();
+    }
+
+    /**
+     * Only the requested packets are delivered, then the rest up to the end
+     *
+     * @throws Exception
+     *             should not happen
+     */
+    @Test
+    public void testDemand() throws Exception {
+        AttachedSession attached = client.attachSession(1, lttng_viewer_seek.VIEWER_SEEK_BEGINNING);
+        LivePacketPublisher publisher = new LivePacketPublisher(client, attached, arena, false);
+        Recorder recorder = new Recorder();
+        publisher.subscribe(recorder);
+        recorder.fSubscription.request(5);
+        assertTrue(recorder.awaitCount(5));
+        /* give the fetch thread a chance to overshoot */
+        Thread.sleep(100);
+        assertEquals(5, recorder.count());
+        recorder.fSubscription.request(Long.MAX_VALUE);
+        assertTrue(recorder.fDone.await(10, TimeUnit.SECONDS));
+        assertNull(recorder.fError);
+        assertEquals(STREAMS * PACKETS, recorder.count());
+        assertEquals(0, arena.getInUse());
+    }
+
+    /**
+     * The merged publisher delivers packets in timestamp order
+     *
+     * @throws Exception
+     *             should not happen
+     */
+    @Test
+    public void testMerged() throws Exception {
+        AttachedSession attached = client.attachSession(1, lttng_viewer_seek.VIEWER_SEEK_BEGINNING);
+        LivePacketPublisher publisher = new LivePacketPublisher(client, attached, arena, true);
+        Recorder recorder = new Recorder();
+        publisher.subscribe(recorder);
+        for (int i = 0; i < STREAMS * PACKETS; i++) {
+            recorder.fSubscription.request(1);
+        }
+        /* the end of the streams is only seen with demand left */
+        recorder.fSubscription.request(1);
+        assertTrue(recorder.fDone.await(10, TimeUnit.SECONDS));
+        assertNull(recorder.fError);
+        assertEquals(STREAMS * PACKETS, recorder.count());
+        long previous = Long.MIN_VALUE;
+        for (long timestamp : recorder.fTimestamps) {
+            assertTrue(timestamp >= previous);
+            previous = timestamp;
+        }
+    }
+
+    /**
+     * A stream that keeps answering RETRY holds the merge back without the
+     * other streams piling packets up in the merger
+     *
+     * @throws Exception
+     *             should not happen
+     */
+    @Test
+    public void testMergedStalled() throws Exception {
+        client.close();
+        relayd.close();
+        relayd = new MockRelayD();
+        relayd.setStreamsPerSession(STREAMS);
+        relayd.setStalledStreams(1);
+        relayd.setPacketSize(1024);
+        relayd.setPacketCount(PACKETS);
+        InetSocketAddress address = relayd.start(0);
+        client = ViewerClient.open(address.getHostString(), address.getPort());
+        client.connect();
+        AttachedSession attached = client.attachSession(1, lttng_viewer_seek.VIEWER_SEEK_BEGINNING);
+        LivePacketPublisher publisher = new LivePacketPublisher(client, attached, arena, true);
+        Recorder recorder = new Recorder();
+        publisher.subscribe(recorder);
+        recorder.fSubscription.request(STREAMS * PACKETS);
+        /* long enough to fetch every packet of the other streams */
+        Thread.sleep(300);
+        assertEquals(0, recorder.count());
+        assertNull(recorder.fError);
+        /* one packet of each producing stream waits in the merger */
+        assertEquals(STREAMS - 1, arena.getInUse());
+        recorder.fSubscription.cancel();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (arena.getInUse() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(0, arena.getInUse());
+    }
+
+    /**
+     * Packets whose GET_PACKET fails are counted and do not hold the merge
+     * back
+     *
+     * @throws Exception
+     *             should not happen
+     */
+    @Test
+    public void testLostPackets() throws Exception {
+        client.close();
+        relayd.close();
+        relayd = new MockRelayD();
+        relayd.setStreamsPerSession(STREAMS);
+        relayd.setPacketSize(1024);
+        relayd.setPacketCount(PACKETS);
+        relayd.setPacketErrorEvery(7);
+        InetSocketAddress address = relayd.start(0);
+        client = ViewerClient.open(address.getHostString(), address.getPort());
+        client.connect();
+        AttachedSession attached = client.attachSession(1, lttng_viewer_seek.VIEWER_SEEK_BEGINNING);
+        LivePacketPublisher publisher = new LivePacketPublisher(client, attached, arena, true);
+        Recorder recorder = new Recorder();
+        publisher.subscribe(recorder);
+        recorder.fSubscription.request(Long.MAX_VALUE);
+        assertTrue(recorder.fDone.await(10, TimeUnit.SECONDS));
+        assertNull(recorder.fError);
+        assertEquals(STREAMS * PACKETS / 7, publisher.getLostPackets());
+        assertEquals(STREAMS * PACKETS, recorder.count() + publisher.getLostPackets());
+        assertEquals(0, arena.getInUse());
+    }
+
+    /**
+     * A second subscriber is refused
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @Test
+    public void testSingleSubscriber() throws IOException {
+        AttachedSession attached = client.attachSession(1, lttng_viewer_seek.VIEWER_SEEK_BEGINNING);
+        LivePacketPublisher publisher = new LivePacketPublisher(client, attached, arena, false);
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+        publisher.subscribe(first);
+        publisher.subscribe(second);
+        assertTrue(second.fError instanceof IllegalStateException);
+        first.fSubscription.cancel();
+    }
+
+    private static class Recorder implements Flow.Subscriber<LivePacket> {
+        private final List<Long> fTimestamps = new ArrayList<>();
+        private final CountDownLatch fDone = new CountDownLatch(1);
+        private volatile Flow.Subscription fSubscription;
+        private volatile Throwable fError;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            fSubscription = subscription;
+        }
+
+        @Override
+        public void onNext(LivePacket item) {
+            synchronized (fTimestamps) {
+                fTimestamps.add(Long.valueOf(item.getTimestampBegin()));
+            }
+            item.release();
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            fError = throwable;
+            fDone.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            fDone.countDown();
+        }
+
+        public int count() {
+            synchronized (fTimestamps) {
+                return fTimestamps.size();
+            }
+        }
+
+        public boolean awaitCount(int count) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (count() < count) {
+                if (System.nanoTime() > deadline) {
+                    return false;
+                }
+                Thread.sleep(1);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_index;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_next_index_return_code;
+
+/**
+ * Polls the data streams of an attached session for their next index, using
+ * a {@link PollScheduler} to pick the streams and pipelined requests to ask
+ * them. Every reply is given to an {@link IndexHandler}, which usually fetches
+ * the packet of the OK ones.
+ *
+ * With {@link #setNotifications(ViewerNotifications)}, a stream answering
+ * VIEWER_INDEX_RETRY is left alone until it is notified, so a quiet session
+ * costs about one request per stream and per maximum interval. This only
+ * starts once the first notification arrived: a relayd that accepts the
+ * connection but never notifies, like relayd 2.4, keeps being polled at the
+ * rate of the packets.
+ *
+ * @author Matthew Khouzam
+ */
+public class LiveSessionPoller {
+
+    /**
+     * Receives the replies of a poll
+     */
+    public interface IndexHandler {
+        /**
+         * Handle the reply to a GET_NEXT_INDEX. The client may be used to
+         * fetch the packet, the index is reused after the call returns.
+         *
+         * @param stream
+         *            the stream that was polled
+         * @param index
+         *            the reply, of any status
+         * @throws IOException
+         *             network error while handling the index
+         */
+        void onIndex(ViewerStream stream, lttng_viewer_index index) throws IOException;
+    }
+
+    private final ViewerClient fClient;
+    private final ViewerStream[] fStreams;
+    private final PollScheduler fScheduler;
+    private final IndexHandler fHandler;
+    private final int[] fSlots;
+    private final long[] fIds;
+    private final lttng_viewer_index[] fReplies;
+    private final long[] fNotified;
+    private ViewerNotifications fNotifications;
+
+    /**
+     * Constructor
+     *
+     * @param client
+     *            a client attached to the session
+     * @param session
+     *            the attached session
+     * @param handler
+     *            receives the replies
+     */
+    public LiveSessionPoller(ViewerClient client, AttachedSession session, IndexHandler handler) {
+        fClient = client;
+        fStreams = session.getDataStreams();
+        fScheduler = new PollScheduler(session.getDataStreamIds());
+        fHandler = handler;
+        fSlots = new int[fStreams.length];
+        fIds = new long[fStreams.length];
+        fReplies = new lttng_viewer_index[fStreams.length];
+        fNotified = new long[fStreams.length];
+        for (int i = 0; i < fReplies.length; i++) {
+            fReplies[i] = new lttng_viewer_index();
+        }
+    }
+
+    /**
+     * @return the scheduler, to tune its intervals
+     */
+    public PollScheduler getScheduler() {
+        return fScheduler;
+    }
+
+    /**
+     * Wake the streams from a notification connection instead of polling
+     * them while they retry. The streams are polled until the first
+     * notification proves that the relayd sends them, and again if the
+     * connection is lost.
+     *
+     * @param notifications
+     *            the notification connection paired with the client, null
+     *            to poll
+     */
+    public void setNotifications(ViewerNotifications notifications) {
+        fNotifications = notifications;
+        fScheduler.setNotified(false);
+    }
+
+    /**
+     * @return the data streams, in scheduler slot order
+     */
+    public ViewerStream[] getStreams() {
+        return fStreams;
+    }
+
+    /**
+     * Run one poll cycle. If no stream is due, sleep until the first one is
+     * instead.
+     *
+     * @return the number of VIEWER_INDEX_OK replies
+     * @throws IOException
+     *             network error
+     */
+    public int poll() throws IOException {
+        long now = System.nanoTime();
+        if (fNotifications != null) {
+            wakeNotified(now);
+        }
+        int count = fScheduler.nextBatch(now, fSlots, fIds);
+        if (count == 0) {
+            long next = fScheduler.nextDue(now);
+            if (next != Long.MAX_VALUE) {
+                LockSupport.parkNanos(next - now);
+            }
+            return 0;
+        }
+        fClient.getNextIndexes(fIds, count, fReplies);
+        now = System.nanoTime();
+        int ok = 0;
+        for (int i = 0; i < count; i++) {
+            lttng_viewer_index reply = fReplies[i];
+            int slot = fSlots[i];
+            boolean isOk = reply.status == lttng_viewer_next_index_return_code.VIEWER_INDEX_OK;
+            fScheduler.onReply(slot, reply.status, isOk ? reply.packet_size / 8 : 0, now);
+            if (isOk) {
+                ok++;
+            }
+            fHandler.onIndex(fStreams[slot], reply);
+        }
+        return ok;
+    }
+
+    private void wakeNotified(long now) {
+        ViewerNotifications notifications = fNotifications;
+        notifications.setWaiter(Thread.currentThread());
+        int count = notifications.drain(fNotified);
+        for (int i = 0; i < count; i++) {
+            int slot = fScheduler.slotOf(fNotified[i]);
+            if (slot >= 0) {
+                fScheduler.wake(slot, now);
+            }
+        }
+        if (!fScheduler.isNotified() && notifications.getCount() > 0 && notifications.isAlive()) {
+            /* the relayd does notify, stop polling the retrying streams */
+            fScheduler.setNotified(true);
+        }
+        if (!notifications.isAlive()) {
+            /* poll every backed off stream now, then keep polling */
+            fNotifications = null;
+            fScheduler.setNotified(false);
+            for (int slot = 0; slot < fStreams.length; slot++) {
+                fScheduler.wake(slot, now);
+            }
+        }
+    }
+
+    /**
+     * Poll until every stream hung up or reached its end, or the thread is
+     * interrupted
+     *
+     * @throws IOException
+     *             network error
+     */
+    public void run() throws IOException {
+        while (!isDone() && !Thread.currentThread().isInterrupted()) {
+            poll();
+        }
+    }
+
+    /**
+     * @return true if every stream is retired
+     */
+    public boolean isDone() {
+        return fScheduler.isDone();
+    }
+}
@@ -0,0 +1,217 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_get_metadata_return_code;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_metadata_packet;
+
+/**
+ * Metadata of the traces followed by a viewer, one growing buffer per
+ * ctf_trace_id.
+ *
+ * The relay daemon sends the metadata of a live trace in chunks, each
+ * VIEWER_GET_METADATA returning what was appended since the previous one on
+ * the same viewer connection, until VIEWER_NO_NEW_METADATA. The chunks are
+ * appended to the entry of the trace, shared by all its streams, and the text
+ * is only decoded when asked for.
+ *
+ * A new viewer connection gets the metadata again from the start. After
+ * {@link #reconnected()}, the bytes already cached are compared with what is
+ * received instead of being appended, so the consumers only see a change if
+ * the metadata really changed.
+ *
+ * Fetching does not lock the cache: {@link #get(long)} and the readers of an
+ * entry only wait for the chunk being appended, not for the relay daemon.
+ * Updates of the same trace are serialized.
+ *
+ * @author Matthew Khouzam
+ */
+public class MetadataCache {
+
+    private static final int INITIAL_CAPACITY = 4096;
+
+    private final Map<Long, Entry> fTraces = new HashMap<>();
+
+    /**
+     * @param ctfTraceId
+     *            the ctf_trace_id of the streams
+     * @return the metadata of the trace, null if it was never fetched
+     */
+    public synchronized Entry get(long ctfTraceId) {
+        return fTraces.get(ctfTraceId);
+    }
+
+    /**
+     * Fetch the metadata of a trace appended since the last call, until the
+     * relay daemon has nothing new
+     *
+     * @param client
+     *            a client attached to the session of the stream
+     * @param metadataStream
+     *            the metadata stream of the trace
+     * @return the metadata of the trace
+     * @throws IOException
+     *             network error or VIEWER_METADATA_ERR
+     */
+    public Entry update(ViewerClient client, ViewerStream metadataStream) throws IOException {
+        Entry entry;
+        synchronized (this) {
+            entry = fTraces.get(metadataStream.getCtfTraceId());
+            if (entry == null) {
+                entry = new Entry(metadataStream.getCtfTraceId());
+                fTraces.put(metadataStream.getCtfTraceId(), entry);
+            }
+        }
+        /* the round trips only hold back the other updates of this trace */
+        synchronized (entry.fUpdateLock) {
+            while (true) {
+                entry.fChunk.clear();
+                entry.fChunk = client.getMetadata(metadataStream.getId(), entry.fReply, entry.fChunk);
+                if (entry.fReply.status == lttng_viewer_get_metadata_return_code.VIEWER_NO_NEW_METADATA) {
+                    return entry;
+                }
+                if (entry.fReply.status != lttng_viewer_get_metadata_return_code.VIEWER_METADATA_OK) {
+                    throw new IOException("Could not get the metadata of stream " + metadataStream.getId() + ": " + entry.fReply.status); //$NON-NLS-1$ //$NON-NLS-2$
+                }
+                entry.fChunk.flip();
+                entry.receive(entry.fChunk);
+            }
+        }
+    }
+
+    /**
+     * The viewer connected again, the relay daemon will resend the metadata
+     * from the start
+     */
+    public synchronized void reconnected() {
+        for (Entry entry : fTraces.values()) {
+            entry.reconnected();
+        }
+    }
+
+    /**
+     * Forget a trace
+     *
+     * @param ctfTraceId
+     *            the ctf_trace_id of the trace
+     */
+    public synchronized void remove(long ctfTraceId) {
+        fTraces.remove(ctfTraceId);
+    }
+
+    /**
+     * The metadata of one trace
+     */
+    public static class Entry {
+        private final long fCtfTraceId;
+        /* held by update() while it reads the chunks into fChunk */
+        private final Object fUpdateLock = new Object();
+        private final lttng_viewer_metadata_packet fReply = new lttng_viewer_metadata_packet();
+        private ByteBuffer fChunk = ByteBuffer.allocate(INITIAL_CAPACITY);
+        private byte[] fData = new byte[INITIAL_CAPACITY];
+        private int fSize;
+        private long fReceived;
+        private int fGeneration;
+        private String fText;
+
+        Entry(long ctfTraceId) {
+            fCtfTraceId = ctfTraceId;
+        }
+
+        /**
+         * @return the ctf_trace_id of the trace
+         */
+        public long getCtfTraceId() {
+            return fCtfTraceId;
+        }
+
+        /**
+         * @return the size of the metadata, in bytes
+         */
+        public synchronized int size() {
+            return fSize;
+        }
+
+        /**
+         * @return a counter incremented every time the metadata changes
+         */
+        public synchronized int getGeneration() {
+            return fGeneration;
+        }
+
+        /**
+         * @return the metadata text, decoded once per change. Packetized
+         *         metadata is unpacked up to its last complete packet.
+         * @throws IOException
+         *             a metadata packet cannot be unpacked
+         */
+        public synchronized String getText() throws IOException {
+            if (fText == null) {
+                fText = CtfMetadata.toText(fData, fSize);
+            }
+            return fText;
+        }
+
+        /**
+         * Copy part of the metadata, to parse what was appended since a
+         * previous size
+         *
+         * @param from
+         *            the first byte
+         * @return a copy of the metadata from that byte on
+         */
+        public synchronized byte[] getBytes(int from) {
+            return Arrays.copyOfRange(fData, from, fSize);
+        }
+
+        synchronized void reconnected() {
+            fReceived = 0;
+        }
+
+        synchronized void receive(ByteBuffer chunk) {
+            int len = chunk.remaining();
+            long start = fReceived;
+            fReceived += len;
+            /* after a reconnection, the start is already cached */
+            int overlap = (int) Math.max(0, Math.min(fSize - start, len));
+            int at = chunk.position();
+            for (int i = 0; i < overlap; i++) {
+                if (chunk.get(at + i) != fData[(int) start + i]) {
+                    fSize = (int) start;
+                    fGeneration++;
+                    fText = null;
+                    overlap = 0;
+                    break;
+                }
+            }
+            chunk.position(at + overlap);
+            int appended = chunk.remaining();
+            if (appended == 0) {
+                return;
+            }
+            if (fSize + appended > fData.length) {
+                fData = Arrays.copyOf(fData, Math.max(fData.length * 2, fSize + appended));
+            }
+            chunk.get(fData, fSize, appended);
+            fSize += appended;
+            fGeneration++;
+            fText = null;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.util.concurrent.CountDownLatch;
+
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_seek;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the incremental metadata fetching against the mock relayd
+ *
+ * @author Matthew Khouzam
+ */
+public class MetadataCacheTest {
+
+    private MockRelayD relayd;
+    private InetSocketAddress address;
+    private final MetadataCache cache = new MetadataCache();
+
+    /**
+     * Start a mock relayd
+     *
+     * @throws IOException
+     *             the mock did not start
+     */
+    @Before
+    public void init() throws IOException {
+        relayd = new MockRelayD();
+        relayd.setPacketCount(1);
+        address = relayd.start(0);
+    }
+
+    /**
+     * Stop the mock
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @After
+    public void cleanup() throws IOException {
+        relayd.close();
+    }
+
+    private ViewerClient attach() throws IOException {
+        ViewerClient client = ViewerClient.open(address.getHostString(), address.getPort());
+        client.connect();
+        return client;
+    }
+
+    /**
+     * Only what is appended is fetched, and a reconnection does not change
+     * the metadata
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @Test
+    public void testIncremental() throws IOException {
+        ViewerClient client = attach();
+        ViewerStream metadata = client.attachSession(1, lttng_viewer_seek.VIEWER_SEEK_BEGINNING).getMetadataStreams()[0];
+        MetadataCache.Entry entry = cache.update(client, metadata);
+        assertSame(entry, cache.get(metadata.getCtfTraceId()));
+        assertEquals(1, entry.getGeneration());
+        int size = entry.size();
+        String text = entry.getText();
+        assertTrue(text.startsWith("/* CTF 1.8 */"));
+        assertSame(text, entry.getText());
+
+        cache.update(client, metadata);
+        assertEquals(1, entry.getGeneration());
+
+        relayd.appendMetadata(1, "event { name = \"late\"; };\n");
+        cache.update(client, metadata);
+        assertEquals(2, entry.getGeneration());
+        assertEquals("event { name = \"late\"; };\n", new String(entry.getBytes(size), ViewerNames.CHARSET));
+        assertTrue(entry.getText().endsWith("\"late\"; };\n"));
+        client.close();
+
+        size = entry.size();
+        client = attach();
+        /* the mock releases the session when it sees the first client close */
+        while (!client.attachSession(1, lttng_viewer_seek.VIEWER_SEEK_BEGINNING).isAttached()) {
+            Thread.yield();
+        }
+        cache.reconnected();
+        assertSame(entry, cache.update(client, metadata));
+        assertEquals(2, entry.getGeneration());
+        assertEquals(size, entry.size());
+        client.close();
+    }
+
+    /**
+     * A fetch waiting for the relay daemon does not hold back the readers of
+     * the cache
+     *
+     * @throws Exception
+     *             should not happen
+     */
+    @Test(timeout = 10000)
+    public void testFetchUnlocked() throws Exception {
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        ByteChannel stalled = new ByteChannel() {
+            @Override
+            public int write(ByteBuffer src) {
+                int n = src.remaining();
+                src.position(src.limit());
+                return n;
+            }
+
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                reading.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return -1;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+                // nothing to close
+            }
+        };
+        final ViewerClient client = new ViewerClient(stalled);
+        final ViewerStream metadata = ViewerStream.create(0, 7, true, "host/session", "metadata", new ViewerNames());
+        Thread fetch = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    cache.update(client, metadata);
+                } catch (IOException e) {
+                    /* the channel ends when released */
+                }
+            }
+        };
+        fetch.start();
+        reading.await();
+        assertNotNull(cache.get(7));
+        assertEquals(0, cache.get(7).size());
+        cache.reconnected();
+        release.countDown();
+        fetch.join();
+    }
+}
@@ -0,0 +1,820 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_attach_return_code;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_connect;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_connection_type;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_get_metadata_return_code;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_get_packet;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_get_packet_return_code;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_index;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_metadata_packet;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_next_index_return_code;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_seek;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_trace_packet;
+
+/**
+ * In-process stand-in for lttng-relayd, listening on the loopback interface.
+ *
+ * It serves {@link SyntheticTrace} sessions, one trace per session, and
+ * optionally traces from disk ({@link DiskTrace}). The packet size, the rate
+ * at which packets become available, the number of packets, the number of
+ * streams and the ratio of spurious VIEWER_INDEX_RETRY are configurable, which
+ * makes it a reproducible load source for the viewer client.
+ *
+ * Behaviour follows relayd 2.4: a session accepts one viewer, indexes are
+ * given in order per viewer connection, a stream that produced all its
+ * packets answers VIEWER_INDEX_HUP and an idle stream answers
+ * VIEWER_INDEX_INACTIVE beacons, while a stalled one answers
+ * VIEWER_INDEX_RETRY forever. GET_PACKET can be made to fail every few
+ * requests. Configure it before {@link #start(int)}.
+ *
+ * Viewers may also open a VIEWER_CLIENT_NOTIFICATION connection with the
+ * viewer_session_id of their command connection. A stream answered
+ * VIEWER_INDEX_RETRY is then notified once, when its next packet is produced
+ * or when it hangs up, even if the viewer polled the packet first. Idle
+ * streams are never notified.
+ *
+ * @author Matthew Khouzam
+ */
+public class MockRelayD implements ViewerServer.HandlerFactory, Closeable {
+
+    /** Host name of the synthetic sessions */
+    public static final String HOSTNAME = "mockhost"; //$NON-NLS-1$
+
+    private static final long SECOND = 1000000000L;
+    private static final long DEFAULT_PERIOD = 1000000L;
+
+    private int fSessionCount = 1;
+    private int fStreamsPerSession = 4;
+    private int fIdleStreams = 0;
+    private int fStalledStreams = 0;
+    private int fPacketSize = 4096;
+    private double fFillRatio = 1.0;
+    private double fPacketRate = 0;
+    private long fPacketCount = -1;
+    private double fRetryRatio = 0;
+    private int fDiscardEvery = 0;
+    private int fPacketErrorEvery = 0;
+    private int fLiveTimer = 1000000;
+    private long fSeed = 0;
+    private final List<File> fDiskTraces = new ArrayList<>();
+
+    private final ViewerNames fNames = new ViewerNames();
+    private final List<MockSession> fSessions = new ArrayList<>();
+    private final List<DiskTrace> fOpenTraces = new ArrayList<>();
+    private final AtomicLong fViewerSessionIds = new AtomicLong();
+    private final Map<Long, MockHandler> fViewers = new ConcurrentHashMap<>();
+    private final Object fWaitLock = new Object();
+    private boolean fWaitPending;
+    private MockStream[] fStreamsById = new MockStream[0];
+    private ViewerServer fServer;
+    private Thread fNotifier;
+    private long fStartTime;
+
+    // ------------------------------------------------------------------------
+    // Configuration
+    // ------------------------------------------------------------------------
+
+    /**
+     * @param sessions
+     *            the number of synthetic sessions, default 1
+     */
+    public void setSessionCount(int sessions) {
+        fSessionCount = sessions;
+    }
+
+    /**
+     * @param streams
+     *            the number of data streams per synthetic session, default 4
+     */
+    public void setStreamsPerSession(int streams) {
+        fStreamsPerSession = streams;
+    }
+
+    /**
+     * @param streams
+     *            how many of the data streams of each session never produce
+     *            a packet and answer inactive beacons, default 0
+     */
+    public void setIdleStreams(int streams) {
+        fIdleStreams = streams;
+    }
+
+    /**
+     * @param streams
+     *            how many of the data streams of each session never produce
+     *            a packet and answer VIEWER_INDEX_RETRY without beacons,
+     *            default 0. They are the first ones, the idle ones the last.
+     */
+    public void setStalledStreams(int streams) {
+        fStalledStreams = streams;
+    }
+
+    /**
+     * @param bytes
+     *            the size of the synthetic packets, default 4096
+     */
+    public void setPacketSize(int bytes) {
+        fPacketSize = bytes;
+    }
+
+    /**
+     * @param ratio
+     *            the part of a packet holding events, the rest is padding
+     *            (content_size &lt; packet_size), default 1
+     */
+    public void setFillRatio(double ratio) {
+        fFillRatio = ratio;
+    }
+
+    /**
+     * @param packetsPerSecond
+     *            the rate at which each stream produces packets, 0 (the
+     *            default) makes all the packets available at once
+     */
+    public void setPacketRate(double packetsPerSecond) {
+        fPacketRate = packetsPerSecond;
+    }
+
+    /**
+     * @param packets
+     *            the number of packets per stream before it hangs up, -1
+     *            (the default) for endless streams
+     */
+    public void setPacketCount(long packets) {
+        fPacketCount = packets;
+    }
+
+    /**
+     * @param ratio
+     *            the probability of a VIEWER_INDEX_RETRY even when a packet
+     *            is available, default 0
+     */
+    public void setRetryRatio(double ratio) {
+        fRetryRatio = ratio;
+    }
+
+    /**
+     * @param packets
+     *            the tracer loses one event every that many packets, 0 (the
+     *            default) for never
+     */
+    public void setDiscardEvery(int packets) {
+        fDiscardEvery = packets;
+    }
+
+    /**
+     * @param requests
+     *            every that many GET_PACKET of a viewer are answered
+     *            VIEWER_GET_PACKET_ERR, 0 (the default) for never
+     */
+    public void setPacketErrorEvery(int requests) {
+        fPacketErrorEvery = requests;
+    }
+
+    /**
+     * @param microseconds
+     *            the live timer announced for the sessions, default 1 s
+     */
+    public void setLiveTimer(int microseconds) {
+        fLiveTimer = microseconds;
+    }
+
+    /**
+     * @param seed
+     *            the seed of the uuids and of the spurious retries
+     */
+    public void setSeed(long seed) {
+        fSeed = seed;
+    }
+
+    /**
+     * Serve a trace from disk as an extra session
+     *
+     * @param directory
+     *            a trace directory with its metadata and index files
+     */
+    public void addDiskTrace(File directory) {
+        fDiskTraces.add(directory);
+    }
+
+    // ------------------------------------------------------------------------
+    // Life cycle
+    // ------------------------------------------------------------------------
+
+    /**
+     * Build the sessions and start listening
+     *
+     * @param port
+     *            the port, 0 to pick a free one
+     * @return the address to connect to
+     * @throws IOException
+     *             the port is taken or a disk trace could not be read
+     */
+    public synchronized InetSocketAddress start(int port) throws IOException {
+        build();
+        fStartTime = System.nanoTime();
+        fServer = new ViewerServer(this);
+        InetSocketAddress address = fServer.start(port);
+        fNotifier = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                notifyLoop();
+            }
+        }, "MockRelayD notifier"); //$NON-NLS-1$
+        fNotifier.setDaemon(true);
+        fNotifier.start();
+        return address;
+    }
+
+    /**
+     * @return the address the server listens on
+     * @throws IOException
+     *             the server is not started
+     */
+    public InetSocketAddress getAddress() throws IOException {
+        return fServer.getAddress();
+    }
+
+    /**
+     * Append metadata to a session, as a live tracer does when new events
+     * are registered. Viewers get it with their next VIEWER_GET_METADATA.
+     *
+     * @param sessionId
+     *            the session id
+     * @param text
+     *            the TSDL to append
+     */
+    public synchronized void appendMetadata(long sessionId, String text) {
+        MockSession session = fSessions.get((int) sessionId - 1);
+        byte[] appended = text.getBytes(ViewerNames.CHARSET);
+        byte[] metadata = Arrays.copyOf(session.fMetadata, session.fMetadata.length + appended.length);
+        System.arraycopy(appended, 0, metadata, session.fMetadata.length, appended.length);
+        session.fMetadata = metadata;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (fServer != null) {
+            fServer.close();
+        }
+        if (fNotifier != null) {
+            fNotifier.interrupt();
+            fNotifier = null;
+        }
+        for (DiskTrace trace : fOpenTraces) {
+            trace.close();
+        }
+        fOpenTraces.clear();
+    }
+
+    private void build() throws IOException {
+        List<MockStream> streams = new ArrayList<>();
+        streams.add(null); /* stream ids start at 1 */
+        long period = (fPacketRate > 0) ? (long) (SECOND / fPacketRate) : DEFAULT_PERIOD;
+        for (int s = 0; s < fSessionCount; s++) {
+            long sessionId = fSessions.size() + 1;
+            SyntheticTrace trace = new SyntheticTrace(fSeed + s, fPacketSize, fFillRatio, period);
+            trace.setDiscardEvery(fDiscardEvery);
+            String name = "session" + s; //$NON-NLS-1$
+            String path = HOSTNAME + '/' + name + "/kernel"; //$NON-NLS-1$
+            MockSession session = new MockSession(sessionId, HOSTNAME, name, trace.getMetadata().getBytes(ViewerNames.CHARSET));
+            session.addStream(new MockStream(session, ViewerStream.create(streams.size(), sessionId, true, path, "metadata", fNames)), streams); //$NON-NLS-1$
+            for (int cpu = 0; cpu < fStreamsPerSession; cpu++) {
+                ViewerStream stream = ViewerStream.create(streams.size(), sessionId, false, path, "channel0_" + cpu, fNames); //$NON-NLS-1$
+                boolean idle = cpu >= fStreamsPerSession - fIdleStreams;
+                boolean stalled = cpu < fStalledStreams;
+                session.addStream(new SyntheticStream(session, stream, trace, cpu, idle, stalled), streams);
+            }
+            fSessions.add(session);
+        }
+        for (File directory : fDiskTraces) {
+            long sessionId = fSessions.size() + 1;
+            DiskTrace trace = new DiskTrace(directory);
+            fOpenTraces.add(trace);
+            String path = "disk/" + trace.getName(); //$NON-NLS-1$
+            MockSession session = new MockSession(sessionId, "disk", trace.getName(), trace.getMetadata()); //$NON-NLS-1$
+            session.addStream(new MockStream(session, ViewerStream.create(streams.size(), sessionId, true, path, "metadata", fNames)), streams); //$NON-NLS-1$
+            for (int i = 0; i < trace.getStreamCount(); i++) {
+                ViewerStream stream = ViewerStream.create(streams.size(), sessionId, false, path, trace.getStreamName(i), fNames);
+                session.addStream(new DiskStream(session, stream, trace, i), streams);
+            }
+            fSessions.add(session);
+        }
+        fStreamsById = streams.toArray(new MockStream[streams.size()]);
+    }
+
+    /* number of packets produced at a given time, at the configured rate */
+    long produced(long now) {
+        if (fPacketRate <= 0) {
+            return Long.MAX_VALUE;
+        }
+        return 1 + (long) ((now - fStartTime) * fPacketRate / SECOND);
+    }
+
+    /* trace time matching a wall clock time, for the inactive beacons */
+    long traceTime(long now) {
+        return SyntheticTrace.BASE_TIMESTAMP + (now - fStartTime);
+    }
+
+    /*
+     * Notify the waiting streams of every viewer, then sleep until a stream
+     * starts waiting or, while some still wait, until the next packet.
+     */
+    private void notifyLoop() {
+        long period = (fPacketRate > 0) ? Math.max(1, (long) (1000 / fPacketRate)) : 1;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                long now = System.nanoTime();
+                boolean waiting = false;
+                for (MockHandler viewer : fViewers.values()) {
+                    waiting |= viewer.notifyWaiting(now);
+                }
+                synchronized (fWaitLock) {
+                    if (!fWaitPending) {
+                        fWaitLock.wait(waiting ? period : 0);
+                    }
+                    fWaitPending = false;
+                }
+            }
+        } catch (InterruptedException e) {
+            /* closed */
+        }
+    }
+
+    private void signalWaiting() {
+        synchronized (fWaitLock) {
+            fWaitPending = true;
+            fWaitLock.notifyAll();
+        }
+    }
+
+    @Override
+    public ViewerServer.Handler newHandler() {
+        return new MockHandler();
+    }
+
+    // ------------------------------------------------------------------------
+    // Model
+    // ------------------------------------------------------------------------
+
+    private class MockSession {
+        private final long fId;
+        private final byte[] fHostname;
+        private final byte[] fName;
+        private final List<ViewerStream> fStreams = new ArrayList<>();
+        private volatile byte[] fMetadata;
+        private MockHandler fViewer;
+
+        public MockSession(long id, String hostname, String name, byte[] metadata) {
+            fId = id;
+            fHostname = fNames.intern(hostname);
+            fName = fNames.intern(name);
+            fMetadata = metadata;
+        }
+
+        public void addStream(MockStream stream, List<MockStream> byId) {
+            fStreams.add(stream.fStream);
+            byId.add(stream);
+        }
+
+        public synchronized ViewerSession describe() {
+            return new ViewerSession(fId, fLiveTimer, (fViewer == null) ? 0 : 1, fStreams.size(), fHostname, fName);
+        }
+
+        public ViewerStream[] getStreams() {
+            return fStreams.toArray(new ViewerStream[fStreams.size()]);
+        }
+    }
+
+    /** A metadata stream, data streams extend it */
+    private class MockStream {
+        protected final MockSession fSession;
+        protected final ViewerStream fStream;
+
+        public MockStream(MockSession session, ViewerStream stream) {
+            fSession = session;
+            fStream = stream;
+        }
+
+        public boolean isIdle() {
+            return false;
+        }
+
+        /* never produces a packet and does not hang up either */
+        public boolean isStalled() {
+            return false;
+        }
+
+        /* total number of packets, -1 for endless */
+        public long count() {
+            return 0;
+        }
+
+        @SuppressWarnings("unused")
+        public void index(long packet, lttng_viewer_index index) {
+            throw new IllegalStateException();
+        }
+
+        @SuppressWarnings("unused")
+        public void read(long offset, int len, ByteBuffer dst, ByteBuffer scratch) throws IOException {
+            throw new IOException("Not a data stream"); //$NON-NLS-1$
+        }
+
+        public long end() {
+            long count = count();
+            return (count < 0) ? Long.MAX_VALUE : count;
+        }
+    }
+
+    private class SyntheticStream extends MockStream {
+        private final SyntheticTrace fTrace;
+        private final int fCpu;
+        private final boolean fIdle;
+        private final boolean fStalled;
+
+        public SyntheticStream(MockSession session, ViewerStream stream, SyntheticTrace trace, int cpu, boolean idle, boolean stalled) {
+            super(session, stream);
+            fTrace = trace;
+            fCpu = cpu;
+            fIdle = idle;
+            fStalled = stalled;
+        }
+
+        @Override
+        public boolean isIdle() {
+            return fIdle;
+        }
+
+        @Override
+        public boolean isStalled() {
+            return fStalled;
+        }
+
+        @Override
+        public long count() {
+            return fIdle ? 0 : fPacketCount;
+        }
+
+        @Override
+        public void index(long packet, lttng_viewer_index index) {
+            fTrace.index(packet, index);
+        }
+
+        @Override
+        public void read(long offset, int len, ByteBuffer dst, ByteBuffer scratch) throws IOException {
+            long count = count();
+            if (offset < 0 || (count >= 0 && offset + len > count * fTrace.getPacketSize())) {
+                throw new IOException("Out of the stream"); //$NON-NLS-1$
+            }
+            fTrace.read(fCpu, offset, len, dst, scratch);
+        }
+    }
+
+    private class DiskStream extends MockStream {
+        private final DiskTrace fTrace;
+        private final int fNumber;
+
+        public DiskStream(MockSession session, ViewerStream stream, DiskTrace trace, int number) {
+            super(session, stream);
+            fTrace = trace;
+            fNumber = number;
+        }
+
+        @Override
+        public long count() {
+            return fTrace.getPacketCount(fNumber);
+        }
+
+        @Override
+        public void index(long packet, lttng_viewer_index index) {
+            fTrace.index(fNumber, (int) packet, index);
+        }
+
+        @Override
+        public void read(long offset, int len, ByteBuffer dst, ByteBuffer scratch) throws IOException {
+            fTrace.read(fNumber, offset, len, dst);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Viewer connection
+    // ------------------------------------------------------------------------
+
+    private class MockHandler implements ViewerServer.NotificationHandler {
+        private final Random fRandom = new Random(fSeed);
+        private final long[] fPosition = new long[fStreamsById.length];
+        private final int[] fMetadataSent = new int[fStreamsById.length];
+        private final boolean[] fWaiting = new boolean[fStreamsById.length];
+        /* the packet a waiting stream answered RETRY for */
+        private final long[] fWaitingFor = new long[fStreamsById.length];
+        private long fViewerSessionId;
+        /* the command connection, on a notification connection */
+        private MockHandler fCommand;
+        private ViewerServer.Notifier fNotifier;
+        private MockSession fAttached;
+        private long fPacketRequests;
+        private ByteBuffer fPacket = ByteBuffer.allocateDirect(fPacketSize);
+        private final ByteBuffer fScratch = ByteBuffer.allocateDirect(fPacketSize);
+
+        @Override
+        public void connect(lttng_viewer_connect request) throws IOException {
+            if (request.major != 2) {
+                throw new IOException("Unsupported viewer version " + request.major); //$NON-NLS-1$
+            }
+            request.minor = 4;
+            if (request.type == lttng_viewer_connection_type.VIEWER_CLIENT_NOTIFICATION) {
+                fCommand = fViewers.get(request.viewer_session_id);
+                if (fCommand == null) {
+                    throw new IOException("Unknown viewer session " + request.viewer_session_id); //$NON-NLS-1$
+                }
+                return;
+            }
+            fViewerSessionId = fViewerSessionIds.incrementAndGet();
+            request.viewer_session_id = fViewerSessionId;
+            fViewers.put(fViewerSessionId, this);
+        }
+
+        @Override
+        public void subscribe(ViewerServer.Notifier notifier) {
+            synchronized (fCommand) {
+                fCommand.fNotifier = notifier;
+            }
+            signalWaiting();
+        }
+
+        /* notify the streams that waited enough, true if some still wait */
+        public synchronized boolean notifyWaiting(long now) {
+            if (fNotifier == null) {
+                return false;
+            }
+            boolean waiting = false;
+            for (int id = 0; id < fWaiting.length; id++) {
+                if (!fWaiting[id]) {
+                    continue;
+                }
+                int flags;
+                if (fPosition[id] >= fStreamsById[id].end()) {
+                    flags = LTTngRelayDCommands2_4.LTTNG_VIEWER_NOTIFY_HUP;
+                } else if (fWaitingFor[id] < produced(now)) {
+                    flags = LTTngRelayDCommands2_4.LTTNG_VIEWER_NOTIFY_DATA;
+                } else {
+                    waiting = true;
+                    continue;
+                }
+                fWaiting[id] = false;
+                try {
+                    fNotifier.notify(id, flags);
+                } catch (IOException e) {
+                    /* the viewer closed it, it polls again */
+                    fNotifier = null;
+                    return false;
+                }
+            }
+            return waiting;
+        }
+
+        @Override
+        public ViewerSession[] listSessions() {
+            ViewerSession[] sessions = new ViewerSession[fSessions.size()];
+            for (int i = 0; i < sessions.length; i++) {
+                sessions[i] = fSessions.get(i).describe();
+            }
+            return sessions;
+        }
+
+        @Override
+        public AttachedSession attach(long sessionId, lttng_viewer_seek seek) {
+            MockSession session = null;
+            for (MockSession candidate : fSessions) {
+                if (candidate.fId == sessionId) {
+                    session = candidate;
+                }
+            }
+            if (session == null) {
+                return new AttachedSession(sessionId, lttng_viewer_attach_return_code.VIEWER_ATTACH_UNK, new ViewerStream[0]);
+            }
+            if (fLiveTimer == 0) {
+                return new AttachedSession(sessionId, lttng_viewer_attach_return_code.VIEWER_ATTACH_NOT_LIVE, new ViewerStream[0]);
+            }
+            synchronized (session) {
+                if (session.fViewer != null && session.fViewer != this) {
+                    return new AttachedSession(sessionId, lttng_viewer_attach_return_code.VIEWER_ATTACH_ALREADY, new ViewerStream[0]);
+                }
+                detach();
+                session.fViewer = this;
+                fAttached = session;
+            }
+            long now = System.nanoTime();
+            for (ViewerStream stream : session.fStreams) {
+                int id = (int) stream.getId();
+                MockStream mock = fStreamsById[id];
+                fMetadataSent[id] = 0;
+                fPosition[id] = (seek == lttng_viewer_seek.VIEWER_SEEK_LAST) ? Math.min(produced(now), mock.end()) : 0;
+                if (fPosition[id] == Long.MAX_VALUE) {
+                    fPosition[id] = 0;
+                }
+            }
+            return new AttachedSession(sessionId, lttng_viewer_attach_return_code.VIEWER_ATTACH_OK, session.getStreams());
+        }
+
+        private void detach() {
+            MockSession attached = fAttached;
+            if (attached != null) {
+                synchronized (attached) {
+                    if (attached.fViewer == this) {
+                        attached.fViewer = null;
+                    }
+                }
+                fAttached = null;
+            }
+        }
+
+        private MockStream lookup(long streamId) {
+            if (streamId <= 0 || streamId >= fStreamsById.length) {
+                return null;
+            }
+            MockStream stream = fStreamsById[(int) streamId];
+            return (stream.fSession == fAttached) ? stream : null;
+        }
+
+        @Override
+        public synchronized void getNextIndex(long streamId, lttng_viewer_index reply) {
+            clear(reply);
+            reply.stream_id = streamId;
+            MockStream stream = lookup(streamId);
+            if (stream == null || stream.fStream.isMetadata()) {
+                reply.status = lttng_viewer_next_index_return_code.VIEWER_INDEX_ERR;
+                return;
+            }
+            long now = System.nanoTime();
+            if (stream.isIdle()) {
+                reply.status = lttng_viewer_next_index_return_code.VIEWER_INDEX_INACTIVE;
+                reply.timestamp_end = traceTime(now);
+                return;
+            }
+            if (stream.isStalled()) {
+                reply.status = lttng_viewer_next_index_return_code.VIEWER_INDEX_RETRY;
+                return;
+            }
+            int id = (int) streamId;
+            long packet = fPosition[id];
+            if (packet >= stream.end()) {
+                reply.status = lttng_viewer_next_index_return_code.VIEWER_INDEX_HUP;
+                return;
+            }
+            if (packet >= produced(now) || (fRetryRatio > 0 && fRandom.nextDouble() < fRetryRatio)) {
+                reply.status = lttng_viewer_next_index_return_code.VIEWER_INDEX_RETRY;
+                if (fNotifier != null && !fWaiting[id]) {
+                    fWaiting[id] = true;
+                    fWaitingFor[id] = packet;
+                    signalWaiting();
+                }
+                return;
+            }
+            stream.index(packet, reply);
+            reply.status = lttng_viewer_next_index_return_code.VIEWER_INDEX_OK;
+            fPosition[id] = packet + 1;
+        }
+
+        private void clear(lttng_viewer_index reply) {
+            reply.offset = 0;
+            reply.packet_size = 0;
+            reply.content_size = 0;
+            reply.timestamp_begin = 0;
+            reply.timestamp_end = 0;
+            reply.events_discarded = 0;
+        }
+
+        @Override
+        public ByteBuffer getPacket(lttng_viewer_get_packet request, lttng_viewer_trace_packet reply) {
+            MockStream stream = lookup(request.stream_id);
+            reply.status = lttng_viewer_get_packet_return_code.VIEWER_GET_PACKET_ERR;
+            if (stream == null || request.len <= 0) {
+                return null;
+            }
+            if (fPacketErrorEvery > 0 && ++fPacketRequests % fPacketErrorEvery == 0) {
+                return null;
+            }
+            if (fPacket.capacity() < request.len) {
+                fPacket = ByteBuffer.allocateDirect(request.len);
+            }
+            fPacket.clear();
+            try {
+                stream.read(request.offset, request.len, fPacket, fScratch);
+            } catch (IOException e) {
+                return null;
+            }
+            fPacket.flip();
+            reply.status = lttng_viewer_get_packet_return_code.VIEWER_GET_PACKET_OK;
+            reply.len = request.len;
+            return fPacket;
+        }
+
+        @Override
+        public ByteBuffer getMetadata(long streamId, lttng_viewer_metadata_packet reply) {
+            MockStream stream = lookup(streamId);
+            if (stream == null || !stream.fStream.isMetadata()) {
+                reply.status = lttng_viewer_get_metadata_return_code.VIEWER_METADATA_ERR;
+                return null;
+            }
+            int id = (int) streamId;
+            byte[] metadata = stream.fSession.fMetadata;
+            int sent = fMetadataSent[id];
+            if (sent >= metadata.length) {
+                reply.status = lttng_viewer_get_metadata_return_code.VIEWER_NO_NEW_METADATA;
+                return null;
+            }
+            fMetadataSent[id] = metadata.length;
+            reply.status = lttng_viewer_get_metadata_return_code.VIEWER_METADATA_OK;
+            reply.len = metadata.length - sent;
+            return ByteBuffer.wrap(metadata, sent, metadata.length - sent);
+        }
+
+        @Override
+        public void close() {
+            if (fCommand != null) {
+                synchronized (fCommand) {
+                    fCommand.fNotifier = null;
+                }
+                return;
+            }
+            fViewers.remove(fViewerSessionId);
+            detach();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Command line
+    // ------------------------------------------------------------------------
+
+    /**
+     * Run a mock relayd until killed. Options are --name=value:
+     * port, sessions, streams, idle, packet-size, fill, rate, count, retry,
+     * discard, live-timer, seed and trace (a trace directory, repeatable).
+     *
+     * @param args
+     *            the options
+     * @throws IOException
+     *             the server could not start
+     * @throws InterruptedException
+     *             interrupted while serving
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        MockRelayD relayd = new MockRelayD();
+        int port = ViewerClient.DEFAULT_PORT;
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) { //$NON-NLS-1$
+                throw new IllegalArgumentException("Expected --name=value, got " + arg); //$NON-NLS-1$
+            }
+            String name = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+            switch (name) {
+            case "port": port = Integer.parseInt(value); break; //$NON-NLS-1$
+            case "sessions": relayd.setSessionCount(Integer.parseInt(value)); break; //$NON-NLS-1$
+            case "streams": relayd.setStreamsPerSession(Integer.parseInt(value)); break; //$NON-NLS-1$
+            case "idle": relayd.setIdleStreams(Integer.parseInt(value)); break; //$NON-NLS-1$
+            case "packet-size": relayd.setPacketSize(Integer.parseInt(value)); break; //$NON-NLS-1$
+            case "fill": relayd.setFillRatio(Double.parseDouble(value)); break; //$NON-NLS-1$
+            case "rate": relayd.setPacketRate(Double.parseDouble(value)); break; //$NON-NLS-1$
+            case "count": relayd.setPacketCount(Long.parseLong(value)); break; //$NON-NLS-1$
+            case "retry": relayd.setRetryRatio(Double.parseDouble(value)); break; //$NON-NLS-1$
+            case "discard": relayd.setDiscardEvery(Integer.parseInt(value)); break; //$NON-NLS-1$
+            case "live-timer": relayd.setLiveTimer(Integer.parseInt(value)); break; //$NON-NLS-1$
+            case "seed": relayd.setSeed(Long.parseLong(value)); break; //$NON-NLS-1$
+            case "trace": relayd.addDiskTrace(new File(value)); break; //$NON-NLS-1$
+            default:
+                throw new IllegalArgumentException("Unknown option " + name); //$NON-NLS-1$
+            }
+        }
+        InetSocketAddress address = relayd.start(port);
+        System.out.println("Mock relayd listening on " + address); //$NON-NLS-1$
+        Thread.sleep(Long.MAX_VALUE);
+    }
+}
@@ -0,0 +1,131 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of off-heap packet buffers.
+ *
+ * Memory is taken from direct slabs in power of two size classes, from
+ * {@link #MIN_BUFFER_SIZE} up. A class smaller than the slab size is carved
+ * out of the current slab, a bigger one gets a slab of its own. A buffer goes
+ * back to the free list of its class when its last reference is released, so
+ * once the pool has seen the working set of a session it stops allocating.
+ * Slabs are never given back to the system.
+ *
+ * The arena is thread safe: packets are usually acquired by the network
+ * thread and released by whoever consumed them.
+ *
+ * @author Matthew Khouzam
+ */
+public class PacketArena {
+
+    /** Smallest buffer handed out */
+    public static final int MIN_BUFFER_SIZE = 4096;
+    /** Default slab size */
+    public static final int DEFAULT_SLAB_SIZE = 4 * 1024 * 1024;
+
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+    private static final int CLASSES = 31 - MIN_SHIFT;
+
+    private final int fSlabSize;
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private final ArrayDeque<PacketBuffer>[] fFree = new ArrayDeque[CLASSES];
+    private ByteBuffer fSlab;
+    private long fReserved;
+    private int fInUse;
+
+    /**
+     * Arena with {@link #DEFAULT_SLAB_SIZE} slabs
+     */
+    public PacketArena() {
+        this(DEFAULT_SLAB_SIZE);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param slabSize
+     *            the size of the slabs the small buffers are carved from
+     */
+    public PacketArena(int slabSize) {
+        fSlabSize = Math.max(slabSize, MIN_BUFFER_SIZE);
+        for (int i = 0; i < CLASSES; i++) {
+            fFree[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * Get a buffer, with one reference owned by the caller
+     *
+     * @param len
+     *            the number of bytes needed
+     * @return a buffer of len bytes, its data between 0 and len, big endian
+     */
+    public synchronized PacketBuffer acquire(int len) {
+        int sizeClass = sizeClass(len);
+        if (len < 0 || sizeClass >= CLASSES) {
+            throw new IllegalArgumentException("Bad packet length " + len); //$NON-NLS-1$
+        }
+        PacketBuffer packet = fFree[sizeClass].pollFirst();
+        if (packet == null) {
+            packet = new PacketBuffer(this, sizeClass, carve(MIN_BUFFER_SIZE << sizeClass));
+        }
+        packet.reset(len);
+        fInUse++;
+        return packet;
+    }
+
+    synchronized void recycle(PacketBuffer packet) {
+        fInUse--;
+        fFree[packet.getSizeClass()].addFirst(packet);
+    }
+
+    private ByteBuffer carve(int size) {
+        fReserved += size;
+        if (size >= fSlabSize) {
+            return ByteBuffer.allocateDirect(size);
+        }
+        if (fSlab == null || fSlab.remaining() < size) {
+            fSlab = ByteBuffer.allocateDirect(fSlabSize);
+        }
+        int start = fSlab.position();
+        fSlab.limit(start + size);
+        ByteBuffer buffer = fSlab.slice();
+        fSlab.limit(fSlab.capacity()).position(start + size);
+        return buffer;
+    }
+
+    private static int sizeClass(int len) {
+        if (len <= MIN_BUFFER_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(len - 1) - MIN_SHIFT;
+    }
+
+    /**
+     * @return the off-heap memory taken by the buffers, in use or free
+     */
+    public synchronized long getReservedBytes() {
+        return fReserved;
+    }
+
+    /**
+     * @return the number of buffers acquired and not released yet
+     */
+    public synchronized int getInUse() {
+        return fInUse;
+    }
+}
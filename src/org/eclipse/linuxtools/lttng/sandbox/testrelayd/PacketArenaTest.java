@@ -0,0 +1,106 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests for the pooled packet buffers
+ *
+ * @author Matthew Khouzam
+ */
+public class PacketArenaTest {
+
+    /**
+     * Released buffers are reused for the same size class
+     */
+    @Test
+    public void testReuse() {
+        PacketArena arena = new PacketArena(64 * 1024);
+        PacketBuffer first = arena.acquire(3000);
+        assertEquals(3000, first.length());
+        assertEquals(3000, first.buffer().remaining());
+        assertTrue(first.buffer().isDirect());
+        PacketBuffer second = arena.acquire(4096);
+        assertNotSame(first, second);
+        assertEquals(2, arena.getInUse());
+        assertEquals(8192, arena.getReservedBytes());
+
+        first.release();
+        PacketBuffer third = arena.acquire(100);
+        assertSame(first, third);
+        assertEquals(100, third.buffer().limit());
+        assertEquals(8192, arena.getReservedBytes());
+
+        PacketBuffer big = arena.acquire(100000);
+        assertEquals(131072, big.buffer().capacity());
+        big.release();
+        assertSame(big, arena.acquire(70000));
+        assertEquals(8192 + 131072, arena.getReservedBytes());
+    }
+
+    /**
+     * The memory goes back to the arena with the last reference only
+     */
+    @Test
+    public void testRefCount() {
+        PacketArena arena = new PacketArena();
+        PacketBuffer packet = arena.acquire(8192);
+        packet.retain();
+        assertEquals(2, packet.refCount());
+        packet.release();
+        assertEquals(1, arena.getInUse());
+        packet.release();
+        assertEquals(0, arena.getInUse());
+        try {
+            packet.release();
+            throw new AssertionError("released twice");
+        } catch (IllegalStateException e) {
+            assertEquals(0, packet.refCount());
+        }
+    }
+
+    /**
+     * Slices share the memory of their parent and keep it out of the pool
+     * until the last one is released
+     */
+    @Test
+    public void testSlice() {
+        PacketArena arena = new PacketArena();
+        PacketBuffer whole = arena.acquire(8192);
+        for (int i = 0; i < 8192; i++) {
+            whole.buffer().put(i, (byte) (i / 4096));
+        }
+        whole.setOrigin(3, 1000);
+        PacketBuffer first = whole.slice(0, 4096);
+        PacketBuffer second = whole.slice(4096, 4096);
+        assertEquals(3, whole.refCount());
+        whole.release();
+        assertEquals(1, arena.getInUse());
+        assertEquals(4096, second.length());
+        assertEquals(5096, second.getOffset());
+        assertEquals(3, second.getStreamId());
+        assertEquals(0, second.buffer().position());
+        assertEquals(1, second.buffer().get(0));
+        assertEquals(0, first.buffer().get(4095));
+        first.release();
+        assertEquals(1, arena.getInUse());
+        second.release();
+        assertEquals(0, arena.getInUse());
+        assertSame(whole, arena.acquire(8000));
+    }
+}
@@ -0,0 +1,172 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reference counted packet data from a {@link PacketArena}.
+ *
+ * The buffer starts with one reference, owned by whoever acquired it. Every
+ * extra consumer calls {@link #retain()} and each one calls
+ * {@link #release()} when done; the last release returns the memory to the
+ * arena. The buffer must not be touched after its owner released it.
+ *
+ * A {@link #slice(int, int)} shares part of the memory of its parent and
+ * holds a reference on it, so one read can be handed out as several packets.
+ *
+ * @author Matthew Khouzam
+ */
+public class PacketBuffer {
+
+    private final PacketArena fArena;
+    private final int fSizeClass;
+    private final ByteBuffer fBuffer;
+    private final PacketBuffer fParent;
+    private final AtomicInteger fRefs = new AtomicInteger();
+    private int fLength;
+    private long fStreamId;
+    private long fOffset;
+
+    PacketBuffer(PacketArena arena, int sizeClass, ByteBuffer buffer) {
+        this(arena, sizeClass, buffer, null);
+    }
+
+    private PacketBuffer(PacketArena arena, int sizeClass, ByteBuffer buffer, PacketBuffer parent) {
+        fArena = arena;
+        fSizeClass = sizeClass;
+        fBuffer = buffer;
+        fParent = parent;
+    }
+
+    void reset(int len) {
+        fLength = len;
+        fStreamId = -1;
+        fOffset = -1;
+        fBuffer.clear().limit(len);
+        fBuffer.order(ByteOrder.BIG_ENDIAN);
+        fRefs.set(1);
+    }
+
+    int getSizeClass() {
+        return fSizeClass;
+    }
+
+    /**
+     * @return the data, between position 0 and the length. The position,
+     *         limit and order can be changed, they are reset when the buffer
+     *         is reused.
+     */
+    public ByteBuffer buffer() {
+        return fBuffer;
+    }
+
+    /**
+     * @return the length of the data, in bytes
+     */
+    public int length() {
+        return fLength;
+    }
+
+    /**
+     * @return the stream the data was read from, -1 if unknown
+     */
+    public long getStreamId() {
+        return fStreamId;
+    }
+
+    /**
+     * @return the offset of the data in the stream file, -1 if unknown
+     */
+    public long getOffset() {
+        return fOffset;
+    }
+
+    /**
+     * Record where the data comes from
+     *
+     * @param streamId
+     *            the stream
+     * @param offset
+     *            the offset in the stream file
+     */
+    public void setOrigin(long streamId, long offset) {
+        fStreamId = streamId;
+        fOffset = offset;
+    }
+
+    /**
+     * Share part of the data without copying it. The slice has its own
+     * reference count, and holds one reference on this buffer until it is
+     * released itself.
+     *
+     * @param offset
+     *            the start of the slice in the data
+     * @param len
+     *            the length of the slice
+     * @return the slice, with one reference owned by the caller
+     */
+    public PacketBuffer slice(int offset, int len) {
+        if (offset < 0 || len < 0 || offset + len > fLength) {
+            throw new IndexOutOfBoundsException("Slice [" + offset + ", " + (offset + len) + ") of " + fLength + " bytes"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+        }
+        ByteBuffer view = fBuffer.duplicate();
+        view.clear().position(offset).limit(offset + len);
+        PacketBuffer slice = new PacketBuffer(fArena, fSizeClass, view.slice(), retain());
+        slice.reset(len);
+        slice.setOrigin(fStreamId, (fOffset < 0) ? -1 : fOffset + offset);
+        return slice;
+    }
+
+    /**
+     * Add a reference, for a new consumer
+     *
+     * @return this buffer
+     */
+    public PacketBuffer retain() {
+        int refs;
+        do {
+            refs = fRefs.get();
+            if (refs <= 0) {
+                throw new IllegalStateException("Packet buffer already released"); //$NON-NLS-1$
+            }
+        } while (!fRefs.compareAndSet(refs, refs + 1));
+        return this;
+    }
+
+    /**
+     * Drop a reference, the last one returns the memory to the arena
+     */
+    public void release() {
+        int refs = fRefs.decrementAndGet();
+        if (refs == 0) {
+            if (fParent != null) {
+                fParent.release();
+            } else {
+                fArena.recycle(this);
+            }
+        } else if (refs < 0) {
+            fRefs.incrementAndGet();
+            throw new IllegalStateException("Packet buffer released too many times"); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * @return the number of references
+     */
+    public int refCount() {
+        return fRefs.get();
+    }
+}
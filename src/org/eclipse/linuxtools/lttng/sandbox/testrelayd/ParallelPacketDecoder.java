@@ -0,0 +1,428 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Decodes the packets of different streams in parallel, on an
+ * {@link Executor} such as a ForkJoinPool, while the packets of one stream
+ * stay in order.
+ *
+ * Every stream has a lane: a {@link SpscRing} of packets run by at most one
+ * task at a time. The submitting thread is its only producer and the running
+ * task its only consumer, so packets cross from the thread reading the socket
+ * to the decoding threads without locking. The ring holds the whole window,
+ * it is never full. A lane has its own {@link Decoder}, made by the factory on the first
+ * packet of the stream, so a decoder may keep state, a
+ * {@link CtfPacketCursor} for example, without locking. A packet is released
+ * once decoded, the result must not refer to its buffer.
+ *
+ * Results go to the {@link ResultHandler} either as soon as they are ready,
+ * from the decoding threads and in order within a stream only, or, when
+ * ordered, resequenced to the order the packets were submitted in and handed
+ * over by one thread at a time.
+ *
+ * An exception thrown by the handler goes to the uncaught exception handler
+ * of the thread, the other results are still handed over.
+ *
+ * At most a window of packets is in flight. {@link #submit(LivePacket)}
+ * blocks when it is full, and as a {@link Flow.Subscriber} the decoder
+ * requests one packet per result handed over, so a {@link LivePacketPublisher}
+ * never fetches more than the decoders can take.
+ *
+ * @author Matthew Khouzam
+ *
+ * @param <R>
+ *            the type of the results
+ */
+public class ParallelPacketDecoder<R> implements Flow.Subscriber<LivePacket> {
+
+    /** Default number of packets in flight */
+    public static final int DEFAULT_WINDOW = 256;
+
+    /* packets decoded by a lane before it yields its thread */
+    private static final int LANE_BATCH = 16;
+
+    /**
+     * Decodes the packets of one stream, one at a time
+     *
+     * @param <R>
+     *            the type of the results
+     */
+    public interface Decoder<R> {
+        /**
+         * @param packet
+         *            the packet, released by the caller afterwards
+         * @return the result
+         * @throws IOException
+         *             the packet could not be decoded
+         */
+        R decode(LivePacket packet) throws IOException;
+    }
+
+    /**
+     * Makes the decoder of a stream
+     *
+     * @param <R>
+     *            the type of the results
+     */
+    public interface DecoderFactory<R> {
+        /**
+         * @param stream
+         *            the stream of the first packet of a lane
+         * @return its decoder
+         * @throws IOException
+         *             the decoder could not be made
+         */
+        Decoder<R> create(ViewerStream stream) throws IOException;
+    }
+
+    /**
+     * Receives the results
+     *
+     * @param <R>
+     *            the type of the results
+     */
+    public interface ResultHandler<R> {
+        /**
+         * A packet was decoded
+         *
+         * @param stream
+         *            its stream
+         * @param sequence
+         *            its submission number, from 0
+         * @param result
+         *            the decoder result
+         */
+        void onResult(ViewerStream stream, long sequence, R result);
+
+        /**
+         * A packet could not be decoded, the next ones are still decoded
+         *
+         * @param stream
+         *            its stream
+         * @param sequence
+         *            its submission number, from 0
+         * @param error
+         *            the decoder error
+         */
+        void onError(ViewerStream stream, long sequence, Exception error);
+
+        /**
+         * The publisher completed and every result was handed over
+         *
+         * @param error
+         *            the error of the publisher, null if it completed
+         *            normally
+         */
+        void onComplete(Throwable error);
+    }
+
+    private final Executor fExecutor;
+    private final DecoderFactory<R> fFactory;
+    private final ResultHandler<R> fHandler;
+    private final boolean fOrdered;
+    private final int fWindow;
+    private final Semaphore fPermits;
+    private final Map<Long, Lane> fLanes = new ConcurrentHashMap<>();
+    private final AtomicInteger fInFlight = new AtomicInteger();
+    /* ordered hand-off, indexed by sequence modulo the ring size */
+    private final AtomicReferenceArray<Item<R>> fReorder;
+    private final int fMask;
+    private final AtomicBoolean fDraining = new AtomicBoolean();
+    private final AtomicBoolean fCompleted = new AtomicBoolean();
+    private long fNextSequence;
+    private long fNextResult;
+    private volatile Flow.Subscription fSubscription;
+    private volatile boolean fUpstreamDone;
+    private volatile Throwable fUpstreamError;
+
+    /**
+     * Constructor
+     *
+     * @param executor
+     *            runs the lanes, for example a ForkJoinPool
+     * @param window
+     *            the most packets submitted and not handed over
+     * @param factory
+     *            makes a decoder per stream
+     * @param handler
+     *            receives the results
+     * @param ordered
+     *            hand the results over in submission order, one at a time,
+     *            instead of as soon as they are ready
+     */
+    public ParallelPacketDecoder(Executor executor, int window, DecoderFactory<R> factory, ResultHandler<R> handler, boolean ordered) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("Window must be positive"); //$NON-NLS-1$
+        }
+        fExecutor = executor;
+        fFactory = factory;
+        fHandler = handler;
+        fOrdered = ordered;
+        fWindow = window;
+        fPermits = new Semaphore(window);
+        int size = Integer.highestOneBit(window - 1) << 1;
+        fReorder = new AtomicReferenceArray<>(Math.max(1, size));
+        fMask = Math.max(1, size) - 1;
+    }
+
+    /**
+     * Queue a packet on the lane of its stream, waiting while the window is
+     * full. Called by one thread, normally the one reading the socket, and
+     * not mixed with a subscription.
+     *
+     * @param packet
+     *            the packet, released once decoded
+     * @throws InterruptedIOException
+     *             interrupted while waiting, the packet was released
+     */
+    public void submit(LivePacket packet) throws InterruptedIOException {
+        try {
+            fPermits.acquire();
+        } catch (InterruptedException e) {
+            packet.release();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while the window was full"); //$NON-NLS-1$
+        }
+        enqueue(packet);
+    }
+
+    private void enqueue(LivePacket packet) {
+        fInFlight.incrementAndGet();
+        ViewerStream stream = packet.getStream();
+        Lane lane = fLanes.get(stream.getId());
+        if (lane == null) {
+            lane = new Lane(stream);
+            fLanes.put(stream.getId(), lane);
+        }
+        lane.offer(new Item<R>(fNextSequence++, packet));
+    }
+
+    /**
+     * @return the number of packets submitted and not handed over yet
+     */
+    public int getInFlight() {
+        return fInFlight.get();
+    }
+
+    /**
+     * @return the most packets seen waiting in the lane of one stream, a
+     *         stream whose decoding falls behind shows here
+     */
+    public int getPeakDepth() {
+        int peak = 0;
+        for (Lane lane : fLanes.values()) {
+            peak = Math.max(peak, lane.fQueue.getPeakDepth());
+        }
+        return peak;
+    }
+
+    /**
+     * Wait until every packet submitted so far is handed over
+     *
+     * @throws InterruptedIOException
+     *             interrupted while waiting
+     */
+    public void awaitIdle() throws InterruptedIOException {
+        try {
+            fPermits.acquire(fWindow);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the decoders"); //$NON-NLS-1$
+        }
+        fPermits.release(fWindow);
+    }
+
+    // ------------------------------------------------------------------------
+    // Flow.Subscriber
+    // ------------------------------------------------------------------------
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        if (fSubscription != null) {
+            subscription.cancel();
+            return;
+        }
+        fSubscription = subscription;
+        subscription.request(fWindow);
+    }
+
+    /**
+     * Never waits: the requested packets always fit in the window
+     */
+    @Override
+    public void onNext(LivePacket packet) {
+        if (!fPermits.tryAcquire()) {
+            packet.release();
+            throw new IllegalStateException("More packets than requested"); //$NON-NLS-1$
+        }
+        enqueue(packet);
+    }
+
+    @Override
+    public void onError(Throwable error) {
+        fUpstreamError = error;
+        onComplete();
+    }
+
+    @Override
+    public void onComplete() {
+        fUpstreamDone = true;
+        completeIfIdle();
+    }
+
+    private void completeIfIdle() {
+        if (fUpstreamDone && fInFlight.get() == 0 && fCompleted.compareAndSet(false, true)) {
+            fHandler.onComplete(fUpstreamError);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Hand-off
+    // ------------------------------------------------------------------------
+
+    private void decoded(Item<R> item) {
+        if (!fOrdered) {
+            handOver(item);
+            return;
+        }
+        fReorder.set((int) (item.fSequence & fMask), item);
+        /* whoever completes the head drains, the others leave their result */
+        while (fDraining.compareAndSet(false, true)) {
+            try {
+                Item<R> next = fReorder.get((int) (fNextResult & fMask));
+                while (next != null && next.fSequence == fNextResult) {
+                    fReorder.set((int) (fNextResult & fMask), null);
+                    fNextResult++;
+                    handOver(next);
+                    next = fReorder.get((int) (fNextResult & fMask));
+                }
+            } finally {
+                fDraining.set(false);
+            }
+            Item<R> head = fReorder.get((int) (fNextResult & fMask));
+            if (head == null || head.fSequence != fNextResult) {
+                return;
+            }
+        }
+    }
+
+    private void handOver(Item<R> item) {
+        try {
+            if (item.fError != null) {
+                fHandler.onError(item.fStream, item.fSequence, item.fError);
+            } else {
+                fHandler.onResult(item.fStream, item.fSequence, item.fResult);
+            }
+        } catch (RuntimeException e) {
+            /* a failing handler must not stall a lane or the hand-off */
+            Thread thread = Thread.currentThread();
+            thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+        } finally {
+            fInFlight.decrementAndGet();
+            fPermits.release();
+            Flow.Subscription subscription = fSubscription;
+            if (subscription != null && !fUpstreamDone) {
+                subscription.request(1);
+            }
+            completeIfIdle();
+        }
+    }
+
+    /** A packet and then its result */
+    private static class Item<R> {
+        final long fSequence;
+        final ViewerStream fStream;
+        LivePacket fPacket;
+        R fResult;
+        Exception fError;
+
+        Item(long sequence, LivePacket packet) {
+            fSequence = sequence;
+            fPacket = packet;
+            fStream = packet.getStream();
+        }
+    }
+
+    /** The packets of one stream, decoded by one task at a time */
+    private class Lane implements Runnable {
+        private final ViewerStream fStream;
+        /* never waits, offer and poll only */
+        private final RingBuffer<Item<R>> fQueue = new SpscRing<>(fWindow, RingBuffer.YIELD);
+        private final AtomicInteger fPending = new AtomicInteger();
+        private Decoder<R> fDecoder;
+        private IOException fCreateError;
+
+        public Lane(ViewerStream stream) {
+            fStream = stream;
+        }
+
+        public void offer(Item<R> item) {
+            if (!fQueue.offer(item)) {
+                /* the window permits bound the packets of a lane */
+                throw new IllegalStateException("Lane of stream " + fStream.getId() + " is full"); //$NON-NLS-1$ //$NON-NLS-2$
+            }
+            if (fPending.getAndIncrement() == 0) {
+                fExecutor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < LANE_BATCH; i++) {
+                Item<R> item = fQueue.poll();
+                decode(item);
+                decoded(item);
+                if (fPending.decrementAndGet() == 0) {
+                    return;
+                }
+            }
+            /* more packets queued, let the other lanes run first */
+            fExecutor.execute(this);
+        }
+
+        private void decode(Item<R> item) {
+            LivePacket packet = item.fPacket;
+            item.fPacket = null;
+            try {
+                if (fDecoder == null && fCreateError == null) {
+                    try {
+                        fDecoder = fFactory.create(fStream);
+                    } catch (IOException e) {
+                        fCreateError = e;
+                    }
+                }
+                if (fCreateError != null) {
+                    item.fError = fCreateError;
+                } else {
+                    item.fResult = fDecoder.decode(packet);
+                }
+            } catch (IOException | RuntimeException e) {
+                item.fError = e;
+            } finally {
+                packet.release();
+            }
+        }
+    }
+}
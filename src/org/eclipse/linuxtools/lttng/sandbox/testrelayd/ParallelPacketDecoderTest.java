@@ -0,0 +1,258 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_index;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_seek;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests the per-stream lanes and the ordered hand-off of the parallel decoder
+ *
+ * @author Matthew Khouzam
+ */
+public class ParallelPacketDecoderTest {
+
+    private static final int STREAMS = 4;
+    private static final int PACKETS = 100;
+
+    private final ForkJoinPool fPool = new ForkJoinPool(STREAMS);
+    private final PacketArena fArena = new PacketArena();
+    private final AtomicInteger fDecoders = new AtomicInteger();
+
+    /**
+     * Stop the pool
+     */
+    @After
+    public void tearDown() {
+        fPool.shutdownNow();
+    }
+
+    /* reads back the number written in the packet, after a random delay */
+    private ParallelPacketDecoder.DecoderFactory<Long> factory(final long failing) {
+        return new ParallelPacketDecoder.DecoderFactory<Long>() {
+            @Override
+            public ParallelPacketDecoder.Decoder<Long> create(ViewerStream stream) {
+                fDecoders.incrementAndGet();
+                return new ParallelPacketDecoder.Decoder<Long>() {
+                    @Override
+                    public Long decode(LivePacket packet) throws IOException {
+                        long value = packet.buffer().getLong(0);
+                        if (value == failing) {
+                            throw new IOException("Bad packet"); //$NON-NLS-1$
+                        }
+                        for (int i = ThreadLocalRandom.current().nextInt(20000); i > 0; i--) {
+                            Thread.onSpinWait();
+                        }
+                        return Long.valueOf(value);
+                    }
+                };
+            }
+        };
+    }
+
+    private void submitAll(ParallelPacketDecoder<Long> decoder) throws IOException {
+        ViewerNames names = new ViewerNames();
+        ViewerStream[] streams = new ViewerStream[STREAMS];
+        for (int s = 0; s < STREAMS; s++) {
+            streams[s] = ViewerStream.create(s, 1, false, "host/session", "channel0_" + s, names); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        lttng_viewer_index index = new lttng_viewer_index();
+        for (int i = 0; i < STREAMS * PACKETS; i++) {
+            PacketBuffer data = fArena.acquire(8);
+            data.buffer().putLong(0, i);
+            decoder.submit(new LivePacket(streams[i % STREAMS], index, data));
+        }
+        decoder.awaitIdle();
+    }
+
+    /**
+     * Unordered results keep the order of each stream, with one decoder per
+     * stream
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @Test
+    public void testLanes() throws IOException {
+        final long[] last = new long[STREAMS];
+        final boolean[] inOrder = { true };
+        final AtomicInteger results = new AtomicInteger();
+        final AtomicInteger errors = new AtomicInteger();
+        for (int s = 0; s < STREAMS; s++) {
+            last[s] = -1;
+        }
+        ParallelPacketDecoder<Long> decoder = new ParallelPacketDecoder<>(fPool, 16, factory(42), new ParallelPacketDecoder.ResultHandler<Long>() {
+            @Override
+            public void onResult(ViewerStream stream, long sequence, Long result) {
+                int s = (int) stream.getId();
+                synchronized (last) {
+                    inOrder[0] &= result.longValue() > last[s] && result.longValue() == sequence;
+                    last[s] = result.longValue();
+                }
+                results.incrementAndGet();
+            }
+
+            @Override
+            public void onError(ViewerStream stream, long sequence, Exception error) {
+                if (sequence == 42) {
+                    errors.incrementAndGet();
+                }
+            }
+
+            @Override
+            public void onComplete(Throwable error) {
+                /* not subscribed */
+            }
+        }, false);
+        submitAll(decoder);
+        synchronized (last) {
+            assertTrue(inOrder[0]);
+        }
+        assertEquals(STREAMS * PACKETS - 1, results.get());
+        assertEquals(1, errors.get());
+        assertEquals(STREAMS, fDecoders.get());
+        assertEquals(0, decoder.getInFlight());
+        assertTrue(decoder.getPeakDepth() >= 1 && decoder.getPeakDepth() <= 16);
+        assertEquals(0, fArena.getInUse());
+    }
+
+    /**
+     * Ordered results come in submission order, one thread at a time
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @Test
+    public void testOrdered() throws IOException {
+        final List<Long> sequences = new ArrayList<>();
+        final AtomicInteger inside = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        ParallelPacketDecoder<Long> decoder = new ParallelPacketDecoder<>(fPool, 16, factory(-1), new ParallelPacketDecoder.ResultHandler<Long>() {
+            @Override
+            public void onResult(ViewerStream stream, long sequence, Long result) {
+                if (inside.incrementAndGet() != 1) {
+                    overlaps.incrementAndGet();
+                }
+                synchronized (sequences) {
+                    sequences.add(result);
+                }
+                inside.decrementAndGet();
+            }
+
+            @Override
+            public void onError(ViewerStream stream, long sequence, Exception error) {
+                overlaps.incrementAndGet();
+            }
+
+            @Override
+            public void onComplete(Throwable error) {
+                /* not subscribed */
+            }
+        }, true);
+        submitAll(decoder);
+        assertEquals(0, overlaps.get());
+        synchronized (sequences) {
+            assertEquals(STREAMS * PACKETS, sequences.size());
+            for (int i = 0; i < sequences.size(); i++) {
+                assertEquals(i, sequences.get(i).longValue());
+            }
+        }
+        assertEquals(0, fArena.getInUse());
+    }
+
+    /**
+     * Subscribed to a publisher, the decoder counts the events of every
+     * packet of a session with one cursor per stream
+     *
+     * @throws Exception
+     *             should not happen
+     */
+    @Test
+    public void testPublisher() throws Exception {
+        MockRelayD relayd = new MockRelayD();
+        relayd.setStreamsPerSession(STREAMS);
+        relayd.setPacketSize(4096);
+        relayd.setPacketCount(PACKETS);
+        InetSocketAddress address = relayd.start(0);
+        final AtomicInteger events = new AtomicInteger();
+        final AtomicInteger packets = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1);
+        final Throwable[] failure = new Throwable[1];
+        try (ViewerClient client = ViewerClient.open(address.getHostString(), address.getPort())) {
+            client.connect();
+            AttachedSession session = client.attachSession(1, lttng_viewer_seek.VIEWER_SEEK_BEGINNING);
+            final String tsdl = new MetadataCache().update(client, session.getMetadataStreams()[0]).getText();
+            ParallelPacketDecoder<Integer> decoder = new ParallelPacketDecoder<>(fPool, ParallelPacketDecoder.DEFAULT_WINDOW,
+                    new ParallelPacketDecoder.DecoderFactory<Integer>() {
+                        @Override
+                        public ParallelPacketDecoder.Decoder<Integer> create(ViewerStream stream) throws IOException {
+                            final CtfPacketCursor cursor = new CtfPacketCursor(CtfMetadata.parse(tsdl));
+                            return new ParallelPacketDecoder.Decoder<Integer>() {
+                                @Override
+                                public Integer decode(LivePacket packet) throws IOException {
+                                    cursor.reset(packet.buffer());
+                                    int count = 0;
+                                    while (cursor.next()) {
+                                        count++;
+                                    }
+                                    return Integer.valueOf(count);
+                                }
+                            };
+                        }
+                    }, new ParallelPacketDecoder.ResultHandler<Integer>() {
+                        @Override
+                        public void onResult(ViewerStream stream, long sequence, Integer result) {
+                            events.addAndGet(result.intValue());
+                            packets.incrementAndGet();
+                        }
+
+                        @Override
+                        public void onError(ViewerStream stream, long sequence, Exception error) {
+                            failure[0] = error;
+                        }
+
+                        @Override
+                        public void onComplete(Throwable error) {
+                            if (error != null) {
+                                failure[0] = error;
+                            }
+                            done.countDown();
+                        }
+                    }, true);
+            new LivePacketPublisher(client, session, fArena, false).subscribe(decoder);
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        } finally {
+            relayd.close();
+        }
+        assertNull(failure[0]);
+        assertEquals(STREAMS * PACKETS, packets.get());
+        assertEquals(STREAMS * PACKETS * ((4096 - SyntheticTrace.PACKET_PREAMBLE_SIZE) / SyntheticTrace.EVENT_SIZE), events.get());
+        assertEquals(0, fArena.getInUse());
+    }
+}
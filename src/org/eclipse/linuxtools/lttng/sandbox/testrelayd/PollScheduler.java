@@ -0,0 +1,394 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_next_index_return_code;
+
+/**
+ * Decides when each stream of a session should be asked for its next index.
+ *
+ * Every stream has a small state machine:
+ * <ul>
+ * <li>ACTIVE: the last reply was VIEWER_INDEX_OK, the stream may have a
+ * backlog so it is polled again right away.</li>
+ * <li>BACKOFF: the last reply was RETRY or INACTIVE. The next poll is
+ * delayed, doubling the delay on every consecutive miss up to the maximum
+ * interval. For RETRY the delay is also capped by half the average time
+ * between the packets of the stream, so busy streams are polled often. The
+ * cap only holds for a few packet intervals of silence, after that the
+ * stream is considered idle and drifts to the maximum interval. When the
+ * streams are notified of new data, RETRY waits the maximum interval right
+ * away and {@link #wake(int, long)} brings the stream back.</li>
+ * <li>RETIRED: the stream answered HUP, EOF or ERR, it is never polled
+ * again. relayd answers ERR for a stream it does not know or cannot read,
+ * like {@link TimestampMerger} the scheduler takes it as final.</li>
+ * </ul>
+ *
+ * The average time between packets is only sampled by a packet that comes
+ * after a miss. Packets read back to back come from a backlog, their
+ * spacing is the round trip time and not the rate of the stream.
+ *
+ * Independently of its state, a stream can be held by the caller, for
+ * example while the packet it gave is still waiting to be consumed. A held
+ * stream is not polled until it is released.
+ *
+ * Times are System.nanoTime() values given by the caller. Streams are
+ * referenced by their slot, the position of their id in the constructor
+ * array. The scheduler does not allocate after construction and is not
+ * thread safe.
+ *
+ * @author Matthew Khouzam
+ */
+public class PollScheduler {
+
+    /** The stream is producing packets */
+    public static final byte ACTIVE = 0;
+    /** The stream is waiting before its next poll */
+    public static final byte BACKOFF = 1;
+    /** The stream is finished */
+    public static final byte RETIRED = 2;
+
+    /** Default first delay after a miss, 1 ms */
+    public static final long DEFAULT_MIN_BACKOFF = 1000000L;
+    /** Default longest delay between polls, 1 s, the default live timer */
+    public static final long DEFAULT_MAX_INTERVAL = 1000000000L;
+
+    /* weight of a new sample in the packet interval average, 1/8 */
+    private static final int EWMA_SHIFT = 3;
+    /* packet intervals of silence after which the rate cap is stale */
+    private static final int STALE_INTERVALS = 4;
+
+    private final long[] fIds;
+    private final byte[] fState;
+    private final boolean[] fInFlight;
+    private final boolean[] fHeld;
+    private final long[] fDue;
+    private final long[] fBackoff;
+    private final long[] fLastPacket;
+    private final long[] fPacketInterval;
+    private final long[] fBytes;
+    private long fMinBackoff = DEFAULT_MIN_BACKOFF;
+    private long fMaxInterval = DEFAULT_MAX_INTERVAL;
+    private boolean fNotified;
+    private int fLive;
+    private int fCursor;
+
+    /**
+     * Constructor, all the streams are due now
+     *
+     * @param streamIds
+     *            the data streams to poll
+     */
+    public PollScheduler(long[] streamIds) {
+        int n = streamIds.length;
+        fIds = streamIds.clone();
+        fState = new byte[n];
+        fInFlight = new boolean[n];
+        fHeld = new boolean[n];
+        fDue = new long[n];
+        fBackoff = new long[n];
+        fLastPacket = new long[n];
+        fPacketInterval = new long[n];
+        fBytes = new long[n];
+        fLive = n;
+        for (int i = 0; i < n; i++) {
+            fDue[i] = Long.MIN_VALUE;
+            fLastPacket[i] = Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * Set the first delay after a miss
+     *
+     * @param nanos
+     *            the delay in nanoseconds
+     */
+    public void setMinBackoff(long nanos) {
+        fMinBackoff = nanos;
+    }
+
+    /**
+     * Set the longest delay between two polls of a stream. A good value is the
+     * live timer of the session, relayd does not get new indexes faster than
+     * that from an idle stream.
+     *
+     * @param nanos
+     *            the delay in nanoseconds
+     */
+    public void setMaxInterval(long nanos) {
+        fMaxInterval = nanos;
+    }
+
+    /**
+     * Tell the scheduler whether the streams are woken by notifications. A
+     * notified stream that answers RETRY is only polled again after the
+     * maximum interval, as a safety net, or when it is woken. Only set it
+     * once notifications actually arrive, or the streams wait the maximum
+     * interval for every packet.
+     *
+     * @param notified
+     *            true if a notification connection wakes the streams
+     */
+    public void setNotified(boolean notified) {
+        fNotified = notified;
+    }
+
+    /**
+     * @return true if the streams are woken by notifications
+     */
+    public boolean isNotified() {
+        return fNotified;
+    }
+
+    /**
+     * Hold a stream or release it. A held stream is left out of the batches
+     * and of {@link #nextDue(long)}; once released it is polled when due, a
+     * delay that expired meanwhile makes it due right away.
+     *
+     * @param slot
+     *            the slot of the stream
+     * @param held
+     *            true to stop polling the stream, false to resume
+     */
+    public void setHeld(int slot, boolean held) {
+        fHeld[slot] = held;
+    }
+
+    /**
+     * @param slot
+     *            the slot of a stream
+     * @return true if the stream is held
+     */
+    public boolean isHeld(int slot) {
+        return fHeld[slot];
+    }
+
+    /**
+     * Get the streams due for a poll and mark them in flight
+     *
+     * @param now
+     *            the current time
+     * @param slots
+     *            filled with the slots of the due streams
+     * @param ids
+     *            filled with the ids of the due streams
+     * @return the number of due streams
+     */
+    public int nextBatch(long now, int[] slots, long[] ids) {
+        return nextBatch(now, slots, ids, slots.length);
+    }
+
+    /**
+     * Get at most max streams due for a poll and mark them in flight. When
+     * the batch is cut, the next one starts after the last stream taken so
+     * every stream gets its turn.
+     *
+     * @param now
+     *            the current time
+     * @param slots
+     *            filled with the slots of the due streams
+     * @param ids
+     *            filled with the ids of the due streams
+     * @param max
+     *            the most streams to take, at most slots.length
+     * @return the number of due streams
+     */
+    public int nextBatch(long now, int[] slots, long[] ids, int max) {
+        int n = fIds.length;
+        int count = 0;
+        for (int k = 0; k < n && count < max; k++) {
+            int i = (fCursor + k) % n;
+            if (fState[i] != RETIRED && !fInFlight[i] && !fHeld[i] && fDue[i] <= now) {
+                fInFlight[i] = true;
+                slots[count] = i;
+                ids[count] = fIds[i];
+                count++;
+                if (count == max) {
+                    fCursor = (i + 1) % n;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Update a stream with the reply to its GET_NEXT_INDEX
+     *
+     * @param slot
+     *            the slot of the stream
+     * @param status
+     *            the status of the index
+     * @param bytes
+     *            the size of the packet for VIEWER_INDEX_OK, in bytes
+     * @param now
+     *            the time the reply was received
+     */
+    public void onReply(int slot, lttng_viewer_next_index_return_code status, long bytes, long now) {
+        fInFlight[slot] = false;
+        if (fState[slot] == RETIRED) {
+            return;
+        }
+        switch (status) {
+        case VIEWER_INDEX_OK:
+            if (fLastPacket[slot] != Long.MIN_VALUE && fState[slot] == BACKOFF) {
+                long sample = now - fLastPacket[slot];
+                long avg = fPacketInterval[slot];
+                fPacketInterval[slot] = (avg == 0) ? sample : avg + ((sample - avg) >> EWMA_SHIFT);
+            }
+            fLastPacket[slot] = now;
+            fBytes[slot] += bytes;
+            fBackoff[slot] = 0;
+            fState[slot] = ACTIVE;
+            fDue[slot] = now;
+            break;
+        case VIEWER_INDEX_RETRY:
+            if (fNotified) {
+                fBackoff[slot] = fMaxInterval;
+                fState[slot] = BACKOFF;
+                fDue[slot] = now + fMaxInterval;
+            } else {
+                long interval = fPacketInterval[slot];
+                boolean stale = now - fLastPacket[slot] >= STALE_INTERVALS * interval;
+                backoff(slot, now, stale ? 0 : interval / 2);
+            }
+            break;
+        case VIEWER_INDEX_INACTIVE:
+            backoff(slot, now, fMaxInterval);
+            break;
+        case VIEWER_INDEX_HUP:
+        case VIEWER_INDEX_EOF:
+        case VIEWER_INDEX_ERR:
+            fState[slot] = RETIRED;
+            fLive--;
+            break;
+        default:
+            break;
+        }
+    }
+
+    /**
+     * Make a stream due now, for example after a notification that it has
+     * data
+     *
+     * @param slot
+     *            the slot of the stream
+     * @param now
+     *            the current time
+     */
+    public void wake(int slot, long now) {
+        if (fState[slot] != RETIRED) {
+            fBackoff[slot] = 0;
+            fDue[slot] = now;
+        }
+    }
+
+    private void backoff(int slot, long now, long rateCap) {
+        long delay = fBackoff[slot];
+        delay = (delay == 0) ? fMinBackoff : Math.min(delay * 2, fMaxInterval);
+        if (rateCap > 0) {
+            delay = Math.max(fMinBackoff, Math.min(delay, rateCap));
+        }
+        /* once the cap is stale the delay doubles from where it was held */
+        fBackoff[slot] = delay;
+        fState[slot] = BACKOFF;
+        fDue[slot] = now + delay;
+    }
+
+    /**
+     * Get the next time a stream becomes due
+     *
+     * @param now
+     *            the current time
+     * @return the time of the next poll, now if a stream is due, or
+     *         Long.MAX_VALUE if all the streams are retired, held or in
+     *         flight
+     */
+    public long nextDue(long now) {
+        long next = Long.MAX_VALUE;
+        for (int i = 0; i < fIds.length; i++) {
+            if (fState[i] != RETIRED && !fInFlight[i] && !fHeld[i]) {
+                if (fDue[i] <= now) {
+                    return now;
+                }
+                next = Math.min(next, fDue[i]);
+            }
+        }
+        return next;
+    }
+
+    /**
+     * @return true if every stream is retired
+     */
+    public boolean isDone() {
+        return fLive == 0;
+    }
+
+    /**
+     * @return the number of streams
+     */
+    public int size() {
+        return fIds.length;
+    }
+
+    /**
+     * Find the slot of a stream
+     *
+     * @param streamId
+     *            the stream id
+     * @return the slot, or -1 if the stream is not scheduled
+     */
+    public int slotOf(long streamId) {
+        for (int i = 0; i < fIds.length; i++) {
+            if (fIds[i] == streamId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param slot
+     *            the slot of a stream
+     * @return the stream id
+     */
+    public long getStreamId(int slot) {
+        return fIds[slot];
+    }
+
+    /**
+     * @param slot
+     *            the slot of a stream
+     * @return ACTIVE, BACKOFF or RETIRED
+     */
+    public byte getState(int slot) {
+        return fState[slot];
+    }
+
+    /**
+     * @param slot
+     *            the slot of a stream
+     * @return the average time between two packets, 0 if unknown
+     */
+    public long getPacketInterval(int slot) {
+        return fPacketInterval[slot];
+    }
+
+    /**
+     * @param slot
+     *            the slot of a stream
+     * @return the number of bytes announced by the stream indexes
+     */
+    public long getBytes(int slot) {
+        return fBytes[slot];
+    }
+}
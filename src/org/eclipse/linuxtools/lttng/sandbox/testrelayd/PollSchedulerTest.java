@@ -0,0 +1,175 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_next_index_return_code;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the per stream polling state machine
+ *
+ * @author Matthew Khouzam
+ */
+public class PollSchedulerTest {
+
+    private static final long MS = 1000000L;
+
+    private PollScheduler fixture;
+    private final int[] slots = new int[3];
+    private final long[] ids = new long[3];
+
+    /**
+     * Three streams, 1 ms first backoff, 100 ms max
+     */
+    @Before
+    public void init() {
+        fixture = new PollScheduler(new long[] { 10, 11, 12 });
+        fixture.setMinBackoff(MS);
+        fixture.setMaxInterval(100 * MS);
+    }
+
+    /**
+     * Everything is due at first, nothing is given twice while in flight
+     */
+    @Test
+    public void testFirstBatch() {
+        assertEquals(3, fixture.nextBatch(0, slots, ids));
+        assertEquals(11, ids[1]);
+        assertEquals(0, fixture.nextBatch(0, slots, ids));
+        assertEquals(Long.MAX_VALUE, fixture.nextDue(0));
+    }
+
+    /**
+     * Consecutive retries double the delay up to the max interval
+     */
+    @Test
+    public void testBackoff() {
+        fixture.nextBatch(0, slots, ids);
+        long now = 0;
+        long[] expected = { 1, 2, 4, 8, 16, 32, 64, 100, 100 };
+        for (long delay : expected) {
+            fixture.onReply(0, lttng_viewer_next_index_return_code.VIEWER_INDEX_RETRY, 0, now);
+            assertEquals(PollScheduler.BACKOFF, fixture.getState(0));
+            assertEquals(0, fixture.nextBatch(now + delay * MS - 1, slots, ids));
+            assertEquals(1, fixture.nextBatch(now + delay * MS, slots, ids));
+            now += delay * MS;
+        }
+    }
+
+    /**
+     * A stream with a known packet rate is retried sooner than an idle one
+     */
+    @Test
+    public void testRateCap() {
+        fixture.nextBatch(0, slots, ids);
+        for (int i = 0; i < 5; i++) {
+            fixture.onReply(0, lttng_viewer_next_index_return_code.VIEWER_INDEX_OK, 4096, i * 4 * MS);
+            fixture.nextBatch(i * 4 * MS, slots, ids);
+            fixture.onReply(0, lttng_viewer_next_index_return_code.VIEWER_INDEX_RETRY, 0, i * 4 * MS + MS);
+            fixture.nextBatch(i * 4 * MS + MS, slots, ids);
+        }
+        assertEquals(4 * MS, fixture.getPacketInterval(0));
+        for (int i = 0; i < 6; i++) {
+            fixture.onReply(0, lttng_viewer_next_index_return_code.VIEWER_INDEX_RETRY, 0, 17 * MS);
+            fixture.nextBatch(17 * MS, slots, ids);
+        }
+        assertTrue(fixture.nextDue(17 * MS) <= 19 * MS);
+    }
+
+    /**
+     * Packets read back to back from a backlog do not count in the packet
+     * rate, and a stream that stays silent for several packet intervals
+     * backs off to the max interval
+     */
+    @Test
+    public void testIdleAfterBurst() {
+        fixture.nextBatch(0, slots, ids);
+        fixture.onReply(0, lttng_viewer_next_index_return_code.VIEWER_INDEX_OK, 4096, 0);
+        fixture.nextBatch(0, slots, ids);
+        fixture.onReply(0, lttng_viewer_next_index_return_code.VIEWER_INDEX_RETRY, 0, MS);
+        fixture.nextBatch(MS, slots, ids);
+        long now = 10 * MS;
+        for (int i = 0; i < 100; i++) {
+            fixture.onReply(0, lttng_viewer_next_index_return_code.VIEWER_INDEX_OK, 4096, now);
+            fixture.nextBatch(now, slots, ids);
+            now += 10000;
+        }
+        assertEquals(10 * MS, fixture.getPacketInterval(0));
+        long delay = 0;
+        for (int i = 0; i < 30; i++) {
+            fixture.onReply(0, lttng_viewer_next_index_return_code.VIEWER_INDEX_RETRY, 0, now);
+            delay = fixture.nextDue(now) - now;
+            now += delay;
+            assertEquals(1, fixture.nextBatch(now, slots, ids));
+        }
+        assertEquals(100 * MS, delay);
+    }
+
+    /**
+     * HUP and EOF retire streams for good
+     */
+    @Test
+    public void testRetire() {
+        fixture.nextBatch(0, slots, ids);
+        fixture.onReply(0, lttng_viewer_next_index_return_code.VIEWER_INDEX_HUP, 0, 0);
+        fixture.onReply(1, lttng_viewer_next_index_return_code.VIEWER_INDEX_EOF, 0, 0);
+        fixture.wake(1, 0);
+        fixture.onReply(2, lttng_viewer_next_index_return_code.VIEWER_INDEX_INACTIVE, 0, 0);
+        assertEquals(PollScheduler.RETIRED, fixture.getState(0));
+        assertEquals(1, fixture.nextBatch(Long.MAX_VALUE, slots, ids));
+        assertEquals(12, ids[0]);
+        fixture.onReply(2, lttng_viewer_next_index_return_code.VIEWER_INDEX_EOF, 0, 0);
+        assertTrue(fixture.isDone());
+    }
+
+    /**
+     * ERR retires a stream like the merger does
+     */
+    @Test
+    public void testError() {
+        fixture.nextBatch(0, slots, ids);
+        fixture.onReply(1, lttng_viewer_next_index_return_code.VIEWER_INDEX_ERR, 0, 0);
+        assertEquals(PollScheduler.RETIRED, fixture.getState(1));
+        fixture.wake(1, 0);
+        fixture.onReply(0, lttng_viewer_next_index_return_code.VIEWER_INDEX_OK, 4096, 0);
+        fixture.onReply(2, lttng_viewer_next_index_return_code.VIEWER_INDEX_OK, 4096, 0);
+        assertEquals(2, fixture.nextBatch(Long.MAX_VALUE, slots, ids));
+        assertEquals(10, ids[0]);
+        assertEquals(12, ids[1]);
+    }
+
+    /**
+     * A held stream is not polled, once released it is due right away if
+     * its delay expired meanwhile
+     */
+    @Test
+    public void testHeld() {
+        fixture.nextBatch(0, slots, ids);
+        fixture.onReply(0, lttng_viewer_next_index_return_code.VIEWER_INDEX_OK, 4096, 0);
+        fixture.onReply(1, lttng_viewer_next_index_return_code.VIEWER_INDEX_RETRY, 0, 0);
+        fixture.onReply(2, lttng_viewer_next_index_return_code.VIEWER_INDEX_OK, 4096, 0);
+        fixture.setHeld(0, true);
+        fixture.setHeld(2, true);
+        assertTrue(fixture.isHeld(0));
+        assertEquals(MS, fixture.nextDue(0));
+        assertEquals(0, fixture.nextBatch(0, slots, ids));
+        assertEquals(1, fixture.nextBatch(MS, slots, ids));
+        assertEquals(11, ids[0]);
+        fixture.setHeld(0, false);
+        assertEquals(1, fixture.nextBatch(MS, slots, ids));
+        assertEquals(10, ids[0]);
+    }
+}
@@ -0,0 +1,201 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock-free queue handing indexes and {@link PacketBuffer}s from the
+ * network thread to the analysis threads, so a slow consumer does not stop
+ * the socket from being read.
+ *
+ * There is always a single producer and a single consumer, see
+ * {@link SpscRing}; {@link ParallelPacketDecoder} hands the packets of each
+ * stream to its decoding lane through one. The non-blocking {@link #offer} and
+ * {@link #poll} never wait; {@link #put} and {@link #take} wait with the
+ * {@link WaitStrategy} of the ring. The depth, the peak depth and the number
+ * of times the producer found the ring full show the back-pressure.
+ *
+ * @param <T>
+ *            the element type
+ * @author Matthew Khouzam
+ */
+public abstract class RingBuffer<T> {
+
+    /**
+     * What a thread does while the ring is full or empty
+     */
+    public interface WaitStrategy {
+        /**
+         * Wait a little
+         *
+         * @param attempt
+         *            how many times the caller already waited for this
+         *            element, from 0
+         */
+        void idle(int attempt);
+    }
+
+    /** Spin, lowest latency, burns a core */
+    public static final WaitStrategy BUSY_SPIN = new WaitStrategy() {
+        @Override
+        public void idle(int attempt) {
+            Thread.onSpinWait();
+        }
+    };
+
+    /** Give the core to another thread between attempts */
+    public static final WaitStrategy YIELD = new WaitStrategy() {
+        @Override
+        public void idle(int attempt) {
+            Thread.yield();
+        }
+    };
+
+    /** Spin a little, yield a little, then sleep 50 us at a time */
+    public static final WaitStrategy PARK = new WaitStrategy() {
+        @Override
+        public void idle(int attempt) {
+            if (attempt < 100) {
+                Thread.onSpinWait();
+            } else if (attempt < 200) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(PARK_NANOS);
+            }
+        }
+    };
+
+    private static final long PARK_NANOS = 50000L;
+
+    /** Mask of the element index, capacity - 1 */
+    protected final int fMask;
+    /** The elements */
+    protected final Object[] fItems;
+    private final WaitStrategy fWait;
+    /* written by the producer only */
+    private volatile int fPeakDepth;
+    private volatile long fFullCount;
+
+    /**
+     * Constructor
+     *
+     * @param capacity
+     *            the capacity, rounded up to a power of two
+     * @param wait
+     *            how to wait in put and take
+     */
+    protected RingBuffer(int capacity, WaitStrategy wait) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        fMask = size - 1;
+        fItems = new Object[size];
+        fWait = wait;
+    }
+
+    /**
+     * Add an element if there is room. Producer thread only.
+     *
+     * @param item
+     *            the element, not null
+     * @return false if the ring is full
+     */
+    public abstract boolean offer(T item);
+
+    /**
+     * Take the oldest element if there is one
+     *
+     * @return the element, null if the ring is empty
+     */
+    public abstract T poll();
+
+    /**
+     * @return the number of elements in the ring, approximate while the
+     *         producer or the consumers are running
+     */
+    public abstract int depth();
+
+    /**
+     * Add an element, waiting for room. Producer thread only.
+     *
+     * @param item
+     *            the element, not null
+     * @throws InterruptedException
+     *             interrupted while the ring was full
+     */
+    public void put(T item) throws InterruptedException {
+        if (offer(item)) {
+            return;
+        }
+        fFullCount++;
+        int attempt = 0;
+        do {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            fWait.idle(attempt++);
+        } while (!offer(item));
+    }
+
+    /**
+     * Take the oldest element, waiting for one
+     *
+     * @return the element
+     * @throws InterruptedException
+     *             interrupted while the ring was empty
+     */
+    public T take() throws InterruptedException {
+        int attempt = 0;
+        T item = poll();
+        while (item == null) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            fWait.idle(attempt++);
+            item = poll();
+        }
+        return item;
+    }
+
+    /**
+     * @return the number of elements the ring holds
+     */
+    public int capacity() {
+        return fMask + 1;
+    }
+
+    /**
+     * @return the highest depth seen by the producer
+     */
+    public int getPeakDepth() {
+        return fPeakDepth;
+    }
+
+    /**
+     * @return how many times {@link #put} found the ring full
+     */
+    public long getFullCount() {
+        return fFullCount;
+    }
+
+    /**
+     * Record the depth after an offer, producer thread only
+     *
+     * @param depth
+     *            the depth
+     */
+    protected void recordDepth(long depth) {
+        if (depth > fPeakDepth) {
+            fPeakDepth = (int) depth;
+        }
+    }
+}
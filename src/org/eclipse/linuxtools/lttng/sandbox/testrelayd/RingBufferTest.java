@@ -0,0 +1,94 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests for the single producer ring
+ *
+ * @author Matthew Khouzam
+ */
+public class RingBufferTest {
+
+    private static final int COUNT = 200000;
+    private static final Long END = Long.valueOf(-1);
+
+    /**
+     * Depth, capacity and full ring without threads
+     */
+    @Test
+    public void testBounds() {
+        RingBuffer<String> ring = new SpscRing<>(3, RingBuffer.YIELD);
+        assertEquals(4, ring.capacity());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer("x" + i));
+        }
+        assertFalse(ring.offer("x4"));
+        assertEquals(4, ring.depth());
+        assertEquals(4, ring.getPeakDepth());
+        assertEquals("x0", ring.poll());
+        assertEquals(3, ring.depth());
+        assertTrue(ring.offer("x4"));
+        for (int i = 1; i <= 4; i++) {
+            assertEquals("x" + i, ring.poll());
+        }
+        assertNull(ring.poll());
+        assertEquals(0, ring.depth());
+    }
+
+    /**
+     * One consumer sees every element in order
+     *
+     * @throws InterruptedException
+     *             should not happen
+     */
+    @Test
+    public void testSpsc() throws InterruptedException {
+        /* spinning only makes sense with a core per thread */
+        boolean spin = Runtime.getRuntime().availableProcessors() > 1;
+        for (RingBuffer.WaitStrategy wait : new RingBuffer.WaitStrategy[] { spin ? RingBuffer.BUSY_SPIN : RingBuffer.YIELD, RingBuffer.YIELD, RingBuffer.PARK }) {
+            final RingBuffer<Long> ring = new SpscRing<>(64, wait);
+            final long[] result = new long[2];
+            Thread consumer = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        long expected = 0;
+                        for (Long item = ring.take(); item != END; item = ring.take()) {
+                            if (item.longValue() != expected) {
+                                result[1]++;
+                            }
+                            expected++;
+                        }
+                        result[0] = expected;
+                    } catch (InterruptedException e) {
+                        result[1]++;
+                    }
+                }
+            };
+            consumer.start();
+            for (long i = 0; i < COUNT; i++) {
+                ring.put(Long.valueOf(i));
+            }
+            ring.put(END);
+            consumer.join();
+            assertEquals(COUNT, result[0]);
+            assertEquals(0, result[1]);
+        }
+    }
+}
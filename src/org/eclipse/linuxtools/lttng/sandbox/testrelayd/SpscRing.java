@@ -0,0 +1,85 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single producer, single consumer ring. Each side owns one counter and
+ * publishes it with an ordered store; it keeps a cached copy of the other
+ * side's counter and only reads the shared one when the cache says the ring
+ * is full or empty.
+ *
+ * @param <T>
+ *            the element type
+ * @author Matthew Khouzam
+ */
+public class SpscRing<T> extends RingBuffer<T> {
+
+    private final AtomicLong fHead = new AtomicLong();
+    private final AtomicLong fTail = new AtomicLong();
+    /* producer side */
+    private long fHeadCache;
+    /* consumer side */
+    private long fTailCache;
+
+    /**
+     * Constructor
+     *
+     * @param capacity
+     *            the capacity, rounded up to a power of two
+     * @param wait
+     *            how to wait in put and take
+     */
+    public SpscRing(int capacity, WaitStrategy wait) {
+        super(capacity, wait);
+    }
+
+    @Override
+    public boolean offer(T item) {
+        long tail = fTail.get();
+        if (tail - fHeadCache > fMask) {
+            fHeadCache = fHead.get();
+            if (tail - fHeadCache > fMask) {
+                return false;
+            }
+        }
+        fItems[(int) tail & fMask] = item;
+        fTail.lazySet(tail + 1);
+        recordDepth(tail + 1 - fHeadCache);
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        long head = fHead.get();
+        if (head >= fTailCache) {
+            fTailCache = fTail.get();
+            if (head >= fTailCache) {
+                return null;
+            }
+        }
+        int index = (int) head & fMask;
+        T item = (T) fItems[index];
+        fItems[index] = null;
+        fHead.lazySet(head + 1);
+        return item;
+    }
+
+    @Override
+    public int depth() {
+        long head = fHead.get();
+        return (int) Math.max(0, Math.min(fTail.get() - head, capacity()));
+    }
+}
@@ -0,0 +1,287 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_index;
+
+/**
+ * Generates the CTF streams of a fake trace, one per CPU.
+ *
+ * Packets are produced on demand from their sequence number, so a stream can
+ * be as long as needed without using memory. Packet k of a stream starts at
+ * offset k * packetSize and covers [BASE_TIMESTAMP + k * period,
+ * BASE_TIMESTAMP + (k + 1) * period). Its events are evenly spaced and carry
+ * their sequence number so a reader can check nothing was lost or reordered.
+ *
+ * The metadata describes a little endian trace laid out as LTTng does: the
+ * usual packet header (magic, uuid, stream id), the lttng packet context,
+ * the compact event header and a single "sample" event. The events use the
+ * compact header, a 5 bit id and a 27 bit timestamp, unless they are too far
+ * apart for 27 bits: all the events of the trace then use the extended one.
+ *
+ * @author Matthew Khouzam
+ */
+public class SyntheticTrace {
+
+    /** CTF packet magic number */
+    public static final int MAGIC = 0xC1FC1FC1;
+    /** Timestamp of the first packet */
+    public static final long BASE_TIMESTAMP = 1382000000000000000L;
+    /** Size of the packet header and context */
+    public static final int PACKET_PREAMBLE_SIZE = 4 + 16 + 4 + 8 * 5 + 4;
+    /** Size of one event with a compact header, header and fields */
+    public static final int EVENT_SIZE = 4 + 8 + 4 + 4;
+    /** Size of one event with an extended header, header and fields */
+    public static final int EXTENDED_EVENT_SIZE = 1 + 4 + 8 + 8 + 4 + 4;
+
+    /* the id of the compact header selecting the extended one */
+    private static final int EXTENDED = 31;
+    private static final int COMPACT_TIMESTAMP_BITS = 27;
+
+    private static final byte[] ZEROS = new byte[4096];
+
+    private final byte[] fUuid = new byte[16];
+    private final int fPacketSize;
+    private final int fEvents;
+    private final int fEventSize;
+    private final long fPeriod;
+    private int fDiscardEvery;
+
+    /**
+     * Constructor
+     *
+     * @param seed
+     *            the seed of the trace uuid
+     * @param packetSize
+     *            the size of every packet in bytes
+     * @param fillRatio
+     *            the part of a packet holding events, the rest is padding
+     * @param period
+     *            the time covered by a packet, in ns
+     */
+    public SyntheticTrace(long seed, int packetSize, double fillRatio, long period) {
+        new Random(seed).nextBytes(fUuid);
+        fPacketSize = packetSize;
+        int events = Math.max(0, (int) ((packetSize * fillRatio - PACKET_PREAMBLE_SIZE) / EVENT_SIZE));
+        if (events > 0 && period / events >= 1L << COMPACT_TIMESTAMP_BITS) {
+            fEventSize = EXTENDED_EVENT_SIZE;
+            events = Math.max(0, (int) ((packetSize * fillRatio - PACKET_PREAMBLE_SIZE) / EXTENDED_EVENT_SIZE));
+        } else {
+            fEventSize = EVENT_SIZE;
+        }
+        fEvents = events;
+        fPeriod = period;
+    }
+
+    /**
+     * Make the tracer lose events
+     *
+     * @param packets
+     *            one event is discarded every that many packets, 0 for never
+     */
+    public void setDiscardEvery(int packets) {
+        fDiscardEvery = packets;
+    }
+
+    /**
+     * @return the size of a packet, in bytes
+     */
+    public int getPacketSize() {
+        return fPacketSize;
+    }
+
+    /**
+     * @return the size of the events of a packet, headers included, in bytes
+     */
+    public int getContentSize() {
+        return PACKET_PREAMBLE_SIZE + fEvents * fEventSize;
+    }
+
+    /**
+     * @return the size of one event, EVENT_SIZE or EXTENDED_EVENT_SIZE
+     */
+    public int getEventSize() {
+        return fEventSize;
+    }
+
+    /**
+     * @return the number of events per packet
+     */
+    public int getEventsPerPacket() {
+        return fEvents;
+    }
+
+    /**
+     * @return the time covered by a packet, in ns
+     */
+    public long getPeriod() {
+        return fPeriod;
+    }
+
+    /**
+     * @return the TSDL metadata of the trace
+     */
+    public String getMetadata() {
+        StringBuilder uuid = new StringBuilder();
+        for (int i = 0; i < fUuid.length; i++) {
+            if (i == 4 || i == 6 || i == 8 || i == 10) {
+                uuid.append('-');
+            }
+            uuid.append(String.format("%02x", fUuid[i] & 0xff)); //$NON-NLS-1$
+        }
+        return "/* CTF 1.8 */\n" //$NON-NLS-1$
+                + "typealias integer { size = 8; align = 8; signed = false; } := uint8_t;\n" //$NON-NLS-1$
+                + "typealias integer { size = 32; align = 8; signed = false; } := uint32_t;\n" //$NON-NLS-1$
+                + "typealias integer { size = 64; align = 8; signed = false; } := uint64_t;\n" //$NON-NLS-1$
+                + "typealias integer { size = 5; align = 1; signed = false; } := uint5_t;\n" //$NON-NLS-1$
+                + "trace {\n" //$NON-NLS-1$
+                + "\tmajor = 1;\n\tminor = 8;\n" //$NON-NLS-1$
+                + "\tuuid = \"" + uuid + "\";\n" //$NON-NLS-1$ //$NON-NLS-2$
+                + "\tbyte_order = le;\n" //$NON-NLS-1$
+                + "\tpacket.header := struct {\n" //$NON-NLS-1$
+                + "\t\tuint32_t magic;\n\t\tuint8_t uuid[16];\n\t\tuint32_t stream_id;\n" //$NON-NLS-1$
+                + "\t};\n};\n" //$NON-NLS-1$
+                + "clock {\n\tname = monotonic;\n\tfreq = 1000000000;\n\toffset = 0;\n};\n" //$NON-NLS-1$
+                + "typealias integer {\n\tsize = 27; align = 1; signed = false;\n\tmap = clock.monotonic.value;\n} := uint27_clock_monotonic_t;\n" //$NON-NLS-1$
+                + "typealias integer {\n\tsize = 64; align = 8; signed = false;\n\tmap = clock.monotonic.value;\n} := uint64_clock_monotonic_t;\n" //$NON-NLS-1$
+                + "struct packet_context {\n" //$NON-NLS-1$
+                + "\tuint64_clock_monotonic_t timestamp_begin;\n\tuint64_clock_monotonic_t timestamp_end;\n" //$NON-NLS-1$
+                + "\tuint64_t content_size;\n\tuint64_t packet_size;\n" //$NON-NLS-1$
+                + "\tuint64_t events_discarded;\n\tuint32_t cpu_id;\n" //$NON-NLS-1$
+                + "};\n" //$NON-NLS-1$
+                + "struct event_header_compact {\n" //$NON-NLS-1$
+                + "\tenum : uint5_t { compact = 0 ... 30, extended = 31 } id;\n" //$NON-NLS-1$
+                + "\tvariant <id> {\n" //$NON-NLS-1$
+                + "\t\tstruct {\n\t\t\tuint27_clock_monotonic_t timestamp;\n\t\t} compact;\n" //$NON-NLS-1$
+                + "\t\tstruct {\n\t\t\tuint32_t id;\n\t\t\tuint64_clock_monotonic_t timestamp;\n\t\t} extended;\n" //$NON-NLS-1$
+                + "\t} v;\n" //$NON-NLS-1$
+                + "} align(8);\n" //$NON-NLS-1$
+                + "stream {\n" //$NON-NLS-1$
+                + "\tid = 0;\n" //$NON-NLS-1$
+                + "\tevent.header := struct event_header_compact;\n" //$NON-NLS-1$
+                + "\tpacket.context := struct packet_context;\n" //$NON-NLS-1$
+                + "};\n" //$NON-NLS-1$
+                + "event {\n" //$NON-NLS-1$
+                + "\tname = \"sample\";\n\tid = 0;\n\tstream_id = 0;\n" //$NON-NLS-1$
+                + "\tfields := struct {\n\t\tuint64_t seq;\n\t\tuint32_t cpu;\n\t\tuint32_t value;\n\t};\n" //$NON-NLS-1$
+                + "};\n"; //$NON-NLS-1$
+    }
+
+    /**
+     * Fill the index of a packet. The stream id and the status are left to
+     * the caller.
+     *
+     * @param packet
+     *            the packet sequence number
+     * @param index
+     *            the index to fill
+     */
+    public void index(long packet, lttng_viewer_index index) {
+        index.offset = packet * fPacketSize;
+        index.packet_size = fPacketSize * 8L;
+        index.content_size = getContentSize() * 8L;
+        index.timestamp_begin = BASE_TIMESTAMP + packet * fPeriod;
+        index.timestamp_end = index.timestamp_begin + fPeriod - 1;
+        index.events_discarded = discarded(packet);
+    }
+
+    private long discarded(long packet) {
+        return (fDiscardEvery > 0) ? packet / fDiscardEvery : 0;
+    }
+
+    /**
+     * Write a range of a stream file
+     *
+     * @param cpu
+     *            the cpu of the stream
+     * @param offset
+     *            the offset in the stream file
+     * @param len
+     *            the number of bytes
+     * @param dst
+     *            where to write them
+     * @param scratch
+     *            a buffer of at least one packet for partial packets
+     */
+    public void read(int cpu, long offset, int len, ByteBuffer dst, ByteBuffer scratch) {
+        long pos = offset;
+        long end = offset + len;
+        while (pos < end) {
+            long packet = pos / fPacketSize;
+            int within = (int) (pos % fPacketSize);
+            int count = (int) Math.min(fPacketSize - within, end - pos);
+            if (within == 0 && count == fPacketSize) {
+                writePacket(cpu, packet, dst);
+            } else {
+                scratch.clear();
+                writePacket(cpu, packet, scratch);
+                scratch.position(within).limit(within + count);
+                dst.put(scratch);
+            }
+            pos += count;
+        }
+    }
+
+    /**
+     * Write a whole packet
+     *
+     * @param cpu
+     *            the cpu of the stream
+     * @param packet
+     *            the packet sequence number
+     * @param dst
+     *            where to write the packet, at its position
+     */
+    public void writePacket(int cpu, long packet, ByteBuffer dst) {
+        ByteOrder order = dst.order();
+        dst.order(ByteOrder.LITTLE_ENDIAN);
+        int start = dst.position();
+        long begin = BASE_TIMESTAMP + packet * fPeriod;
+        dst.putInt(MAGIC);
+        dst.put(fUuid);
+        dst.putInt(0);
+        dst.putLong(begin);
+        dst.putLong(begin + fPeriod - 1);
+        dst.putLong(getContentSize() * 8L);
+        dst.putLong(fPacketSize * 8L);
+        dst.putLong(discarded(packet));
+        dst.putInt(cpu);
+        long step = (fEvents == 0) ? 0 : fPeriod / fEvents;
+        for (int i = 0; i < fEvents; i++) {
+            long seq = packet * fEvents + i;
+            long timestamp = begin + i * step;
+            if (fEventSize == EVENT_SIZE) {
+                /* id 0 in the low 5 bits, the low 27 bits of the timestamp above */
+                dst.putInt((int) (timestamp << 5));
+            } else {
+                dst.put((byte) EXTENDED);
+                dst.putInt(0);
+                dst.putLong(timestamp);
+            }
+            dst.putLong(seq);
+            dst.putInt(cpu);
+            dst.putInt((int) (seq * 2654435761L));
+        }
+        int padding = start + fPacketSize - dst.position();
+        while (padding > 0) {
+            int chunk = Math.min(padding, ZEROS.length);
+            dst.put(ZEROS, 0, chunk);
+            padding -= chunk;
+        }
+        dst.order(order);
+    }
+}
@@ -0,0 +1,313 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_index;
+
+/**
+ * Merges the packets of several streams, each in time order, into one stream
+ * ordered by timestamp_begin.
+ *
+ * Each stream has a queue; the heads of the non-empty queues are kept in a
+ * binary min-heap of slots keyed on timestamp_begin, in primitive arrays.
+ * A packet is only released when no stream can still produce an earlier one:
+ * a stream with an empty queue holds back every packet beginning after its
+ * watermark, the end of its last packet or of its last inactive beacon. A
+ * stream answering VIEWER_INDEX_RETRY therefore blocks the merge until it
+ * produces a packet or a beacon; one that hung up no longer counts.
+ *
+ * Slots are numbered like the stream ids given to the constructor, as in
+ * {@link PollScheduler}. The class is not thread safe.
+ *
+ * @param <T>
+ *            the packet type
+ * @author Matthew Khouzam
+ */
+public class TimestampMerger<T> {
+
+    private static final int INITIAL_QUEUE = 16;
+
+    private final long[] fIds;
+    /* per slot ring of packets and their timestamp_begin */
+    private final Object[][] fItems;
+    private final long[][] fBegins;
+    private final int[] fHead;
+    private final int[] fCount;
+    private final long[] fWatermark;
+    private final boolean[] fRetired;
+    /* heap of the slots with queued packets */
+    private final int[] fHeap;
+    private int fHeapSize;
+    private int fQueued;
+
+    /**
+     * Constructor
+     *
+     * @param streamIds
+     *            the merged streams
+     */
+    public TimestampMerger(long[] streamIds) {
+        int n = streamIds.length;
+        fIds = streamIds.clone();
+        fItems = new Object[n][INITIAL_QUEUE];
+        fBegins = new long[n][INITIAL_QUEUE];
+        fHead = new int[n];
+        fCount = new int[n];
+        fWatermark = new long[n];
+        fRetired = new boolean[n];
+        fHeap = new int[n];
+        for (int i = 0; i < n; i++) {
+            fWatermark[i] = Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * Find the slot of a stream
+     *
+     * @param streamId
+     *            the stream id
+     * @return the slot, or -1 if the stream is not merged
+     */
+    public int slotOf(long streamId) {
+        for (int i = 0; i < fIds.length; i++) {
+            if (fIds[i] == streamId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Queue a packet of a stream, after the previous ones of that stream
+     *
+     * @param slot
+     *            the slot of the stream
+     * @param timestampBegin
+     *            the timestamp_begin of the packet
+     * @param timestampEnd
+     *            the timestamp_end of the packet
+     * @param packet
+     *            the packet
+     */
+    public void offer(int slot, long timestampBegin, long timestampEnd, T packet) {
+        int count = fCount[slot];
+        if (count == fItems[slot].length) {
+            grow(slot);
+        }
+        int capacity = fItems[slot].length;
+        int tail = (fHead[slot] + count) & (capacity - 1);
+        fItems[slot][tail] = packet;
+        fBegins[slot][tail] = timestampBegin;
+        fCount[slot] = count + 1;
+        fQueued++;
+        fWatermark[slot] = Math.max(fWatermark[slot], timestampEnd);
+        if (count == 0) {
+            heapInsert(slot);
+        }
+    }
+
+    private void grow(int slot) {
+        Object[] items = fItems[slot];
+        long[] begins = fBegins[slot];
+        int capacity = items.length;
+        Object[] newItems = new Object[capacity * 2];
+        long[] newBegins = new long[capacity * 2];
+        for (int i = 0; i < capacity; i++) {
+            int from = (fHead[slot] + i) & (capacity - 1);
+            newItems[i] = items[from];
+            newBegins[i] = begins[from];
+        }
+        fItems[slot] = newItems;
+        fBegins[slot] = newBegins;
+        fHead[slot] = 0;
+    }
+
+    /**
+     * Account for a GET_NEXT_INDEX reply that does not come with a packet:
+     * an inactive beacon moves the watermark of the stream to its
+     * timestamp_end, a hang up, an end of stream or an error retires it. An
+     * OK index whose packet could not be fetched moves the watermark like a
+     * beacon, the stream has nothing earlier to give. Replies with a packet
+     * are accounted by {@link #offer}.
+     *
+     * @param slot
+     *            the slot of the stream
+     * @param index
+     *            the reply
+     */
+    public void onIndex(int slot, lttng_viewer_index index) {
+        switch (index.status) {
+        case VIEWER_INDEX_OK:
+        case VIEWER_INDEX_INACTIVE:
+            fWatermark[slot] = Math.max(fWatermark[slot], index.timestamp_end);
+            break;
+        case VIEWER_INDEX_HUP:
+        case VIEWER_INDEX_EOF:
+        case VIEWER_INDEX_ERR:
+            retire(slot);
+            break;
+        case VIEWER_INDEX_RETRY:
+        default:
+            break;
+        }
+    }
+
+    /**
+     * Stop waiting for a stream, its queued packets are still merged
+     *
+     * @param slot
+     *            the slot of the stream
+     */
+    public void retire(int slot) {
+        fRetired[slot] = true;
+    }
+
+    /**
+     * @return the time up to which every stream is known, the merge can
+     *         release any packet beginning at or before it
+     */
+    public long getWatermark() {
+        long watermark = Long.MAX_VALUE;
+        for (int i = 0; i < fIds.length; i++) {
+            if (fCount[i] == 0 && !fRetired[i] && fWatermark[i] < watermark) {
+                watermark = fWatermark[i];
+            }
+        }
+        return watermark;
+    }
+
+    /**
+     * @return the timestamp_begin of the earliest queued packet,
+     *         Long.MAX_VALUE if none is queued
+     */
+    public long peekTimestamp() {
+        return (fHeapSize == 0) ? Long.MAX_VALUE : head(fHeap[0]);
+    }
+
+    /**
+     * Take the earliest packet, if no stream can still produce an earlier
+     * one
+     *
+     * @return the packet, or null if the merge has to wait
+     */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        if (fHeapSize == 0 || head(fHeap[0]) > getWatermark()) {
+            return null;
+        }
+        int slot = fHeap[0];
+        int head = fHead[slot];
+        T packet = (T) fItems[slot][head];
+        fItems[slot][head] = null;
+        fHead[slot] = (head + 1) & (fItems[slot].length - 1);
+        fCount[slot]--;
+        fQueued--;
+        if (fCount[slot] == 0) {
+            heapRemoveTop();
+        } else {
+            siftDown(0);
+        }
+        return packet;
+    }
+
+    /**
+     * @return the number of queued packets
+     */
+    public int size() {
+        return fQueued;
+    }
+
+    /**
+     * @param slot
+     *            the slot of a stream
+     * @return the number of queued packets of the stream
+     */
+    public int size(int slot) {
+        return fCount[slot];
+    }
+
+    /**
+     * @return true if every stream is retired and every packet was taken
+     */
+    public boolean isDone() {
+        if (fQueued != 0) {
+            return false;
+        }
+        for (boolean retired : fRetired) {
+            if (!retired) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // ------------------------------------------------------------------------
+    // Heap
+    // ------------------------------------------------------------------------
+
+    private long head(int slot) {
+        return fBegins[slot][fHead[slot]];
+    }
+
+    private void heapInsert(int slot) {
+        int i = fHeapSize++;
+        fHeap[i] = slot;
+        siftUp(i);
+    }
+
+    private void heapRemoveTop() {
+        fHeapSize--;
+        if (fHeapSize > 0) {
+            fHeap[0] = fHeap[fHeapSize];
+            siftDown(0);
+        }
+    }
+
+    private void siftUp(int start) {
+        int i = start;
+        int slot = fHeap[i];
+        long key = head(slot);
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            int other = fHeap[parent];
+            if (head(other) <= key) {
+                break;
+            }
+            fHeap[i] = other;
+            i = parent;
+        }
+        fHeap[i] = slot;
+    }
+
+    private void siftDown(int start) {
+        int i = start;
+        int slot = fHeap[i];
+        long key = head(slot);
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= fHeapSize) {
+                break;
+            }
+            if (child + 1 < fHeapSize && head(fHeap[child + 1]) < head(fHeap[child])) {
+                child++;
+            }
+            int other = fHeap[child];
+            if (key <= head(other)) {
+                break;
+            }
+            fHeap[i] = other;
+            i = child;
+        }
+        fHeap[i] = slot;
+    }
+}
@@ -0,0 +1,91 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_index;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_next_index_return_code;
+import org.junit.Test;
+
+/**
+ * Tests for the timestamp ordered merge of streams
+ *
+ * @author Matthew Khouzam
+ */
+public class TimestampMergerTest {
+
+    private static lttng_viewer_index reply(lttng_viewer_next_index_return_code status, long end) {
+        lttng_viewer_index index = new lttng_viewer_index();
+        index.status = status;
+        index.timestamp_end = end;
+        return index;
+    }
+
+    /**
+     * Packets come out in timestamp order once every stream is known
+     */
+    @Test
+    public void testOrder() {
+        TimestampMerger<String> merger = new TimestampMerger<>(new long[] { 1, 2, 3 });
+        Random random = new Random(4);
+        long[] time = new long[3];
+        for (int i = 0; i < 300; i++) {
+            int slot = random.nextInt(3);
+            long begin = time[slot] + random.nextInt(100);
+            time[slot] = begin + 10;
+            merger.offer(slot, begin, begin + 10, Long.toString(begin));
+        }
+        for (int slot = 0; slot < 3; slot++) {
+            merger.onIndex(slot, reply(lttng_viewer_next_index_return_code.VIEWER_INDEX_HUP, 0));
+        }
+        long last = Long.MIN_VALUE;
+        int count = 0;
+        for (String packet = merger.poll(); packet != null; packet = merger.poll()) {
+            long begin = Long.parseLong(packet);
+            assertTrue(begin >= last);
+            last = begin;
+            count++;
+        }
+        assertEquals(300, count);
+        assertTrue(merger.isDone());
+    }
+
+    /**
+     * A stream that answered RETRY holds back the packets after its last
+     * one, an inactive beacon releases them
+     */
+    @Test
+    public void testWatermark() {
+        TimestampMerger<String> merger = new TimestampMerger<>(new long[] { 1, 2 });
+        merger.offer(0, 100, 199, "a");
+        merger.offer(0, 200, 299, "b");
+        assertNull(merger.poll());
+
+        merger.offer(1, 150, 179, "c");
+        assertEquals("a", merger.poll());
+        assertEquals("c", merger.poll());
+        /* stream 1 is empty and only known up to 179 */
+        merger.onIndex(1, reply(lttng_viewer_next_index_return_code.VIEWER_INDEX_RETRY, 0));
+        assertEquals(179, merger.getWatermark());
+        assertNull(merger.poll());
+
+        merger.onIndex(1, reply(lttng_viewer_next_index_return_code.VIEWER_INDEX_INACTIVE, 400));
+        assertEquals("b", merger.poll());
+        assertNull(merger.poll());
+        assertEquals(0, merger.size());
+    }
+}
@@ -0,0 +1,386 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_index;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_next_index_return_code;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_trace_packet;
+
+/**
+ * Records live packets into a local CTF trace, laid out like the output of
+ * relayd so that {@link DiskTrace} and Trace Compass can open it:
+ *
+ * <pre>
+ * directory/path_name/metadata
+ * directory/path_name/channel_name
+ * directory/path_name/index/channel_name.idx
+ * </pre>
+ *
+ * Stream files are written through memory mappings of
+ * {@link #setExtentSize(int)} bytes: the file is extended by a whole extent at
+ * a time and a packet is a single copy into the mapping, without a system
+ * call. An extent is unmapped as soon as the next one is mapped, see
+ * {@link Unmapper}, and the unused end of the last extent is cut when the
+ * file is closed or rotated, once unmapped. Where the virtual machine cannot
+ * unmap and the system refuses to truncate a mapped file, as Windows does,
+ * that end stays as zeros after the last packet: readers going through the
+ * index, such as {@link DiskTrace}, never look there.
+ * The index of a packet is written, with its offset in the local file, once
+ * its data is.
+ *
+ * With {@link #setRotationSize(long)}, a stream is split like the lttng
+ * tracefile_size option does: channel_name_0, channel_name_1, ... each with
+ * its own index and none bigger than the rotation size, unless a single
+ * packet is. Packets are never split.
+ *
+ * Files left by a previous recording in the same directory are overwritten.
+ *
+ * @author Matthew Khouzam
+ */
+public class TraceSpooler implements Closeable {
+
+    /** Default size by which stream files grow, in bytes */
+    public static final int DEFAULT_EXTENT_SIZE = 4 << 20;
+
+    private static final String METADATA = "metadata"; //$NON-NLS-1$
+    private static final String INDEX_DIR = "index"; //$NON-NLS-1$
+    private static final String INDEX_SUFFIX = ".idx"; //$NON-NLS-1$
+
+    private final File fDirectory;
+    private final Map<Long, StreamFile> fStreams = new HashMap<>();
+    private final Map<Long, Integer> fMetadata = new HashMap<>();
+    /* scratch index of write(LivePacket), only read until it returns */
+    private final lttng_viewer_index fPacketIndex = new lttng_viewer_index();
+    private int fExtentSize = DEFAULT_EXTENT_SIZE;
+    private long fRotationSize;
+    private long fBytes;
+    private long fPackets;
+    private int fFiles;
+
+    /**
+     * Constructor
+     *
+     * @param directory
+     *            the root of the recording, created if needed
+     * @throws IOException
+     *             the directory could not be created
+     */
+    public TraceSpooler(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory); //$NON-NLS-1$
+        }
+        fDirectory = directory;
+    }
+
+    /**
+     * Set the size by which stream files grow. Applies to the mappings made
+     * after the call.
+     *
+     * @param bytes
+     *            the extent size, in bytes
+     */
+    public synchronized void setExtentSize(int bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("Extent size must be positive"); //$NON-NLS-1$
+        }
+        fExtentSize = bytes;
+    }
+
+    /**
+     * Split the streams in files of at most a given size. Must be called
+     * before the first packet.
+     *
+     * @param bytes
+     *            the maximum file size, in bytes, 0 to never rotate
+     */
+    public synchronized void setRotationSize(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Rotation size must not be negative"); //$NON-NLS-1$
+        }
+        if (!fStreams.isEmpty()) {
+            throw new IllegalStateException("Rotation size set after the first packet"); //$NON-NLS-1$
+        }
+        fRotationSize = bytes;
+    }
+
+    /**
+     * Write a packet at the end of its stream file and index it
+     *
+     * @param stream
+     *            the stream of the packet
+     * @param index
+     *            the index of the packet, as given by relayd
+     * @param packet
+     *            the packet data, left to the caller to release
+     * @throws IOException
+     *             the file could not be written
+     */
+    public synchronized void write(ViewerStream stream, lttng_viewer_index index, PacketBuffer packet) throws IOException {
+        StreamFile file = fStreams.get(stream.getId());
+        if (file == null) {
+            file = new StreamFile(stream);
+            fStreams.put(stream.getId(), file);
+        }
+        int len = packet.length();
+        if (fRotationSize > 0 && file.fSize > 0 && file.fSize + len > fRotationSize) {
+            file.rotate();
+        }
+        ByteBuffer data = packet.buffer();
+        data.limit(len).position(0);
+        file.append(data, index);
+        fBytes += len;
+        fPackets++;
+    }
+
+    /**
+     * Write a packet at the end of its stream file and index it
+     *
+     * @param packet
+     *            the packet, left to the caller to release
+     * @throws IOException
+     *             the file could not be written
+     */
+    public synchronized void write(LivePacket packet) throws IOException {
+        lttng_viewer_index index = fPacketIndex;
+        index.offset = packet.getOffset();
+        index.packet_size = packet.getPacketSize();
+        index.content_size = packet.getContentSize();
+        index.timestamp_begin = packet.getTimestampBegin();
+        index.timestamp_end = packet.getTimestampEnd();
+        index.events_discarded = packet.getEventsDiscarded();
+        index.stream_id = packet.getStream().getId();
+        write(packet.getStream(), index, packet.getData());
+    }
+
+    /**
+     * Write the metadata file of a trace, if it changed since the last call
+     *
+     * @param metadataStream
+     *            the metadata stream of the trace, which gives its path
+     * @param metadata
+     *            the metadata received for it
+     * @throws IOException
+     *             the file could not be written
+     */
+    public synchronized void writeMetadata(ViewerStream metadataStream, MetadataCache.Entry metadata) throws IOException {
+        Integer written = fMetadata.get(metadata.getCtfTraceId());
+        int generation = metadata.getGeneration();
+        if (written != null && written.intValue() == generation) {
+            return;
+        }
+        /* the metadata is small and rarely changes, rewrite it whole */
+        File file = new File(traceDirectory(metadataStream), METADATA);
+        Files.write(file.toPath(), metadata.getBytes(0));
+        fMetadata.put(metadata.getCtfTraceId(), generation);
+    }
+
+    /**
+     * Make a poller handler recording a whole session: the packets of the OK
+     * indexes are fetched and written, and the metadata is written at the
+     * first reply and again whenever relayd flags new metadata.
+     *
+     * @param client
+     *            the client attached to the session
+     * @param session
+     *            the attached session
+     * @return the handler to give to a {@link LiveSessionPoller}
+     */
+    public LiveSessionPoller.IndexHandler record(final ViewerClient client, final AttachedSession session) {
+        return new LiveSessionPoller.IndexHandler() {
+            private final MetadataCache fCache = new MetadataCache();
+            private final PacketArena fArena = new PacketArena();
+            private final lttng_viewer_trace_packet fReply = new lttng_viewer_trace_packet();
+            private boolean fStarted;
+
+            @Override
+            public void onIndex(ViewerStream stream, lttng_viewer_index index) throws IOException {
+                if (!fStarted || (index.flags & LTTngRelayDCommands2_4.LTTNG_VIEWER_FLAG_NEW_METADATA) != 0) {
+                    for (ViewerStream metadata : session.getMetadataStreams()) {
+                        writeMetadata(metadata, fCache.update(client, metadata));
+                    }
+                    fStarted = true;
+                }
+                if (index.status != lttng_viewer_next_index_return_code.VIEWER_INDEX_OK) {
+                    return;
+                }
+                PacketBuffer packet = client.getPacket(stream.getId(), index, fReply, fArena);
+                if (packet == null) {
+                    return;
+                }
+                try {
+                    write(stream, index, packet);
+                } finally {
+                    packet.release();
+                }
+            }
+        };
+    }
+
+    /**
+     * @return the number of packet bytes written
+     */
+    public synchronized long getBytesWritten() {
+        return fBytes;
+    }
+
+    /**
+     * @return the number of packets written
+     */
+    public synchronized long getPacketsWritten() {
+        return fPackets;
+    }
+
+    /**
+     * @return the number of stream files opened, counting rotations
+     */
+    public synchronized int getFileCount() {
+        return fFiles;
+    }
+
+    /**
+     * Cut the stream files to their content and close them
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        IOException error = null;
+        for (StreamFile file : fStreams.values()) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        fStreams.clear();
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /* the path comes from the network, it must stay under the directory */
+    private File traceDirectory(ViewerStream stream) throws IOException {
+        File directory = new File(fDirectory, stream.getPathName());
+        String root = fDirectory.getCanonicalPath() + File.separator;
+        if (!(directory.getCanonicalPath() + File.separator).startsWith(root)) {
+            throw new IOException("Stream path outside of the recording " + stream.getPathName()); //$NON-NLS-1$
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory); //$NON-NLS-1$
+        }
+        return directory;
+    }
+
+    /** The file being written for a stream and its index */
+    private class StreamFile {
+        private final ViewerStream fStream;
+        private final File fTrace;
+        private final File fIndexes;
+        private final lttng_viewer_index fEntry = new lttng_viewer_index();
+        private int fRotation;
+        private FileChannel fFile;
+        private IndexStore.StreamIndex fIndex;
+        private MappedByteBuffer fMap;
+        private long fMapStart;
+        private long fSize;
+
+        public StreamFile(ViewerStream stream) throws IOException {
+            fStream = stream;
+            fTrace = traceDirectory(stream);
+            fIndexes = new File(fTrace, INDEX_DIR);
+            if (!fIndexes.isDirectory() && !fIndexes.mkdirs()) {
+                throw new IOException("Cannot create " + fIndexes); //$NON-NLS-1$
+            }
+            open();
+        }
+
+        private void open() throws IOException {
+            String name = fStream.getChannelName();
+            if (fRotationSize > 0) {
+                name = name + '_' + fRotation;
+            }
+            File index = new File(fIndexes, name + INDEX_SUFFIX);
+            Files.deleteIfExists(index.toPath());
+            fFile = FileChannel.open(new File(fTrace, name).toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                fIndex = new IndexStore.StreamIndex(fStream.getId(), index);
+            } catch (IOException e) {
+                fFile.close();
+                throw e;
+            }
+            fMap = null;
+            fMapStart = 0;
+            fSize = 0;
+            fFiles++;
+        }
+
+        public void append(ByteBuffer data, lttng_viewer_index index) throws IOException {
+            int len = data.remaining();
+            if (fMap == null || fSize + len > fMapStart + fMap.capacity()) {
+                /* mapping past the end extends the file by the whole extent */
+                MappedByteBuffer previous = fMap;
+                fMapStart = fSize;
+                fMap = fFile.map(MapMode.READ_WRITE, fMapStart, Math.max(fExtentSize, len));
+                Unmapper.unmap(previous);
+            }
+            fMap.position((int) (fSize - fMapStart));
+            fMap.put(data);
+            fEntry.offset = fSize;
+            fEntry.packet_size = index.packet_size;
+            fEntry.content_size = index.content_size;
+            fEntry.timestamp_begin = index.timestamp_begin;
+            fEntry.timestamp_end = index.timestamp_end;
+            fEntry.events_discarded = index.events_discarded;
+            fIndex.append(fEntry);
+            fSize += len;
+        }
+
+        public void rotate() throws IOException {
+            close();
+            fRotation++;
+            open();
+        }
+
+        public void close() throws IOException {
+            MappedByteBuffer map = fMap;
+            fMap = null;
+            /* nothing mapped is left once unmapped, or nothing was written */
+            boolean unmapped = Unmapper.unmap(map) || map == null;
+            try {
+                fIndex.close();
+            } finally {
+                try {
+                    fFile.truncate(fSize);
+                } catch (IOException e) {
+                    if (unmapped) {
+                        throw e;
+                    }
+                    /* still mapped, the zero end of the extent stays */
+                } finally {
+                    fFile.close();
+                }
+            }
+        }
+    }
+}
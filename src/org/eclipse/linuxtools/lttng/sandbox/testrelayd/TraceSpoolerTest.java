@@ -0,0 +1,177 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_index;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_next_index_return_code;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_seek;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_trace_packet;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests the recording of a live session into a local trace
+ *
+ * @author Matthew Khouzam
+ */
+public class TraceSpoolerTest {
+
+    private static final int STREAMS = 2;
+    private static final int PACKETS = 10;
+    private static final int PACKET_SIZE = 1024;
+
+    /** The recording directory */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MockRelayD fRelayd;
+    private ViewerClient fClient;
+    private AttachedSession fSession;
+
+    private void start() throws IOException {
+        fRelayd = new MockRelayD();
+        fRelayd.setStreamsPerSession(STREAMS);
+        fRelayd.setPacketSize(PACKET_SIZE);
+        fRelayd.setPacketCount(PACKETS);
+        InetSocketAddress address = fRelayd.start(0);
+        fClient = ViewerClient.open(address.getHostString(), address.getPort());
+        fClient.connect();
+        fSession = fClient.attachSession(1, lttng_viewer_seek.VIEWER_SEEK_BEGINNING);
+    }
+
+    /**
+     * Close the client and the mock
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @After
+    public void tearDown() throws IOException {
+        fClient.close();
+        fRelayd.close();
+    }
+
+    /**
+     * The recorded files hold the received packets, in order, indexed at
+     * their local offsets, and the metadata
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @Test
+    public void testRoundTrip() throws IOException {
+        start();
+        File root = folder.newFolder();
+        final Map<String, List<byte[]>> received = new HashMap<>();
+        MetadataCache metadata = new MetadataCache();
+        ViewerStream metadataStream = fSession.getMetadataStreams()[0];
+        try (final TraceSpooler spooler = new TraceSpooler(root)) {
+            spooler.setExtentSize(3000);
+            spooler.writeMetadata(metadataStream, metadata.update(fClient, metadataStream));
+            new LiveSessionPoller(fClient, fSession, new LiveSessionPoller.IndexHandler() {
+                private final PacketArena fArena = new PacketArena();
+                private final lttng_viewer_trace_packet fReply = new lttng_viewer_trace_packet();
+
+                @Override
+                public void onIndex(ViewerStream stream, lttng_viewer_index index) throws IOException {
+                    if (index.status != lttng_viewer_next_index_return_code.VIEWER_INDEX_OK) {
+                        return;
+                    }
+                    PacketBuffer packet = fClient.getPacket(stream.getId(), index, fReply, fArena);
+                    byte[] copy = new byte[packet.length()];
+                    packet.buffer().get(0, copy);
+                    List<byte[]> packets = received.get(stream.getChannelName());
+                    if (packets == null) {
+                        packets = new ArrayList<>();
+                        received.put(stream.getChannelName(), packets);
+                    }
+                    packets.add(copy);
+                    spooler.write(stream, index, packet);
+                    packet.release();
+                }
+            }).run();
+            assertEquals(STREAMS * PACKETS, spooler.getPacketsWritten());
+            assertEquals(STREAMS * PACKETS * PACKET_SIZE, spooler.getBytesWritten());
+            assertEquals(STREAMS, spooler.getFileCount());
+        }
+        File trace = new File(root, metadataStream.getPathName());
+        assertEquals(metadata.get(metadataStream.getCtfTraceId()).getText(),
+                new String(Files.readAllBytes(new File(trace, "metadata").toPath()), ViewerNames.CHARSET)); //$NON-NLS-1$
+        try (DiskTrace disk = new DiskTrace(trace)) {
+            assertEquals(STREAMS, disk.getStreamCount());
+            lttng_viewer_index index = new lttng_viewer_index();
+            ByteBuffer data = ByteBuffer.allocate(PACKET_SIZE);
+            for (int s = 0; s < STREAMS; s++) {
+                String name = disk.getStreamName(s);
+                assertEquals(PACKETS * PACKET_SIZE, new File(trace, name).length());
+                assertEquals(PACKETS, disk.getPacketCount(s));
+                for (int p = 0; p < PACKETS; p++) {
+                    disk.index(s, p, index);
+                    assertEquals(p * PACKET_SIZE, index.offset);
+                    assertEquals(PACKET_SIZE * 8, index.packet_size);
+                    data.clear();
+                    disk.read(s, index.offset, PACKET_SIZE, data);
+                    assertArrayEquals(received.get(name).get(p), data.array());
+                }
+            }
+        }
+    }
+
+    /**
+     * A rotation size of three packets splits every stream in numbered
+     * files, each with its index
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @Test
+    public void testRotation() throws IOException {
+        start();
+        File root = folder.newFolder();
+        int files = (PACKETS + 2) / 3;
+        try (TraceSpooler spooler = new TraceSpooler(root)) {
+            spooler.setRotationSize(3 * PACKET_SIZE);
+            new LiveSessionPoller(fClient, fSession, spooler.record(fClient, fSession)).run();
+            assertEquals(STREAMS * files, spooler.getFileCount());
+        }
+        File trace = new File(root, fSession.getMetadataStreams()[0].getPathName());
+        assertTrue(new File(trace, "metadata").length() > 0); //$NON-NLS-1$
+        try (DiskTrace disk = new DiskTrace(trace)) {
+            assertEquals(STREAMS * files, disk.getStreamCount());
+            int packets = 0;
+            for (int s = 0; s < disk.getStreamCount(); s++) {
+                assertEquals(disk.getPacketCount(s) * PACKET_SIZE, new File(trace, disk.getStreamName(s)).length());
+                packets += disk.getPacketCount(s);
+            }
+            assertEquals(STREAMS * PACKETS, packets);
+            assertEquals("channel0_0_0", disk.getStreamName(0)); //$NON-NLS-1$
+            assertEquals(3, disk.getPacketCount(0));
+        }
+    }
+}
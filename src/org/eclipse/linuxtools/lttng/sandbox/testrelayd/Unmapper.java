@@ -0,0 +1,81 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Releases file mappings without waiting for the garbage collector.
+ *
+ * Java has no public unmap: a {@link MappedByteBuffer} keeps its file mapped
+ * until it is collected, and Windows refuses to truncate or delete a file
+ * that is still mapped. The JDK exposes an unmap through
+ * sun.misc.Unsafe.invokeCleaner (module jdk.unsupported, Java 9 and later),
+ * used here when it is there.
+ *
+ * The buffer must not be touched after {@link #unmap(MappedByteBuffer)}, nor
+ * any duplicate or slice of it: the memory is gone and an access crashes the
+ * virtual machine. Callers drop their only reference first.
+ *
+ * @author Matthew Khouzam
+ */
+final class Unmapper {
+
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> type = Class.forName("sun.misc.Unsafe"); //$NON-NLS-1$
+            Field field = type.getDeclaredField("theUnsafe"); //$NON-NLS-1$
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = type.getMethod("invokeCleaner", ByteBuffer.class); //$NON-NLS-1$
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            /* not on this virtual machine, mappings go with the collector */
+            unsafe = null;
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private Unmapper() {
+    }
+
+    /**
+     * Unmap a buffer now if the virtual machine allows it
+     *
+     * @param buffer
+     *            the mapping, may be null
+     * @return whether the mapping was released, false if it is left to the
+     *         garbage collector
+     */
+    static boolean unmap(MappedByteBuffer buffer) {
+        if (buffer == null || INVOKE_CLEANER == null) {
+            return false;
+        }
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            return true;
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,762 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.RelayCommand;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.RelayResponse;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_attach_return_code;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_attach_session_request;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_attach_session_response;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_cmd;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_command;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_connect;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_connection_type;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_get_metadata;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_get_metadata_return_code;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_get_next_index;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_get_packet;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_get_packet_return_code;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_index;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_list_sessions;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_metadata_packet;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_next_index_return_code;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_seek;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_session;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_stream;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_trace_packet;
+
+/**
+ * Micro benchmarks of the viewer codec and client, run with
+ *
+ * <pre>
+ * java -cp bin org.eclipse.linuxtools.lttng.sandbox.testrelayd.ViewerBenchmark [--filter=regex] [--time=ms] [--warmup=ms] [--packet-size=bytes]
+ * </pre>
+ *
+ * Every benchmark is warmed up then run in batches for a fixed time on the
+ * calling thread. The report gives the time per operation, the bytes
+ * allocated per operation (from the thread allocation counter of HotSpot)
+ * and the collections and collection time seen during the measurement.
+ *
+ * The codec benchmarks cover getBytes/writeTo and populate/readFrom of every
+ * message. The loopback benchmarks run the index then packet loop of a live
+ * viewer against a {@link MockRelayD} serving endless streams.
+ *
+ * @author Matthew Khouzam
+ */
+public class ViewerBenchmark {
+
+    /**
+     * A benchmarked operation
+     */
+    public interface Operation {
+        /**
+         * Run the operation once
+         *
+         * @return a value depending on the work done, so it is not optimized
+         *         away
+         * @throws IOException
+         *             the operation failed
+         */
+        long run() throws IOException;
+    }
+
+    /**
+     * Measurement of one benchmark
+     */
+    public static class Result {
+        /** Benchmark name */
+        public final String name;
+        /** Operations measured */
+        public final long ops;
+        /** Time per operation, ns */
+        public final double nsPerOp;
+        /** Bytes allocated per operation, negative if unknown */
+        public final double bytesPerOp;
+        /** Collections during the measurement */
+        public final long gcCount;
+        /** Time spent collecting during the measurement, ms */
+        public final long gcTime;
+
+        Result(String name, long ops, double nsPerOp, double bytesPerOp, long gcCount, long gcTime) {
+            this.name = name;
+            this.ops = ops;
+            this.nsPerOp = nsPerOp;
+            this.bytesPerOp = bytesPerOp;
+            this.gcCount = gcCount;
+            this.gcTime = gcTime;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-48s %12.1f ns/op %14.0f ops/s %10.1f B/op %6d gc %6d ms", //$NON-NLS-1$
+                    name, nsPerOp, 1e9 / nsPerOp, bytesPerOp, gcCount, gcTime);
+        }
+    }
+
+    private static final int BATCH = 1024;
+    /* Indexes read ahead per stream in the coalesced benchmark */
+    private static final int READ_AHEAD = 8;
+    /* Bytes recorded before the spooler benchmark starts over */
+    private static final long SPOOL_LIMIT = 256L << 20;
+    /* Packets per stream of the replayed session */
+    private static final int REPLAY_PACKETS = 100;
+
+    private final ThreadMXBean fThreads = ManagementFactory.getThreadMXBean();
+    private final List<Result> fResults = new ArrayList<>();
+    private Pattern fFilter = Pattern.compile(".*"); //$NON-NLS-1$
+    private long fTime = 2000;
+    private long fWarmup = 1000;
+    private int fPacketSize = 4096;
+    private long fSink;
+
+    /**
+     * @param regex
+     *            only run the benchmarks whose name matches
+     */
+    public void setFilter(String regex) {
+        fFilter = Pattern.compile(regex);
+    }
+
+    /**
+     * @param millis
+     *            the measurement time of each benchmark
+     */
+    public void setTime(long millis) {
+        fTime = millis;
+    }
+
+    /**
+     * @param millis
+     *            the warm up time of each benchmark
+     */
+    public void setWarmup(long millis) {
+        fWarmup = millis;
+    }
+
+    /**
+     * @param bytes
+     *            the packet size served by the mock relayd
+     */
+    public void setPacketSize(int bytes) {
+        fPacketSize = bytes;
+    }
+
+    /**
+     * @return the results so far
+     */
+    public List<Result> getResults() {
+        return fResults;
+    }
+
+    /**
+     * Measure an operation, if it matches the filter
+     *
+     * @param name
+     *            the benchmark name
+     * @param op
+     *            the operation
+     * @return the result, null if filtered out
+     * @throws IOException
+     *             the operation failed
+     */
+    public Result measure(String name, Operation op) throws IOException {
+        if (!fFilter.matcher(name).find()) {
+            return null;
+        }
+        runFor(op, fWarmup);
+        long gcCount = gcCount();
+        long gcTime = gcTime();
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        long ops = runFor(op, fTime);
+        long elapsed = System.nanoTime() - start;
+        long bytes = allocatedBytes() - allocated;
+        Result result = new Result(name, ops, (double) elapsed / ops,
+                (allocated < 0) ? -1 : (double) bytes / ops,
+                gcCount() - gcCount, gcTime() - gcTime);
+        fResults.add(result);
+        System.out.println(result);
+        return result;
+    }
+
+    private long runFor(Operation op, long millis) throws IOException {
+        long deadline = System.nanoTime() + millis * 1000000L;
+        long ops = 0;
+        long sink = 0;
+        do {
+            for (int i = 0; i < BATCH; i++) {
+                sink += op.run();
+            }
+            ops += BATCH;
+        } while (System.nanoTime() < deadline);
+        fSink += sink;
+        return ops;
+    }
+
+    private long allocatedBytes() {
+        if (fThreads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) fThreads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return time;
+    }
+
+    // ------------------------------------------------------------------------
+    // Codec
+    // ------------------------------------------------------------------------
+
+    /**
+     * Encode and decode every message, with the byte array and with the
+     * buffer methods
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    public void runCodec() throws IOException {
+        lttng_viewer_cmd cmd = new lttng_viewer_cmd();
+        cmd.cmd = lttng_viewer_command.VIEWER_GET_NEXT_INDEX;
+        cmd.data_size = 8;
+        lttng_viewer_connect connect = new lttng_viewer_connect();
+        connect.major = 2;
+        connect.minor = 4;
+        connect.type = lttng_viewer_connection_type.VIEWER_CLIENT_COMMAND;
+        lttng_viewer_list_sessions list = new lttng_viewer_list_sessions();
+        list.sessions_count = 3;
+        lttng_viewer_attach_session_request attach = new lttng_viewer_attach_session_request();
+        attach.session_id = 1;
+        attach.seek = lttng_viewer_seek.VIEWER_SEEK_LAST;
+        lttng_viewer_attach_session_response attached = new lttng_viewer_attach_session_response();
+        attached.status = lttng_viewer_attach_return_code.VIEWER_ATTACH_OK;
+        attached.streams_count = 5;
+        lttng_viewer_get_next_index nextIndex = new lttng_viewer_get_next_index();
+        nextIndex.stream_id = 2;
+        lttng_viewer_index index = new lttng_viewer_index();
+        new SyntheticTrace(0, fPacketSize, 1.0, 1000000L).index(42, index);
+        index.stream_id = 2;
+        index.status = lttng_viewer_next_index_return_code.VIEWER_INDEX_OK;
+        lttng_viewer_get_packet getPacket = new lttng_viewer_get_packet();
+        getPacket.stream_id = 2;
+        getPacket.offset = index.offset;
+        getPacket.len = fPacketSize;
+        lttng_viewer_trace_packet packet = new lttng_viewer_trace_packet();
+        packet.status = lttng_viewer_get_packet_return_code.VIEWER_GET_PACKET_OK;
+        packet.len = fPacketSize;
+        lttng_viewer_get_metadata getMetadata = new lttng_viewer_get_metadata();
+        getMetadata.stream_id = 1;
+        lttng_viewer_metadata_packet metadata = new lttng_viewer_metadata_packet();
+        metadata.status = lttng_viewer_get_metadata_return_code.VIEWER_METADATA_OK;
+        metadata.len = 2048;
+
+        Object[] messages = { cmd, connect, list, attach, attached, nextIndex, index, getPacket, packet, getMetadata, metadata };
+        for (Object message : messages) {
+            byte[] wire = ((RelayCommand) message).getBytes();
+            benchmarkEncode(message.getClass().getSimpleName(), (RelayCommand) message, wire.length);
+            benchmarkDecode(message.getClass().getSimpleName(), (RelayResponse) message, wire);
+        }
+        lttng_viewer_session session = new lttng_viewer_session();
+        benchmarkDecode("lttng_viewer_session", session, new byte[session.size()]); //$NON-NLS-1$
+        lttng_viewer_stream stream = new lttng_viewer_stream();
+        benchmarkDecode("lttng_viewer_stream", stream, new byte[stream.size()]); //$NON-NLS-1$
+    }
+
+    private void benchmarkEncode(String name, final RelayCommand message, int size) throws IOException {
+        final ByteBuffer bb = ByteBuffer.allocateDirect(size);
+        measure(name + ".getBytes", new Operation() { //$NON-NLS-1$
+            @Override
+            public long run() {
+                return message.getBytes().length;
+            }
+        });
+        measure(name + ".writeTo", new Operation() { //$NON-NLS-1$
+            @Override
+            public long run() {
+                bb.clear();
+                message.writeTo(bb);
+                return bb.position();
+            }
+        });
+    }
+
+    private void benchmarkDecode(String name, final RelayResponse message, final byte[] wire) throws IOException {
+        final ByteBuffer bb = ByteBuffer.allocateDirect(wire.length);
+        bb.put(wire);
+        measure(name + ".populate", new Operation() { //$NON-NLS-1$
+            @Override
+            public long run() {
+                message.populate(wire);
+                return wire.length;
+            }
+        });
+        measure(name + ".readFrom", new Operation() { //$NON-NLS-1$
+            @Override
+            public long run() {
+                bb.clear();
+                message.readFrom(bb);
+                return bb.position();
+            }
+        });
+    }
+
+    // ------------------------------------------------------------------------
+    // Decoder
+    // ------------------------------------------------------------------------
+
+    /**
+     * Walk the events of a synthetic packet with a {@link CtfPacketCursor}
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    public void runDecoder() throws IOException {
+        SyntheticTrace trace = new SyntheticTrace(0, fPacketSize, 1.0, 1000000L);
+        final CtfPacketCursor cursor = new CtfPacketCursor(CtfMetadata.parse(trace.getMetadata()));
+        final int seq = cursor.getMetadata().getStream(0).getEvent(0).getFields().indexOf("seq"); //$NON-NLS-1$
+        final ByteBuffer packet = ByteBuffer.allocateDirect(fPacketSize);
+        trace.writePacket(0, 0, packet);
+        packet.flip();
+        measure("ctf.decode(" + trace.getEventsPerPacket() + " events)", new Operation() { //$NON-NLS-1$ //$NON-NLS-2$
+            @Override
+            public long run() throws IOException {
+                cursor.reset(packet);
+                long sum = 0;
+                while (cursor.next()) {
+                    sum += cursor.getLong(seq);
+                }
+                return sum;
+            }
+        });
+    }
+
+    /**
+     * Measure the same decoding through the per-stream lanes of a
+     * {@link ParallelPacketDecoder}, results handed over in order: the cost
+     * of the hand-off on one core, the speed-up on several
+     *
+     * @throws IOException
+     *             the metadata could not be parsed
+     */
+    public void runParallelDecoder() throws IOException {
+        final int lanes = 4;
+        final SyntheticTrace trace = new SyntheticTrace(lanes, fPacketSize, 1.0, 1000000L);
+        final String tsdl = trace.getMetadata();
+        final ByteBuffer packet = ByteBuffer.allocateDirect(fPacketSize);
+        trace.writePacket(0, 0, packet);
+        packet.flip();
+        final ViewerStream[] streams = new ViewerStream[lanes];
+        ViewerNames names = new ViewerNames();
+        for (int i = 0; i < lanes; i++) {
+            streams[i] = ViewerStream.create(i, 0, false, "bench", "channel0_" + i, names); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        final PacketArena arena = new PacketArena();
+        final lttng_viewer_index index = new lttng_viewer_index();
+        final long[] events = new long[1];
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            final ParallelPacketDecoder<Integer> decoder = new ParallelPacketDecoder<>(pool, ParallelPacketDecoder.DEFAULT_WINDOW,
+                    new ParallelPacketDecoder.DecoderFactory<Integer>() {
+                        @Override
+                        public ParallelPacketDecoder.Decoder<Integer> create(ViewerStream stream) throws IOException {
+                            final CtfPacketCursor cursor = new CtfPacketCursor(CtfMetadata.parse(tsdl));
+                            return new ParallelPacketDecoder.Decoder<Integer>() {
+                                @Override
+                                public Integer decode(LivePacket live) throws IOException {
+                                    cursor.reset(live.buffer());
+                                    int count = 0;
+                                    while (cursor.next()) {
+                                        count++;
+                                    }
+                                    return Integer.valueOf(count);
+                                }
+                            };
+                        }
+                    }, new ParallelPacketDecoder.ResultHandler<Integer>() {
+                        @Override
+                        public void onResult(ViewerStream stream, long sequence, Integer result) {
+                            events[0] += result.intValue();
+                        }
+
+                        @Override
+                        public void onError(ViewerStream stream, long sequence, Exception error) {
+                            throw new IllegalStateException(error);
+                        }
+
+                        @Override
+                        public void onComplete(Throwable error) {
+                            /* fed by submit */
+                        }
+                    }, true);
+            final int[] next = new int[1];
+            measure("ctf.decode(parallel x" + lanes + " lanes, " + pool.getParallelism() + " threads)", new Operation() { //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+                @Override
+                public long run() throws IOException {
+                    PacketBuffer data = arena.acquire(fPacketSize);
+                    data.buffer().put(0, packet, 0, fPacketSize);
+                    decoder.submit(new LivePacket(streams[next[0]++ % lanes], index, data));
+                    return next[0];
+                }
+            });
+            decoder.awaitIdle();
+            fSink += events[0];
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Measure the folding of indexes into a time histogram
+     *
+     * @throws IOException
+     *             never
+     */
+    public void runHistogram() throws IOException {
+        final IndexHistogram histogram = new IndexHistogram(1000000L);
+        final lttng_viewer_index index = new lttng_viewer_index();
+        index.packet_size = fPacketSize * 8L;
+        measure("histogram.add(" + histogram.getLevelCount() + " levels)", new Operation() { //$NON-NLS-1$ //$NON-NLS-2$
+            @Override
+            public long run() {
+                index.timestamp_begin = index.timestamp_end + 1;
+                index.timestamp_end += 300000;
+                histogram.add(0, index);
+                return index.timestamp_end;
+            }
+        });
+    }
+
+    /**
+     * Measure the recording of packets into a local trace. The recording is
+     * started again every {@link #SPOOL_LIMIT} bytes to bound the disk usage,
+     * which is part of the measure.
+     *
+     * @throws IOException
+     *             the files could not be written
+     */
+    public void runSpooler() throws IOException {
+        final File directory = Files.createTempDirectory("spool").toFile(); //$NON-NLS-1$
+        final ViewerStream stream = ViewerStream.create(0, 0, false, "bench", "channel0_0", new ViewerNames()); //$NON-NLS-1$ //$NON-NLS-2$
+        final PacketBuffer packet = new PacketArena().acquire(fPacketSize);
+        final lttng_viewer_index index = new lttng_viewer_index();
+        index.packet_size = fPacketSize * 8L;
+        index.content_size = index.packet_size;
+        final TraceSpooler[] spooler = { new TraceSpooler(directory) };
+        try {
+            measure("spool.write(" + fPacketSize + "B)", new Operation() { //$NON-NLS-1$ //$NON-NLS-2$
+                @Override
+                public long run() throws IOException {
+                    if (spooler[0].getBytesWritten() >= SPOOL_LIMIT) {
+                        spooler[0].close();
+                        delete(directory);
+                        spooler[0] = new TraceSpooler(directory);
+                    }
+                    index.offset += fPacketSize;
+                    index.timestamp_begin = index.offset;
+                    index.timestamp_end = index.offset;
+                    spooler[0].write(stream, index, packet);
+                    return index.offset;
+                }
+            });
+        } finally {
+            spooler[0].close();
+            delete(directory);
+            Files.deleteIfExists(directory.toPath());
+        }
+    }
+
+    private static void delete(File directory) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                delete(file);
+            }
+            Files.delete(file.toPath());
+        }
+    }
+
+    /**
+     * Capture a session of the mock relayd, then measure the client replaying
+     * it from memory as fast as possible: one operation is a whole session
+     *
+     * @throws IOException
+     *             the capture could not be written or replayed
+     */
+    public void runReplay() throws IOException {
+        File file = File.createTempFile("viewer", ".capture"); //$NON-NLS-1$ //$NON-NLS-2$
+        try {
+            MockRelayD relayd = new MockRelayD();
+            relayd.setStreamsPerSession(4);
+            relayd.setPacketSize(fPacketSize);
+            relayd.setPacketCount(REPLAY_PACKETS);
+            InetSocketAddress address = relayd.start(0);
+            try (ViewerClient client = ViewerClient.open(address.getHostString(), address.getPort());
+                    WireCapture capture = new WireCapture(file)) {
+                client.setCapture(capture);
+                readSession(client, new PacketArena());
+            } finally {
+                relayd.close();
+            }
+            final WireReplay replay = new WireReplay(file);
+            replay.setSpeed(0);
+            final PacketArena arena = new PacketArena();
+            measure("replay.session(" + replay.getRecordCount() + " records)", new Operation() { //$NON-NLS-1$ //$NON-NLS-2$
+                @Override
+                public long run() throws IOException {
+                    try (ViewerClient client = new ViewerClient(replay.channel())) {
+                        return readSession(client, arena);
+                    }
+                }
+            });
+        } finally {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    /* attach to the first session and read its streams to the end */
+    private static long readSession(ViewerClient client, PacketArena arena) throws IOException {
+        client.connect();
+        AttachedSession session = client.attachSession(1, lttng_viewer_seek.VIEWER_SEEK_BEGINNING);
+        lttng_viewer_index index = new lttng_viewer_index();
+        lttng_viewer_trace_packet reply = new lttng_viewer_trace_packet();
+        long packets = 0;
+        for (long id : session.getDataStreamIds()) {
+            while (client.getNextIndex(id, index).status != lttng_viewer_next_index_return_code.VIEWER_INDEX_HUP) {
+                if (index.status == lttng_viewer_next_index_return_code.VIEWER_INDEX_OK) {
+                    client.getPacket(id, index, reply, arena).release();
+                    packets++;
+                }
+            }
+        }
+        return packets;
+    }
+
+    // ------------------------------------------------------------------------
+    // Loopback
+    // ------------------------------------------------------------------------
+
+    /**
+     * Run the live viewer loop against a mock relayd on loopback
+     *
+     * @throws IOException
+     *             network error
+     */
+    public void runLoopback() throws IOException {
+        MockRelayD relayd = new MockRelayD();
+        relayd.setStreamsPerSession(4);
+        relayd.setPacketSize(fPacketSize);
+        InetSocketAddress address = relayd.start(0);
+        final ViewerClient client = ViewerClient.open(address.getHostString(), address.getPort());
+        try {
+            client.connect();
+            final long[] ids = client.attachSession(1, lttng_viewer_seek.VIEWER_SEEK_BEGINNING).getDataStreamIds();
+            final lttng_viewer_index[] replies = new lttng_viewer_index[ids.length];
+            for (int i = 0; i < replies.length; i++) {
+                replies[i] = new lttng_viewer_index();
+            }
+            final lttng_viewer_trace_packet packet = new lttng_viewer_trace_packet();
+            final ByteBuffer[] data = { ByteBuffer.allocateDirect(fPacketSize).order(ByteOrder.LITTLE_ENDIAN) };
+            final int[] next = new int[1];
+
+            measure("loopback.getNextIndex", new Operation() { //$NON-NLS-1$
+                @Override
+                public long run() throws IOException {
+                    int i = next[0]++ % ids.length;
+                    return client.getNextIndex(ids[i], replies[i]).offset;
+                }
+            });
+            measure("loopback.getNextIndexes(x" + ids.length + ')', new Operation() { //$NON-NLS-1$
+                @Override
+                public long run() throws IOException {
+                    return client.getNextIndexes(ids, ids.length, replies);
+                }
+            });
+            measure("loopback.index+packet(" + fPacketSize + "B)", new Operation() { //$NON-NLS-1$ //$NON-NLS-2$
+                @Override
+                public long run() throws IOException {
+                    int i = next[0]++ % ids.length;
+                    lttng_viewer_index index = client.getNextIndex(ids[i], replies[i]);
+                    data[0].clear();
+                    data[0] = client.getPacket(ids[i], index, packet, data[0]);
+                    return data[0].position();
+                }
+            });
+            final PacketArena arena = new PacketArena();
+            measure("loopback.index+packet(" + fPacketSize + "B, arena)", new Operation() { //$NON-NLS-1$ //$NON-NLS-2$
+                @Override
+                public long run() throws IOException {
+                    int i = next[0]++ % ids.length;
+                    lttng_viewer_index index = client.getNextIndex(ids[i], replies[i]);
+                    PacketBuffer buffer = client.getPacket(ids[i], index, packet, arena);
+                    int length = buffer.length();
+                    buffer.release();
+                    return length;
+                }
+            });
+            final lttng_viewer_index[] ahead = new lttng_viewer_index[READ_AHEAD];
+            for (int i = 0; i < ahead.length; i++) {
+                ahead[i] = new lttng_viewer_index();
+            }
+            final PacketBuffer[] packets = new PacketBuffer[READ_AHEAD];
+            measure("loopback.readahead+coalesced(x" + READ_AHEAD + ", " + fPacketSize + "B)", new Operation() { //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+                @Override
+                public long run() throws IOException {
+                    int i = next[0]++ % ids.length;
+                    client.getNextIndexes(ids[i], READ_AHEAD, ahead);
+                    int count = client.getPackets(ids[i], ahead, READ_AHEAD, READ_AHEAD * fPacketSize, packet, arena, packets);
+                    for (PacketBuffer buffer : packets) {
+                        if (buffer != null) {
+                            buffer.release();
+                        }
+                    }
+                    return count;
+                }
+            });
+        } finally {
+            client.close();
+            relayd.close();
+        }
+    }
+
+    /**
+     * Poll every stream of a session and fetch its packet at once, on one
+     * connection of the asynchronous client: one operation is a round of all
+     * the streams
+     *
+     * @throws IOException
+     *             network error
+     */
+    public void runAsync() throws IOException {
+        MockRelayD relayd = new MockRelayD();
+        relayd.setStreamsPerSession(4);
+        relayd.setPacketSize(fPacketSize);
+        InetSocketAddress address = relayd.start(0);
+        final PacketArena arena = new PacketArena();
+        try (final AsyncViewerClient client = AsyncViewerClient.open(address.getHostString(), address.getPort())) {
+            final long[] ids;
+            try {
+                client.connect();
+                ids = client.attachSession(1, lttng_viewer_seek.VIEWER_SEEK_BEGINNING).get().getDataStreamIds();
+            } catch (InterruptedException | ExecutionException e) {
+                throw new IOException(e);
+            }
+            final lttng_viewer_index[] replies = new lttng_viewer_index[ids.length];
+            final lttng_viewer_trace_packet[] packets = new lttng_viewer_trace_packet[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                replies[i] = new lttng_viewer_index();
+                packets[i] = new lttng_viewer_trace_packet();
+            }
+            @SuppressWarnings({ "unchecked", "rawtypes" })
+            final CompletableFuture<PacketBuffer>[] fetches = new CompletableFuture[ids.length];
+            measure("loopback.async.index+packet(x" + ids.length + ", " + fPacketSize + "B)", new Operation() { //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+                @Override
+                public long run() throws IOException {
+                    for (int i = 0; i < ids.length; i++) {
+                        final int s = i;
+                        fetches[i] = client.getNextIndex(ids[i], replies[i]).thenCompose(new Function<lttng_viewer_index, CompletableFuture<PacketBuffer>>() {
+                            @Override
+                            public CompletableFuture<PacketBuffer> apply(lttng_viewer_index index) {
+                                return client.getPacket(ids[s], index, packets[s], arena);
+                            }
+                        });
+                    }
+                    long bytes = 0;
+                    try {
+                        for (CompletableFuture<PacketBuffer> fetch : fetches) {
+                            PacketBuffer buffer = fetch.get();
+                            bytes += buffer.length();
+                            buffer.release();
+                        }
+                    } catch (InterruptedException | ExecutionException e) {
+                        throw new IOException(e);
+                    }
+                    return bytes;
+                }
+            });
+        } finally {
+            relayd.close();
+        }
+    }
+
+    /**
+     * Run the benchmarks. Options are --name=value: filter (a regular
+     * expression on the benchmark names), time and warmup (milliseconds per
+     * benchmark) and packet-size.
+     *
+     * @param args
+     *            the options
+     * @throws IOException
+     *             a benchmark failed
+     */
+    public static void main(String[] args) throws IOException {
+        ViewerBenchmark benchmark = new ViewerBenchmark();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) { //$NON-NLS-1$
+                throw new IllegalArgumentException("Expected --name=value, got " + arg); //$NON-NLS-1$
+            }
+            String name = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+            switch (name) {
+            case "filter": benchmark.setFilter(value); break; //$NON-NLS-1$
+            case "time": benchmark.setTime(Long.parseLong(value)); break; //$NON-NLS-1$
+            case "warmup": benchmark.setWarmup(Long.parseLong(value)); break; //$NON-NLS-1$
+            case "packet-size": benchmark.setPacketSize(Integer.parseInt(value)); break; //$NON-NLS-1$
+            default:
+                throw new IllegalArgumentException("Unknown option " + name); //$NON-NLS-1$
+            }
+        }
+        System.out.println(System.getProperty("java.vm.name") + ' ' + System.getProperty("java.version")); //$NON-NLS-1$ //$NON-NLS-2$
+        benchmark.runCodec();
+        benchmark.runDecoder();
+        benchmark.runParallelDecoder();
+        benchmark.runHistogram();
+        benchmark.runSpooler();
+        benchmark.runReplay();
+        benchmark.runLoopback();
+        benchmark.runAsync();
+        System.out.println("# sink " + benchmark.fSink); //$NON-NLS-1$
+    }
+}
@@ -0,0 +1,876 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.FixedSize;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.RelayCommand;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_attach_return_code;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_attach_session_request;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_attach_session_response;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_cmd;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_command;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_connect;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_connection_type;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_get_metadata;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_get_metadata_return_code;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_get_next_index;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_get_packet;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_get_packet_return_code;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_index;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_list_sessions;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_metadata_packet;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_next_index_return_code;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_seek;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_trace_packet;
+
+/**
+ * Live viewer client for lttng-relayd 2.4.
+ *
+ * The client owns one viewer connection. Every request is encoded in a
+ * reusable direct buffer (header and payload together) and sent with a single
+ * write, replies are read into a second reusable direct buffer. Indexes and
+ * packet headers are decoded into caller supplied objects so that a polling
+ * loop does not allocate once it is running.
+ *
+ * When the channel is a non-blocking {@link SelectableChannel}, the client
+ * waits on a private {@link Selector} which gives it a read timeout. Any other
+ * {@link ByteChannel} is used as is, in blocking mode.
+ *
+ * The class is not thread safe, one connection handles one request at a time.
+ *
+ * @author Matthew Khouzam
+ */
+public class ViewerClient implements Closeable {
+
+    /** Default lttng-relayd viewer port */
+    public static final int DEFAULT_PORT = 5344;
+
+    /** Default read timeout, in milliseconds */
+    public static final long DEFAULT_TIMEOUT = 10000;
+
+    private static final int MAJOR = 2;
+    private static final int MINOR = 4;
+    /* Needs to hold the biggest fixed size reply, lttng_viewer_stream */
+    private static final int RECEIVE_BUFFER_SIZE = 8192;
+    private static final int NEXT_INDEX_REQUEST_SIZE = lttng_viewer_cmd.SIZE + lttng_viewer_get_next_index.SIZE;
+    /*
+     * Requests in flight in a pipelined poll, bounded so that the replies fit
+     * in the receive buffer and the peer never blocks on a full socket while we
+     * are still writing
+     */
+    private static final int PIPELINE_WINDOW = RECEIVE_BUFFER_SIZE / lttng_viewer_index.SIZE;
+    private static final int SEND_BUFFER_SIZE = PIPELINE_WINDOW * NEXT_INDEX_REQUEST_SIZE;
+
+    /**
+     * Receives packet data as it arrives, see
+     * {@link ViewerClient#streamPacket(long, lttng_viewer_index, boolean, int, lttng_viewer_trace_packet, PacketConsumer)}
+     */
+    public interface PacketConsumer {
+        /**
+         * Some packet data arrived
+         *
+         * @param streamId
+         *            the stream
+         * @param offset
+         *            the offset of the first byte in the stream file
+         * @param data
+         *            the bytes between position and limit, only valid during
+         *            the call
+         * @throws IOException
+         *             stop the transfer, the connection is then unusable
+         */
+        void onData(long streamId, long offset, ByteBuffer data) throws IOException;
+    }
+
+    private final ByteChannel fChannel;
+    private final Selector fSelector;
+    private final SelectionKey fKey;
+    private final ByteBuffer fSend = ByteBuffer.allocateDirect(SEND_BUFFER_SIZE).order(ByteOrder.BIG_ENDIAN);
+    private final ByteBuffer fReceive = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE).order(ByteOrder.BIG_ENDIAN);
+    /* Reused requests, only their fields change between calls */
+    private final lttng_viewer_cmd fHeader = new lttng_viewer_cmd();
+    private final lttng_viewer_connect fConnect = new lttng_viewer_connect();
+    private final lttng_viewer_attach_session_request fAttach = new lttng_viewer_attach_session_request();
+    private final lttng_viewer_get_next_index fNextIndex = new lttng_viewer_get_next_index();
+    private final lttng_viewer_get_packet fGetPacket = new lttng_viewer_get_packet();
+    private final lttng_viewer_get_metadata fGetMetadata = new lttng_viewer_get_metadata();
+    /* Reused replies and views */
+    private final lttng_viewer_list_sessions fListSessions = new lttng_viewer_list_sessions();
+    private final lttng_viewer_attach_session_response fAttachResponse = new lttng_viewer_attach_session_response();
+    private final ViewerSession.View fSessionView = new ViewerSession.View();
+    private final ViewerStream.View fStreamView = new ViewerStream.View();
+    private ViewerNames fNames = new ViewerNames();
+    private long fTimeout = DEFAULT_TIMEOUT;
+    private long fViewerSessionId = -1;
+    private ViewerMetrics fMetrics;
+    private WireCapture fCapture;
+
+    /**
+     * Open a viewer connection to a relay daemon. The socket is switched to
+     * non-blocking mode once connected.
+     *
+     * @param host
+     *            the relayd host name or address
+     * @param port
+     *            the relayd viewer port, normally {@link #DEFAULT_PORT}
+     * @return the client, not yet connected at the protocol level, see
+     *         {@link #connect()}
+     * @throws IOException
+     *             the socket could not be opened
+     */
+    public static ViewerClient open(String host, int port) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+            channel.configureBlocking(false);
+            return new ViewerClient(channel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Wrap an existing channel.
+     *
+     * @param channel
+     *            the channel to the relay daemon, it is owned by the client
+     *            from now on
+     * @throws IOException
+     *             the selector could not be opened
+     */
+    public ViewerClient(ByteChannel channel) throws IOException {
+        fChannel = channel;
+        if (channel instanceof SelectableChannel && !((SelectableChannel) channel).isBlocking()) {
+            fSelector = Selector.open();
+            fKey = ((SelectableChannel) channel).register(fSelector, 0);
+        } else {
+            fSelector = null;
+            fKey = null;
+        }
+    }
+
+    /**
+     * Set the read timeout
+     *
+     * @param timeout
+     *            the time to wait for a reply, in milliseconds, 0 waits
+     *            forever. Ignored for blocking channels.
+     */
+    public void setTimeout(long timeout) {
+        fTimeout = timeout;
+    }
+
+    /**
+     * Share a name pool between clients, for example all the connections to
+     * the same relay daemon
+     *
+     * @param names
+     *            the pool used to decode session and stream names
+     */
+    public void setNames(ViewerNames names) {
+        fNames = names;
+    }
+
+    /**
+     * Record round trips and replies. Without metrics the client does not
+     * even read the clock.
+     *
+     * @param metrics
+     *            where to record, may be shared between clients, null to stop
+     *            recording
+     */
+    public void setMetrics(ViewerMetrics metrics) {
+        fMetrics = metrics;
+    }
+
+    /**
+     * Record every request and every read of the connection, to replay them
+     * with {@link WireReplay}
+     *
+     * @param capture
+     *            where to record, owned by the caller, null to stop recording
+     */
+    public void setCapture(WireCapture capture) {
+        fCapture = capture;
+    }
+
+    /**
+     * Get the viewer session id given by the relay daemon
+     *
+     * @return the id, or -1 if {@link #connect()} was not called
+     */
+    public long getViewerSessionId() {
+        return fViewerSessionId;
+    }
+
+    // ------------------------------------------------------------------------
+    // Commands
+    // ------------------------------------------------------------------------
+
+    /**
+     * Send VIEWER_CONNECT as a command connection
+     *
+     * @return the viewer session id
+     * @throws IOException
+     *             network error or the relayd does not speak 2.x
+     */
+    public long connect() throws IOException {
+        fConnect.viewer_session_id = 0;
+        fConnect.major = MAJOR;
+        fConnect.minor = MINOR;
+        fConnect.type = lttng_viewer_connection_type.VIEWER_CLIENT_COMMAND;
+        long start = begin();
+        send(lttng_viewer_command.VIEWER_CONNECT, fConnect);
+
+        receive(fConnect.size());
+        fConnect.readFrom(fReceive);
+        end(lttng_viewer_command.VIEWER_CONNECT, start);
+        if (fConnect.major != MAJOR) {
+            throw new IOException("Unsupported relayd major version " + fConnect.major); //$NON-NLS-1$
+        }
+        fViewerSessionId = fConnect.viewer_session_id;
+        return fViewerSessionId;
+    }
+
+    /**
+     * Send VIEWER_LIST_SESSIONS. Sessions are decoded in place in the receive
+     * buffer, only their trimmed names are kept.
+     *
+     * @return the sessions
+     * @throws IOException
+     *             network error
+     */
+    public ViewerSession[] listSessions() throws IOException {
+        long start = begin();
+        send(lttng_viewer_command.VIEWER_LIST_SESSIONS, null);
+
+        receive(lttng_viewer_list_sessions.FIXED_SIZE);
+        fListSessions.readFrom(fReceive);
+        ViewerSession[] sessions = new ViewerSession[fListSessions.sessions_count];
+        for (int i = 0; i < sessions.length; i++) {
+            receive(ViewerSession.SIZE);
+            sessions[i] = fSessionView.wrap(fReceive, 0).toSession(fNames);
+        }
+        end(lttng_viewer_command.VIEWER_LIST_SESSIONS, start);
+        return sessions;
+    }
+
+    /**
+     * Send VIEWER_ATTACH_SESSION. The streams are only read if the attach
+     * succeeded. They are decoded in place in the receive buffer, only their
+     * trimmed names are kept.
+     *
+     * @param sessionId
+     *            the session id from {@link #listSessions()}
+     * @param seek
+     *            where to start reading the trace
+     * @return the attach status and streams
+     * @throws IOException
+     *             network error
+     */
+    public AttachedSession attachSession(long sessionId, lttng_viewer_seek seek) throws IOException {
+        fAttach.session_id = sessionId;
+        fAttach.offset = 0;
+        fAttach.seek = seek;
+        long start = begin();
+        send(lttng_viewer_command.VIEWER_ATTACH_SESSION, fAttach);
+
+        receive(lttng_viewer_attach_session_response.FIXED_SIZE);
+        fAttachResponse.readFrom(fReceive);
+        if (fAttachResponse.status != lttng_viewer_attach_return_code.VIEWER_ATTACH_OK) {
+            end(lttng_viewer_command.VIEWER_ATTACH_SESSION, start);
+            return new AttachedSession(sessionId, fAttachResponse.status, new ViewerStream[0]);
+        }
+        ViewerStream[] streams = new ViewerStream[fAttachResponse.streams_count];
+        for (int i = 0; i < streams.length; i++) {
+            receive(ViewerStream.SIZE);
+            streams[i] = fStreamView.wrap(fReceive, 0).toStream(fNames);
+        }
+        end(lttng_viewer_command.VIEWER_ATTACH_SESSION, start);
+        return new AttachedSession(sessionId, fAttachResponse.status, streams);
+    }
+
+    /**
+     * Send VIEWER_GET_NEXT_INDEX
+     *
+     * @param streamId
+     *            the stream to query
+     * @param reply
+     *            the index to fill, it is reused by the caller
+     * @return reply
+     * @throws IOException
+     *             network error
+     */
+    public lttng_viewer_index getNextIndex(long streamId, lttng_viewer_index reply) throws IOException {
+        fNextIndex.stream_id = streamId;
+        long start = begin();
+        send(lttng_viewer_command.VIEWER_GET_NEXT_INDEX, fNextIndex);
+
+        receive(reply.size());
+        reply.readFrom(fReceive);
+        if (fMetrics != null) {
+            fMetrics.onCommand(lttng_viewer_command.VIEWER_GET_NEXT_INDEX, System.nanoTime() - start);
+            fMetrics.onIndex(streamId, reply);
+        }
+        return reply;
+    }
+
+    /**
+     * Send VIEWER_GET_NEXT_INDEX for several streams at once. The requests are
+     * written back to back with a single write, then the replies are read in
+     * the same order, since the relay daemon answers a connection in order. A
+     * poll of all the streams of a session costs one round trip instead of
+     * one per stream.
+     *
+     * @param streamIds
+     *            the streams to query
+     * @param count
+     *            the number of stream ids to use
+     * @param replies
+     *            the indexes to fill, replies[i] is the answer for
+     *            streamIds[i]
+     * @return count
+     * @throws IOException
+     *             network error
+     */
+    public int getNextIndexes(long[] streamIds, int count, lttng_viewer_index[] replies) throws IOException {
+        return nextIndexes(streamIds, -1, count, replies);
+    }
+
+    /**
+     * Read ahead the indexes of one stream: send count VIEWER_GET_NEXT_INDEX
+     * for it back to back, the relay daemon answers each with the index after
+     * the previous one. A stream with a backlog gives its next count packets
+     * in one round trip, see
+     * {@link #getPackets(long, lttng_viewer_index[], int, int, lttng_viewer_trace_packet, PacketArena, PacketBuffer[])}.
+     *
+     * @param streamId
+     *            the stream to query
+     * @param count
+     *            the number of indexes to ask
+     * @param replies
+     *            the indexes to fill, in stream order. Once one is not OK
+     *            the next ones usually are not either.
+     * @return count
+     * @throws IOException
+     *             network error
+     */
+    public int getNextIndexes(long streamId, int count, lttng_viewer_index[] replies) throws IOException {
+        return nextIndexes(null, streamId, count, replies);
+    }
+
+    /* streamIds[i] for request i, or streamId for all of them if null */
+    private int nextIndexes(long[] streamIds, long streamId, int count, lttng_viewer_index[] replies) throws IOException {
+        for (int start = 0; start < count; start += PIPELINE_WINDOW) {
+            int end = Math.min(count, start + PIPELINE_WINDOW);
+            fSend.clear();
+            fHeader.cmd = lttng_viewer_command.VIEWER_GET_NEXT_INDEX;
+            fHeader.data_size = fNextIndex.size();
+            for (int i = start; i < end; i++) {
+                fNextIndex.stream_id = (streamIds == null) ? streamId : streamIds[i];
+                fHeader.writeTo(fSend);
+                fNextIndex.writeTo(fSend);
+            }
+            long sent = begin();
+            flush();
+
+            receive((end - start) * lttng_viewer_index.SIZE);
+            for (int i = start; i < end; i++) {
+                replies[i].readFrom(fReceive);
+            }
+            if (fMetrics != null) {
+                /* every request of the window waited for the whole window */
+                long nanos = System.nanoTime() - sent;
+                for (int i = start; i < end; i++) {
+                    fMetrics.onCommand(lttng_viewer_command.VIEWER_GET_NEXT_INDEX, nanos);
+                    fMetrics.onIndex((streamIds == null) ? streamId : streamIds[i], replies[i]);
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Send VIEWER_GET_PACKET for the packet described by an index
+     *
+     * @param streamId
+     *            the stream
+     * @param index
+     *            an index with status VIEWER_INDEX_OK
+     * @param reply
+     *            the packet header to fill, its data field is not touched
+     * @param dst
+     *            where to write the packet data, may be null
+     * @return see {@link #getPacket(long, long, int, lttng_viewer_trace_packet, ByteBuffer)}
+     * @throws IOException
+     *             network error
+     */
+    public ByteBuffer getPacket(long streamId, lttng_viewer_index index, lttng_viewer_trace_packet reply, ByteBuffer dst) throws IOException {
+        return getPacket(streamId, index.offset, (int) (index.packet_size / 8), reply, dst);
+    }
+
+    /**
+     * Send VIEWER_GET_PACKET. The packet data is written at the position of
+     * dst. If dst cannot hold it, a bigger buffer is allocated, the content of
+     * dst is copied in it and it is returned instead. Reusing the returned
+     * buffer means the client only allocates until it has seen the biggest
+     * packet.
+     *
+     * @param streamId
+     *            the stream
+     * @param offset
+     *            the offset in the stream file, from the index
+     * @param len
+     *            the length to read in bytes
+     * @param reply
+     *            the packet header to fill, its data field is not touched
+     * @param dst
+     *            where to write the packet data, may be null
+     * @return the buffer holding the data, its position is after the data
+     * @throws IOException
+     *             network error
+     */
+    public ByteBuffer getPacket(long streamId, long offset, int len, lttng_viewer_trace_packet reply, ByteBuffer dst) throws IOException {
+        fGetPacket.stream_id = streamId;
+        fGetPacket.offset = offset;
+        fGetPacket.len = len;
+        long start = begin();
+        send(lttng_viewer_command.VIEWER_GET_PACKET, fGetPacket);
+
+        receive(lttng_viewer_trace_packet.FIXED_SIZE);
+        reply.readFrom(fReceive);
+        if (reply.status != lttng_viewer_get_packet_return_code.VIEWER_GET_PACKET_OK) {
+            endPacket(streamId, reply.status, 0, start);
+            return dst;
+        }
+        ByteBuffer target = ensureRemaining(dst, reply.len);
+        receiveInto(target, reply.len);
+        endPacket(streamId, reply.status, reply.len, start);
+        return target;
+    }
+
+    /**
+     * Send VIEWER_GET_PACKET for the packet described by an index and read
+     * the data straight into a pooled buffer
+     *
+     * @param streamId
+     *            the stream
+     * @param index
+     *            an index with status VIEWER_INDEX_OK
+     * @param reply
+     *            the packet header to fill, its data field is not touched
+     * @param arena
+     *            where to take the buffer from
+     * @return the packet, owned by the caller who must release it, or null
+     *         if the status is not VIEWER_GET_PACKET_OK
+     * @throws IOException
+     *             network error
+     */
+    public PacketBuffer getPacket(long streamId, lttng_viewer_index index, lttng_viewer_trace_packet reply, PacketArena arena) throws IOException {
+        fGetPacket.stream_id = streamId;
+        fGetPacket.offset = index.offset;
+        fGetPacket.len = (int) (index.packet_size / 8);
+        long start = begin();
+        send(lttng_viewer_command.VIEWER_GET_PACKET, fGetPacket);
+
+        receive(lttng_viewer_trace_packet.FIXED_SIZE);
+        reply.readFrom(fReceive);
+        if (reply.status != lttng_viewer_get_packet_return_code.VIEWER_GET_PACKET_OK) {
+            endPacket(streamId, reply.status, 0, start);
+            return null;
+        }
+        PacketBuffer packet = arena.acquire(reply.len);
+        try {
+            fill(packet.buffer());
+        } catch (IOException e) {
+            packet.release();
+            throw e;
+        }
+        packet.buffer().flip();
+        packet.setOrigin(streamId, index.offset);
+        endPacket(streamId, reply.status, reply.len, start);
+        return packet;
+    }
+
+    /**
+     * Fetch the packets of several indexes of one stream, coalescing the
+     * contiguous ones: when a packet starts where the previous one ends, both
+     * are read with one VIEWER_GET_PACKET, up to maxBytes per request. The
+     * requests are sent back to back. Each read lands in one pooled buffer
+     * which is then split in per packet slices, without copying, see
+     * {@link PacketBuffer#slice(int, int)}.
+     *
+     * @param streamId
+     *            the stream
+     * @param indexes
+     *            its indexes, in stream order, the ones that are not
+     *            VIEWER_INDEX_OK are skipped
+     * @param count
+     *            the number of indexes to use
+     * @param maxBytes
+     *            the most bytes read by one request, a bigger packet is read
+     *            alone
+     * @param reply
+     *            the header of the last reply
+     * @param arena
+     *            where to take the buffers from
+     * @param packets
+     *            packets[i] is set to the packet of indexes[i], owned by the
+     *            caller who must release it, or null if it was skipped or its
+     *            request failed
+     * @return the number of packets read
+     * @throws IOException
+     *             network error
+     */
+    public int getPackets(long streamId, lttng_viewer_index[] indexes, int count, int maxBytes, lttng_viewer_trace_packet reply, PacketArena arena, PacketBuffer[] packets) throws IOException {
+        for (int i = 0; i < count; i++) {
+            packets[i] = null;
+        }
+        int fetched = 0;
+        int first = 0;
+        while (first < count) {
+            /* as many requests as fit in the send buffer */
+            fSend.clear();
+            int last = first;
+            while (last < count && fSend.remaining() >= lttng_viewer_cmd.SIZE + fGetPacket.size()) {
+                if (indexes[last].status != lttng_viewer_next_index_return_code.VIEWER_INDEX_OK) {
+                    last++;
+                    continue;
+                }
+                int end = coalesce(indexes, last, count, maxBytes);
+                fGetPacket.stream_id = streamId;
+                fGetPacket.offset = indexes[last].offset;
+                fGetPacket.len = (int) (indexes[end - 1].offset + indexes[end - 1].packet_size / 8 - indexes[last].offset);
+                fHeader.cmd = lttng_viewer_command.VIEWER_GET_PACKET;
+                fHeader.data_size = fGetPacket.size();
+                fHeader.writeTo(fSend);
+                fGetPacket.writeTo(fSend);
+                last = end;
+            }
+            long start = begin();
+            flush();
+
+            /* the replies come in the same order, group by group */
+            for (int i = first; i < last;) {
+                if (indexes[i].status != lttng_viewer_next_index_return_code.VIEWER_INDEX_OK) {
+                    i++;
+                    continue;
+                }
+                int end = coalesce(indexes, i, count, maxBytes);
+                fetched += receivePackets(streamId, indexes, i, end, reply, arena, packets, start);
+                i = end;
+            }
+            first = last;
+        }
+        return fetched;
+    }
+
+    /* end of the run of contiguous packets starting at first */
+    private static int coalesce(lttng_viewer_index[] indexes, int first, int count, int maxBytes) {
+        long total = indexes[first].packet_size / 8;
+        int end = first + 1;
+        while (end < count) {
+            lttng_viewer_index previous = indexes[end - 1];
+            lttng_viewer_index next = indexes[end];
+            long size = next.packet_size / 8;
+            if (next.status != lttng_viewer_next_index_return_code.VIEWER_INDEX_OK || next.offset != previous.offset + previous.packet_size / 8 || total + size > maxBytes) {
+                break;
+            }
+            total += size;
+            end++;
+        }
+        return end;
+    }
+
+    private int receivePackets(long streamId, lttng_viewer_index[] indexes, int first, int end, lttng_viewer_trace_packet reply, PacketArena arena, PacketBuffer[] packets, long start) throws IOException {
+        receive(lttng_viewer_trace_packet.FIXED_SIZE);
+        reply.readFrom(fReceive);
+        if (reply.status != lttng_viewer_get_packet_return_code.VIEWER_GET_PACKET_OK) {
+            endPacket(streamId, reply.status, 0, start);
+            return 0;
+        }
+        PacketBuffer whole = arena.acquire(reply.len);
+        try {
+            fill(whole.buffer());
+        } catch (IOException e) {
+            whole.release();
+            throw e;
+        }
+        whole.buffer().flip();
+        whole.setOrigin(streamId, indexes[first].offset);
+        end(lttng_viewer_command.VIEWER_GET_PACKET, start);
+        if (end - first == 1) {
+            packets[first] = whole;
+            if (fMetrics != null) {
+                fMetrics.onPacket(streamId, reply.status, reply.len);
+            }
+            return 1;
+        }
+        int fetched = 0;
+        int position = 0;
+        for (int i = first; i < end; i++) {
+            int size = (int) (indexes[i].packet_size / 8);
+            /* a short read only covers the first packets */
+            if (position + size <= reply.len) {
+                packets[i] = whole.slice(position, size);
+                fetched++;
+                if (fMetrics != null) {
+                    fMetrics.onPacket(streamId, reply.status, size);
+                }
+            }
+            position += size;
+        }
+        whole.release();
+        return fetched;
+    }
+
+    /**
+     * Fetch a packet in several VIEWER_GET_PACKET requests of at most
+     * chunkSize bytes and hand the data to a consumer as it is read from the
+     * socket. Only the receive buffer of the client is used, whatever the
+     * packet size.
+     *
+     * @param streamId
+     *            the stream
+     * @param index
+     *            an index with status VIEWER_INDEX_OK
+     * @param contentOnly
+     *            fetch content_size bytes instead of packet_size, skipping
+     *            the padding at the end of the packet
+     * @param chunkSize
+     *            the biggest range asked in one request
+     * @param reply
+     *            the header of the last reply, its status tells if the whole
+     *            range was received
+     * @param consumer
+     *            where the data goes
+     * @return the number of bytes handed to the consumer
+     * @throws IOException
+     *             network error, a reply of no data or of more than asked,
+     *             or thrown by the consumer
+     */
+    public long streamPacket(long streamId, lttng_viewer_index index, boolean contentOnly, int chunkSize, lttng_viewer_trace_packet reply, PacketConsumer consumer) throws IOException {
+        long total = contentOnly ? (index.content_size + 7) / 8 : index.packet_size / 8;
+        long done = 0;
+        while (done < total) {
+            fGetPacket.stream_id = streamId;
+            fGetPacket.offset = index.offset + done;
+            fGetPacket.len = (int) Math.min(chunkSize, total - done);
+            long start = begin();
+            send(lttng_viewer_command.VIEWER_GET_PACKET, fGetPacket);
+
+            receive(lttng_viewer_trace_packet.FIXED_SIZE);
+            reply.readFrom(fReceive);
+            if (reply.status != lttng_viewer_get_packet_return_code.VIEWER_GET_PACKET_OK) {
+                endPacket(streamId, reply.status, done, start);
+                return done;
+            }
+            /* an empty reply would be asked again forever, a longer one would overrun the packet */
+            if (reply.len <= 0 || reply.len > fGetPacket.len) {
+                throw new IOException("Relayd sent " + reply.len + " bytes for a request of " + fGetPacket.len); //$NON-NLS-1$ //$NON-NLS-2$
+            }
+            int left = reply.len;
+            while (left > 0) {
+                fReceive.clear();
+                fReceive.limit(Math.min(left, fReceive.capacity()));
+                int read = fChannel.read(fReceive);
+                if (read < 0) {
+                    throw new EOFException("Relayd closed the connection"); //$NON-NLS-1$
+                }
+                if (read == 0) {
+                    await(SelectionKey.OP_READ);
+                    continue;
+                }
+                if (fCapture != null) {
+                    fCapture.received(fReceive, 0, read);
+                }
+                fReceive.flip();
+                consumer.onData(streamId, index.offset + done, fReceive);
+                done += read;
+                left -= read;
+            }
+            /* one round trip per chunk, one packet per call */
+            if (done < total) {
+                end(lttng_viewer_command.VIEWER_GET_PACKET, start);
+            } else {
+                endPacket(streamId, reply.status, done, start);
+            }
+        }
+        return done;
+    }
+
+    /**
+     * Send VIEWER_GET_METADATA. The metadata is written at the position of
+     * dst, following the same rules as
+     * {@link #getPacket(long, long, int, lttng_viewer_trace_packet, ByteBuffer)}
+     *
+     * @param streamId
+     *            the metadata stream
+     * @param reply
+     *            the metadata header to fill, its data field is not touched
+     * @param dst
+     *            where to write the metadata, may be null
+     * @return the buffer holding the metadata, its position is after the data
+     * @throws IOException
+     *             network error
+     */
+    public ByteBuffer getMetadata(long streamId, lttng_viewer_metadata_packet reply, ByteBuffer dst) throws IOException {
+        fGetMetadata.stream_id = streamId;
+        long start = begin();
+        send(lttng_viewer_command.VIEWER_GET_METADATA, fGetMetadata);
+
+        receive(lttng_viewer_metadata_packet.FIXED_SIZE);
+        reply.readFrom(fReceive);
+        if (reply.status != lttng_viewer_get_metadata_return_code.VIEWER_METADATA_OK) {
+            end(lttng_viewer_command.VIEWER_GET_METADATA, start);
+            return dst;
+        }
+        ByteBuffer target = ensureRemaining(dst, (int) reply.len);
+        receiveInto(target, (int) reply.len);
+        end(lttng_viewer_command.VIEWER_GET_METADATA, start);
+        return target;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (fSelector != null) {
+                fSelector.close();
+            }
+        } finally {
+            fChannel.close();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Metrics helpers
+    // ------------------------------------------------------------------------
+
+    private long begin() {
+        return (fMetrics == null) ? 0 : System.nanoTime();
+    }
+
+    private void end(lttng_viewer_command cmd, long start) {
+        if (fMetrics != null) {
+            fMetrics.onCommand(cmd, System.nanoTime() - start);
+        }
+    }
+
+    private void endPacket(long streamId, lttng_viewer_get_packet_return_code status, long bytes, long start) {
+        if (fMetrics != null) {
+            fMetrics.onCommand(lttng_viewer_command.VIEWER_GET_PACKET, System.nanoTime() - start);
+            fMetrics.onPacket(streamId, status, bytes);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // I/O helpers
+    // ------------------------------------------------------------------------
+
+    private <T extends RelayCommand & FixedSize> void send(lttng_viewer_command cmd, T payload) throws IOException {
+        fSend.clear();
+        fHeader.cmd = cmd;
+        fHeader.data_size = (payload == null) ? 0 : payload.size();
+        fHeader.writeTo(fSend);
+        if (payload != null) {
+            payload.writeTo(fSend);
+        }
+        flush();
+    }
+
+    private void flush() throws IOException {
+        fSend.flip();
+        while (fSend.hasRemaining()) {
+            if (fChannel.write(fSend) == 0) {
+                await(SelectionKey.OP_WRITE);
+            }
+        }
+        if (fCapture != null) {
+            fCapture.sent(fSend, 0, fSend.limit());
+        }
+    }
+
+    /* Read exactly len bytes in the receive buffer and flip it for decoding */
+    private void receive(int len) throws IOException {
+        fReceive.clear();
+        fReceive.limit(len);
+        fill(fReceive);
+        fReceive.flip();
+    }
+
+    private void receiveInto(ByteBuffer target, int len) throws IOException {
+        int limit = target.limit();
+        target.limit(target.position() + len);
+        try {
+            fill(target);
+        } finally {
+            target.limit(limit);
+        }
+    }
+
+    private void fill(ByteBuffer target) throws IOException {
+        while (target.hasRemaining()) {
+            int read = fChannel.read(target);
+            if (read < 0) {
+                throw new EOFException("Relayd closed the connection"); //$NON-NLS-1$
+            }
+            if (read == 0) {
+                await(SelectionKey.OP_READ);
+            } else if (fCapture != null) {
+                fCapture.received(target, target.position() - read, target.position());
+            }
+        }
+    }
+
+    private void await(int op) throws IOException {
+        if (fSelector == null) {
+            return;
+        }
+        fKey.interestOps(op);
+        int ready = fSelector.select(fTimeout);
+        fSelector.selectedKeys().clear();
+        fKey.interestOps(0);
+        if (ready == 0) {
+            throw new SocketTimeoutException("No answer from relayd after " + fTimeout + " ms"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+    }
+
+    static ByteBuffer ensureRemaining(ByteBuffer dst, int len) {
+        if (dst != null && dst.remaining() >= len) {
+            return dst;
+        }
+        if (dst == null) {
+            return ByteBuffer.allocateDirect(len);
+        }
+        ByteBuffer bigger = ByteBuffer.allocateDirect(Math.max(dst.position() + len, dst.capacity() * 2));
+        bigger.order(dst.order());
+        dst.flip();
+        bigger.put(dst);
+        return bigger;
+    }
+}
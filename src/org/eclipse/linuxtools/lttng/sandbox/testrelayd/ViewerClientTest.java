@@ -0,0 +1,393 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ByteChannel;
+
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_attach_return_code;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_command;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_get_metadata_return_code;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_get_packet_return_code;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_index;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_metadata_packet;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_next_index_return_code;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_seek;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_trace_packet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the viewer client against the mock relayd
+ *
+ * @author Matthew Khouzam
+ */
+public class ViewerClientTest {
+
+    private static final int PACKETS = 10;
+
+    private MockRelayD relayd;
+    private ViewerClient client;
+
+    /**
+     * Two sessions of three streams, one idle, ten packets each
+     *
+     * @throws IOException
+     *             the mock did not start
+     */
+    @Before
+    public void init() throws IOException {
+        relayd = new MockRelayD();
+        relayd.setSessionCount(2);
+        relayd.setStreamsPerSession(3);
+        relayd.setIdleStreams(1);
+        relayd.setPacketSize(1024);
+        relayd.setPacketCount(PACKETS);
+        InetSocketAddress address = relayd.start(0);
+        client = ViewerClient.open(address.getHostString(), address.getPort());
+        client.connect();
+    }
+
+    /**
+     * Stop the client and the mock
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @After
+    public void cleanup() throws IOException {
+        client.close();
+        relayd.close();
+    }
+
+    /**
+     * List and attach
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @Test
+    public void testAttach() throws IOException {
+        assertTrue(client.getViewerSessionId() > 0);
+        ViewerSession[] sessions = client.listSessions();
+        assertEquals(2, sessions.length);
+        assertEquals(MockRelayD.HOSTNAME, sessions[0].getHostname());
+        assertEquals("session1", sessions[1].getSessionName());
+        assertEquals(4, sessions[0].getStreams());
+        assertEquals(0, sessions[0].getClients());
+
+        AttachedSession attached = client.attachSession(sessions[0].getId(), lttng_viewer_seek.VIEWER_SEEK_BEGINNING);
+        assertTrue(attached.isAttached());
+        assertEquals(1, attached.getMetadataStreams().length);
+        assertEquals(3, attached.getDataStreams().length);
+        assertEquals("channel0_0", attached.getDataStreams()[0].getChannelName());
+        assertEquals(1, client.listSessions()[0].getClients());
+
+        ViewerClient other = ViewerClient.open(relayd.getAddress().getHostString(), relayd.getAddress().getPort());
+        try {
+            other.connect();
+            assertEquals(lttng_viewer_attach_return_code.VIEWER_ATTACH_ALREADY, other.attachSession(sessions[0].getId(), lttng_viewer_seek.VIEWER_SEEK_BEGINNING).getStatus());
+            assertEquals(lttng_viewer_attach_return_code.VIEWER_ATTACH_UNK, other.attachSession(42, lttng_viewer_seek.VIEWER_SEEK_BEGINNING).getStatus());
+        } finally {
+            other.close();
+        }
+    }
+
+    /**
+     * Read the metadata once, then nothing new
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @Test
+    public void testMetadata() throws IOException {
+        AttachedSession attached = client.attachSession(1, lttng_viewer_seek.VIEWER_SEEK_BEGINNING);
+        long metadataId = attached.getMetadataStreams()[0].getId();
+        lttng_viewer_metadata_packet reply = new lttng_viewer_metadata_packet();
+        ByteBuffer metadata = client.getMetadata(metadataId, reply, ByteBuffer.allocate(16));
+        metadata.flip();
+        assertEquals(lttng_viewer_get_metadata_return_code.VIEWER_METADATA_OK, reply.status);
+        byte[] text = new byte[metadata.remaining()];
+        metadata.get(text);
+        assertTrue(new String(text, ViewerNames.CHARSET).startsWith("/* CTF 1.8 */"));
+        metadata.clear();
+        client.getMetadata(metadataId, reply, metadata);
+        assertEquals(lttng_viewer_get_metadata_return_code.VIEWER_NO_NEW_METADATA, reply.status);
+    }
+
+    /**
+     * Pipeline the indexes of all the streams until they hang up and read
+     * every packet
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @Test
+    public void testIndexesAndPackets() throws IOException {
+        AttachedSession attached = client.attachSession(1, lttng_viewer_seek.VIEWER_SEEK_BEGINNING);
+        long[] ids = attached.getDataStreamIds();
+        lttng_viewer_index[] replies = new lttng_viewer_index[ids.length];
+        for (int i = 0; i < replies.length; i++) {
+            replies[i] = new lttng_viewer_index();
+        }
+        lttng_viewer_trace_packet packetReply = new lttng_viewer_trace_packet();
+        ByteBuffer packet = ByteBuffer.allocateDirect(1024).order(ByteOrder.LITTLE_ENDIAN);
+        int packets = 0;
+        for (int round = 0; round <= PACKETS; round++) {
+            assertEquals(ids.length, client.getNextIndexes(ids, ids.length, replies));
+            assertEquals(lttng_viewer_next_index_return_code.VIEWER_INDEX_INACTIVE, replies[2].status);
+            if (round == PACKETS) {
+                assertEquals(lttng_viewer_next_index_return_code.VIEWER_INDEX_HUP, replies[0].status);
+                break;
+            }
+            for (int i = 0; i < 2; i++) {
+                assertEquals(lttng_viewer_next_index_return_code.VIEWER_INDEX_OK, replies[i].status);
+                assertEquals(round * 1024L, replies[i].offset);
+                packet.clear();
+                packet = client.getPacket(ids[i], replies[i], packetReply, packet);
+                packet.flip();
+                assertEquals(lttng_viewer_get_packet_return_code.VIEWER_GET_PACKET_OK, packetReply.status);
+                assertEquals(1024, packet.remaining());
+                assertEquals(SyntheticTrace.MAGIC, packet.getInt(packet.position()));
+                assertEquals(replies[i].timestamp_begin, packet.getLong(packet.position() + 24));
+                packets++;
+            }
+        }
+        assertEquals(2 * PACKETS, packets);
+        client.getPacket(ids[0], PACKETS * 1024L, 1024, packetReply, packet);
+        assertEquals(lttng_viewer_get_packet_return_code.VIEWER_GET_PACKET_ERR, packetReply.status);
+    }
+
+    /**
+     * Packets read in pooled buffers reuse the memory once released
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @Test
+    public void testArena() throws IOException {
+        AttachedSession attached = client.attachSession(1, lttng_viewer_seek.VIEWER_SEEK_BEGINNING);
+        long id = attached.getDataStreamIds()[0];
+        lttng_viewer_index index = new lttng_viewer_index();
+        lttng_viewer_trace_packet reply = new lttng_viewer_trace_packet();
+        PacketArena arena = new PacketArena();
+        for (int i = 0; i < PACKETS; i++) {
+            client.getNextIndex(id, index);
+            PacketBuffer packet = client.getPacket(id, index, reply, arena);
+            assertEquals(1024, packet.length());
+            assertEquals(index.offset, packet.getOffset());
+            assertEquals(SyntheticTrace.MAGIC, packet.buffer().order(ByteOrder.LITTLE_ENDIAN).getInt(0));
+            packet.release();
+        }
+        assertEquals(0, arena.getInUse());
+        assertEquals(PacketArena.MIN_BUFFER_SIZE, arena.getReservedBytes());
+    }
+
+    /**
+     * Read ahead the indexes of a stream and fetch them four packets per
+     * request, the slices match the packets fetched one by one
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @Test
+    public void testCoalescedPackets() throws IOException {
+        ViewerMetrics metrics = new ViewerMetrics();
+        client.setMetrics(metrics);
+        AttachedSession attached = client.attachSession(1, lttng_viewer_seek.VIEWER_SEEK_BEGINNING);
+        long id = attached.getDataStreamIds()[0];
+        lttng_viewer_index[] indexes = new lttng_viewer_index[PACKETS + 1];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = new lttng_viewer_index();
+        }
+        client.getNextIndexes(id, indexes.length, indexes);
+        for (int i = 0; i < PACKETS; i++) {
+            assertEquals(lttng_viewer_next_index_return_code.VIEWER_INDEX_OK, indexes[i].status);
+        }
+        assertEquals(lttng_viewer_next_index_return_code.VIEWER_INDEX_HUP, indexes[PACKETS].status);
+
+        lttng_viewer_trace_packet reply = new lttng_viewer_trace_packet();
+        PacketArena arena = new PacketArena();
+        PacketBuffer[] packets = new PacketBuffer[indexes.length];
+        assertEquals(PACKETS, client.getPackets(id, indexes, indexes.length, 4 * 1024, reply, arena, packets));
+        assertEquals((PACKETS + 3) / 4, metrics.getLatency(lttng_viewer_command.VIEWER_GET_PACKET).getCount());
+        assertEquals(PACKETS, metrics.getCount(lttng_viewer_get_packet_return_code.VIEWER_GET_PACKET_OK));
+        assertEquals(null, packets[PACKETS]);
+
+        ByteBuffer single = ByteBuffer.allocate(1024);
+        for (int i = 0; i < PACKETS; i++) {
+            PacketBuffer packet = packets[i];
+            assertEquals(1024, packet.length());
+            assertEquals(indexes[i].offset, packet.getOffset());
+            single.clear();
+            client.getPacket(id, indexes[i], reply, single).flip();
+            assertEquals(single, packet.buffer());
+            packet.release();
+        }
+        assertEquals(0, arena.getInUse());
+    }
+
+    /**
+     * A packet streamed in small chunks, without its padding, matches the
+     * start of the whole packet
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @Test
+    public void testStreamPacket() throws IOException {
+        AttachedSession attached = client.attachSession(1, lttng_viewer_seek.VIEWER_SEEK_BEGINNING);
+        long id = attached.getDataStreamIds()[1];
+        lttng_viewer_index index = new lttng_viewer_index();
+        lttng_viewer_trace_packet reply = new lttng_viewer_trace_packet();
+        client.getNextIndex(id, index);
+        client.getNextIndex(id, index);
+        ByteBuffer whole = client.getPacket(id, index, reply, ByteBuffer.allocate(1024));
+        whole.flip();
+
+        final ByteBuffer streamed = ByteBuffer.allocate(1024);
+        final long start = index.offset;
+        long read = client.streamPacket(id, index, true, 300, reply, new ViewerClient.PacketConsumer() {
+            @Override
+            public void onData(long streamId, long offset, ByteBuffer data) {
+                assertEquals(start + streamed.position(), offset);
+                streamed.put(data);
+            }
+        });
+        assertEquals(lttng_viewer_get_packet_return_code.VIEWER_GET_PACKET_OK, reply.status);
+        assertEquals(index.content_size / 8, read);
+        assertTrue(read < 1024);
+        streamed.flip();
+        whole.limit((int) read);
+        assertEquals(whole, streamed);
+    }
+
+    /**
+     * A packet reply of no data or of more data than asked fails instead of
+     * being asked again or overrunning the chunk
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @Test
+    public void testBadChunkLength() throws IOException {
+        assertBadChunk(0);
+        assertBadChunk(301);
+    }
+
+    private static void assertBadChunk(int len) throws IOException {
+        lttng_viewer_trace_packet answer = new lttng_viewer_trace_packet();
+        answer.status = lttng_viewer_get_packet_return_code.VIEWER_GET_PACKET_OK;
+        answer.len = len;
+        PacketReplies channel = new PacketReplies(answer.getBytes());
+        lttng_viewer_index index = new lttng_viewer_index();
+        index.packet_size = 1024 * 8;
+        index.content_size = 1024 * 8;
+        try (ViewerClient bad = new ViewerClient(channel)) {
+            bad.streamPacket(1, index, false, 300, new lttng_viewer_trace_packet(), new ViewerClient.PacketConsumer() {
+                @Override
+                public void onData(long streamId, long offset, ByteBuffer data) {
+                    fail();
+                }
+            });
+            fail();
+        } catch (IOException e) {
+            assertFalse(e instanceof EOFException);
+        }
+        assertEquals(1, channel.fReplies);
+    }
+
+    /* answers every read with the same reply, three times at most */
+    private static class PacketReplies implements ByteChannel {
+        private final ByteBuffer fReply;
+        private int fReplies;
+
+        public PacketReplies(byte[] reply) {
+            fReply = ByteBuffer.wrap(reply);
+            fReply.position(reply.length);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (!fReply.hasRemaining()) {
+                if (fReplies == 3) {
+                    return -1;
+                }
+                fReplies++;
+                fReply.rewind();
+            }
+            int n = Math.min(dst.remaining(), fReply.remaining());
+            for (int i = 0; i < n; i++) {
+                dst.put(fReply.get());
+            }
+            return n;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            src.position(src.limit());
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+            // nothing to release
+        }
+    }
+
+    /**
+     * The poller drains the session and retires every stream but the idle
+     * one
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @Test
+    public void testPoller() throws IOException {
+        AttachedSession attached = client.attachSession(2, lttng_viewer_seek.VIEWER_SEEK_BEGINNING);
+        final int[] ok = new int[1];
+        LiveSessionPoller poller = new LiveSessionPoller(client, attached, new LiveSessionPoller.IndexHandler() {
+            @Override
+            public void onIndex(ViewerStream stream, lttng_viewer_index index) {
+                if (index.status == lttng_viewer_next_index_return_code.VIEWER_INDEX_OK) {
+                    ok[0]++;
+                }
+            }
+        });
+        for (int i = 0; i < 100 && ok[0] < 2 * PACKETS; i++) {
+            poller.poll();
+        }
+        assertEquals(2 * PACKETS, ok[0]);
+        poller.poll();
+        poller.poll();
+        PollScheduler scheduler = poller.getScheduler();
+        assertEquals(PollScheduler.RETIRED, scheduler.getState(0));
+        assertEquals(PollScheduler.RETIRED, scheduler.getState(1));
+        assertFalse(poller.isDone());
+    }
+}
@@ -0,0 +1,445 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_command;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_get_packet_return_code;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_index;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_next_index_return_code;
+
+/**
+ * Counters of a viewer client, see {@link ViewerClient#setMetrics}: round
+ * trip histograms per command, replies per return code, and per stream
+ * packet throughput and discarded events.
+ *
+ * Recording never allocates once a stream was seen, and is safe from several
+ * clients at once, so one instance can cover all the connections to a relay
+ * daemon. Reading is done through the getters or through JMX, see
+ * {@link #register(String)}. Rates are averaged over the time between two
+ * reads, at least {@link #MIN_SAMPLE_INTERVAL} apart.
+ *
+ * @author Matthew Khouzam
+ */
+public class ViewerMetrics implements ViewerMetricsMXBean {
+
+    /** Shortest time over which a rate is computed, in nanoseconds */
+    public static final long MIN_SAMPLE_INTERVAL = 1000000000L;
+
+    private static final String DOMAIN = "org.eclipse.linuxtools.lttng.sandbox.testrelayd"; //$NON-NLS-1$
+
+    private static final lttng_viewer_command[] COMMANDS = lttng_viewer_command.values();
+    private static final lttng_viewer_next_index_return_code[] INDEX_CODES = lttng_viewer_next_index_return_code.values();
+    private static final lttng_viewer_get_packet_return_code[] PACKET_CODES = lttng_viewer_get_packet_return_code.values();
+    private static final int MIN_TABLE_SIZE = 16;
+
+    /**
+     * Counters of one stream
+     */
+    public static class StreamCounters {
+        private final long fStreamId;
+        private final AtomicLong fBytes = new AtomicLong();
+        private final AtomicLong fPackets = new AtomicLong();
+        private final AtomicLong fEventsDiscarded = new AtomicLong();
+        /* guarded by the metrics */
+        private long fSampleTime;
+        private long fSampleBytes;
+        private long fSamplePackets;
+        private volatile double fBytesPerSecond;
+        private volatile double fPacketsPerSecond;
+
+        StreamCounters(long streamId, long now) {
+            fStreamId = streamId;
+            fSampleTime = now;
+        }
+
+        /**
+         * @return the stream id
+         */
+        public long getStreamId() {
+            return fStreamId;
+        }
+
+        /**
+         * @return the packet data received so far
+         */
+        public long getBytes() {
+            return fBytes.get();
+        }
+
+        /**
+         * @return the packets received so far
+         */
+        public long getPackets() {
+            return fPackets.get();
+        }
+
+        /**
+         * @return the events discarded by the tracer, as of the last index
+         */
+        public long getEventsDiscarded() {
+            return fEventsDiscarded.get();
+        }
+
+        /**
+         * @return the packet data received per second, over the last sample
+         */
+        public double getBytesPerSecond() {
+            return fBytesPerSecond;
+        }
+
+        /**
+         * @return the packets received per second, over the last sample
+         */
+        public double getPacketsPerSecond() {
+            return fPacketsPerSecond;
+        }
+
+        void sample(long now) {
+            long bytes = fBytes.get();
+            long packets = fPackets.get();
+            double seconds = (now - fSampleTime) / 1e9;
+            fBytesPerSecond = (bytes - fSampleBytes) / seconds;
+            fPacketsPerSecond = (packets - fSamplePackets) / seconds;
+            fSampleTime = now;
+            fSampleBytes = bytes;
+            fSamplePackets = packets;
+        }
+    }
+
+    private final LatencyHistogram[] fLatency = new LatencyHistogram[COMMANDS.length];
+    private final AtomicLongArray fIndexCodes = new AtomicLongArray(INDEX_CODES.length);
+    private final AtomicLongArray fPacketCodes = new AtomicLongArray(PACKET_CODES.length);
+    /* copied on write, a stream is only added once */
+    private volatile StreamCounters[] fStreams = new StreamCounters[0];
+    /*
+     * The same streams hashed by id with linear probing, at most half full so
+     * a lookup always ends on a null slot. Copied on write as well.
+     */
+    private volatile StreamCounters[] fTable = new StreamCounters[MIN_TABLE_SIZE];
+    private long fLastSample = System.nanoTime();
+
+    /**
+     * Constructor
+     */
+    public ViewerMetrics() {
+        for (int i = 0; i < fLatency.length; i++) {
+            fLatency[i] = new LatencyHistogram();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Recording
+    // ------------------------------------------------------------------------
+
+    /**
+     * Record the round trip of a request
+     *
+     * @param cmd
+     *            the command
+     * @param nanos
+     *            from the write of the request to the end of the reply
+     */
+    public void onCommand(lttng_viewer_command cmd, long nanos) {
+        fLatency[cmd.ordinal()].record(nanos);
+    }
+
+    /**
+     * Record a GET_NEXT_INDEX reply
+     *
+     * @param streamId
+     *            the stream
+     * @param index
+     *            the reply
+     */
+    public void onIndex(long streamId, lttng_viewer_index index) {
+        fIndexCodes.incrementAndGet(index.status.ordinal());
+        if (index.status == lttng_viewer_next_index_return_code.VIEWER_INDEX_OK) {
+            /* events_discarded is a running count of the stream already */
+            AtomicLong discarded = stream(streamId).fEventsDiscarded;
+            long previous = discarded.get();
+            while (index.events_discarded > previous && !discarded.compareAndSet(previous, index.events_discarded)) {
+                previous = discarded.get();
+            }
+        }
+    }
+
+    /**
+     * Record a GET_PACKET reply
+     *
+     * @param streamId
+     *            the stream
+     * @param status
+     *            the status of the reply
+     * @param bytes
+     *            the packet data received
+     */
+    public void onPacket(long streamId, lttng_viewer_get_packet_return_code status, long bytes) {
+        fPacketCodes.incrementAndGet(status.ordinal());
+        if (status == lttng_viewer_get_packet_return_code.VIEWER_GET_PACKET_OK) {
+            StreamCounters stream = stream(streamId);
+            stream.fPackets.incrementAndGet();
+            stream.fBytes.addAndGet(bytes);
+        }
+    }
+
+    private StreamCounters stream(long streamId) {
+        StreamCounters stream = find(fTable, streamId);
+        return (stream != null) ? stream : addStream(streamId);
+    }
+
+    private static StreamCounters find(StreamCounters[] table, long streamId) {
+        int mask = table.length - 1;
+        for (int slot = hash(streamId) & mask;; slot = (slot + 1) & mask) {
+            StreamCounters stream = table[slot];
+            if (stream == null || stream.fStreamId == streamId) {
+                return stream;
+            }
+        }
+    }
+
+    private static int hash(long streamId) {
+        return (int) ((streamId * 0x9E3779B97F4A7C15L) >>> 32);
+    }
+
+    private synchronized StreamCounters addStream(long streamId) {
+        StreamCounters stream = find(fTable, streamId);
+        if (stream != null) {
+            return stream;
+        }
+        StreamCounters[] streams = fStreams;
+        StreamCounters[] grown = new StreamCounters[streams.length + 1];
+        System.arraycopy(streams, 0, grown, 0, streams.length);
+        stream = new StreamCounters(streamId, System.nanoTime());
+        grown[streams.length] = stream;
+        fStreams = grown;
+        fTable = hashTable(grown);
+        return stream;
+    }
+
+    private static StreamCounters[] hashTable(StreamCounters[] streams) {
+        int size = MIN_TABLE_SIZE;
+        while (size < 2 * streams.length) {
+            size <<= 1;
+        }
+        StreamCounters[] table = new StreamCounters[size];
+        int mask = size - 1;
+        for (StreamCounters stream : streams) {
+            int slot = hash(stream.fStreamId) & mask;
+            while (table[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = stream;
+        }
+        return table;
+    }
+
+    // ------------------------------------------------------------------------
+    // Pull API
+    // ------------------------------------------------------------------------
+
+    /**
+     * @param cmd
+     *            a command
+     * @return the round trip histogram of the command
+     */
+    public LatencyHistogram getLatency(lttng_viewer_command cmd) {
+        return fLatency[cmd.ordinal()];
+    }
+
+    /**
+     * @param status
+     *            a return code
+     * @return the number of GET_NEXT_INDEX replies with this code
+     */
+    public long getCount(lttng_viewer_next_index_return_code status) {
+        return fIndexCodes.get(status.ordinal());
+    }
+
+    /**
+     * @param status
+     *            a return code
+     * @return the number of GET_PACKET replies with this code
+     */
+    public long getCount(lttng_viewer_get_packet_return_code status) {
+        return fPacketCodes.get(status.ordinal());
+    }
+
+    /**
+     * Get the counters of every stream seen so far, with their rates updated
+     * if the last update is old enough
+     *
+     * @return the streams, in the order they were first seen
+     */
+    public StreamCounters[] getStreams() {
+        sample();
+        return fStreams.clone();
+    }
+
+    private synchronized void sample() {
+        long now = System.nanoTime();
+        if (now - fLastSample < MIN_SAMPLE_INTERVAL) {
+            return;
+        }
+        fLastSample = now;
+        for (StreamCounters stream : fStreams) {
+            stream.sample(now);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // JMX
+    // ------------------------------------------------------------------------
+
+    /**
+     * Register in the platform MBean server
+     *
+     * @param name
+     *            distinguishes the clients of a process, for example the
+     *            relayd address
+     * @return the name of the MBean
+     * @throws JMException
+     *             the name is taken or invalid
+     */
+    public ObjectName register(String name) throws JMException {
+        ObjectName objectName = new ObjectName(DOMAIN + ":type=ViewerMetrics,name=" + ObjectName.quote(name)); //$NON-NLS-1$
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    /**
+     * Remove from the platform MBean server
+     *
+     * @param objectName
+     *            the name returned by {@link #register(String)}
+     * @throws JMException
+     *             the MBean is not registered
+     */
+    public static void unregister(ObjectName objectName) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    }
+
+    @Override
+    public Map<String, Long> getCommandCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (lttng_viewer_command cmd : COMMANDS) {
+            counts.put(cmd.name(), Long.valueOf(getLatency(cmd).getCount()));
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getLatencyP50() {
+        return percentiles(50);
+    }
+
+    @Override
+    public Map<String, Long> getLatencyP99() {
+        return percentiles(99);
+    }
+
+    @Override
+    public Map<String, Long> getLatencyMax() {
+        Map<String, Long> max = new LinkedHashMap<>();
+        for (lttng_viewer_command cmd : COMMANDS) {
+            max.put(cmd.name(), Long.valueOf(getLatency(cmd).getMax()));
+        }
+        return max;
+    }
+
+    private Map<String, Long> percentiles(double percent) {
+        Map<String, Long> percentiles = new LinkedHashMap<>();
+        for (lttng_viewer_command cmd : COMMANDS) {
+            percentiles.put(cmd.name(), Long.valueOf(getLatency(cmd).getPercentile(percent)));
+        }
+        return percentiles;
+    }
+
+    @Override
+    public Map<String, Long> getIndexReturnCodes() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (lttng_viewer_next_index_return_code status : INDEX_CODES) {
+            counts.put(status.name(), Long.valueOf(getCount(status)));
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getPacketReturnCodes() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (lttng_viewer_get_packet_return_code status : PACKET_CODES) {
+            counts.put(status.name(), Long.valueOf(getCount(status)));
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Double> getBytesPerSecond() {
+        Map<String, Double> rates = new LinkedHashMap<>();
+        for (StreamCounters stream : getStreams()) {
+            rates.put(Long.toString(stream.getStreamId()), Double.valueOf(stream.getBytesPerSecond()));
+        }
+        return rates;
+    }
+
+    @Override
+    public Map<String, Double> getPacketsPerSecond() {
+        Map<String, Double> rates = new LinkedHashMap<>();
+        for (StreamCounters stream : getStreams()) {
+            rates.put(Long.toString(stream.getStreamId()), Double.valueOf(stream.getPacketsPerSecond()));
+        }
+        return rates;
+    }
+
+    @Override
+    public Map<String, Long> getEventsDiscardedPerStream() {
+        Map<String, Long> discarded = new LinkedHashMap<>();
+        for (StreamCounters stream : fStreams) {
+            discarded.put(Long.toString(stream.getStreamId()), Long.valueOf(stream.getEventsDiscarded()));
+        }
+        return discarded;
+    }
+
+    @Override
+    public long getEventsDiscarded() {
+        long total = 0;
+        for (StreamCounters stream : fStreams) {
+            total += stream.getEventsDiscarded();
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized void reset() {
+        for (LatencyHistogram histogram : fLatency) {
+            histogram.reset();
+        }
+        for (int i = 0; i < INDEX_CODES.length; i++) {
+            fIndexCodes.set(i, 0);
+        }
+        for (int i = 0; i < PACKET_CODES.length; i++) {
+            fPacketCodes.set(i, 0);
+        }
+        fStreams = new StreamCounters[0];
+        fTable = new StreamCounters[MIN_TABLE_SIZE];
+        fLastSample = System.nanoTime();
+    }
+}
@@ -0,0 +1,79 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link ViewerMetrics}. Commands and return codes are keyed by
+ * their enum name, streams by their id. Durations are in nanoseconds.
+ *
+ * @author Matthew Khouzam
+ */
+public interface ViewerMetricsMXBean {
+
+    /**
+     * @return the number of requests sent, per command
+     */
+    Map<String, Long> getCommandCounts();
+
+    /**
+     * @return the median round trip, per command
+     */
+    Map<String, Long> getLatencyP50();
+
+    /**
+     * @return the 99th percentile round trip, per command
+     */
+    Map<String, Long> getLatencyP99();
+
+    /**
+     * @return the longest round trip, per command
+     */
+    Map<String, Long> getLatencyMax();
+
+    /**
+     * @return the number of GET_NEXT_INDEX replies, per return code
+     */
+    Map<String, Long> getIndexReturnCodes();
+
+    /**
+     * @return the number of GET_PACKET replies, per return code
+     */
+    Map<String, Long> getPacketReturnCodes();
+
+    /**
+     * @return the packet data received per second, per stream
+     */
+    Map<String, Double> getBytesPerSecond();
+
+    /**
+     * @return the packets received per second, per stream
+     */
+    Map<String, Double> getPacketsPerSecond();
+
+    /**
+     * @return the events discarded by the tracer, per stream
+     */
+    Map<String, Long> getEventsDiscardedPerStream();
+
+    /**
+     * @return the events discarded by the tracer, all streams together
+     */
+    long getEventsDiscarded();
+
+    /**
+     * Forget everything recorded so far
+     */
+    void reset();
+}
@@ -0,0 +1,178 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_command;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_get_packet_return_code;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_index;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_next_index_return_code;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_seek;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_trace_packet;
+import org.junit.Test;
+
+/**
+ * Tests the viewer metrics
+ *
+ * @author Matthew Khouzam
+ */
+public class ViewerMetricsTest {
+
+    private static final int PACKETS = 10;
+
+    /**
+     * Percentiles fall in the power of two bucket of the value
+     */
+    @Test
+    public void testHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(50));
+        for (int i = 0; i < 99; i++) {
+            histogram.record(1000);
+        }
+        histogram.record(1000000);
+        assertEquals(100, histogram.getCount());
+        assertEquals(1000000, histogram.getMax());
+        assertEquals(1023, histogram.getPercentile(50));
+        assertEquals(1023, histogram.getPercentile(99));
+        assertEquals(1000000, histogram.getPercentile(100));
+        assertEquals(99, histogram.getBuckets()[10]);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+    }
+
+    /**
+     * Poll a session to its end and check what the client recorded
+     *
+     * @throws Exception
+     *             should not happen
+     */
+    @Test
+    public void testClient() throws Exception {
+        MockRelayD relayd = new MockRelayD();
+        relayd.setSessionCount(1);
+        relayd.setStreamsPerSession(2);
+        relayd.setIdleStreams(1);
+        relayd.setPacketSize(1024);
+        relayd.setPacketCount(PACKETS);
+        relayd.setDiscardEvery(3);
+        InetSocketAddress address = relayd.start(0);
+        ViewerMetrics metrics = new ViewerMetrics();
+        try (ViewerClient client = ViewerClient.open(address.getHostString(), address.getPort())) {
+            client.setMetrics(metrics);
+            client.connect();
+            AttachedSession attached = client.attachSession(1, lttng_viewer_seek.VIEWER_SEEK_BEGINNING);
+            long[] ids = attached.getDataStreamIds();
+            lttng_viewer_index[] replies = { new lttng_viewer_index(), new lttng_viewer_index() };
+            lttng_viewer_trace_packet packet = new lttng_viewer_trace_packet();
+            PacketArena arena = new PacketArena();
+            for (int i = 0; i < 100 && metrics.getCount(lttng_viewer_next_index_return_code.VIEWER_INDEX_HUP) == 0; i++) {
+                client.getNextIndexes(ids, ids.length, replies);
+                for (int s = 0; s < ids.length; s++) {
+                    if (replies[s].status == lttng_viewer_next_index_return_code.VIEWER_INDEX_OK) {
+                        client.getPacket(ids[s], replies[s], packet, arena).release();
+                    }
+                }
+            }
+        } finally {
+            relayd.close();
+        }
+        assertEquals(1, metrics.getLatency(lttng_viewer_command.VIEWER_CONNECT).getCount());
+        assertEquals(1, metrics.getLatency(lttng_viewer_command.VIEWER_ATTACH_SESSION).getCount());
+        assertEquals(PACKETS, metrics.getCount(lttng_viewer_next_index_return_code.VIEWER_INDEX_OK));
+        assertEquals(1, metrics.getCount(lttng_viewer_next_index_return_code.VIEWER_INDEX_HUP));
+        assertTrue(metrics.getCount(lttng_viewer_next_index_return_code.VIEWER_INDEX_INACTIVE) > 0);
+        assertEquals(PACKETS, metrics.getCount(lttng_viewer_get_packet_return_code.VIEWER_GET_PACKET_OK));
+        assertEquals(PACKETS, metrics.getLatency(lttng_viewer_command.VIEWER_GET_PACKET).getCount());
+        ViewerMetrics.StreamCounters[] streams = metrics.getStreams();
+        assertEquals(1, streams.length);
+        assertEquals(PACKETS, streams[0].getPackets());
+        assertEquals(PACKETS * 1024, streams[0].getBytes());
+        assertEquals((PACKETS - 1) / 3, metrics.getEventsDiscarded());
+    }
+
+    /**
+     * Several clients recording many streams at once each find the counters
+     * of their stream, a stream is added once
+     *
+     * @throws InterruptedException
+     *             should not happen
+     */
+    @Test
+    public void testManyStreams() throws InterruptedException {
+        final int streams = 1000;
+        final ViewerMetrics metrics = new ViewerMetrics();
+        Thread[] clients = new Thread[4];
+        for (int c = 0; c < clients.length; c++) {
+            clients[c] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int p = 0; p < PACKETS; p++) {
+                        for (long id = 0; id < streams; id++) {
+                            /* sparse ids, as relayd numbers streams across sessions */
+                            metrics.onPacket(id << 20, lttng_viewer_get_packet_return_code.VIEWER_GET_PACKET_OK, 100);
+                        }
+                    }
+                }
+            });
+            clients[c].start();
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+        ViewerMetrics.StreamCounters[] counters = metrics.getStreams();
+        assertEquals(streams, counters.length);
+        for (ViewerMetrics.StreamCounters counter : counters) {
+            assertEquals(0, counter.getStreamId() & ((1 << 20) - 1));
+            assertEquals(clients.length * PACKETS, counter.getPackets());
+            assertEquals(clients.length * PACKETS * 100, counter.getBytes());
+        }
+        metrics.reset();
+        assertEquals(0, metrics.getStreams().length);
+    }
+
+    /**
+     * The counters are readable through the platform MBean server
+     *
+     * @throws Exception
+     *             should not happen
+     */
+    @Test
+    public void testJmx() throws Exception {
+        ViewerMetrics metrics = new ViewerMetrics();
+        metrics.onCommand(lttng_viewer_command.VIEWER_GET_NEXT_INDEX, 5000);
+        metrics.onPacket(7, lttng_viewer_get_packet_return_code.VIEWER_GET_PACKET_RETRY, 0);
+        ObjectName name = metrics.register("test"); //$NON-NLS-1$
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            TabularData counts = (TabularData) server.getAttribute(name, "CommandCounts"); //$NON-NLS-1$
+            CompositeData row = counts.get(new Object[] { lttng_viewer_command.VIEWER_GET_NEXT_INDEX.name() });
+            assertEquals(Long.valueOf(1), row.get("value")); //$NON-NLS-1$
+            TabularData codes = (TabularData) server.getAttribute(name, "PacketReturnCodes"); //$NON-NLS-1$
+            row = codes.get(new Object[] { lttng_viewer_get_packet_return_code.VIEWER_GET_PACKET_RETRY.name() });
+            assertEquals(Long.valueOf(1), row.get("value")); //$NON-NLS-1$
+            assertEquals(Long.valueOf(0), server.getAttribute(name, "EventsDiscarded")); //$NON-NLS-1$
+        } finally {
+            ViewerMetrics.unregister(name);
+        }
+    }
+}
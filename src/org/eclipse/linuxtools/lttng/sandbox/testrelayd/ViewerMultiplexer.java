@@ -0,0 +1,700 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_attach_return_code;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_attach_session_request;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_attach_session_response;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_cmd;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_command;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_connect;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_connection_type;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_get_metadata;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_get_metadata_return_code;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_get_next_index;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_get_packet;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_get_packet_return_code;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_index;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_list_sessions;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_metadata_packet;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_next_index_return_code;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_seek;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_trace_packet;
+
+/**
+ * Runs many viewer connections on a few selector threads.
+ *
+ * The 2.4 protocol allows one attached session per viewer connection, so
+ * tailing every session of every relay daemon means hundreds of connections.
+ * Instead of a thread blocked in each of them, every connection is a state
+ * machine driven by the readiness events of its selector: it sends a request,
+ * returns, and resumes when enough of the reply arrived to decode it.
+ *
+ * Once attached, a connection reads the metadata, then polls its streams
+ * with a {@link PollScheduler}: the due streams get their GET_NEXT_INDEX
+ * back to back, then the OK ones get their GET_PACKET back to back. Streams
+ * with nothing new are left alone until the scheduler says they are due, the
+ * selector sleeps until the earliest of them. A connection ends once all its
+ * streams hung up.
+ *
+ * The listener is called on the selector threads and must not block; data
+ * buffers are only valid during the call.
+ *
+ * @author Matthew Khouzam
+ */
+public class ViewerMultiplexer implements Closeable {
+
+    /**
+     * Receives what the connections read. Calls for one session come from
+     * one thread, in order.
+     */
+    public interface Listener {
+        /**
+         * A session was attached
+         *
+         * @param relayd
+         *            the relay daemon
+         * @param attached
+         *            the session and its streams
+         */
+        void onAttach(InetSocketAddress relayd, AttachedSession attached);
+
+        /**
+         * New metadata was read
+         *
+         * @param sessionId
+         *            the session
+         * @param stream
+         *            the metadata stream
+         * @param data
+         *            the metadata between position and limit
+         */
+        void onMetadata(long sessionId, ViewerStream stream, ByteBuffer data);
+
+        /**
+         * A packet was read
+         *
+         * @param sessionId
+         *            the session
+         * @param stream
+         *            the data stream
+         * @param index
+         *            the index of the packet
+         * @param data
+         *            the packet between position and limit
+         */
+        void onPacket(long sessionId, ViewerStream stream, lttng_viewer_index index, ByteBuffer data);
+
+        /**
+         * A connection ended
+         *
+         * @param sessionId
+         *            its session, -1 for a session listing connection
+         * @param cause
+         *            the error, null if every stream hung up, the listing
+         *            is done or the multiplexer was closed
+         */
+        void onClose(long sessionId, IOException cause);
+    }
+
+    private static final int MAJOR = 2;
+    private static final int MINOR = 4;
+    /* Most GET_NEXT_INDEX in one round, and so most GET_PACKET */
+    private static final int WINDOW = 128;
+    private static final int SEND_BUFFER_SIZE = WINDOW * (lttng_viewer_cmd.SIZE + lttng_viewer_get_packet.SIZE);
+    private static final int RECEIVE_BUFFER_SIZE = 64 * 1024;
+
+    private enum State {
+        CONNECTING, HANDSHAKE, LISTING, ATTACHING, METADATA, IDLE, INDEXES, PACKETS, CLOSED
+    }
+
+    private final Loop[] fLoops;
+    private final AtomicInteger fNextLoop = new AtomicInteger();
+    private final AtomicInteger fConnections = new AtomicInteger();
+    private final ViewerNames fNames = new ViewerNames();
+    private volatile boolean fClosed;
+
+    /**
+     * Constructor, starts the selector threads
+     *
+     * @param threads
+     *            the number of selector threads
+     * @throws IOException
+     *             a selector could not be opened
+     */
+    public ViewerMultiplexer(int threads) throws IOException {
+        fLoops = new Loop[threads];
+        try {
+            for (int i = 0; i < threads; i++) {
+                fLoops[i] = new Loop(Selector.open());
+            }
+        } catch (IOException e) {
+            for (Loop loop : fLoops) {
+                if (loop != null) {
+                    loop.fSelector.close();
+                }
+            }
+            throw e;
+        }
+        for (int i = 0; i < threads; i++) {
+            Thread thread = new Thread(fLoops[i], "Viewer multiplexer " + i); //$NON-NLS-1$
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * List the sessions of a relay daemon and tail each of them on its own
+     * connection
+     *
+     * @param relayd
+     *            the viewer address of the relay daemon
+     * @param listener
+     *            receives the data of every session
+     */
+    public void tailAll(InetSocketAddress relayd, Listener listener) {
+        add(new Connection(relayd, -1, listener));
+    }
+
+    /**
+     * Tail one session
+     *
+     * @param relayd
+     *            the viewer address of the relay daemon
+     * @param sessionId
+     *            the session
+     * @param listener
+     *            receives the data of the session
+     */
+    public void tail(InetSocketAddress relayd, long sessionId, Listener listener) {
+        add(new Connection(relayd, sessionId, listener));
+    }
+
+    /**
+     * @return the number of open viewer connections
+     */
+    public int getConnectionCount() {
+        return fConnections.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        fClosed = true;
+        for (Loop loop : fLoops) {
+            loop.fSelector.wakeup();
+        }
+    }
+
+    private void add(Connection connection) {
+        if (fClosed) {
+            throw new IllegalStateException("The multiplexer is closed"); //$NON-NLS-1$
+        }
+        fConnections.incrementAndGet();
+        Loop loop = fLoops[(fNextLoop.getAndIncrement() & Integer.MAX_VALUE) % fLoops.length];
+        loop.fPending.add(connection);
+        loop.fSelector.wakeup();
+    }
+
+    // ------------------------------------------------------------------------
+    // Selector thread
+    // ------------------------------------------------------------------------
+
+    private final class Loop implements Runnable {
+        private final Selector fSelector;
+        private final Queue<Connection> fPending = new ConcurrentLinkedQueue<>();
+        private final List<Connection> fActive = new ArrayList<>();
+
+        public Loop(Selector selector) {
+            fSelector = selector;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!fClosed) {
+                    for (Connection connection = fPending.poll(); connection != null; connection = fPending.poll()) {
+                        connection.open(fSelector);
+                        fActive.add(connection);
+                    }
+                    long timeout = pollDue();
+                    if (timeout == Long.MAX_VALUE) {
+                        fSelector.select();
+                    } else {
+                        fSelector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(timeout)));
+                    }
+                    for (SelectionKey key : fSelector.selectedKeys()) {
+                        ((Connection) key.attachment()).handle(key);
+                    }
+                    fSelector.selectedKeys().clear();
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                /* the selector itself failed, nothing left to run on */
+            } finally {
+                for (Connection connection : fActive) {
+                    connection.close(null);
+                }
+                for (Connection connection = fPending.poll(); connection != null; connection = fPending.poll()) {
+                    connection.close(null);
+                }
+                try {
+                    fSelector.close();
+                } catch (IOException e) {
+                    /* closing anyway */
+                }
+            }
+        }
+
+        /* start the rounds that are due, return the time to the next one */
+        private long pollDue() {
+            long now = System.nanoTime();
+            long timeout = Long.MAX_VALUE;
+            for (int i = fActive.size() - 1; i >= 0; i--) {
+                Connection connection = fActive.get(i);
+                if (connection.fState == State.CLOSED) {
+                    fActive.remove(i);
+                } else if (connection.fState == State.IDLE) {
+                    connection.poll(now);
+                    long next = connection.fScheduler.nextDue(now);
+                    if (connection.fState == State.IDLE && next != Long.MAX_VALUE) {
+                        timeout = Math.min(timeout, next - now);
+                    }
+                }
+            }
+            return timeout;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Connection state machine
+    // ------------------------------------------------------------------------
+
+    private final class Connection {
+        private final InetSocketAddress fRelayd;
+        private final long fSessionId;
+        private final Listener fListener;
+        private final ByteBuffer fOut = ByteBuffer.allocateDirect(SEND_BUFFER_SIZE).order(ByteOrder.BIG_ENDIAN);
+        private ByteBuffer fIn = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE).order(ByteOrder.BIG_ENDIAN);
+        private final lttng_viewer_cmd fHeader = new lttng_viewer_cmd();
+        private final lttng_viewer_connect fConnect = new lttng_viewer_connect();
+        private final lttng_viewer_attach_session_request fAttach = new lttng_viewer_attach_session_request();
+        private final lttng_viewer_attach_session_response fAttachReply = new lttng_viewer_attach_session_response();
+        private final lttng_viewer_get_next_index fNextIndex = new lttng_viewer_get_next_index();
+        private final lttng_viewer_get_packet fGetPacket = new lttng_viewer_get_packet();
+        private final lttng_viewer_get_metadata fGetMetadata = new lttng_viewer_get_metadata();
+        private final lttng_viewer_trace_packet fPacketReply = new lttng_viewer_trace_packet();
+        private final lttng_viewer_metadata_packet fMetadataReply = new lttng_viewer_metadata_packet();
+        private final ViewerSession.View fSessionView = new ViewerSession.View();
+        private final ViewerStream.View fStreamView = new ViewerStream.View();
+        private SocketChannel fChannel;
+        private SelectionKey fKey;
+        private State fState = State.CONNECTING;
+        /* bytes the current state needs before it can decode */
+        private int fNeed;
+        /* set once attached */
+        private ViewerStream[] fData;
+        private ViewerStream[] fMetadata;
+        private PollScheduler fScheduler;
+        private lttng_viewer_index[] fReplies;
+        private int[] fSlots;
+        private long[] fIds;
+        /* current round: requests sent and replies decoded */
+        private int fCount;
+        private int[] fPackets;
+        private int fPacketCount;
+        private int fCursor;
+        private int fMetadataCursor;
+        private boolean fNewMetadata;
+
+        public Connection(InetSocketAddress relayd, long sessionId, Listener listener) {
+            fRelayd = relayd;
+            fSessionId = sessionId;
+            fListener = listener;
+        }
+
+        public void open(Selector selector) {
+            try {
+                fChannel = SocketChannel.open();
+                fChannel.configureBlocking(false);
+                fChannel.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+                fKey = fChannel.register(selector, 0, this);
+                if (fChannel.connect(fRelayd)) {
+                    connected();
+                } else {
+                    fKey.interestOps(SelectionKey.OP_CONNECT);
+                }
+            } catch (IOException e) {
+                close(e);
+            }
+        }
+
+        public void handle(SelectionKey key) {
+            try {
+                if (!key.isValid()) {
+                    return;
+                }
+                if (key.isConnectable()) {
+                    fChannel.finishConnect();
+                    connected();
+                    return;
+                }
+                if (key.isWritable()) {
+                    write();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    read();
+                }
+            } catch (IOException e) {
+                close(e);
+            } catch (RuntimeException e) {
+                close(new IOException(e));
+            }
+        }
+
+        public void poll(long now) {
+            try {
+                startRound(now);
+            } catch (IOException e) {
+                close(e);
+            }
+        }
+
+        public void close(IOException cause) {
+            if (fState == State.CLOSED) {
+                return;
+            }
+            fState = State.CLOSED;
+            fConnections.decrementAndGet();
+            try {
+                if (fChannel != null) {
+                    fChannel.close();
+                }
+            } catch (IOException e) {
+                /* closing anyway */
+            }
+            fListener.onClose(fSessionId, cause);
+        }
+
+        // --------------------------------------------------------------------
+        // Transitions
+        // --------------------------------------------------------------------
+
+        private void connected() throws IOException {
+            fConnect.viewer_session_id = 0;
+            fConnect.major = MAJOR;
+            fConnect.minor = MINOR;
+            fConnect.type = lttng_viewer_connection_type.VIEWER_CLIENT_COMMAND;
+            fOut.clear();
+            request(lttng_viewer_command.VIEWER_CONNECT, fConnect.size());
+            fConnect.writeTo(fOut);
+            expect(State.HANDSHAKE, fConnect.size());
+        }
+
+        /* decode what arrived, as long as a state has all it needs */
+        private void read() throws IOException {
+            int read = fChannel.read(fIn);
+            if (read < 0) {
+                throw new EOFException("Relayd closed the connection"); //$NON-NLS-1$
+            }
+            fIn.flip();
+            while (fState != State.CLOSED && fIn.remaining() >= fNeed) {
+                if (!decode()) {
+                    break;
+                }
+            }
+            if (fState == State.CLOSED) {
+                return;
+            }
+            fIn.compact();
+            if (fNeed > fIn.capacity()) {
+                ByteBuffer bigger = ByteBuffer.allocateDirect(Integer.highestOneBit(fNeed - 1) << 1).order(ByteOrder.BIG_ENDIAN);
+                fIn.flip();
+                bigger.put(fIn);
+                fIn = bigger;
+            }
+        }
+
+        /* one step of the current state, false if more bytes are needed */
+        private boolean decode() throws IOException {
+            switch (fState) {
+            case HANDSHAKE:
+                fConnect.readFrom(fIn);
+                if (fConnect.major != MAJOR) {
+                    throw new IOException("Unsupported relayd major version " + fConnect.major); //$NON-NLS-1$
+                }
+                fOut.clear();
+                if (fSessionId < 0) {
+                    request(lttng_viewer_command.VIEWER_LIST_SESSIONS, 0);
+                    expect(State.LISTING, lttng_viewer_list_sessions.FIXED_SIZE);
+                } else {
+                    fAttach.session_id = fSessionId;
+                    fAttach.offset = 0;
+                    fAttach.seek = lttng_viewer_seek.VIEWER_SEEK_BEGINNING;
+                    request(lttng_viewer_command.VIEWER_ATTACH_SESSION, fAttach.size());
+                    fAttach.writeTo(fOut);
+                    expect(State.ATTACHING, lttng_viewer_attach_session_response.FIXED_SIZE);
+                }
+                return true;
+            case LISTING:
+                return decodeSessions();
+            case ATTACHING:
+                return decodeAttach();
+            case METADATA:
+                return decodeMetadata();
+            case INDEXES:
+                decodeIndexes();
+                return true;
+            case PACKETS:
+                return decodePacket();
+            case CONNECTING:
+            case IDLE:
+            case CLOSED:
+            default:
+                /* nothing was asked, the relay daemon talks on its own */
+                throw new IOException("Unexpected data from relayd in state " + fState); //$NON-NLS-1$
+            }
+        }
+
+        private boolean decodeSessions() {
+            int count = fIn.getInt(fIn.position());
+            fNeed = lttng_viewer_list_sessions.FIXED_SIZE + count * ViewerSession.SIZE;
+            if (fIn.remaining() < fNeed) {
+                return false;
+            }
+            fIn.position(fIn.position() + lttng_viewer_list_sessions.FIXED_SIZE);
+            for (int i = 0; i < count; i++) {
+                ViewerSession session = fSessionView.wrap(fIn, fIn.position()).toSession(fNames);
+                fIn.position(fIn.position() + ViewerSession.SIZE);
+                /* one attach per viewer connection */
+                tail(fRelayd, session.getId(), fListener);
+            }
+            close(null);
+            return true;
+        }
+
+        private boolean decodeAttach() throws IOException {
+            int count = fIn.getInt(fIn.position() + 4);
+            fNeed = lttng_viewer_attach_session_response.FIXED_SIZE + count * ViewerStream.SIZE;
+            if (fIn.remaining() < fNeed && fIn.getInt(fIn.position()) == lttng_viewer_attach_return_code.VIEWER_ATTACH_OK.getCommand()) {
+                return false;
+            }
+            fAttachReply.readFrom(fIn);
+            if (fAttachReply.status != lttng_viewer_attach_return_code.VIEWER_ATTACH_OK) {
+                throw new IOException("Attach to session " + fSessionId + " refused: " + fAttachReply.status); //$NON-NLS-1$ //$NON-NLS-2$
+            }
+            ViewerStream[] streams = new ViewerStream[count];
+            for (int i = 0; i < count; i++) {
+                streams[i] = fStreamView.wrap(fIn, fIn.position()).toStream(fNames);
+                fIn.position(fIn.position() + ViewerStream.SIZE);
+            }
+            AttachedSession attached = new AttachedSession(fSessionId, fAttachReply.status, streams);
+            fData = attached.getDataStreams();
+            fMetadata = attached.getMetadataStreams();
+            fScheduler = new PollScheduler(attached.getDataStreamIds());
+            int window = Math.max(1, Math.min(WINDOW, fData.length));
+            fReplies = new lttng_viewer_index[window];
+            for (int i = 0; i < window; i++) {
+                fReplies[i] = new lttng_viewer_index();
+            }
+            fSlots = new int[window];
+            fIds = new long[window];
+            fPackets = new int[window];
+            fListener.onAttach(fRelayd, attached);
+            fMetadataCursor = 0;
+            nextMetadata();
+            return true;
+        }
+
+        /* ask the metadata streams in turn until none has more */
+        private void nextMetadata() throws IOException {
+            if (fMetadataCursor >= fMetadata.length) {
+                fNewMetadata = false;
+                startRound(System.nanoTime());
+                return;
+            }
+            fGetMetadata.stream_id = fMetadata[fMetadataCursor].getId();
+            fOut.clear();
+            request(lttng_viewer_command.VIEWER_GET_METADATA, fGetMetadata.size());
+            fGetMetadata.writeTo(fOut);
+            expect(State.METADATA, lttng_viewer_metadata_packet.FIXED_SIZE);
+        }
+
+        private boolean decodeMetadata() throws IOException {
+            long len = fIn.getLong(fIn.position());
+            boolean ok = fIn.getInt(fIn.position() + 8) == lttng_viewer_get_metadata_return_code.VIEWER_METADATA_OK.getCommand();
+            if (ok) {
+                fNeed = (int) (lttng_viewer_metadata_packet.FIXED_SIZE + len);
+                if (fIn.remaining() < fNeed) {
+                    return false;
+                }
+            }
+            fMetadataReply.readFrom(fIn);
+            if (ok) {
+                deliver((int) len, fMetadata[fMetadataCursor], null);
+                /* ask the same stream until it has nothing new */
+                fNeed = lttng_viewer_metadata_packet.FIXED_SIZE;
+                fOut.clear();
+                request(lttng_viewer_command.VIEWER_GET_METADATA, fGetMetadata.size());
+                fGetMetadata.writeTo(fOut);
+                send();
+            } else {
+                fMetadataCursor++;
+                nextMetadata();
+            }
+            return true;
+        }
+
+        private void startRound(long now) throws IOException {
+            if (fScheduler.isDone()) {
+                close(null);
+                return;
+            }
+            fCount = fScheduler.nextBatch(now, fSlots, fIds, fSlots.length);
+            if (fCount == 0) {
+                fState = State.IDLE;
+                return;
+            }
+            fOut.clear();
+            for (int i = 0; i < fCount; i++) {
+                fNextIndex.stream_id = fIds[i];
+                request(lttng_viewer_command.VIEWER_GET_NEXT_INDEX, fNextIndex.size());
+                fNextIndex.writeTo(fOut);
+            }
+            expect(State.INDEXES, fCount * lttng_viewer_index.SIZE);
+        }
+
+        private void decodeIndexes() throws IOException {
+            long now = System.nanoTime();
+            fPacketCount = 0;
+            fOut.clear();
+            for (int i = 0; i < fCount; i++) {
+                lttng_viewer_index reply = fReplies[i];
+                reply.readFrom(fIn);
+                boolean ok = reply.status == lttng_viewer_next_index_return_code.VIEWER_INDEX_OK;
+                fScheduler.onReply(fSlots[i], reply.status, ok ? reply.packet_size / 8 : 0, now);
+                if ((reply.flags & LTTngRelayDCommands2_4.LTTNG_VIEWER_FLAG_NEW_METADATA) != 0) {
+                    fNewMetadata = true;
+                }
+                if (ok) {
+                    fGetPacket.stream_id = fIds[i];
+                    fGetPacket.offset = reply.offset;
+                    fGetPacket.len = (int) (reply.packet_size / 8);
+                    request(lttng_viewer_command.VIEWER_GET_PACKET, fGetPacket.size());
+                    fGetPacket.writeTo(fOut);
+                    fPackets[fPacketCount++] = i;
+                }
+            }
+            if (fPacketCount == 0) {
+                endRound();
+                return;
+            }
+            fCursor = 0;
+            expect(State.PACKETS, lttng_viewer_trace_packet.FIXED_SIZE);
+        }
+
+        private boolean decodePacket() throws IOException {
+            boolean ok = fIn.getInt(fIn.position()) == lttng_viewer_get_packet_return_code.VIEWER_GET_PACKET_OK.getCommand();
+            int len = fIn.getInt(fIn.position() + 4);
+            if (ok) {
+                fNeed = lttng_viewer_trace_packet.FIXED_SIZE + len;
+                if (fIn.remaining() < fNeed) {
+                    return false;
+                }
+            }
+            fPacketReply.readFrom(fIn);
+            int i = fPackets[fCursor++];
+            if (ok) {
+                deliver(len, fData[fSlots[i]], fReplies[i]);
+            }
+            fNeed = lttng_viewer_trace_packet.FIXED_SIZE;
+            if (fCursor == fPacketCount) {
+                endRound();
+            }
+            return true;
+        }
+
+        private void endRound() throws IOException {
+            if (fNewMetadata) {
+                fMetadataCursor = 0;
+                nextMetadata();
+            } else {
+                startRound(System.nanoTime());
+            }
+        }
+
+        // --------------------------------------------------------------------
+        // Buffers
+        // --------------------------------------------------------------------
+
+        private void request(lttng_viewer_command cmd, int size) {
+            fHeader.cmd = cmd;
+            fHeader.data_size = size;
+            fHeader.writeTo(fOut);
+        }
+
+        /* send what was written in fOut and wait for need bytes in state */
+        private void expect(State state, int need) throws IOException {
+            fState = state;
+            fNeed = need;
+            send();
+        }
+
+        /*
+         * The requests of a round are sent before any of their replies can
+         * complete it, so fOut is always drained when the next round writes
+         */
+        private void send() throws IOException {
+            fOut.flip();
+            write();
+        }
+
+        private void write() throws IOException {
+            fChannel.write(fOut);
+            fKey.interestOps(fOut.hasRemaining() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        /* hand len bytes at the read position to the listener */
+        private void deliver(int len, ViewerStream stream, lttng_viewer_index index) {
+            int position = fIn.position();
+            int limit = fIn.limit();
+            fIn.limit(position + len);
+            try {
+                if (index == null) {
+                    fListener.onMetadata(fSessionId, stream, fIn);
+                } else {
+                    fListener.onPacket(fSessionId, stream, index, fIn);
+                }
+            } finally {
+                fIn.limit(limit);
+                fIn.position(position + len);
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_index;
+import org.junit.Test;
+
+/**
+ * Tests the viewer multiplexer against the mock relayd
+ *
+ * @author Matthew Khouzam
+ */
+public class ViewerMultiplexerTest {
+
+    private static final int SESSIONS = 8;
+    private static final int STREAMS = 3;
+    private static final int PACKETS = 20;
+    private static final int PACKET_SIZE = 4096;
+
+    /**
+     * Tail every session of the mock on two threads, until all the streams
+     * hang up
+     *
+     * @throws Exception
+     *             should not happen
+     */
+    @Test
+    public void testTailAll() throws Exception {
+        MockRelayD relayd = new MockRelayD();
+        relayd.setSessionCount(SESSIONS);
+        relayd.setStreamsPerSession(STREAMS);
+        relayd.setIdleStreams(0);
+        relayd.setPacketSize(PACKET_SIZE);
+        relayd.setPacketCount(PACKETS);
+        InetSocketAddress address = relayd.start(0);
+        final Map<Long, AtomicInteger> packets = new ConcurrentHashMap<>();
+        final Map<Long, AtomicInteger> metadata = new ConcurrentHashMap<>();
+        final AtomicInteger badPackets = new AtomicInteger();
+        final AtomicReference<IOException> error = new AtomicReference<>();
+        /* the listing connection and one per session */
+        final CountDownLatch closed = new CountDownLatch(SESSIONS + 1);
+        try (ViewerMultiplexer multiplexer = new ViewerMultiplexer(2)) {
+            multiplexer.tailAll(address, new ViewerMultiplexer.Listener() {
+                @Override
+                public void onAttach(InetSocketAddress relay, AttachedSession attached) {
+                    packets.put(Long.valueOf(attached.getSessionId()), new AtomicInteger());
+                    metadata.put(Long.valueOf(attached.getSessionId()), new AtomicInteger());
+                }
+
+                @Override
+                public void onMetadata(long sessionId, ViewerStream stream, ByteBuffer data) {
+                    metadata.get(Long.valueOf(sessionId)).addAndGet(data.remaining());
+                }
+
+                @Override
+                public void onPacket(long sessionId, ViewerStream stream, lttng_viewer_index index, ByteBuffer data) {
+                    /* the packets are little endian, the buffer is not */
+                    if (data.remaining() != PACKET_SIZE || Integer.reverseBytes(data.getInt(data.position())) != SyntheticTrace.MAGIC) {
+                        badPackets.incrementAndGet();
+                    }
+                    packets.get(Long.valueOf(sessionId)).incrementAndGet();
+                }
+
+                @Override
+                public void onClose(long sessionId, IOException cause) {
+                    if (cause != null) {
+                        error.set(cause);
+                    }
+                    closed.countDown();
+                }
+            });
+            assertTrue(closed.await(30, TimeUnit.SECONDS));
+            assertNull(error.get());
+            assertEquals(0, multiplexer.getConnectionCount());
+        } finally {
+            relayd.close();
+        }
+        assertEquals(SESSIONS, packets.size());
+        for (AtomicInteger count : packets.values()) {
+            assertEquals(STREAMS * PACKETS, count.get());
+        }
+        for (AtomicInteger count : metadata.values()) {
+            assertTrue(count.get() > 0);
+        }
+        assertEquals(0, badPackets.get());
+    }
+
+    /**
+     * Streams that retry or stay idle are polled again on the scheduler's
+     * timer, and closing the multiplexer ends their connections
+     *
+     * @throws Exception
+     *             should not happen
+     */
+    @Test
+    public void testRetryAndClose() throws Exception {
+        MockRelayD relayd = new MockRelayD();
+        relayd.setSessionCount(2);
+        relayd.setStreamsPerSession(2);
+        relayd.setIdleStreams(1);
+        relayd.setPacketSize(PACKET_SIZE);
+        relayd.setPacketCount(PACKETS);
+        relayd.setRetryRatio(0.5);
+        InetSocketAddress address = relayd.start(0);
+        final AtomicInteger packets = new AtomicInteger();
+        final CountDownLatch closed = new CountDownLatch(2);
+        try {
+            ViewerMultiplexer multiplexer = new ViewerMultiplexer(1);
+            ViewerMultiplexer.Listener listener = new ViewerMultiplexer.Listener() {
+                @Override
+                public void onAttach(InetSocketAddress relay, AttachedSession attached) {
+                    // only count packets
+                }
+
+                @Override
+                public void onMetadata(long sessionId, ViewerStream stream, ByteBuffer data) {
+                    // only count packets
+                }
+
+                @Override
+                public void onPacket(long sessionId, ViewerStream stream, lttng_viewer_index index, ByteBuffer data) {
+                    packets.incrementAndGet();
+                }
+
+                @Override
+                public void onClose(long sessionId, IOException cause) {
+                    closed.countDown();
+                }
+            };
+            multiplexer.tail(address, 1, listener);
+            multiplexer.tail(address, 2, listener);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (packets.get() < 2 * PACKETS && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(2 * PACKETS, packets.get());
+            /* the idle streams keep the sessions open */
+            assertEquals(2, multiplexer.getConnectionCount());
+            multiplexer.close();
+            assertTrue(closed.await(10, TimeUnit.SECONDS));
+            assertEquals(0, multiplexer.getConnectionCount());
+        } finally {
+            relayd.close();
+        }
+    }
+}
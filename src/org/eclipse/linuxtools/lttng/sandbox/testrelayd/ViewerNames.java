@@ -0,0 +1,179 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Intern pool for the names sent by the relay daemon.
+ *
+ * Names are fixed size, NUL padded fields on the wire (4096 bytes for a path).
+ * The pool keeps one trimmed copy of every distinct name, so thousands of
+ * streams of the same trace share their path and channel names. Lookups hash
+ * the bytes in place in the receive buffer and only allocate the first time a
+ * name is seen.
+ *
+ * @author Matthew Khouzam
+ */
+public class ViewerNames {
+
+    /** Names are C strings, they are decoded as UTF-8 */
+    public static final Charset CHARSET = Charset.forName("UTF-8"); //$NON-NLS-1$
+
+    /** The empty name */
+    public static final byte[] EMPTY = new byte[0];
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private byte[][] fTable = new byte[INITIAL_CAPACITY][];
+    private int fSize;
+
+    /**
+     * Get the length of a NUL terminated name
+     *
+     * @param bb
+     *            the buffer holding the name
+     * @param offset
+     *            the absolute offset of the name field
+     * @param max
+     *            the size of the field
+     * @return the number of bytes before the first NUL, or max
+     */
+    public static int length(ByteBuffer bb, int offset, int max) {
+        for (int i = 0; i < max; i++) {
+            if (bb.get(offset + i) == 0) {
+                return i;
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Decode a trimmed name
+     *
+     * @param name
+     *            the name bytes, without NULs
+     * @return the name as a string
+     */
+    public static String decode(byte[] name) {
+        return new String(name, CHARSET);
+    }
+
+    /**
+     * Get the shared copy of a name
+     *
+     * @param bb
+     *            the buffer holding the name
+     * @param offset
+     *            the absolute offset of the first byte
+     * @param len
+     *            the length of the name, without NULs
+     * @return the shared bytes of the name, must not be modified
+     */
+    public synchronized byte[] intern(ByteBuffer bb, int offset, int len) {
+        if (len == 0) {
+            return EMPTY;
+        }
+        int hash = 1;
+        for (int i = 0; i < len; i++) {
+            hash = 31 * hash + bb.get(offset + i);
+        }
+        int mask = fTable.length - 1;
+        int slot = mix(hash) & mask;
+        byte[] entry;
+        while ((entry = fTable[slot]) != null) {
+            if (matches(entry, bb, offset, len)) {
+                return entry;
+            }
+            slot = (slot + 1) & mask;
+        }
+        byte[] name = new byte[len];
+        for (int i = 0; i < len; i++) {
+            name[i] = bb.get(offset + i);
+        }
+        fTable[slot] = name;
+        if (++fSize * 2 > fTable.length) {
+            rehash();
+        }
+        return name;
+    }
+
+    /**
+     * Get the shared copy of a name
+     *
+     * @param name
+     *            the name
+     * @return the shared bytes of the name, must not be modified
+     */
+    public byte[] intern(String name) {
+        byte[] bytes = name.getBytes(CHARSET);
+        return intern(ByteBuffer.wrap(bytes), 0, bytes.length);
+    }
+
+    /**
+     * Write NULs up to the end of a fixed size name field
+     *
+     * @param bb
+     *            the buffer, positioned after the name
+     * @param end
+     *            the absolute position of the end of the field
+     */
+    public static void pad(ByteBuffer bb, int end) {
+        while (bb.position() < end) {
+            bb.put((byte) 0);
+        }
+    }
+
+    /**
+     * Get the number of distinct names in the pool
+     *
+     * @return the number of names
+     */
+    public synchronized int size() {
+        return fSize;
+    }
+
+    private static boolean matches(byte[] entry, ByteBuffer bb, int offset, int len) {
+        if (entry.length != len) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (entry[i] != bb.get(offset + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int mix(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private void rehash() {
+        byte[][] old = fTable;
+        fTable = new byte[old.length * 2][];
+        int mask = fTable.length - 1;
+        for (byte[] entry : old) {
+            if (entry != null) {
+                int slot = mix(Arrays.hashCode(entry)) & mask;
+                while (fTable[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                fTable[slot] = entry;
+            }
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_cmd;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_command;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_connect;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_connection_type;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_notification;
+
+/**
+ * The VIEWER_CLIENT_NOTIFICATION connection paired with a command connection.
+ *
+ * A reader thread collects the ids of the notified streams and unparks the
+ * waiter, normally the thread running the {@link LiveSessionPoller}, which
+ * drains them and wakes the streams in its scheduler. Notifications only
+ * speed up the polls: when the connection is refused or lost, the poller
+ * falls back to plain polling.
+ *
+ * relayd 2.4 accepts the connection type but sends nothing on it, the
+ * notifications are served by {@link MockRelayD}. An open connection is
+ * therefore no promise of notifications, see {@link #getCount()}.
+ *
+ * @author Matthew Khouzam
+ */
+public class ViewerNotifications implements Closeable {
+
+    private static final int MAJOR = 2;
+    private static final int MINOR = 4;
+
+    private final ByteChannel fChannel;
+    private final Thread fReader;
+    private final AtomicLong fCount = new AtomicLong();
+    /* notified stream ids not drained yet, without duplicates */
+    private long[] fPending = new long[16];
+    private int fPendingCount;
+    private volatile Thread fWaiter;
+    private volatile boolean fAlive = true;
+
+    /**
+     * Open the notification connection of a viewer session
+     *
+     * @param host
+     *            the relayd host name or address
+     * @param port
+     *            the relayd viewer port
+     * @param viewerSessionId
+     *            the id given to the command connection, see
+     *            {@link ViewerClient#getViewerSessionId()}
+     * @return the connection, already reading
+     * @throws IOException
+     *             the socket could not be opened or the relayd refused the
+     *             connection
+     */
+    public static ViewerNotifications open(String host, int port, long viewerSessionId) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+            return new ViewerNotifications(channel, viewerSessionId);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Send VIEWER_CONNECT on a blocking channel and start reading
+     * notifications from it
+     *
+     * @param channel
+     *            a blocking channel to the relay daemon, it is owned by this
+     *            object from now on
+     * @param viewerSessionId
+     *            the id given to the command connection
+     * @throws IOException
+     *             network error or the relayd refused the connection
+     */
+    public ViewerNotifications(ByteChannel channel, long viewerSessionId) throws IOException {
+        fChannel = channel;
+        lttng_viewer_cmd header = new lttng_viewer_cmd();
+        lttng_viewer_connect connect = new lttng_viewer_connect();
+        header.cmd = lttng_viewer_command.VIEWER_CONNECT;
+        header.data_size = connect.size();
+        connect.viewer_session_id = viewerSessionId;
+        connect.major = MAJOR;
+        connect.minor = MINOR;
+        connect.type = lttng_viewer_connection_type.VIEWER_CLIENT_NOTIFICATION;
+        ByteBuffer buffer = ByteBuffer.allocate(header.size() + connect.size()).order(ByteOrder.BIG_ENDIAN);
+        header.writeTo(buffer);
+        connect.writeTo(buffer);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            fChannel.write(buffer);
+        }
+        buffer.clear();
+        buffer.limit(connect.size());
+        fill(buffer);
+        buffer.flip();
+        connect.readFrom(buffer);
+        if (connect.major != MAJOR) {
+            throw new IOException("Unsupported relayd major version " + connect.major); //$NON-NLS-1$
+        }
+        fReader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read();
+            }
+        }, "Viewer notifications " + viewerSessionId); //$NON-NLS-1$
+        fReader.setDaemon(true);
+        fReader.start();
+    }
+
+    /**
+     * Set the thread to unpark on every notification and when the connection
+     * is lost
+     *
+     * @param waiter
+     *            the polling thread, null for none
+     */
+    public void setWaiter(Thread waiter) {
+        fWaiter = waiter;
+    }
+
+    /**
+     * Take the ids of the streams notified since the last call
+     *
+     * @param ids
+     *            filled with stream ids
+     * @return the number of ids, the others stay pending if the array is too
+     *         small
+     */
+    public synchronized int drain(long[] ids) {
+        int count = Math.min(fPendingCount, ids.length);
+        System.arraycopy(fPending, 0, ids, 0, count);
+        System.arraycopy(fPending, count, fPending, 0, fPendingCount - count);
+        fPendingCount -= count;
+        return count;
+    }
+
+    /**
+     * @return false once the relayd closed the connection or it was closed,
+     *         the streams must then be polled again
+     */
+    public boolean isAlive() {
+        return fAlive;
+    }
+
+    /**
+     * @return the number of notifications received, 0 until the relayd
+     *         proved it sends them
+     */
+    public long getCount() {
+        return fCount.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        fAlive = false;
+        fChannel.close();
+    }
+
+    private void read() {
+        lttng_viewer_notification notification = new lttng_viewer_notification();
+        ByteBuffer buffer = ByteBuffer.allocate(notification.size()).order(ByteOrder.BIG_ENDIAN);
+        try {
+            while (true) {
+                buffer.clear();
+                fill(buffer);
+                buffer.flip();
+                notification.readFrom(buffer);
+                fCount.incrementAndGet();
+                add(notification.stream_id);
+                unpark();
+            }
+        } catch (IOException e) {
+            /* closed by either side, back to polling */
+        } finally {
+            fAlive = false;
+            unpark();
+        }
+    }
+
+    private synchronized void add(long streamId) {
+        for (int i = 0; i < fPendingCount; i++) {
+            if (fPending[i] == streamId) {
+                return;
+            }
+        }
+        if (fPendingCount == fPending.length) {
+            long[] pending = new long[fPending.length * 2];
+            System.arraycopy(fPending, 0, pending, 0, fPendingCount);
+            fPending = pending;
+        }
+        fPending[fPendingCount++] = streamId;
+    }
+
+    private void unpark() {
+        Thread waiter = fWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    private void fill(ByteBuffer target) throws IOException {
+        while (target.hasRemaining()) {
+            if (fChannel.read(target) < 0) {
+                throw new EOFException("Relayd closed the connection"); //$NON-NLS-1$
+            }
+        }
+    }
+}
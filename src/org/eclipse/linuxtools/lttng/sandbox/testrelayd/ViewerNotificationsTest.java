@@ -0,0 +1,238 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_connect;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_connection_type;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_index;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_next_index_return_code;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_seek;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the notification connection against the mock relayd
+ *
+ * @author Matthew Khouzam
+ */
+public class ViewerNotificationsTest {
+
+    private static final int STREAMS = 2;
+    private static final int PACKETS = 10;
+    private static final double RATE = 50;
+    private static final int WARMUP_RETRIES = 8;
+
+    private MockRelayD fRelayd;
+    private InetSocketAddress fAddress;
+
+    /**
+     * Start a mock producing packets at a slow rate
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @Before
+    public void setUp() throws IOException {
+        fRelayd = newRelayd();
+        fAddress = fRelayd.start(0);
+    }
+
+    /**
+     * Stop the mock
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @After
+    public void tearDown() throws IOException {
+        fRelayd.close();
+    }
+
+    /**
+     * Notified streams get every packet with about one RETRY per packet once
+     * the first notification came, where polling retries several times per
+     * packet
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @Test
+    public void testFewerRetries() throws IOException {
+        long polled = run(false);
+        long notified = run(true);
+        /* polled at the packet rate until the first notification arrives */
+        assertTrue("notified " + notified, notified <= STREAMS * (PACKETS + 2 + WARMUP_RETRIES)); //$NON-NLS-1$
+        assertTrue("notified " + notified + " polled " + polled, notified < polled); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    /**
+     * A lost notification connection falls back to polling
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @Test
+    public void testFallback() throws IOException {
+        try (ViewerClient client = ViewerClient.open(fAddress.getHostString(), fAddress.getPort())) {
+            client.connect();
+            ViewerNotifications notifications = ViewerNotifications.open(fAddress.getHostString(), fAddress.getPort(), client.getViewerSessionId());
+            AttachedSession attached = client.attachSession(1, lttng_viewer_seek.VIEWER_SEEK_BEGINNING);
+            final int[] ok = new int[1];
+            LiveSessionPoller poller = new LiveSessionPoller(client, attached, new LiveSessionPoller.IndexHandler() {
+                @Override
+                public void onIndex(ViewerStream stream, lttng_viewer_index index) {
+                    if (index.status == lttng_viewer_next_index_return_code.VIEWER_INDEX_OK) {
+                        ok[0]++;
+                    }
+                }
+            });
+            poller.setNotifications(notifications);
+            /* not before the first notification */
+            assertFalse(poller.getScheduler().isNotified());
+            notifications.close();
+            assertFalse(notifications.isAlive());
+            long start = System.nanoTime();
+            poller.run();
+            assertFalse(poller.getScheduler().isNotified());
+            assertEquals(STREAMS * PACKETS, ok[0]);
+            /* much less than the one second safety net per packet */
+            assertTrue(System.nanoTime() - start < 2000000000L);
+        }
+    }
+
+    /**
+     * A relayd that accepts the notification connection but never notifies,
+     * like relayd 2.4, keeps the streams polled at their packet rate
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @Test
+    public void testSilent() throws IOException {
+        try (ViewerClient client = ViewerClient.open(fAddress.getHostString(), fAddress.getPort());
+                ServerSocketChannel server = ServerSocketChannel.open()) {
+            client.connect();
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            SocketChannel channel = SocketChannel.open(server.getLocalAddress());
+            try (SocketChannel silent = server.accept()) {
+                /* answer the VIEWER_CONNECT ahead, then say nothing */
+                lttng_viewer_connect connect = new lttng_viewer_connect();
+                connect.major = 2;
+                connect.minor = 4;
+                connect.type = lttng_viewer_connection_type.VIEWER_CLIENT_NOTIFICATION;
+                connect.viewer_session_id = client.getViewerSessionId();
+                ByteBuffer reply = ByteBuffer.allocate(connect.size()).order(ByteOrder.BIG_ENDIAN);
+                connect.writeTo(reply);
+                reply.flip();
+                while (reply.hasRemaining()) {
+                    silent.write(reply);
+                }
+                try (ViewerNotifications notifications = new ViewerNotifications(channel, client.getViewerSessionId())) {
+                    AttachedSession attached = client.attachSession(1, lttng_viewer_seek.VIEWER_SEEK_BEGINNING);
+                    final int[] ok = new int[1];
+                    final LiveSessionPoller poller = new LiveSessionPoller(client, attached, new LiveSessionPoller.IndexHandler() {
+                        @Override
+                        public void onIndex(ViewerStream stream, lttng_viewer_index index) {
+                            if (index.status == lttng_viewer_next_index_return_code.VIEWER_INDEX_OK) {
+                                ok[0]++;
+                            }
+                        }
+                    });
+                    poller.setNotifications(notifications);
+                    long start = System.nanoTime();
+                    poller.run();
+                    assertTrue(notifications.isAlive());
+                    assertEquals(0, notifications.getCount());
+                    assertFalse(poller.getScheduler().isNotified());
+                    assertEquals(STREAMS * PACKETS, ok[0]);
+                    /* a notified poller would wait a second per packet */
+                    assertTrue(System.nanoTime() - start < 2000000000L);
+                }
+            }
+        }
+    }
+
+    /**
+     * The relayd refuses a notification connection for an unknown viewer
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @Test
+    public void testUnknownViewer() throws IOException {
+        try {
+            ViewerNotifications.open(fAddress.getHostString(), fAddress.getPort(), 1234).close();
+            fail();
+        } catch (IOException e) {
+            /* expected */
+        }
+    }
+
+    private static MockRelayD newRelayd() {
+        MockRelayD relayd = new MockRelayD();
+        relayd.setStreamsPerSession(STREAMS);
+        relayd.setPacketSize(1024);
+        relayd.setPacketCount(PACKETS);
+        relayd.setPacketRate(RATE);
+        return relayd;
+    }
+
+    /* poll a fresh session to its end, return the number of RETRY replies */
+    private static long run(boolean notified) throws IOException {
+        ViewerMetrics metrics = new ViewerMetrics();
+        ViewerNotifications notifications = null;
+        MockRelayD relayd = newRelayd();
+        InetSocketAddress address = relayd.start(0);
+        try (ViewerClient client = ViewerClient.open(address.getHostString(), address.getPort())) {
+            client.setMetrics(metrics);
+            client.connect();
+            if (notified) {
+                notifications = ViewerNotifications.open(address.getHostString(), address.getPort(), client.getViewerSessionId());
+            }
+            AttachedSession attached = client.attachSession(1, lttng_viewer_seek.VIEWER_SEEK_BEGINNING);
+            LiveSessionPoller poller = new LiveSessionPoller(client, attached, new LiveSessionPoller.IndexHandler() {
+                @Override
+                public void onIndex(ViewerStream stream, lttng_viewer_index index) {
+                    /* the indexes are counted by the metrics */
+                }
+            });
+            poller.setNotifications(notifications);
+            poller.run();
+            if (notified) {
+                assertTrue(notifications.getCount() > 0);
+                assertTrue(notifications.isAlive());
+            }
+        } finally {
+            if (notifications != null) {
+                notifications.close();
+            }
+            relayd.close();
+        }
+        assertEquals(STREAMS * PACKETS, metrics.getCount(lttng_viewer_next_index_return_code.VIEWER_INDEX_OK));
+        assertEquals(STREAMS, metrics.getCount(lttng_viewer_next_index_return_code.VIEWER_INDEX_HUP));
+        return metrics.getCount(lttng_viewer_next_index_return_code.VIEWER_INDEX_RETRY);
+    }
+}
@@ -0,0 +1,604 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_attach_return_code;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_connect;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_get_metadata_return_code;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_get_packet;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_get_packet_return_code;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_index;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_metadata_packet;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_next_index_return_code;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_seek;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_trace_packet;
+
+/**
+ * A local relay daemon in front of a real one, so many viewers can follow
+ * the same live session: relayd answers VIEWER_ATTACH_ALREADY to a second
+ * viewer.
+ *
+ * The first downstream viewer attaching to a session makes the proxy attach
+ * to it upstream, on its own connection, and poll it with a
+ * {@link LiveSessionPoller}. The last indexes and packets of every stream are
+ * kept in a bounded ring, and the metadata in a {@link MetadataCache}. Every
+ * downstream viewer reads the rings at its own position; a viewer too slow
+ * for the ring skips to the oldest packet kept. Packets are read once into a
+ * {@link PacketArena} and written to every viewer from that same memory.
+ *
+ * A downstream VIEWER_GET_PACKET is only served from the ring, an evicted
+ * packet answers VIEWER_GET_PACKET_ERR.
+ *
+ * A session whose upstream connection fails is forgotten: its viewers read
+ * what is kept then get VIEWER_INDEX_ERR, the next viewer attaching to it
+ * reattaches upstream. The connection listing the sessions is reopened once
+ * when it fails.
+ *
+ * @author Matthew Khouzam
+ */
+public class ViewerProxy implements ViewerServer.HandlerFactory, Closeable {
+
+    /** Default number of packets kept per stream */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private static final long METADATA_REFRESH = 1000000000L;
+
+    private final String fHost;
+    private final int fPort;
+    private final ViewerNames fNames = new ViewerNames();
+    private final PacketArena fArena = new PacketArena();
+    private final Map<Long, Upstream> fUpstreams = new HashMap<>();
+    private final AtomicLong fViewerSessionIds = new AtomicLong();
+    private final AtomicLong fSkipped = new AtomicLong();
+    private int fCapacity = DEFAULT_CAPACITY;
+    private ViewerClient fControl;
+    private ViewerServer fServer;
+
+    /**
+     * Constructor
+     *
+     * @param host
+     *            the upstream relayd host
+     * @param port
+     *            the upstream relayd viewer port
+     */
+    public ViewerProxy(String host, int port) {
+        fHost = host;
+        fPort = port;
+    }
+
+    /**
+     * @param packets
+     *            the number of packets kept per stream, default
+     *            {@link #DEFAULT_CAPACITY}. Set it before the first attach.
+     */
+    public void setCapacity(int packets) {
+        fCapacity = packets;
+    }
+
+    /**
+     * Start serving downstream viewers
+     *
+     * @param port
+     *            the local port, 0 to pick a free one
+     * @return the address to connect the viewers to
+     * @throws IOException
+     *             the port is taken
+     */
+    public synchronized InetSocketAddress start(int port) throws IOException {
+        fServer = new ViewerServer(this);
+        return fServer.start(port);
+    }
+
+    /**
+     * @return the number of sessions followed upstream, one connection each
+     */
+    public synchronized int getUpstreamCount() {
+        return fUpstreams.size();
+    }
+
+    /**
+     * @return the number of packets downstream viewers missed because they
+     *         were evicted from the ring before being read
+     */
+    public long getSkipped() {
+        return fSkipped.get();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (fServer != null) {
+            fServer.close();
+        }
+        for (Upstream upstream : fUpstreams.values()) {
+            upstream.close();
+        }
+        fUpstreams.clear();
+        if (fControl != null) {
+            fControl.close();
+            fControl = null;
+        }
+    }
+
+    @Override
+    public ViewerServer.Handler newHandler() {
+        return new ProxyHandler();
+    }
+
+    /* the upstream sessions, with the downstream viewer counts */
+    private synchronized ViewerSession[] listUpstream() throws IOException {
+        ViewerSession[] sessions;
+        try {
+            sessions = control().listSessions();
+        } catch (IOException e) {
+            if (fControl == null) {
+                throw e;
+            }
+            /* relayd may have restarted since the last list, try a new connection once */
+            fControl.close();
+            fControl = null;
+            sessions = control().listSessions();
+        }
+        for (int i = 0; i < sessions.length; i++) {
+            ViewerSession session = sessions[i];
+            Upstream upstream = fUpstreams.get(session.getId());
+            int clients = (upstream == null) ? 0 : upstream.fViewers.get();
+            sessions[i] = new ViewerSession(session.getId(), session.getLiveTimer(), clients, session.getStreams(),
+                    fNames.intern(session.getHostname()), fNames.intern(session.getSessionName()));
+        }
+        return sessions;
+    }
+
+    private synchronized ViewerClient control() throws IOException {
+        if (fControl == null) {
+            ViewerClient control = ViewerClient.open(fHost, fPort);
+            control.setNames(fNames);
+            try {
+                control.connect();
+            } catch (IOException e) {
+                control.close();
+                throw e;
+            }
+            fControl = control;
+        }
+        return fControl;
+    }
+
+    /* a session whose upstream connection broke, reattached by the next viewer */
+    private synchronized void forget(Upstream upstream) {
+        long sessionId = upstream.fAttached.getSessionId();
+        if (fUpstreams.get(sessionId) == upstream) {
+            fUpstreams.remove(sessionId);
+        }
+    }
+
+    private synchronized Upstream attachUpstream(long sessionId, lttng_viewer_seek seek) throws IOException {
+        Upstream upstream = fUpstreams.get(sessionId);
+        if (upstream != null) {
+            return upstream;
+        }
+        ViewerClient client = ViewerClient.open(fHost, fPort);
+        client.setNames(fNames);
+        try {
+            client.connect();
+            AttachedSession attached = client.attachSession(sessionId, seek);
+            upstream = new Upstream(client, attached);
+        } catch (IOException e) {
+            client.close();
+            throw e;
+        }
+        if (upstream.fAttached.isAttached()) {
+            fUpstreams.put(sessionId, upstream);
+            upstream.start();
+        } else {
+            client.close();
+        }
+        return upstream;
+    }
+
+    // ------------------------------------------------------------------------
+    // Upstream
+    // ------------------------------------------------------------------------
+
+    /** One session followed upstream */
+    private class Upstream implements LiveSessionPoller.IndexHandler {
+        private final ViewerClient fClient;
+        private final AttachedSession fAttached;
+        private final Map<Long, StreamRing> fRings = new HashMap<>();
+        private final Map<Long, ViewerStream> fMetadataStreams = new HashMap<>();
+        private final MetadataCache fMetadata = new MetadataCache();
+        private final lttng_viewer_trace_packet fReply = new lttng_viewer_trace_packet();
+        private final AtomicInteger fViewers = new AtomicInteger();
+        private Thread fThread;
+        private long fLastRefresh;
+
+        public Upstream(ViewerClient client, AttachedSession attached) {
+            fClient = client;
+            fAttached = attached;
+            for (ViewerStream stream : attached.getStreams()) {
+                if (stream.isMetadata()) {
+                    fMetadataStreams.put(stream.getCtfTraceId(), stream);
+                } else {
+                    fRings.put(stream.getId(), new StreamRing(fCapacity));
+                }
+            }
+        }
+
+        public void start() throws IOException {
+            refreshMetadata();
+            fThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    follow();
+                }
+            }, "ViewerProxy session " + fAttached.getSessionId()); //$NON-NLS-1$
+            fThread.setDaemon(true);
+            fThread.start();
+        }
+
+        /* the connection stays attached until the proxy closes, keeping the session */
+        private void follow() {
+            try {
+                new LiveSessionPoller(fClient, fAttached, this).run();
+            } catch (IOException e) {
+                /* the viewers get VIEWER_INDEX_ERR once they read what is kept */
+                for (StreamRing ring : fRings.values()) {
+                    ring.end(lttng_viewer_next_index_return_code.VIEWER_INDEX_ERR);
+                }
+                forget(this);
+                try {
+                    fClient.close();
+                } catch (IOException closeError) {
+                    /* already broken */
+                }
+            }
+        }
+
+        @Override
+        public void onIndex(ViewerStream stream, lttng_viewer_index index) throws IOException {
+            StreamRing ring = fRings.get(stream.getId());
+            long now = System.nanoTime();
+            if ((index.flags & LTTngRelayDCommands2_4.LTTNG_VIEWER_FLAG_NEW_METADATA) != 0 || now - fLastRefresh > METADATA_REFRESH) {
+                refreshMetadata();
+            }
+            switch (index.status) {
+            case VIEWER_INDEX_OK:
+                PacketBuffer packet = fClient.getPacket(stream.getId(), index, fReply, fArena);
+                if (packet != null) {
+                    ring.append(index, packet);
+                }
+                break;
+            case VIEWER_INDEX_INACTIVE:
+                ring.beacon(index.timestamp_end);
+                break;
+            case VIEWER_INDEX_HUP:
+            case VIEWER_INDEX_EOF:
+                ring.end(index.status);
+                break;
+            default:
+                break;
+            }
+        }
+
+        private void refreshMetadata() throws IOException {
+            for (ViewerStream stream : fMetadataStreams.values()) {
+                fMetadata.update(fClient, stream);
+            }
+            fLastRefresh = System.nanoTime();
+        }
+
+        public void close() throws IOException {
+            if (fThread != null) {
+                fThread.interrupt();
+            }
+            fClient.close();
+            for (StreamRing ring : fRings.values()) {
+                ring.clear();
+            }
+        }
+    }
+
+    /**
+     * The last indexes and packets of a stream. Entries are numbered from
+     * the start of the stream, the ring keeps [head, tail).
+     */
+    private static class StreamRing {
+        private final long[] fOffset;
+        private final long[] fPacketSize;
+        private final long[] fContentSize;
+        private final long[] fBegin;
+        private final long[] fEnd;
+        private final long[] fDiscarded;
+        private final PacketBuffer[] fPackets;
+        private long fHead;
+        private long fTail;
+        private long fBeacon = -1;
+        private lttng_viewer_next_index_return_code fStatus;
+
+        public StreamRing(int capacity) {
+            fOffset = new long[capacity];
+            fPacketSize = new long[capacity];
+            fContentSize = new long[capacity];
+            fBegin = new long[capacity];
+            fEnd = new long[capacity];
+            fDiscarded = new long[capacity];
+            fPackets = new PacketBuffer[capacity];
+        }
+
+        public synchronized void append(lttng_viewer_index index, PacketBuffer packet) {
+            int capacity = fPackets.length;
+            if (fTail - fHead == capacity) {
+                int oldest = (int) (fHead % capacity);
+                fPackets[oldest].release();
+                fPackets[oldest] = null;
+                fHead++;
+            }
+            int i = (int) (fTail % capacity);
+            fOffset[i] = index.offset;
+            fPacketSize[i] = index.packet_size;
+            fContentSize[i] = index.content_size;
+            fBegin[i] = index.timestamp_begin;
+            fEnd[i] = index.timestamp_end;
+            fDiscarded[i] = index.events_discarded;
+            fPackets[i] = packet;
+            fTail++;
+            fBeacon = -1;
+        }
+
+        public synchronized void beacon(long timestamp) {
+            fBeacon = timestamp;
+        }
+
+        public synchronized void end(lttng_viewer_next_index_return_code status) {
+            if (fStatus == null) {
+                fStatus = status;
+            }
+        }
+
+        public synchronized long head() {
+            return fHead;
+        }
+
+        public synchronized long tail() {
+            return fTail;
+        }
+
+        /*
+         * fill the reply with entry n, or the oldest entry kept if n was
+         * evicted, or the state after the tail; return the entry read
+         */
+        public synchronized long get(long n, lttng_viewer_index reply) {
+            long k = Math.max(n, fHead);
+            if (k >= fTail) {
+                if (fStatus != null) {
+                    reply.status = fStatus;
+                } else if (fBeacon >= 0) {
+                    reply.status = lttng_viewer_next_index_return_code.VIEWER_INDEX_INACTIVE;
+                    reply.timestamp_end = fBeacon;
+                } else {
+                    reply.status = lttng_viewer_next_index_return_code.VIEWER_INDEX_RETRY;
+                }
+                return k;
+            }
+            int i = (int) (k % fPackets.length);
+            reply.offset = fOffset[i];
+            reply.packet_size = fPacketSize[i];
+            reply.content_size = fContentSize[i];
+            reply.timestamp_begin = fBegin[i];
+            reply.timestamp_end = fEnd[i];
+            reply.events_discarded = fDiscarded[i];
+            reply.status = lttng_viewer_next_index_return_code.VIEWER_INDEX_OK;
+            return k;
+        }
+
+        /* the packet at an offset, searched back from entry n, retained */
+        public synchronized PacketBuffer find(long n, long offset) {
+            for (long k = Math.min(n, fTail - 1); k >= fHead; k--) {
+                int i = (int) (k % fPackets.length);
+                if (fOffset[i] == offset) {
+                    return fPackets[i].retain();
+                }
+            }
+            return null;
+        }
+
+        public synchronized void clear() {
+            for (long k = fHead; k < fTail; k++) {
+                int i = (int) (k % fPackets.length);
+                fPackets[i].release();
+                fPackets[i] = null;
+            }
+            fHead = fTail;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Downstream
+    // ------------------------------------------------------------------------
+
+    private class ProxyHandler implements ViewerServer.Handler {
+        private final Map<Long, long[]> fPositions = new HashMap<>();
+        private final Map<Long, Integer> fMetadataSent = new HashMap<>();
+        private Upstream fUpstream;
+        /* the packet being written to the viewer, released on the next request */
+        private PacketBuffer fSending;
+
+        @Override
+        public void connect(lttng_viewer_connect request) throws IOException {
+            if (request.major != 2) {
+                throw new IOException("Unsupported viewer version " + request.major); //$NON-NLS-1$
+            }
+            request.viewer_session_id = fViewerSessionIds.incrementAndGet();
+            request.minor = 4;
+        }
+
+        @Override
+        public ViewerSession[] listSessions() {
+            try {
+                return listUpstream();
+            } catch (IOException e) {
+                return new ViewerSession[0];
+            }
+        }
+
+        @Override
+        public AttachedSession attach(long sessionId, lttng_viewer_seek seek) {
+            Upstream upstream;
+            try {
+                upstream = attachUpstream(sessionId, seek);
+            } catch (IOException e) {
+                return new AttachedSession(sessionId, lttng_viewer_attach_return_code.VIEWER_ATTACH_UNK, new ViewerStream[0]);
+            }
+            if (!upstream.fAttached.isAttached()) {
+                return upstream.fAttached;
+            }
+            detach();
+            fUpstream = upstream;
+            upstream.fViewers.incrementAndGet();
+            for (Map.Entry<Long, StreamRing> entry : upstream.fRings.entrySet()) {
+                StreamRing ring = entry.getValue();
+                long start = (seek == lttng_viewer_seek.VIEWER_SEEK_LAST) ? ring.tail() : ring.head();
+                fPositions.put(entry.getKey(), new long[] { start });
+            }
+            fMetadataSent.clear();
+            return upstream.fAttached;
+        }
+
+        private void detach() {
+            if (fUpstream != null) {
+                fUpstream.fViewers.decrementAndGet();
+                fUpstream = null;
+                fPositions.clear();
+            }
+        }
+
+        @Override
+        public void getNextIndex(long streamId, lttng_viewer_index reply) {
+            clear(reply);
+            reply.stream_id = streamId;
+            long[] position = fPositions.get(streamId);
+            if (position == null) {
+                reply.status = lttng_viewer_next_index_return_code.VIEWER_INDEX_ERR;
+                return;
+            }
+            /* the ring clamps to its head under its lock, the upstream may evict meanwhile */
+            long read = fUpstream.fRings.get(streamId).get(position[0], reply);
+            if (read > position[0]) {
+                fSkipped.addAndGet(read - position[0]);
+                position[0] = read;
+            }
+            if (reply.status == lttng_viewer_next_index_return_code.VIEWER_INDEX_OK) {
+                position[0]++;
+                if (hasNewMetadata()) {
+                    reply.flags |= LTTngRelayDCommands2_4.LTTNG_VIEWER_FLAG_NEW_METADATA;
+                }
+            }
+        }
+
+        private boolean hasNewMetadata() {
+            for (ViewerStream stream : fUpstream.fMetadataStreams.values()) {
+                MetadataCache.Entry entry = fUpstream.fMetadata.get(stream.getCtfTraceId());
+                Integer sent = fMetadataSent.get(stream.getId());
+                if (entry != null && entry.size() > ((sent == null) ? 0 : sent.intValue())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void clear(lttng_viewer_index reply) {
+            reply.offset = 0;
+            reply.packet_size = 0;
+            reply.content_size = 0;
+            reply.timestamp_begin = 0;
+            reply.timestamp_end = 0;
+            reply.events_discarded = 0;
+            reply.flags = 0;
+        }
+
+        @Override
+        public ByteBuffer getPacket(lttng_viewer_get_packet request, lttng_viewer_trace_packet reply) {
+            releaseSending();
+            reply.status = lttng_viewer_get_packet_return_code.VIEWER_GET_PACKET_ERR;
+            long[] position = fPositions.get(request.stream_id);
+            if (position == null || request.len <= 0) {
+                return null;
+            }
+            PacketBuffer packet = fUpstream.fRings.get(request.stream_id).find(position[0] - 1, request.offset);
+            if (packet == null) {
+                return null;
+            }
+            if (request.len > packet.length()) {
+                packet.release();
+                return null;
+            }
+            fSending = packet;
+            reply.status = lttng_viewer_get_packet_return_code.VIEWER_GET_PACKET_OK;
+            reply.len = request.len;
+            ByteBuffer data = packet.buffer().duplicate();
+            data.clear().limit(request.len);
+            return data;
+        }
+
+        private void releaseSending() {
+            if (fSending != null) {
+                fSending.release();
+                fSending = null;
+            }
+        }
+
+        @Override
+        public ByteBuffer getMetadata(long streamId, lttng_viewer_metadata_packet reply) {
+            releaseSending();
+            ViewerStream stream = null;
+            if (fUpstream != null) {
+                for (ViewerStream candidate : fUpstream.fMetadataStreams.values()) {
+                    if (candidate.getId() == streamId) {
+                        stream = candidate;
+                    }
+                }
+            }
+            if (stream == null) {
+                reply.status = lttng_viewer_get_metadata_return_code.VIEWER_METADATA_ERR;
+                return null;
+            }
+            MetadataCache.Entry entry = fUpstream.fMetadata.get(stream.getCtfTraceId());
+            Integer sent = fMetadataSent.get(streamId);
+            int from = (sent == null) ? 0 : sent.intValue();
+            byte[] metadata = (entry == null) ? new byte[0] : entry.getBytes(Math.min(from, entry.size()));
+            if (metadata.length == 0) {
+                reply.status = lttng_viewer_get_metadata_return_code.VIEWER_NO_NEW_METADATA;
+                return null;
+            }
+            fMetadataSent.put(streamId, Integer.valueOf(from + metadata.length));
+            reply.status = lttng_viewer_get_metadata_return_code.VIEWER_METADATA_OK;
+            reply.len = metadata.length;
+            return ByteBuffer.wrap(metadata);
+        }
+
+        @Override
+        public void close() {
+            releaseSending();
+            detach();
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_attach_return_code;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_index;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_next_index_return_code;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_seek;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_trace_packet;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests the proxy between the mock relayd and several viewers
+ *
+ * @author Matthew Khouzam
+ */
+public class ViewerProxyTest {
+
+    private static final int STREAMS = 2;
+    private static final int PACKETS = 20;
+
+    private MockRelayD fRelayd;
+    private ViewerProxy fProxy;
+    private InetSocketAddress fAddress;
+
+    private void start(double rate, int capacity) throws IOException {
+        InetSocketAddress upstream = startRelayd(rate, 0);
+        fProxy = new ViewerProxy(upstream.getHostString(), upstream.getPort());
+        fProxy.setCapacity(capacity);
+        fAddress = fProxy.start(0);
+    }
+
+    private InetSocketAddress startRelayd(double rate, int port) throws IOException {
+        fRelayd = new MockRelayD();
+        fRelayd.setStreamsPerSession(STREAMS);
+        fRelayd.setPacketSize(1024);
+        fRelayd.setPacketCount(PACKETS);
+        fRelayd.setPacketRate(rate);
+        return fRelayd.start(port);
+    }
+
+    /**
+     * Stop the proxy and the mock
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @After
+    public void tearDown() throws IOException {
+        fProxy.close();
+        fRelayd.close();
+    }
+
+    /**
+     * Two viewers follow the same session through one upstream connection,
+     * which a direct viewer cannot attach to any more
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @Test
+    public void testFanOut() throws IOException {
+        start(0, ViewerProxy.DEFAULT_CAPACITY);
+        try (ViewerClient first = open(); ViewerClient second = open()) {
+            assertEquals(1, first.listSessions().length);
+            assertTrue(attach(first).isAttached());
+            assertTrue(attach(second).isAttached());
+            assertEquals(2, first.listSessions()[0].getClients());
+            assertEquals(STREAMS * PACKETS, read(first, attach(first)));
+            assertEquals(STREAMS * PACKETS, read(second, attach(second)));
+            MetadataCache firstMetadata = new MetadataCache();
+            MetadataCache secondMetadata = new MetadataCache();
+            String text = metadata(first, firstMetadata);
+            assertTrue(text.length() > 0);
+            assertEquals(text, metadata(second, secondMetadata));
+        }
+        assertEquals(1, fProxy.getUpstreamCount());
+        assertEquals(0, fProxy.getSkipped());
+        try (ViewerClient direct = ViewerClient.open(fRelayd.getAddress().getHostString(), fRelayd.getAddress().getPort())) {
+            direct.connect();
+            assertEquals(lttng_viewer_attach_return_code.VIEWER_ATTACH_ALREADY, direct.attachSession(1, lttng_viewer_seek.VIEWER_SEEK_BEGINNING).getStatus());
+        }
+    }
+
+    /**
+     * A viewer slower than the ring skips to the oldest packet kept
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @Test
+    public void testSlowViewer() throws IOException {
+        int capacity = 4;
+        start(50, capacity);
+        try (ViewerClient fast = open(); ViewerClient slow = open()) {
+            AttachedSession fastSession = attach(fast);
+            AttachedSession slowSession = attach(slow);
+            assertEquals(STREAMS * PACKETS, read(fast, fastSession));
+            assertEquals(STREAMS * capacity, read(slow, slowSession));
+        }
+        assertEquals(STREAMS * (PACKETS - capacity), fProxy.getSkipped());
+    }
+
+    /**
+     * A session whose upstream connection broke is attached again by the
+     * next viewer, and the sessions are listed on a new connection
+     *
+     * @throws Exception
+     *             should not happen
+     */
+    @Test
+    public void testUpstreamRestart() throws Exception {
+        start(50, ViewerProxy.DEFAULT_CAPACITY);
+        int port = fRelayd.getAddress().getPort();
+        try (ViewerClient first = open()) {
+            assertEquals(1, first.listSessions().length);
+            assertTrue(attach(first).isAttached());
+            assertEquals(1, fProxy.getUpstreamCount());
+            fRelayd.close();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (fProxy.getUpstreamCount() > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(0, fProxy.getUpstreamCount());
+            startRelayd(0, port);
+            try (ViewerClient second = open()) {
+                assertEquals(1, second.listSessions().length);
+                AttachedSession session = attach(second);
+                assertTrue(session.isAttached());
+                assertEquals(STREAMS * PACKETS, read(second, session));
+            }
+        }
+        assertEquals(1, fProxy.getUpstreamCount());
+    }
+
+    private ViewerClient open() throws IOException {
+        ViewerClient client = ViewerClient.open(fAddress.getHostString(), fAddress.getPort());
+        client.connect();
+        return client;
+    }
+
+    private static AttachedSession attach(ViewerClient client) throws IOException {
+        return client.attachSession(1, lttng_viewer_seek.VIEWER_SEEK_BEGINNING);
+    }
+
+    /* read the streams in turn until they hang up, check the packets, count them */
+    private static int read(ViewerClient client, AttachedSession session) throws IOException {
+        lttng_viewer_index index = new lttng_viewer_index();
+        lttng_viewer_trace_packet reply = new lttng_viewer_trace_packet();
+        PacketArena arena = new PacketArena();
+        long[] ids = session.getDataStreamIds();
+        boolean[] done = new boolean[ids.length];
+        int live = ids.length;
+        int packets = 0;
+        while (live > 0) {
+            for (int i = 0; i < ids.length; i++) {
+                if (done[i]) {
+                    continue;
+                }
+                client.getNextIndex(ids[i], index);
+                if (index.status == lttng_viewer_next_index_return_code.VIEWER_INDEX_HUP) {
+                    done[i] = true;
+                    live--;
+                    continue;
+                }
+                if (index.status == lttng_viewer_next_index_return_code.VIEWER_INDEX_RETRY) {
+                    Thread.yield();
+                    continue;
+                }
+                assertEquals(lttng_viewer_next_index_return_code.VIEWER_INDEX_OK, index.status);
+                PacketBuffer packet = client.getPacket(ids[i], index, reply, arena);
+                assertEquals(index.packet_size / 8, packet.length());
+                assertEquals(SyntheticTrace.MAGIC, packet.buffer().order(ByteOrder.LITTLE_ENDIAN).getInt(0));
+                packet.release();
+                packets++;
+            }
+        }
+        assertEquals(0, arena.getInUse());
+        return packets;
+    }
+
+    private static String metadata(ViewerClient client, MetadataCache cache) throws IOException {
+        AttachedSession session = client.attachSession(1, lttng_viewer_seek.VIEWER_SEEK_LAST);
+        return cache.update(client, session.getMetadataStreams()[0]).getText();
+    }
+}
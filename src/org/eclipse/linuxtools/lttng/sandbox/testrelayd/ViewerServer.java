@@ -0,0 +1,479 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_attach_session_request;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_attach_session_response;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_cmd;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_connect;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_connection_type;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_get_metadata;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_get_next_index;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_get_packet;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_index;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_list_sessions;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_metadata_packet;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_notification;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_seek;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_trace_packet;
+
+/**
+ * Server side of the relayd 2.4 viewer protocol.
+ *
+ * The server frames the messages and delegates the content to a
+ * {@link Handler}, one per viewer connection. Each connection runs on its own
+ * thread with a blocking channel, requests are read through a buffer so
+ * pipelined requests cost one read, and replies are sent with one gathering
+ * write of the header and the payload.
+ *
+ * Like relayd, the server reads the fixed payload size of each command and
+ * ignores the data_size of the header.
+ *
+ * As an extension of the protocol, a {@link NotificationHandler} can serve
+ * VIEWER_CLIENT_NOTIFICATION connections: after VIEWER_CONNECT the server
+ * sends nothing but {@link lttng_viewer_notification} messages on them. The
+ * connections of other handlers are refused.
+ *
+ * @author Matthew Khouzam
+ */
+public class ViewerServer implements Closeable {
+
+    /**
+     * Serves one viewer connection
+     */
+    public interface Handler {
+        /**
+         * Handle VIEWER_CONNECT
+         *
+         * @param request
+         *            the request, to be updated in place with the reply. The
+         *            viewer session id must be set.
+         * @throws IOException
+         *             refuse the connection
+         */
+        void connect(lttng_viewer_connect request) throws IOException;
+
+        /**
+         * Handle VIEWER_LIST_SESSIONS
+         *
+         * @return the sessions
+         */
+        ViewerSession[] listSessions();
+
+        /**
+         * Handle VIEWER_ATTACH_SESSION
+         *
+         * @param sessionId
+         *            the session to attach to
+         * @param seek
+         *            where to start
+         * @return the status and the streams
+         */
+        AttachedSession attach(long sessionId, lttng_viewer_seek seek);
+
+        /**
+         * Handle VIEWER_GET_NEXT_INDEX
+         *
+         * @param streamId
+         *            the stream
+         * @param reply
+         *            the index to fill, status included
+         */
+        void getNextIndex(long streamId, lttng_viewer_index reply);
+
+        /**
+         * Handle VIEWER_GET_PACKET
+         *
+         * @param request
+         *            the stream, offset and length requested
+         * @param reply
+         *            the header to fill, status included
+         * @return the packet bytes between position and limit, they must be
+         *         reply.len long. May be null if the status is not OK.
+         * @throws IOException
+         *             the data could not be read
+         */
+        ByteBuffer getPacket(lttng_viewer_get_packet request, lttng_viewer_trace_packet reply) throws IOException;
+
+        /**
+         * Handle VIEWER_GET_METADATA
+         *
+         * @param streamId
+         *            the metadata stream
+         * @param reply
+         *            the header to fill, status included
+         * @return the metadata bytes between position and limit, they must be
+         *         reply.len long. May be null if the status is not OK.
+         */
+        ByteBuffer getMetadata(long streamId, lttng_viewer_metadata_packet reply);
+
+        /**
+         * The connection is closed
+         */
+        void close();
+    }
+
+    /**
+     * Sends notifications on a VIEWER_CLIENT_NOTIFICATION connection, from any
+     * thread
+     */
+    public interface Notifier {
+        /**
+         * Send a notification
+         *
+         * @param streamId
+         *            the stream that changed
+         * @param flags
+         *            LTTNG_VIEWER_NOTIFY_* bits
+         * @throws IOException
+         *             the viewer is gone
+         */
+        void notify(long streamId, int flags) throws IOException;
+    }
+
+    /**
+     * A handler that also serves notification connections
+     */
+    public interface NotificationHandler extends Handler {
+        /**
+         * Called after VIEWER_CONNECT on a notification connection. The
+         * notifier is valid until {@link Handler#close()}.
+         *
+         * @param notifier
+         *            sends to the viewer
+         */
+        void subscribe(Notifier notifier);
+    }
+
+    /**
+     * Creates the handler of each new connection
+     */
+    public interface HandlerFactory {
+        /**
+         * @return a handler for a new connection
+         */
+        Handler newHandler();
+    }
+
+    private static final int IN_BUFFER_SIZE = 64 * 1024;
+    private static final int OUT_BUFFER_SIZE = 64 * 1024;
+
+    private final HandlerFactory fFactory;
+    private final List<SocketChannel> fConnections = new ArrayList<>();
+    private ServerSocketChannel fServer;
+    private Thread fAcceptor;
+
+    /**
+     * Constructor
+     *
+     * @param factory
+     *            creates the handlers
+     */
+    public ViewerServer(HandlerFactory factory) {
+        fFactory = factory;
+    }
+
+    /**
+     * Start listening on the loopback interface
+     *
+     * @param port
+     *            the port, 0 to pick a free one
+     * @return the address the server listens on
+     * @throws IOException
+     *             the port could not be bound
+     */
+    public synchronized InetSocketAddress start(int port) throws IOException {
+        fServer = ServerSocketChannel.open();
+        fServer.setOption(StandardSocketOptions.SO_REUSEADDR, Boolean.TRUE);
+        fServer.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        fAcceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "ViewerServer acceptor"); //$NON-NLS-1$
+        fAcceptor.setDaemon(true);
+        fAcceptor.start();
+        return getAddress();
+    }
+
+    /**
+     * @return the address the server listens on
+     * @throws IOException
+     *             the server is not started
+     */
+    public InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) fServer.getLocalAddress();
+    }
+
+    /**
+     * @return the port the server listens on
+     * @throws IOException
+     *             the server is not started
+     */
+    public int getPort() throws IOException {
+        return getAddress().getPort();
+    }
+
+    /**
+     * Stop listening and drop every connection
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (fServer != null) {
+            fServer.close();
+        }
+        for (SocketChannel connection : fConnections) {
+            connection.close();
+        }
+        fConnections.clear();
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                SocketChannel channel = fServer.accept();
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+                synchronized (this) {
+                    fConnections.add(channel);
+                }
+                Thread thread = new Thread(new Connection(channel, fFactory.newHandler()), "ViewerServer connection"); //$NON-NLS-1$
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (IOException e) {
+            /* closed */
+        }
+    }
+
+    private synchronized void closed(SocketChannel channel) {
+        fConnections.remove(channel);
+    }
+
+    private static final class ChannelNotifier implements Notifier {
+        private final SocketChannel fChannel;
+        private final lttng_viewer_notification fNotification = new lttng_viewer_notification();
+        private final ByteBuffer fOut = ByteBuffer.allocateDirect(fNotification.size()).order(ByteOrder.BIG_ENDIAN);
+
+        public ChannelNotifier(SocketChannel channel) {
+            fChannel = channel;
+        }
+
+        @Override
+        public synchronized void notify(long streamId, int flags) throws IOException {
+            fOut.clear();
+            fNotification.stream_id = streamId;
+            fNotification.flags = flags;
+            fNotification.writeTo(fOut);
+            fOut.flip();
+            while (fOut.hasRemaining()) {
+                fChannel.write(fOut);
+            }
+        }
+    }
+
+    private final class Connection implements Runnable {
+        private final SocketChannel fChannel;
+        private final Handler fHandler;
+        private final ByteBuffer fIn = ByteBuffer.allocateDirect(IN_BUFFER_SIZE).order(ByteOrder.BIG_ENDIAN);
+        private final ByteBuffer fOut = ByteBuffer.allocateDirect(OUT_BUFFER_SIZE).order(ByteOrder.BIG_ENDIAN);
+        private final ByteBuffer[] fGather = new ByteBuffer[2];
+
+        private final lttng_viewer_cmd fHeader = new lttng_viewer_cmd();
+        private final lttng_viewer_connect fConnect = new lttng_viewer_connect();
+        private final lttng_viewer_attach_session_request fAttach = new lttng_viewer_attach_session_request();
+        private final lttng_viewer_get_next_index fNextIndex = new lttng_viewer_get_next_index();
+        private final lttng_viewer_get_packet fGetPacket = new lttng_viewer_get_packet();
+        private final lttng_viewer_get_metadata fGetMetadata = new lttng_viewer_get_metadata();
+        private final lttng_viewer_list_sessions fListReply = new lttng_viewer_list_sessions();
+        private final lttng_viewer_attach_session_response fAttachReply = new lttng_viewer_attach_session_response();
+        private final lttng_viewer_index fIndexReply = new lttng_viewer_index();
+        private final lttng_viewer_trace_packet fPacketReply = new lttng_viewer_trace_packet();
+        private final lttng_viewer_metadata_packet fMetadataReply = new lttng_viewer_metadata_packet();
+
+        public Connection(SocketChannel channel, Handler handler) {
+            fChannel = channel;
+            fHandler = handler;
+            fIn.limit(0);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (require(fHeader.size(), true)) {
+                    fHeader.readFrom(fIn);
+                    dispatch();
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                /* viewer gone or protocol error, drop the connection */
+            } finally {
+                fHandler.close();
+                try {
+                    fChannel.close();
+                } catch (IOException e) {
+                    /* ignore */
+                }
+                closed(fChannel);
+            }
+        }
+
+        private void dispatch() throws IOException {
+            fOut.clear();
+            switch (fHeader.cmd) {
+            case VIEWER_CONNECT:
+                require(fConnect.size(), false);
+                /* readFrom skips the type, the server needs it */
+                fConnect.viewer_session_id = fIn.getLong();
+                fConnect.major = fIn.getInt();
+                fConnect.minor = fIn.getInt();
+                fConnect.type = lttng_viewer_connection_type.fromCode(fIn.getInt());
+                boolean notification = fConnect.type == lttng_viewer_connection_type.VIEWER_CLIENT_NOTIFICATION;
+                if (notification && !(fHandler instanceof NotificationHandler)) {
+                    throw new IOException("Notification connections are not supported"); //$NON-NLS-1$
+                }
+                fHandler.connect(fConnect);
+                if (notification) {
+                    /*
+                     * subscribe before replying so no notification is missed,
+                     * the lock holds them back until the reply is sent. The
+                     * viewer sends nothing more, run() waits for it to close.
+                     */
+                    ChannelNotifier notifier = new ChannelNotifier(fChannel);
+                    synchronized (notifier) {
+                        ((NotificationHandler) fHandler).subscribe(notifier);
+                        fConnect.writeTo(fOut);
+                        write(null);
+                    }
+                    break;
+                }
+                fConnect.writeTo(fOut);
+                write(null);
+                break;
+            case VIEWER_LIST_SESSIONS:
+                ViewerSession[] sessions = fHandler.listSessions();
+                fListReply.sessions_count = sessions.length;
+                fListReply.writeTo(fOut);
+                for (ViewerSession session : sessions) {
+                    ensureOut(ViewerSession.SIZE);
+                    session.writeTo(fOut);
+                }
+                write(null);
+                break;
+            case VIEWER_ATTACH_SESSION:
+                require(fAttach.size(), false);
+                fAttach.readFrom(fIn);
+                AttachedSession attached = fHandler.attach(fAttach.session_id, fAttach.seek);
+                fAttachReply.status = attached.getStatus();
+                fAttachReply.streams_count = attached.getStreams().length;
+                fAttachReply.writeTo(fOut);
+                for (ViewerStream stream : attached.getStreams()) {
+                    ensureOut(ViewerStream.SIZE);
+                    stream.writeTo(fOut);
+                }
+                write(null);
+                break;
+            case VIEWER_GET_NEXT_INDEX:
+                require(fNextIndex.size(), false);
+                fNextIndex.readFrom(fIn);
+                fIndexReply.flags = 0;
+                fHandler.getNextIndex(fNextIndex.stream_id, fIndexReply);
+                fIndexReply.writeTo(fOut);
+                write(null);
+                break;
+            case VIEWER_GET_PACKET:
+                require(fGetPacket.size(), false);
+                fGetPacket.readFrom(fIn);
+                fPacketReply.len = 0;
+                fPacketReply.flags = 0;
+                ByteBuffer packet = fHandler.getPacket(fGetPacket, fPacketReply);
+                fPacketReply.writeTo(fOut);
+                write(packet);
+                break;
+            case VIEWER_GET_METADATA:
+                require(fGetMetadata.size(), false);
+                fGetMetadata.readFrom(fIn);
+                fMetadataReply.len = 0;
+                ByteBuffer metadata = fHandler.getMetadata(fGetMetadata.stream_id, fMetadataReply);
+                fMetadataReply.writeTo(fOut);
+                write(metadata);
+                break;
+            default:
+                throw new IOException("Unsupported command " + fHeader.cmd); //$NON-NLS-1$
+            }
+        }
+
+        /* Make sure n bytes can be decoded from fIn, reading more if needed */
+        private boolean require(int n, boolean eofAllowed) throws IOException {
+            if (fIn.remaining() >= n) {
+                return true;
+            }
+            fIn.compact();
+            try {
+                while (fIn.position() < n) {
+                    if (fChannel.read(fIn) < 0) {
+                        if (eofAllowed && fIn.position() == 0) {
+                            return false;
+                        }
+                        throw new EOFException();
+                    }
+                }
+            } finally {
+                fIn.flip();
+            }
+            return true;
+        }
+
+        /* Flush the reply when the next fixed size item would not fit */
+        private void ensureOut(int n) throws IOException {
+            if (fOut.remaining() < n) {
+                fOut.flip();
+                while (fOut.hasRemaining()) {
+                    fChannel.write(fOut);
+                }
+                fOut.clear();
+            }
+        }
+
+        private void write(ByteBuffer payload) throws IOException {
+            fOut.flip();
+            if (payload == null) {
+                while (fOut.hasRemaining()) {
+                    fChannel.write(fOut);
+                }
+                return;
+            }
+            fGather[0] = fOut;
+            fGather[1] = payload;
+            try {
+                while (fOut.hasRemaining() || payload.hasRemaining()) {
+                    fChannel.write(fGather);
+                }
+            } finally {
+                fGather[1] = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import java.nio.ByteBuffer;
+
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_session;
+
+/**
+ * Compact description of a session listed by the relay daemon. The host and
+ * session names are trimmed copies shared through {@link ViewerNames} instead
+ * of the 64 and 255 byte arrays of {@link lttng_viewer_session}.
+ *
+ * @author Matthew Khouzam
+ */
+public class ViewerSession {
+
+    /** Size of lttng_viewer_session on the wire */
+    public static final int SIZE = 8 + 4 + 4 + 4 + LTTngRelayDCommands2_4.LTTNG_VIEWER_HOST_NAME_MAX + LTTngRelayDCommands2_4.LTTNG_VIEWER_NAME_MAX;
+
+    private final long fId;
+    private final int fLiveTimer;
+    private final int fClients;
+    private final int fStreams;
+    private final byte[] fHostname;
+    private final byte[] fSessionName;
+
+    /**
+     * Constructor
+     *
+     * @param id
+     *            the session id
+     * @param liveTimer
+     *            the live timer period, 0 if the session is not live
+     * @param clients
+     *            the number of attached viewers
+     * @param streams
+     *            the number of streams
+     * @param hostname
+     *            the traced host name
+     * @param sessionName
+     *            the session name
+     */
+    public ViewerSession(long id, int liveTimer, int clients, int streams, byte[] hostname, byte[] sessionName) {
+        fId = id;
+        fLiveTimer = liveTimer;
+        fClients = clients;
+        fStreams = streams;
+        fHostname = hostname;
+        fSessionName = sessionName;
+    }
+
+    /**
+     * @return the session id, used to attach
+     */
+    public long getId() {
+        return fId;
+    }
+
+    /**
+     * @return the live timer period, 0 if the session is not live
+     */
+    public int getLiveTimer() {
+        return fLiveTimer;
+    }
+
+    /**
+     * @return true if the session is a live session
+     */
+    public boolean isLive() {
+        return fLiveTimer != 0;
+    }
+
+    /**
+     * @return the number of viewers attached to the session
+     */
+    public int getClients() {
+        return fClients;
+    }
+
+    /**
+     * @return the number of streams of the session
+     */
+    public int getStreams() {
+        return fStreams;
+    }
+
+    /**
+     * @return the traced host name
+     */
+    public String getHostname() {
+        return ViewerNames.decode(fHostname);
+    }
+
+    /**
+     * @return the session name
+     */
+    public String getSessionName() {
+        return ViewerNames.decode(fSessionName);
+    }
+
+    /**
+     * Write the session as a lttng_viewer_session, with its names NUL padded
+     *
+     * @param bb
+     *            a big endian buffer with at least {@link #SIZE} bytes
+     *            remaining
+     */
+    public void writeTo(ByteBuffer bb) {
+        bb.putLong(fId);
+        bb.putInt(fLiveTimer);
+        bb.putInt(fClients);
+        bb.putInt(fStreams);
+        int end = bb.position() + LTTngRelayDCommands2_4.LTTNG_VIEWER_HOST_NAME_MAX;
+        bb.put(fHostname);
+        ViewerNames.pad(bb, end);
+        end = bb.position() + LTTngRelayDCommands2_4.LTTNG_VIEWER_NAME_MAX;
+        bb.put(fSessionName);
+        ViewerNames.pad(bb, end);
+    }
+
+    @Override
+    public String toString() {
+        return getHostname() + ' ' + getSessionName();
+    }
+
+    /**
+     * Flyweight over a lttng_viewer_session in a receive buffer
+     */
+    public static class View {
+        private static final int ID = 0;
+        private static final int LIVE_TIMER = 8;
+        private static final int CLIENTS = 12;
+        private static final int STREAMS = 16;
+        private static final int HOSTNAME = 20;
+        private static final int SESSION_NAME = HOSTNAME + LTTngRelayDCommands2_4.LTTNG_VIEWER_HOST_NAME_MAX;
+
+        private ByteBuffer fBuffer;
+        private int fOffset;
+
+        /**
+         * Point the view at a session
+         *
+         * @param buffer
+         *            a big endian buffer
+         * @param offset
+         *            the absolute offset of the session in the buffer
+         * @return this view
+         */
+        public View wrap(ByteBuffer buffer, int offset) {
+            fBuffer = buffer;
+            fOffset = offset;
+            return this;
+        }
+
+        /**
+         * @return the session id
+         */
+        public long getId() {
+            return fBuffer.getLong(fOffset + ID);
+        }
+
+        /**
+         * @return the live timer
+         */
+        public int getLiveTimer() {
+            return fBuffer.getInt(fOffset + LIVE_TIMER);
+        }
+
+        /**
+         * @return the number of attached viewers
+         */
+        public int getClients() {
+            return fBuffer.getInt(fOffset + CLIENTS);
+        }
+
+        /**
+         * @return the number of streams
+         */
+        public int getStreams() {
+            return fBuffer.getInt(fOffset + STREAMS);
+        }
+
+        /**
+         * Make a compact copy of the session
+         *
+         * @param names
+         *            the pool sharing the names
+         * @return the session
+         */
+        public ViewerSession toSession(ViewerNames names) {
+            int host = fOffset + HOSTNAME;
+            int session = fOffset + SESSION_NAME;
+            byte[] hostname = names.intern(fBuffer, host, ViewerNames.length(fBuffer, host, LTTngRelayDCommands2_4.LTTNG_VIEWER_HOST_NAME_MAX));
+            byte[] sessionName = names.intern(fBuffer, session, ViewerNames.length(fBuffer, session, LTTngRelayDCommands2_4.LTTNG_VIEWER_NAME_MAX));
+            return new ViewerSession(getId(), getLiveTimer(), getClients(), getStreams(), hostname, sessionName);
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import java.nio.ByteBuffer;
+
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_stream;
+
+/**
+ * Compact description of a stream of an attached session.
+ *
+ * Unlike {@link lttng_viewer_stream}, which holds its 4096 byte path and 255
+ * byte channel name, this only keeps trimmed names from a {@link ViewerNames}
+ * pool. The path is split at its last '/' so the streams of a trace share the
+ * directory part. Strings are decoded on first use.
+ *
+ * @author Matthew Khouzam
+ */
+public class ViewerStream {
+
+    /** Size of lttng_viewer_stream on the wire */
+    public static final int SIZE = 8 + 8 + 4 + LTTngRelayDCommands2_4.LTTNG_VIEWER_PATH_MAX + LTTngRelayDCommands2_4.LTTNG_VIEWER_NAME_MAX;
+
+    private final long fId;
+    private final long fCtfTraceId;
+    private final boolean fMetadata;
+    private final byte[] fPathDir;
+    private final byte[] fPathLeaf;
+    private final byte[] fChannel;
+    private String fPathName;
+    private String fChannelName;
+
+    /**
+     * Constructor
+     *
+     * @param id
+     *            the stream id
+     * @param ctfTraceId
+     *            the id of the trace the stream belongs to
+     * @param metadata
+     *            true for the metadata stream of the trace
+     * @param pathDir
+     *            the path up to, and excluding, its last '/', or null if
+     *            there is no '/'
+     * @param pathLeaf
+     *            the path after its last '/'
+     * @param channel
+     *            the channel name
+     */
+    public ViewerStream(long id, long ctfTraceId, boolean metadata, byte[] pathDir, byte[] pathLeaf, byte[] channel) {
+        fId = id;
+        fCtfTraceId = ctfTraceId;
+        fMetadata = metadata;
+        fPathDir = pathDir;
+        fPathLeaf = pathLeaf;
+        fChannel = channel;
+    }
+
+    /**
+     * Create a stream from its names
+     *
+     * @param id
+     *            the stream id
+     * @param ctfTraceId
+     *            the id of the trace the stream belongs to
+     * @param metadata
+     *            true for the metadata stream of the trace
+     * @param pathName
+     *            the path of the trace
+     * @param channelName
+     *            the channel name
+     * @param names
+     *            the pool sharing the names
+     * @return the stream
+     */
+    public static ViewerStream create(long id, long ctfTraceId, boolean metadata, String pathName, String channelName, ViewerNames names) {
+        int slash = pathName.lastIndexOf('/');
+        byte[] dir = (slash < 0) ? null : names.intern(pathName.substring(0, slash));
+        byte[] leaf = names.intern(pathName.substring(slash + 1));
+        return new ViewerStream(id, ctfTraceId, metadata, dir, leaf, names.intern(channelName));
+    }
+
+    /**
+     * @return the stream id
+     */
+    public long getId() {
+        return fId;
+    }
+
+    /**
+     * @return the id of the trace, shared by the metadata and data streams of
+     *         the trace
+     */
+    public long getCtfTraceId() {
+        return fCtfTraceId;
+    }
+
+    /**
+     * @return true if this is a metadata stream
+     */
+    public boolean isMetadata() {
+        return fMetadata;
+    }
+
+    /**
+     * @return the path of the trace, relative to the relayd output
+     */
+    public String getPathName() {
+        String pathName = fPathName;
+        if (pathName == null) {
+            if (fPathDir == null) {
+                pathName = ViewerNames.decode(fPathLeaf);
+            } else {
+                pathName = ViewerNames.decode(fPathDir) + '/' + ViewerNames.decode(fPathLeaf);
+            }
+            fPathName = pathName;
+        }
+        return pathName;
+    }
+
+    /**
+     * @return the channel name, for example channel0_0
+     */
+    public String getChannelName() {
+        String channelName = fChannelName;
+        if (channelName == null) {
+            channelName = ViewerNames.decode(fChannel);
+            fChannelName = channelName;
+        }
+        return channelName;
+    }
+
+    /**
+     * Write the stream as a lttng_viewer_stream, with its names NUL padded
+     *
+     * @param bb
+     *            a big endian buffer with at least {@link #SIZE} bytes
+     *            remaining
+     */
+    public void writeTo(ByteBuffer bb) {
+        bb.putLong(fId);
+        bb.putLong(fCtfTraceId);
+        bb.putInt(fMetadata ? 1 : 0);
+        int end = bb.position() + LTTngRelayDCommands2_4.LTTNG_VIEWER_PATH_MAX;
+        if (fPathDir != null) {
+            bb.put(fPathDir);
+            bb.put((byte) '/');
+        }
+        bb.put(fPathLeaf);
+        ViewerNames.pad(bb, end);
+        end = bb.position() + LTTngRelayDCommands2_4.LTTNG_VIEWER_NAME_MAX;
+        bb.put(fChannel);
+        ViewerNames.pad(bb, end);
+    }
+
+    @Override
+    public String toString() {
+        return "Stream id: " + fId + " name: " + getChannelName() + " path: " + getPathName(); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    }
+
+    /**
+     * Flyweight over a lttng_viewer_stream in a receive buffer. Fields are
+     * read in place, nothing is copied until {@link #toStream(ViewerNames)}.
+     */
+    public static class View {
+        private static final int ID = 0;
+        private static final int CTF_TRACE_ID = 8;
+        private static final int METADATA_FLAG = 16;
+        private static final int PATH_NAME = 20;
+        private static final int CHANNEL_NAME = PATH_NAME + LTTngRelayDCommands2_4.LTTNG_VIEWER_PATH_MAX;
+
+        private ByteBuffer fBuffer;
+        private int fOffset;
+
+        /**
+         * Point the view at a stream
+         *
+         * @param buffer
+         *            a big endian buffer
+         * @param offset
+         *            the absolute offset of the stream in the buffer
+         * @return this view
+         */
+        public View wrap(ByteBuffer buffer, int offset) {
+            fBuffer = buffer;
+            fOffset = offset;
+            return this;
+        }
+
+        /**
+         * @return the stream id
+         */
+        public long getId() {
+            return fBuffer.getLong(fOffset + ID);
+        }
+
+        /**
+         * @return the ctf trace id
+         */
+        public long getCtfTraceId() {
+            return fBuffer.getLong(fOffset + CTF_TRACE_ID);
+        }
+
+        /**
+         * @return true for a metadata stream
+         */
+        public boolean isMetadata() {
+            return fBuffer.getInt(fOffset + METADATA_FLAG) == 1;
+        }
+
+        /**
+         * @return the length of the path, without the NUL padding
+         */
+        public int getPathLength() {
+            return ViewerNames.length(fBuffer, fOffset + PATH_NAME, LTTngRelayDCommands2_4.LTTNG_VIEWER_PATH_MAX);
+        }
+
+        /**
+         * @return the length of the channel name, without the NUL padding
+         */
+        public int getChannelLength() {
+            return ViewerNames.length(fBuffer, fOffset + CHANNEL_NAME, LTTngRelayDCommands2_4.LTTNG_VIEWER_NAME_MAX);
+        }
+
+        /**
+         * Make a compact copy of the stream
+         *
+         * @param names
+         *            the pool sharing the names
+         * @return the stream
+         */
+        public ViewerStream toStream(ViewerNames names) {
+            int path = fOffset + PATH_NAME;
+            int pathLength = getPathLength();
+            int slash = pathLength - 1;
+            while (slash >= 0 && fBuffer.get(path + slash) != '/') {
+                slash--;
+            }
+            byte[] dir = (slash < 0) ? null : names.intern(fBuffer, path, slash);
+            byte[] leaf = names.intern(fBuffer, path + slash + 1, pathLength - slash - 1);
+            byte[] channel = names.intern(fBuffer, fOffset + CHANNEL_NAME, getChannelLength());
+            return new ViewerStream(getId(), getCtfTraceId(), isMetadata(), dir, leaf, channel);
+        }
+    }
+}
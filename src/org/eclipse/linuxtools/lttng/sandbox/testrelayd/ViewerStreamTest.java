@@ -0,0 +1,72 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Tests for the compact stream descriptors and their name pool
+ *
+ * @author Matthew Khouzam
+ */
+public class ViewerStreamTest {
+
+    private static ByteBuffer stream(long id, String path, String channel) {
+        ByteBuffer bb = ByteBuffer.allocate(ViewerStream.SIZE);
+        bb.putLong(id);
+        bb.putLong(1);
+        bb.putInt(0);
+        bb.put(path.getBytes(ViewerNames.CHARSET));
+        bb.position(20 + LTTngRelayDCommands2_4.LTTNG_VIEWER_PATH_MAX);
+        bb.put(channel.getBytes(ViewerNames.CHARSET));
+        bb.clear();
+        return bb;
+    }
+
+    /**
+     * Names are trimmed at their first NUL
+     */
+    @Test
+    public void testNames() {
+        ViewerStream stream = new ViewerStream.View().wrap(stream(7, "host/session/kernel", "channel0_1"), 0).toStream(new ViewerNames()); //$NON-NLS-1$ //$NON-NLS-2$
+        assertEquals(7, stream.getId());
+        assertFalse(stream.isMetadata());
+        assertEquals("host/session/kernel", stream.getPathName()); //$NON-NLS-1$
+        assertEquals("channel0_1", stream.getChannelName()); //$NON-NLS-1$
+    }
+
+    /**
+     * Streams of the same trace share their path, paths without a directory
+     * survive the split
+     */
+    @Test
+    public void testSharing() {
+        ViewerNames names = new ViewerNames();
+        ViewerStream.View view = new ViewerStream.View();
+        view.wrap(stream(1, "host/session/ust/uid/1000/64-bit", "channel0_0"), 0).toStream(names); //$NON-NLS-1$ //$NON-NLS-2$
+        int size = names.size();
+        view.wrap(stream(2, "host/session/ust/uid/1000/64-bit", "channel0_1"), 0).toStream(names); //$NON-NLS-1$ //$NON-NLS-2$
+        assertEquals("only the new channel name is added", size + 1, names.size()); //$NON-NLS-1$
+
+        ViewerStream flat = view.wrap(stream(3, "metadata", "metadata"), 0).toStream(names); //$NON-NLS-1$ //$NON-NLS-2$
+        assertEquals("metadata", flat.getPathName()); //$NON-NLS-1$
+        ViewerStream rooted = view.wrap(stream(4, "/abs", "channel0_0"), 0).toStream(names); //$NON-NLS-1$ //$NON-NLS-2$
+        assertEquals("/abs", rooted.getPathName()); //$NON-NLS-1$
+        assertTrue(names.size() < 10);
+    }
+}
@@ -0,0 +1,187 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Records the bytes exchanged on one viewer connection, see
+ * {@link ViewerClient#setCapture(WireCapture)}, to replay them later with
+ * {@link WireReplay}.
+ *
+ * A capture file is a header followed by one record per request written and
+ * per successful read of the client, in the order they happened. All fields
+ * are big endian:
+ *
+ * <pre>
+ * header: magic 0xC1FCCA97 (4), major (2), minor (2), start in ms since the epoch (8)
+ * record: direction (1, 0 sent, 1 received), padding (3), length (4),
+ *         time since the capture was created in ns (8), the bytes
+ * </pre>
+ *
+ * Records go through a direct buffer of {@link #BUFFER_SIZE} bytes and are
+ * appended to the file when it is full, by {@link #flush()} and by
+ * {@link #close()}. After a crash the file ends with a partial record, which
+ * the replay ignores. A capture serves one connection and is not thread
+ * safe.
+ *
+ * @author Matthew Khouzam
+ */
+public class WireCapture implements Closeable {
+
+    /** Magic number of a capture file */
+    public static final int MAGIC = 0xC1FCCA97;
+    /** Size of the header of a capture file */
+    public static final int HEADER_SIZE = 16;
+    /** Size of the header of a record */
+    public static final int RECORD_HEADER_SIZE = 16;
+    /** Direction of the bytes written by the client */
+    public static final byte SENT = 0;
+    /** Direction of the bytes read by the client */
+    public static final byte RECEIVED = 1;
+    /** Size of the buffer in front of the file */
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final short MAJOR = 1;
+    private static final short MINOR = 0;
+
+    private final FileChannel fFile;
+    private final ByteBuffer fBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.BIG_ENDIAN);
+    private final long fStart = System.nanoTime();
+    private long fRecords;
+    private long fBytes;
+
+    /**
+     * Create a capture file, replacing any previous one
+     *
+     * @param file
+     *            the capture file
+     * @throws IOException
+     *             the file could not be created
+     */
+    public WireCapture(File file) throws IOException {
+        fFile = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        fBuffer.putInt(MAGIC);
+        fBuffer.putShort(MAJOR);
+        fBuffer.putShort(MINOR);
+        fBuffer.putLong(System.currentTimeMillis());
+    }
+
+    /**
+     * Record bytes written by the client
+     *
+     * @param data
+     *            the buffer the bytes were written from, its position and
+     *            limit are restored
+     * @param from
+     *            the first byte
+     * @param to
+     *            the end of the bytes
+     * @throws IOException
+     *             the capture file could not be written
+     */
+    public void sent(ByteBuffer data, int from, int to) throws IOException {
+        append(SENT, data, from, to, System.nanoTime() - fStart);
+    }
+
+    /**
+     * Record bytes read by the client
+     *
+     * @param data
+     *            the buffer the bytes were read into, its position and limit
+     *            are restored
+     * @param from
+     *            the first byte
+     * @param to
+     *            the end of the bytes
+     * @throws IOException
+     *             the capture file could not be written
+     */
+    public void received(ByteBuffer data, int from, int to) throws IOException {
+        append(RECEIVED, data, from, to, System.nanoTime() - fStart);
+    }
+
+    private void append(byte direction, ByteBuffer data, int from, int to, long time) throws IOException {
+        if (fBuffer.remaining() < RECORD_HEADER_SIZE) {
+            flush();
+        }
+        fBuffer.put(direction);
+        fBuffer.put((byte) 0);
+        fBuffer.putShort((short) 0);
+        fBuffer.putInt(to - from);
+        fBuffer.putLong(time);
+        int position = data.position();
+        int limit = data.limit();
+        data.limit(to).position(from);
+        try {
+            if (data.remaining() > fBuffer.remaining()) {
+                flush();
+            }
+            if (data.remaining() > fBuffer.remaining()) {
+                /* bigger than the buffer, packet data, straight to the file */
+                while (data.hasRemaining()) {
+                    fFile.write(data);
+                }
+            } else {
+                fBuffer.put(data);
+            }
+        } finally {
+            data.limit(limit).position(position);
+        }
+        fRecords++;
+        fBytes += to - from;
+    }
+
+    /**
+     * @return the number of records
+     */
+    public long getRecordCount() {
+        return fRecords;
+    }
+
+    /**
+     * @return the number of bytes recorded, without the headers
+     */
+    public long getByteCount() {
+        return fBytes;
+    }
+
+    /**
+     * Append the buffered records to the file
+     *
+     * @throws IOException
+     *             the file could not be written
+     */
+    public void flush() throws IOException {
+        fBuffer.flip();
+        while (fBuffer.hasRemaining()) {
+            fFile.write(fBuffer);
+        }
+        fBuffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            fFile.close();
+        }
+    }
+}
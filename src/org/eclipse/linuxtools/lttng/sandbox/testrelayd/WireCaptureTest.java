@@ -0,0 +1,264 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_index;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_next_index_return_code;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_seek;
+import org.eclipse.linuxtools.lttng.sandbox.testrelayd.LTTngRelayDCommands2_4.lttng_viewer_trace_packet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests the capture of a viewer connection and its replay
+ *
+ * @author Matthew Khouzam
+ */
+public class WireCaptureTest {
+
+    private static final int STREAMS = 2;
+    private static final int PACKETS = 10;
+    private static final long LATENCY = 100;
+
+    /** Holds the capture files */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MockRelayD fRelayd;
+    private InetSocketAddress fAddress;
+    private File fFile;
+
+    /**
+     * Start the mock
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @Before
+    public void setUp() throws IOException {
+        fRelayd = new MockRelayD();
+        fRelayd.setStreamsPerSession(STREAMS);
+        fRelayd.setPacketSize(1024);
+        fRelayd.setPacketCount(PACKETS);
+        fAddress = fRelayd.start(0);
+        fFile = new File(folder.getRoot(), "viewer.capture"); //$NON-NLS-1$
+    }
+
+    /**
+     * Stop the mock
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @After
+    public void tearDown() throws IOException {
+        fRelayd.close();
+    }
+
+    /**
+     * A replayed session reads the same packets as the recorded one, from
+     * memory and from a loopback socket
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @Test
+    public void testReplay() throws IOException {
+        long expected;
+        try (ViewerClient client = ViewerClient.open(fAddress.getHostString(), fAddress.getPort());
+                WireCapture capture = new WireCapture(fFile)) {
+            client.setCapture(capture);
+            expected = read(client);
+            assertTrue(capture.getByteCount() > STREAMS * PACKETS * 1024);
+        }
+        try (WireReplay replay = new WireReplay(fFile)) {
+            replay.setSpeed(0);
+            try (ViewerClient client = new ViewerClient(replay.channel())) {
+                assertEquals(expected, read(client));
+            }
+            InetSocketAddress address = replay.start(0);
+            try (ViewerClient client = ViewerClient.open(address.getHostString(), address.getPort())) {
+                assertEquals(expected, read(client));
+            }
+            assertNull(replay.getError());
+        }
+    }
+
+    /**
+     * A client sending another request fails the replay
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @Test
+    public void testDivergence() throws IOException {
+        try (ViewerClient client = ViewerClient.open(fAddress.getHostString(), fAddress.getPort());
+                WireCapture capture = new WireCapture(fFile)) {
+            client.setCapture(capture);
+            client.connect();
+            client.attachSession(1, lttng_viewer_seek.VIEWER_SEEK_BEGINNING);
+        }
+        try (WireReplay replay = new WireReplay(fFile); ViewerClient client = new ViewerClient(replay.channel())) {
+            client.connect();
+            client.attachSession(1, lttng_viewer_seek.VIEWER_SEEK_LAST);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("diverged")); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * Closing the replay stops its server and fails the channels still open
+     * instead of letting them read the released mapping
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @Test(timeout = 10000)
+    public void testClose() throws IOException {
+        try (ViewerClient client = ViewerClient.open(fAddress.getHostString(), fAddress.getPort());
+                WireCapture capture = new WireCapture(fFile)) {
+            client.setCapture(capture);
+            client.connect();
+        }
+        WireReplay replay = new WireReplay(fFile);
+        replay.start(0);
+        try (ViewerClient client = new ViewerClient(replay.channel())) {
+            replay.close();
+            try {
+                client.connect();
+                fail();
+            } catch (ClosedChannelException e) {
+                /* expected */
+            }
+        }
+        try {
+            replay.channel();
+            fail();
+        } catch (IllegalStateException e) {
+            /* expected */
+        }
+        replay.close();
+    }
+
+    /**
+     * The recorded relayd latency is replayed at speed 1 and halved at speed
+     * 2
+     *
+     * @throws IOException
+     *             should not happen
+     */
+    @Test
+    public void testSpeed() throws IOException {
+        try (ViewerClient client = new ViewerClient(slow(SocketChannel.open(fAddress)));
+                WireCapture capture = new WireCapture(fFile)) {
+            client.setCapture(capture);
+            client.connect();
+            client.listSessions();
+        }
+        try (WireReplay replay = new WireReplay(fFile)) {
+            assertTrue(replay.getDuration() >= TimeUnit.MILLISECONDS.toNanos(2 * LATENCY));
+            assertTrue(time(replay, 1) >= 2 * LATENCY);
+            long fast = time(replay, 2);
+            assertTrue(fast >= LATENCY && fast < 2 * LATENCY);
+            assertTrue(time(replay, 0) < LATENCY);
+        }
+    }
+
+    private static long time(WireReplay replay, double speed) throws IOException {
+        replay.setSpeed(speed);
+        long start = System.nanoTime();
+        try (ViewerClient client = new ViewerClient(replay.channel())) {
+            client.connect();
+            client.listSessions();
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    /* a blocking channel whose first read after a write waits LATENCY ms */
+    private static ByteChannel slow(final SocketChannel channel) {
+        return new ByteChannel() {
+            private boolean fWritten;
+
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                fWritten = true;
+                return channel.write(src);
+            }
+
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                if (fWritten) {
+                    fWritten = false;
+                    try {
+                        Thread.sleep(LATENCY);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return channel.read(dst);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    /* attach, read every stream to its end in turn and sum the packets */
+    private static long read(ViewerClient client) throws IOException {
+        client.connect();
+        AttachedSession session = client.attachSession(client.listSessions()[0].getId(), lttng_viewer_seek.VIEWER_SEEK_BEGINNING);
+        lttng_viewer_index index = new lttng_viewer_index();
+        lttng_viewer_trace_packet reply = new lttng_viewer_trace_packet();
+        PacketArena arena = new PacketArena();
+        long sum = 0;
+        for (long id : session.getDataStreamIds()) {
+            while (client.getNextIndex(id, index).status != lttng_viewer_next_index_return_code.VIEWER_INDEX_HUP) {
+                if (index.status != lttng_viewer_next_index_return_code.VIEWER_INDEX_OK) {
+                    continue;
+                }
+                PacketBuffer packet = client.getPacket(id, index, reply, arena);
+                ByteBuffer data = packet.buffer();
+                for (int i = 0; i < packet.length(); i++) {
+                    sum = sum * 31 + data.get(i);
+                }
+                packet.release();
+            }
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,423 @@
+/**********************************************************************
+ * Copyright (c) 2013 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Matthew Khouzam - Initial implementation
+ **********************************************************************/
+
+package org.eclipse.linuxtools.lttng.sandbox.testrelayd;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays a {@link WireCapture} back to a client, as the relay daemon of the
+ * recorded connection: either through an in-memory channel given to
+ * {@link ViewerClient#ViewerClient(java.nio.channels.ByteChannel)} or through
+ * a loopback socket.
+ *
+ * The requests of the client must be the recorded ones, byte for byte; the
+ * first difference fails the replay. A reply is given once the request that
+ * preceded it in the capture was received, in chunks of the recorded reads.
+ *
+ * At speed 1, a reply is held back for the time relayd took to produce it in
+ * the capture, counted from the moment the client sent the preceding request.
+ * The server latencies are replayed while the client runs at its own pace,
+ * so a faster client finishes sooner. Speed 2 halves the latencies and speed 0
+ * answers as fast as possible.
+ *
+ * The capture stays mapped until the replay is closed. Closing it stops the
+ * loopback server and fails the channels still open with a
+ * {@link ClosedChannelException}, then releases the mapping.
+ *
+ * @author Matthew Khouzam
+ */
+public class WireReplay implements Closeable {
+
+    private static final int ACCEPT_BACKLOG = 4;
+
+    /* null once closed, the channels only read it holding the replay lock */
+    private MappedByteBuffer fMap;
+    private final int fCount;
+    private final boolean[] fSent;
+    private final int[] fPosition;
+    private final int[] fLength;
+    private final long[] fTime;
+    /* the last request before each record, -1 if there is none */
+    private final int[] fCause;
+    private volatile double fSpeed = 1.0;
+    private ServerSocketChannel fServer;
+    private Thread fThread;
+    private volatile IOException fError;
+    private volatile int fServed;
+
+    /**
+     * Load a capture
+     *
+     * @param capture
+     *            the capture file
+     * @throws IOException
+     *             the file could not be read or is not a capture
+     */
+    public WireReplay(File capture) throws IOException {
+        try (FileChannel file = FileChannel.open(capture.toPath(), StandardOpenOption.READ)) {
+            if (file.size() > Integer.MAX_VALUE) {
+                throw new IOException("Capture too big to be mapped " + capture); //$NON-NLS-1$
+            }
+            fMap = file.map(MapMode.READ_ONLY, 0, file.size());
+        }
+        fMap.order(ByteOrder.BIG_ENDIAN);
+        if (fMap.limit() < WireCapture.HEADER_SIZE || fMap.getInt(0) != WireCapture.MAGIC) {
+            Unmapper.unmap(fMap);
+            throw new IOException("Not a capture file " + capture); //$NON-NLS-1$
+        }
+        int capacity = 1024;
+        boolean[] sent = new boolean[capacity];
+        int[] position = new int[capacity];
+        int[] length = new int[capacity];
+        long[] time = new long[capacity];
+        int[] cause = new int[capacity];
+        int count = 0;
+        int last = -1;
+        int at = WireCapture.HEADER_SIZE;
+        /* a partial record at the end is the trace of a crash, ignore it */
+        while (at + WireCapture.RECORD_HEADER_SIZE <= fMap.limit()) {
+            int len = fMap.getInt(at + 4);
+            int data = at + WireCapture.RECORD_HEADER_SIZE;
+            if (len < 0 || data + (long) len > fMap.limit()) {
+                break;
+            }
+            if (count == capacity) {
+                capacity *= 2;
+                sent = Arrays.copyOf(sent, capacity);
+                position = Arrays.copyOf(position, capacity);
+                length = Arrays.copyOf(length, capacity);
+                time = Arrays.copyOf(time, capacity);
+                cause = Arrays.copyOf(cause, capacity);
+            }
+            sent[count] = fMap.get(at) == WireCapture.SENT;
+            position[count] = data;
+            length[count] = len;
+            time[count] = fMap.getLong(at + 8);
+            cause[count] = last;
+            if (sent[count]) {
+                last = count;
+            }
+            count++;
+            at = data + len;
+        }
+        fCount = count;
+        fSent = sent;
+        fPosition = position;
+        fLength = length;
+        fTime = time;
+        fCause = cause;
+    }
+
+    /**
+     * Set the replay speed, for the channels and connections opened after
+     * the call
+     *
+     * @param speed
+     *            1 replays the recorded latencies, 0 none
+     */
+    public void setSpeed(double speed) {
+        if (speed < 0) {
+            throw new IllegalArgumentException("Speed must not be negative"); //$NON-NLS-1$
+        }
+        fSpeed = speed;
+    }
+
+    /**
+     * @return the number of records of the capture
+     */
+    public int getRecordCount() {
+        return fCount;
+    }
+
+    /**
+     * @return the recorded time between the first and the last record, in
+     *         nanoseconds
+     */
+    public long getDuration() {
+        return (fCount == 0) ? 0 : fTime[fCount - 1] - fTime[0];
+    }
+
+    /**
+     * Open a channel replaying the capture from its start
+     *
+     * @return the channel, to give to a {@link ViewerClient}
+     */
+    public synchronized ByteChannel channel() {
+        checkOpen();
+        return new ReplayChannel(fSpeed);
+    }
+
+    /**
+     * Replay the capture to every connection accepted on a loopback port, one
+     * connection at a time
+     *
+     * @param port
+     *            the port, 0 for any free port
+     * @return the address to connect to
+     * @throws IOException
+     *             the port could not be bound
+     */
+    public synchronized InetSocketAddress start(int port) throws IOException {
+        checkOpen();
+        fServer = ServerSocketChannel.open();
+        fServer.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), ACCEPT_BACKLOG);
+        fThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "WireReplay"); //$NON-NLS-1$
+        fThread.setDaemon(true);
+        fThread.start();
+        return (InetSocketAddress) fServer.getLocalAddress();
+    }
+
+    /**
+     * @return the number of connections served to the end of the capture
+     */
+    public int getServed() {
+        return fServed;
+    }
+
+    /**
+     * @return why the last connection served was closed before the end of
+     *         the capture, null if it was not
+     */
+    public IOException getError() {
+        return fError;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        MappedByteBuffer map = fMap;
+        fMap = null;
+        if (fServer != null) {
+            fServer.close();
+            fThread.interrupt();
+            /* the server thread reads the mapping until it ends */
+            try {
+                fThread.join();
+            } catch (InterruptedException e) {
+                /* the mapping goes with the collector */
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        Unmapper.unmap(map);
+    }
+
+    private void checkOpen() {
+        if (fMap == null) {
+            throw new IllegalStateException("The replay is closed"); //$NON-NLS-1$
+        }
+    }
+
+    private void serve() {
+        while (true) {
+            try (SocketChannel socket = fServer.accept()) {
+                socket.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+                play(socket);
+                fError = null;
+                fServed++;
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                fError = e;
+            }
+        }
+    }
+
+    /* plays the relayd side of the capture on a blocking socket */
+    private void play(SocketChannel socket) throws IOException {
+        double speed = fSpeed;
+        long start = System.nanoTime();
+        long[] sentAt = new long[fCount];
+        MappedByteBuffer map = fMap;
+        if (map == null) {
+            throw new ClosedChannelException();
+        }
+        ByteBuffer view = map.duplicate();
+        ByteBuffer request = ByteBuffer.allocateDirect(WireCapture.BUFFER_SIZE);
+        for (int i = 0; i < fCount; i++) {
+            int at = fPosition[i];
+            int len = fLength[i];
+            if (fSent[i]) {
+                int done = 0;
+                while (done < len) {
+                    request.clear();
+                    request.limit(Math.min(len - done, request.capacity()));
+                    if (socket.read(request) < 0) {
+                        throw new EOFException("The client closed the connection at record " + i); //$NON-NLS-1$
+                    }
+                    for (int j = 0; j < request.position(); j++) {
+                        if (request.get(j) != map.get(at + done + j)) {
+                            throw new IOException("The client diverged from the capture at record " + i); //$NON-NLS-1$
+                        }
+                    }
+                    done += request.position();
+                }
+                sentAt[i] = System.nanoTime();
+            } else {
+                await(i, speed, start, sentAt);
+                view.limit(at + len).position(at);
+                while (view.hasRemaining()) {
+                    socket.write(view);
+                }
+            }
+        }
+    }
+
+    /* holds a reply back for its recorded latency */
+    private void await(int record, double speed, long start, long[] sentAt) {
+        if (speed == 0) {
+            return;
+        }
+        int cause = fCause[record];
+        long base = (cause < 0) ? start : sentAt[cause];
+        long latency = fTime[record] - ((cause < 0) ? 0 : fTime[cause]);
+        long deadline = base + (long) (latency / speed);
+        for (long now = System.nanoTime(); now < deadline; now = System.nanoTime()) {
+            LockSupport.parkNanos(deadline - now);
+        }
+    }
+
+    /**
+     * In-memory relayd, requests and replies go through separate cursors
+     * so that pipelined requests match whatever the client already read
+     */
+    private class ReplayChannel implements ByteChannel {
+        private final double fReplaySpeed;
+        private final long fStart = System.nanoTime();
+        private final long[] fSentAt = new long[fCount];
+        private final ByteBuffer fView = fMap.duplicate();
+        private int fSendRecord;
+        private int fSendOffset;
+        private int fReceiveRecord;
+        private int fReceiveOffset;
+        private boolean fOpen = true;
+
+        public ReplayChannel(double speed) {
+            fReplaySpeed = speed;
+            fSendRecord = next(-1, true);
+            fReceiveRecord = next(-1, false);
+        }
+
+        private int next(int record, boolean sent) {
+            int i = record + 1;
+            while (i < fCount && fSent[i] != sent) {
+                i++;
+            }
+            return i;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            check();
+            int written = 0;
+            synchronized (WireReplay.this) {
+                MappedByteBuffer map = mapped();
+                while (src.hasRemaining()) {
+                    if (fSendRecord >= fCount) {
+                        throw new IOException("Request past the end of the capture"); //$NON-NLS-1$
+                    }
+                    int at = fPosition[fSendRecord] + fSendOffset;
+                    int len = Math.min(src.remaining(), fLength[fSendRecord] - fSendOffset);
+                    for (int j = 0; j < len; j++) {
+                        if (src.get() != map.get(at + j)) {
+                            throw new IOException("The client diverged from the capture at record " + fSendRecord); //$NON-NLS-1$
+                        }
+                    }
+                    written += len;
+                    fSendOffset += len;
+                    if (fSendOffset == fLength[fSendRecord]) {
+                        fSentAt[fSendRecord] = System.nanoTime();
+                        fSendRecord = next(fSendRecord, true);
+                        fSendOffset = 0;
+                    }
+                }
+            }
+            return written;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            check();
+            if (fReceiveRecord >= fCount) {
+                return -1;
+            }
+            int cause = fCause[fReceiveRecord];
+            if (cause >= fSendRecord) {
+                throw new IOException("The client waits for a reply to a request it did not send, record " + fReceiveRecord); //$NON-NLS-1$
+            }
+            if (fReceiveOffset == 0) {
+                await(fReceiveRecord, fReplaySpeed, fStart, fSentAt);
+            }
+            int at = fPosition[fReceiveRecord] + fReceiveOffset;
+            int len = Math.min(dst.remaining(), fLength[fReceiveRecord] - fReceiveOffset);
+            synchronized (WireReplay.this) {
+                mapped();
+                fView.limit(at + len).position(at);
+                dst.put(fView);
+            }
+            fReceiveOffset += len;
+            if (fReceiveOffset == fLength[fReceiveRecord]) {
+                fReceiveRecord = next(fReceiveRecord, false);
+                fReceiveOffset = 0;
+            }
+            return len;
+        }
+
+        private void check() throws ClosedChannelException {
+            if (!fOpen) {
+                throw new ClosedChannelException();
+            }
+        }
+
+        /* call holding the replay lock, fails once the replay is closed */
+        private MappedByteBuffer mapped() throws ClosedChannelException {
+            MappedByteBuffer map = fMap;
+            if (map == null) {
+                throw new ClosedChannelException();
+            }
+            return map;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return fOpen;
+        }
+
+        @Override
+        public void close() {
+            fOpen = false;
+        }
+    }
+}